@@ -1,5 +1,5 @@
 # -*- coding: utf-8 -*-
-import sys, time, pymongo, bson, urllib, urllib2, httplib, socket, urlparse, random, types
+import sys, time, pymongo, bson, urllib, urllib2, httplib, socket, urlparse, random, types, zlib
 import json
 from txjsonrpc import jsonrpclib
 from txjsonrpc.jsonrpc import Introspection
@@ -11,13 +11,12 @@ from twisted.internet.protocol import ClientCreator
 from twisted.internet.defer import inlineCallbacks
 from thrift import Thrift
 from thrift.transport import TTwisted, TSocket
-from thrift.protocol import TBinaryProtocol
+from thrift.protocol import TBinaryProtocol, TCompactProtocol
 sys.path.append('gen-py.twisted')
 from memorystructure import MemoryStructure as ms
 from memorystructure.ttypes import *
 sys.path.append('../lib')
 import config_hci, lru, gexf
-import processor
 
 defer.setDebugging(True)
 
@@ -45,8 +44,23 @@ def convert_urls_to_lrus_array(urls):
         urls = urls.split(",")
     return [lru.url_to_lru_clean(url) for url in urls]
 
+class ZlibThriftClientProtocol(TTwisted.ThriftClientProtocol):
+    # each frame holds one message compressed on its own, as the memory structure's zlib transport expects
+    def sendString(self, data):
+        TTwisted.ThriftClientProtocol.sendString(self, zlib.compress(data, 1))
+    def stringReceived(self, frame):
+        TTwisted.ThriftClientProtocol.stringReceived(self, zlib.decompress(frame))
+
 def getThriftConn():
-    return ClientCreator(reactor, TTwisted.ThriftClientProtocol, ms.Client, TBinaryProtocol.TBinaryProtocolFactory()).connectTCP(config['memoryStructure']['thrift.IP'], config['memoryStructure']['thrift.port'])
+    if config['memoryStructure'].get('thrift.protocol', 'binary') == 'compact':
+        protocol_factory = TCompactProtocol.TCompactProtocolFactory()
+    else:
+        protocol_factory = TBinaryProtocol.TBinaryProtocolFactory()
+    if config['memoryStructure'].get('thrift.transport', 'framed') == 'zlib':
+        client_protocol = ZlibThriftClientProtocol
+    else:
+        client_protocol = TTwisted.ThriftClientProtocol
+    return ClientCreator(reactor, client_protocol, ms.Client, protocol_factory).connectTCP(config['memoryStructure']['thrift.IP'], config['memoryStructure']['thrift.port'])
 
 class Core(jsonrpc.JSONRPC):
 
@@ -659,25 +673,17 @@ class Memory_Structure(jsonrpc.JSONRPC):
         ids = [bson.ObjectId(str(record['_id'])) for record in page_items]
         if (len(ids) > 0):
             page_items.rewind()
-            pages, links = processor.generate_cache_from_pages_list(page_items, config["precisionLimit"], self.precision_exceptions)
+            pages = [CrawledPage(str(page_item["_id"]), page_item["url"].encode('utf8'), page_item["lru"].encode('utf8'), str(page_item["timestamp"]), int(page_item["status"]), int(page_item["depth"]), str(page_item["error"]), [lrulink.encode('utf8') for lrulink in page_item.get("lrulinks", [])]) for page_item in page_items]
             s=time.time()
             try:
-                cache_id = yield client.createCache(pages.values())
-                nb_pages = yield client.indexCache(cache_id)
-                print "... "+str(nb_pages)+" pages indexed in "+str(time.time()-s)+"s ..."
+                res = yield client.ingestCrawledPages(pages)
             except Exception as e:
                 print "ERROR Comm thrift: ", e
                 return
-            s=time.time()
-            nb_links = len(links)
-            for link_list in [links[i:i+config['memoryStructure']['max_simul_links_indexing']] for i in range(0, nb_links, config['memoryStructure']['max_simul_links_indexing'])]:
-                yield client.saveNodeLinks([NodeLink("id",source,target,weight) for source,target,weight in link_list])
-            print "... "+str(nb_links)+" links indexed in "+str(time.time()-s)+"s ..."
-            s=time.time()
-            n_WE = yield client.createWebEntities(cache_id)
-            print "... %s web entities created in %s" % (n_WE, str(time.time()-s))+"s"
-            self.total_webentities += n_WE
-            yield client.deleteCache(cache_id)
+            nb_pages = res.pageItems
+            nb_links = res.nodeLinks
+            print "... %s pages, %s links indexed and %s web entities created in %ss ..." % (nb_pages, nb_links, res.webEntities, str(time.time()-s))
+            self.total_webentities += res.webEntities
             resdb = self.db[config['mongo-scrapy']['queueCol']].remove({'_id': {'$in': ids}}, safe=True)
             if (resdb['err']):
                 print "ERROR cleaning queue in database for job %s" % jobid, resdb
@@ -932,27 +938,14 @@ class Memory_Structure(jsonrpc.JSONRPC):
         client = conn.client
         s = time.time()
         print "Generating %s webentities network ..." % outformat
-        if self.webentities_links == []:
-            self.webentities_links = yield client.getWebEntityLinks()
         if outformat == "gexf":
-            WEs = yield self.ramcache_webentities(client)
-            WEs_metadata = {}
-            for WE in WEs:
-                date = ''
-                if WE.lastModificationDate:
-                    date = WE.lastModificationDate
-                elif WE.creationDate:
-                    date = WE.creationDate
-                pages = yield client.getPagesFromWebEntity(WE.id)
-                WEs_metadata[WE.id] = {"name": WE.name, "date": date, "LRUSet": ",".join(WE.LRUSet), "nb_pages": len(pages), "nb_intern_links": 0}
-                WE_links = yield client.findWebEntityLinksBySource(WE.id)
-                for link in WE_links:
-                    if link.targetId == WE.id:
-                        WEs_metadata[WE.id]['nb_intern_links'] = link.weight
-            gexf.write_WEs_network_from_MS(self.webentities_links, WEs_metadata, 'test_welinks.gexf')
-            print "... GEXF network generated in test_welinks.gexf in "+str(time.time()-s)
-            defer.returnValue(None)
+            # written in the memory structure's export directory, which gives back the full path
+            export = yield client.exportWebEntitiesNetwork("gexf", "webentities_network.gexf")
+            print "... GEXF network generated in %s (%s bytes, %s webentities, %s links) in %s" % (export.path, export.size, export.nodesCount, export.edgesCount, str(time.time()-s))
+            defer.returnValue(export.path)
         elif outformat == "json":
+            if self.webentities_links == []:
+                self.webentities_links = yield client.getWebEntityLinks()
             res = [[link.sourceId, link.targetId, link.weight] for link in self.webentities_links]
             print "... JSON network generated in "+str(time.time()-s)
             defer.returnValue(res)
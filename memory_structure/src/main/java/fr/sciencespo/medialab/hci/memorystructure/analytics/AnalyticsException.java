@@ -0,0 +1,27 @@
+package fr.sciencespo.medialab.hci.memorystructure.analytics;
+
+/**
+ * @author agent
+ */
+public class AnalyticsException extends Exception {
+
+    /**
+	 * 
+	 */
+	private static final long serialVersionUID = 4163557013204567717L;
+
+	public AnalyticsException() {
+    }
+
+    public AnalyticsException(String message) {
+        super(message);
+    }
+
+    public AnalyticsException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    public AnalyticsException(Throwable cause) {
+        super(cause);
+    }
+}
@@ -0,0 +1,289 @@
+package fr.sciencespo.medialab.hci.memorystructure.analytics;
+
+import fr.sciencespo.medialab.hci.memorystructure.util.DynamicLogger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Computes in- and out-degrees, weighted PageRank and weighted HITS hub and authority scores over a LinkGraph. Each
+ * step is split in ranges of nodes that are processed in parallel; every range only writes the entries of its own
+ * nodes, so no locking is needed.
+ *
+ * @author agent
+ */
+public class GraphAnalytics {
+
+    private static DynamicLogger logger = new DynamicLogger(GraphAnalytics.class);
+
+    public static final double DAMPING = 0.85;
+    public static final int MAX_ITERATIONS = 100;
+    public static final double TOLERANCE = 1.0e-9;
+
+    // below this number of nodes per range, parallelism costs more than it saves
+    private static final int MIN_RANGE_SIZE = 1024;
+
+    private final int parallelism;
+    private final ExecutorService executorService;
+
+    /**
+     * A computation over the nodes from (inclusive) to (exclusive), returning a value that is summed over all ranges.
+     */
+    private interface RangeComputation {
+        double compute(int from, int to);
+    }
+
+    public GraphAnalytics(int parallelism) {
+        this.parallelism = parallelism;
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.executorService = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "graph-analytics-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public void shutdown() {
+        executorService.shutdownNow();
+    }
+
+    /**
+     * Computes all scores for a graph.
+     *
+     * @param graph graph
+     * @return scores
+     * @throws AnalyticsException hmm
+     */
+    public GraphScores compute(LinkGraph graph) throws AnalyticsException {
+        long start = System.currentTimeMillis();
+        int n = graph.getNodeCount();
+        int[] inDegree = new int[n];
+        int[] outDegree = new int[n];
+        long[] weightedInDegree = new long[n];
+        long[] weightedOutDegree = new long[n];
+        computeDegrees(graph, inDegree, outDegree, weightedInDegree, weightedOutDegree);
+        double[] pageRank = computePageRank(graph, weightedOutDegree);
+        double[] hub = new double[n];
+        double[] authority = new double[n];
+        computeHits(graph, hub, authority);
+        logger.info("computed scores of " + n + " webentities and " + graph.getEdgeCount() + " webentity links in " + (System.currentTimeMillis() - start) + " ms");
+        return new GraphScores(graph, inDegree, outDegree, weightedInDegree, weightedOutDegree, pageRank, hub, authority);
+    }
+
+    private void computeDegrees(LinkGraph graph, final int[] inDegree, final int[] outDegree, final long[] weightedInDegree, final long[] weightedOutDegree) throws AnalyticsException {
+        final int[] outOffsets = graph.getOutOffsets();
+        final int[] outWeights = graph.getOutWeights();
+        final int[] inOffsets = graph.getInOffsets();
+        final int[] inWeights = graph.getInWeights();
+        inParallel(graph.getNodeCount(), new RangeComputation() {
+            public double compute(int from, int to) {
+                for(int v = from; v < to; v++) {
+                    outDegree[v] = outOffsets[v + 1] - outOffsets[v];
+                    inDegree[v] = inOffsets[v + 1] - inOffsets[v];
+                    long weight = 0;
+                    for(int e = outOffsets[v]; e < outOffsets[v + 1]; e++) {
+                        weight += outWeights[e];
+                    }
+                    weightedOutDegree[v] = weight;
+                    weight = 0;
+                    for(int e = inOffsets[v]; e < inOffsets[v + 1]; e++) {
+                        weight += inWeights[e];
+                    }
+                    weightedInDegree[v] = weight;
+                }
+                return 0;
+            }
+        });
+    }
+
+    /**
+     * Weighted PageRank: a webentity passes its rank to the webentities it links to in proportion to the link
+     * weights. The rank of webentities without outgoing links is spread over all webentities.
+     */
+    private double[] computePageRank(LinkGraph graph, final long[] weightedOutDegree) throws AnalyticsException {
+        final int n = graph.getNodeCount();
+        final int[] inOffsets = graph.getInOffsets();
+        final int[] inSources = graph.getInSources();
+        final int[] inWeights = graph.getInWeights();
+        double[] rank = new double[n];
+        double[] next = new double[n];
+        if(n == 0) {
+            return rank;
+        }
+        Arrays.fill(rank, 1.0 / n);
+        int iteration = 0;
+        double delta = Double.MAX_VALUE;
+        while(iteration < MAX_ITERATIONS && delta > TOLERANCE) {
+            final double[] current = rank;
+            final double[] updated = next;
+            double dangling = inParallel(n, new RangeComputation() {
+                public double compute(int from, int to) {
+                    double sum = 0;
+                    for(int v = from; v < to; v++) {
+                        if(weightedOutDegree[v] == 0) {
+                            sum += current[v];
+                        }
+                    }
+                    return sum;
+                }
+            });
+            final double base = (1 - DAMPING) / n + DAMPING * dangling / n;
+            delta = inParallel(n, new RangeComputation() {
+                public double compute(int from, int to) {
+                    double delta = 0;
+                    for(int v = from; v < to; v++) {
+                        double sum = 0;
+                        for(int e = inOffsets[v]; e < inOffsets[v + 1]; e++) {
+                            int u = inSources[e];
+                            if(weightedOutDegree[u] > 0) {
+                                sum += current[u] * inWeights[e] / weightedOutDegree[u];
+                            }
+                        }
+                        updated[v] = base + DAMPING * sum;
+                        delta += Math.abs(updated[v] - current[v]);
+                    }
+                    return delta;
+                }
+            });
+            next = rank;
+            rank = updated;
+            iteration++;
+        }
+        if(logger.isDebugEnabled()) {
+            logger.debug("pagerank converged to " + delta + " after " + iteration + " iterations");
+        }
+        return rank;
+    }
+
+    /**
+     * Weighted HITS: the authority of a webentity is the weighted sum of the hub scores of the webentities linking to
+     * it, the hub score of a webentity is the weighted sum of the authorities of the webentities it links to. Both are
+     * normalized to unit length after each iteration.
+     */
+    private void computeHits(LinkGraph graph, double[] hubResult, double[] authorityResult) throws AnalyticsException {
+        final int n = graph.getNodeCount();
+        if(n == 0) {
+            return;
+        }
+        final int[] outOffsets = graph.getOutOffsets();
+        final int[] outTargets = graph.getOutTargets();
+        final int[] outWeights = graph.getOutWeights();
+        final int[] inOffsets = graph.getInOffsets();
+        final int[] inSources = graph.getInSources();
+        final int[] inWeights = graph.getInWeights();
+        final double[] hub = hubResult;
+        final double[] authority = authorityResult;
+        final double[] previousHub = new double[n];
+        Arrays.fill(hub, 1.0 / Math.sqrt(n));
+        int iteration = 0;
+        double delta = Double.MAX_VALUE;
+        while(iteration < MAX_ITERATIONS && delta > TOLERANCE) {
+            System.arraycopy(hub, 0, previousHub, 0, n);
+            double norm = Math.sqrt(inParallel(n, new RangeComputation() {
+                public double compute(int from, int to) {
+                    double squares = 0;
+                    for(int v = from; v < to; v++) {
+                        double sum = 0;
+                        for(int e = inOffsets[v]; e < inOffsets[v + 1]; e++) {
+                            sum += inWeights[e] * hub[inSources[e]];
+                        }
+                        authority[v] = sum;
+                        squares += sum * sum;
+                    }
+                    return squares;
+                }
+            }));
+            scale(authority, norm);
+            norm = Math.sqrt(inParallel(n, new RangeComputation() {
+                public double compute(int from, int to) {
+                    double squares = 0;
+                    for(int u = from; u < to; u++) {
+                        double sum = 0;
+                        for(int e = outOffsets[u]; e < outOffsets[u + 1]; e++) {
+                            sum += outWeights[e] * authority[outTargets[e]];
+                        }
+                        hub[u] = sum;
+                        squares += sum * sum;
+                    }
+                    return squares;
+                }
+            }));
+            scale(hub, norm);
+            delta = inParallel(n, new RangeComputation() {
+                public double compute(int from, int to) {
+                    double delta = 0;
+                    for(int u = from; u < to; u++) {
+                        delta += Math.abs(hub[u] - previousHub[u]);
+                    }
+                    return delta;
+                }
+            });
+            iteration++;
+        }
+        if(logger.isDebugEnabled()) {
+            logger.debug("hits converged to " + delta + " after " + iteration + " iterations");
+        }
+    }
+
+    private void scale(final double[] values, final double norm) throws AnalyticsException {
+        if(norm == 0) {
+            return;
+        }
+        inParallel(values.length, new RangeComputation() {
+            public double compute(int from, int to) {
+                for(int v = from; v < to; v++) {
+                    values[v] /= norm;
+                }
+                return 0;
+            }
+        });
+    }
+
+    /**
+     * Runs a computation over all nodes, split in ranges processed in parallel.
+     *
+     * @return sum of the values returned for each range
+     */
+    private double inParallel(int n, final RangeComputation computation) throws AnalyticsException {
+        int rangeSize = Math.max(MIN_RANGE_SIZE, (n + parallelism - 1) / parallelism);
+        if(rangeSize >= n) {
+            return computation.compute(0, n);
+        }
+        List<Callable<Double>> tasks = new ArrayList<Callable<Double>>();
+        for(int from = 0; from < n; from += rangeSize) {
+            final int start = from;
+            final int end = Math.min(n, from + rangeSize);
+            tasks.add(new Callable<Double>() {
+                public Double call() {
+                    return computation.compute(start, end);
+                }
+            });
+        }
+        try {
+            double sum = 0;
+            for(Future<Double> result : executorService.invokeAll(tasks)) {
+                sum += result.get();
+            }
+            return sum;
+        }
+        catch(InterruptedException x) {
+            Thread.currentThread().interrupt();
+            throw new AnalyticsException("interrupted while computing graph scores", x);
+        }
+        catch(ExecutionException x) {
+            logger.error(x.getMessage());
+            x.printStackTrace();
+            throw new AnalyticsException(x.getMessage(), x.getCause());
+        }
+    }
+}
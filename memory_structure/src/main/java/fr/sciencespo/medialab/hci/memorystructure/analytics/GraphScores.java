@@ -0,0 +1,114 @@
+package fr.sciencespo.medialab.hci.memorystructure.analytics;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Degrees, PageRank and HITS scores of every webentity in a LinkGraph. Arrays are indexed by node position in the
+ * graph.
+ *
+ * @author agent
+ */
+public class GraphScores {
+
+    private final LinkGraph graph;
+    private final int[] inDegree;
+    private final int[] outDegree;
+    private final long[] weightedInDegree;
+    private final long[] weightedOutDegree;
+    private final double[] pageRank;
+    private final double[] hub;
+    private final double[] authority;
+    private Map<String, Integer> positions;
+    private int[] pageRankOrder;
+
+    GraphScores(LinkGraph graph, int[] inDegree, int[] outDegree, long[] weightedInDegree, long[] weightedOutDegree, double[] pageRank, double[] hub, double[] authority) {
+        this.graph = graph;
+        this.inDegree = inDegree;
+        this.outDegree = outDegree;
+        this.weightedInDegree = weightedInDegree;
+        this.weightedOutDegree = weightedOutDegree;
+        this.pageRank = pageRank;
+        this.hub = hub;
+        this.authority = authority;
+    }
+
+    public long getVersion() {
+        return graph.getVersion();
+    }
+
+    public int size() {
+        return graph.getNodeCount();
+    }
+
+    public String getId(int node) {
+        return graph.getId(node);
+    }
+
+    /**
+     * @param id webentity id
+     * @return position of the webentity, or -1 if it has no links and is not in the graph
+     */
+    public synchronized int positionOf(String id) {
+        if(positions == null) {
+            positions = new HashMap<String, Integer>();
+            for(int i = 0; i < graph.getNodeCount(); i++) {
+                positions.put(graph.getId(i), i);
+            }
+        }
+        Integer position = positions.get(id);
+        return position == null ? -1 : position;
+    }
+
+    /**
+     * @return node positions by decreasing PageRank
+     */
+    public synchronized int[] getPageRankOrder() {
+        if(pageRankOrder == null) {
+            Integer[] order = new Integer[graph.getNodeCount()];
+            for(int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    return Double.compare(pageRank[b], pageRank[a]);
+                }
+            });
+            pageRankOrder = new int[order.length];
+            for(int i = 0; i < order.length; i++) {
+                pageRankOrder[i] = order[i];
+            }
+        }
+        return pageRankOrder;
+    }
+
+    public int getInDegree(int node) {
+        return inDegree[node];
+    }
+
+    public int getOutDegree(int node) {
+        return outDegree[node];
+    }
+
+    public long getWeightedInDegree(int node) {
+        return weightedInDegree[node];
+    }
+
+    public long getWeightedOutDegree(int node) {
+        return weightedOutDegree[node];
+    }
+
+    public double getPageRank(int node) {
+        return pageRank[node];
+    }
+
+    public double getHub(int node) {
+        return hub[node];
+    }
+
+    public double getAuthority(int node) {
+        return authority[node];
+    }
+}
@@ -0,0 +1,172 @@
+package fr.sciencespo.medialab.hci.memorystructure.analytics;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable snapshot of the webentity links graph in compressed sparse row form: for each webentity, its outgoing
+ * links are targets[outOffsets[i]] .. targets[outOffsets[i+1] - 1], and likewise for incoming links. Links from a
+ * webentity to itself are its internal links and are not part of the graph.
+ *
+ * @author agent
+ */
+public class LinkGraph {
+
+    private final long version;
+    private final String[] ids;
+    private final int[] outOffsets;
+    private final int[] outTargets;
+    private final int[] outWeights;
+    private final int[] inOffsets;
+    private final int[] inSources;
+    private final int[] inWeights;
+
+    private LinkGraph(long version, String[] ids, int[] outOffsets, int[] outTargets, int[] outWeights, int[] inOffsets, int[] inSources, int[] inWeights) {
+        this.version = version;
+        this.ids = ids;
+        this.outOffsets = outOffsets;
+        this.outTargets = outTargets;
+        this.outWeights = outWeights;
+        this.inOffsets = inOffsets;
+        this.inSources = inSources;
+        this.inWeights = inWeights;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public int getNodeCount() {
+        return ids.length;
+    }
+
+    public int getEdgeCount() {
+        return outTargets.length;
+    }
+
+    public String getId(int node) {
+        return ids[node];
+    }
+
+    int[] getOutOffsets() {
+        return outOffsets;
+    }
+
+    int[] getOutTargets() {
+        return outTargets;
+    }
+
+    int[] getOutWeights() {
+        return outWeights;
+    }
+
+    int[] getInOffsets() {
+        return inOffsets;
+    }
+
+    int[] getInSources() {
+        return inSources;
+    }
+
+    int[] getInWeights() {
+        return inWeights;
+    }
+
+    /**
+     * Collects nodes and links, then lays them out as a LinkGraph.
+     */
+    public static class Builder {
+
+        private final Map<String, Integer> positions = new HashMap<String, Integer>();
+        private final List<String> ids = new ArrayList<String>();
+        private int[] sources = new int[1024];
+        private int[] targets = new int[1024];
+        private int[] weights = new int[1024];
+        private int edgeCount = 0;
+
+        /**
+         * Adds a webentity, if it was not added before.
+         *
+         * @param id webentity id
+         * @return position of the webentity in the graph
+         */
+        public int addNode(String id) {
+            Integer position = positions.get(id);
+            if(position == null) {
+                position = ids.size();
+                positions.put(id, position);
+                ids.add(id);
+            }
+            return position;
+        }
+
+        /**
+         * Adds a link, and its webentities if they were not added before. Links from a webentity to itself are
+         * ignored.
+         *
+         * @param source source webentity id
+         * @param target target webentity id
+         * @param weight link weight
+         */
+        public void addEdge(String source, String target, int weight) {
+            int s = addNode(source);
+            int t = addNode(target);
+            if(s == t) {
+                return;
+            }
+            if(edgeCount == sources.length) {
+                int capacity = sources.length * 2;
+                sources = copyOf(sources, capacity);
+                targets = copyOf(targets, capacity);
+                weights = copyOf(weights, capacity);
+            }
+            sources[edgeCount] = s;
+            targets[edgeCount] = t;
+            weights[edgeCount] = weight;
+            edgeCount++;
+        }
+
+        private static int[] copyOf(int[] array, int length) {
+            int[] copy = new int[length];
+            System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+            return copy;
+        }
+
+        public LinkGraph build(long version) {
+            int n = ids.size();
+            int[] outOffsets = offsets(sources, n);
+            int[] inOffsets = offsets(targets, n);
+            int[] outTargets = new int[edgeCount];
+            int[] outWeights = new int[edgeCount];
+            int[] inSources = new int[edgeCount];
+            int[] inWeights = new int[edgeCount];
+            int[] outNext = copyOf(outOffsets, n);
+            int[] inNext = copyOf(inOffsets, n);
+            for(int e = 0; e < edgeCount; e++) {
+                int o = outNext[sources[e]]++;
+                outTargets[o] = targets[e];
+                outWeights[o] = weights[e];
+                int i = inNext[targets[e]]++;
+                inSources[i] = sources[e];
+                inWeights[i] = weights[e];
+            }
+            return new LinkGraph(version, ids.toArray(new String[n]), outOffsets, outTargets, outWeights, inOffsets, inSources, inWeights);
+        }
+
+        /**
+         * Counting sort offsets: offsets[i] is where the links of node i start, offsets[n] is the number of links.
+         */
+        private int[] offsets(int[] nodes, int n) {
+            int[] offsets = new int[n + 1];
+            for(int e = 0; e < edgeCount; e++) {
+                offsets[nodes[e] + 1]++;
+            }
+            for(int i = 0; i < n; i++) {
+                offsets[i + 1] += offsets[i];
+            }
+            return offsets;
+        }
+    }
+}
@@ -3,6 +3,7 @@ package fr.sciencespo.medialab.hci.memorystructure.cache;
 import fr.sciencespo.medialab.hci.memorystructure.index.IndexConfiguration;
 import fr.sciencespo.medialab.hci.memorystructure.index.IndexException;
 import fr.sciencespo.medialab.hci.memorystructure.index.LRUIndex;
+import fr.sciencespo.medialab.hci.memorystructure.index.WebEntityCreationRuleEngine;
 import fr.sciencespo.medialab.hci.memorystructure.thrift.MemoryStructureException;
 import fr.sciencespo.medialab.hci.memorystructure.thrift.ObjectNotFoundException;
 import fr.sciencespo.medialab.hci.memorystructure.thrift.PageItem;
@@ -12,19 +13,42 @@ import fr.sciencespo.medialab.hci.memorystructure.util.DynamicLogger;
 import fr.sciencespo.medialab.hci.memorystructure.util.StringUtil;
 import fr.sciencespo.medialab.hci.memorystructure.util.LRUUtil;
 
+import org.apache.thrift.TDeserializer;
+import org.apache.thrift.TException;
+import org.apache.thrift.TSerializer;
+import org.apache.thrift.protocol.TCompactProtocol;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Cache.
  *
+ * Caches are used concurrently by Thrift worker threads: the pageItems are guarded by the cache's monitor, which is
+ * only held for short operations. Web entity creation works on a snapshot of the pageItems, so other calls on the same
+ * cache are not blocked while it queries the index.
+ *
  * @author heikki doeleman
  */
 public class Cache {
@@ -34,19 +58,43 @@ public class Cache {
     // TODO make configurable
     private final int MAX_CACHE_SIZE = Integer.MAX_VALUE;
 
+    // caches with fewer pages create their web entities on the calling thread
+    private static final int PARALLEL_WEBENTITY_CREATION_MIN_PAGES = 10000;
+
+    // partitions per thread, so threads that finish early take over the remaining partitions
+    private static final int PARTITIONS_PER_THREAD = 4;
+
     private final String id;
-    private Map<String, PageItem> pageItems = new HashMap<String, PageItem>();
+    private final PageItemStore pageItems;
     private LRUIndex lruIndex;
 
+    // memory taken by the pageItems, and time of last use
+    private volatile long memorySize = 0;
+    private volatile long lastAccess = System.currentTimeMillis();
+
+    // file the pageItems were spilled to, null when they are in memory
+    private volatile File spillFile;
+
 
     /**
-     * Creates a cache with generated id.
+     * Creates a cache with generated id, with the pageItem storage configured in CacheMap.
      *
      * @param lruIndex index
      */
     public Cache(LRUIndex lruIndex) {
+        this(lruIndex, CacheMap.getInstance().createPageItemStore());
+    }
+
+    /**
+     * Creates a cache with generated id.
+     *
+     * @param lruIndex index
+     * @param pageItemStore storage for the pageItems
+     */
+    public Cache(LRUIndex lruIndex, PageItemStore pageItemStore) {
         this.id = UUID.randomUUID().toString();
         this.lruIndex = lruIndex;
+        this.pageItems = pageItemStore;
     }
 
     /**
@@ -58,6 +106,16 @@ public class Cache {
         return id;
     }
 
+    /**
+     * Returns number of pageitems in the cache.
+     *
+     * @return size
+     */
+    public synchronized int size() {
+        ensureLoaded();
+        return this.pageItems.size();
+    }
+
     /**
      * Returns pageitems in the cache.
      *
@@ -65,28 +123,41 @@ public class Cache {
      */
     public List<PageItem> getPageItems() {
         List<PageItem> pageItems = new ArrayList<PageItem>();
-        for(PageItem pageItem : this.pageItems.values()) {
+        for(PageItem pageItem : snapshot()) {
             pageItems.add(pageItem);
         }
         return pageItems;
     }
 
+    /**
+     * Returns the pageItems in the cache as they are now, without guarding the cache while they are iterated. With
+     * off-heap storage, pageItems are decoded one by one as they are iterated.
+     *
+     * @return pageItems
+     */
+    public synchronized Iterable<PageItem> snapshot() {
+        ensureLoaded();
+        return this.pageItems.snapshot();
+    }
+
     /**
      * Adds pageItems to the cache.
      *
      * @param pageItems pageItems
      * @throws MaxCacheSizeException if resulting cache would exceed max cache size
      */
-    public void setPageItems(List<PageItem> pageItems) throws MaxCacheSizeException {
+    public synchronized void setPageItems(List<PageItem> pageItems) throws MaxCacheSizeException {
         logger.trace("adding PageItems to cache");
+        ensureLoaded();
         if(this.pageItems.size() + pageItems.size() > MAX_CACHE_SIZE) {
             String msg = "attempt to add # " + pageItems.size() + " pageItems to cache with id: " + id + ". Cache already contains " + this.pageItems.size() + "pageItems. Allowed max is " + MAX_CACHE_SIZE;
             logger.error(msg);
             throw new MaxCacheSizeException(msg);
         }
         for(PageItem pageItem : pageItems) {
-            this.pageItems.put(pageItem.getLru(), pageItem);
+            this.pageItems.put(pageItem);
         }
+        memorySize = this.pageItems.getMemorySize();
     }
 
     /**
@@ -95,13 +166,13 @@ public class Cache {
      * @param pageItem to remove
      * @throws ObjectNotFoundException if pageItem is not in cache
      */
-    public void removePageItem(PageItem pageItem) throws ObjectNotFoundException {
-        if(logger.isDebugEnabled()) {
-        	logger.trace("removePageItem " + pageItem.getLru());
-        }
-        if(this.pageItems.remove(pageItem.getLru()) == null) {
+    public synchronized void removePageItem(PageItem pageItem) throws ObjectNotFoundException {
+        logger.trace("removePageItem {}", pageItem.getLru());
+        ensureLoaded();
+        if(!this.pageItems.remove(pageItem.getLru())) {
             throw new ObjectNotFoundException().setMsg("Could not find pageItem " + pageItem.getLru() + " in cache with id " + this.id);
         }
+        memorySize = this.pageItems.getMemorySize();
     }
 
     /**
@@ -117,18 +188,23 @@ public class Cache {
         if(rule == null || page == null) {
             return null;
         }
-        WebEntity webEntity = null;
-        if(logger.isDebugEnabled()) {
-        	logger.trace("applyWebEntityCreationRule " + rule.getRegExp());
-        }
+        logger.trace("applyWebEntityCreationRule {}", rule.getRegExp());
         String LRUPrefix = getLRUPrefixAccordingToRule(rule, page.getLru());
-        String name;
         if(LRUPrefix == null) {
             LRUPrefix = page.getLru().substring(0, page.getLru().indexOf('|'));
-            name = "OUTSIDE WEB";
         }
-        name = StringUtil.toTitle(LRUUtil.revertLRU(LRUPrefix));
-        webEntity = new WebEntity();
+        return createWebEntity(LRUPrefix);
+    }
+
+    /**
+     * Creates a discovered web entity for an LRU prefix.
+     *
+     * @param LRUPrefix LRU prefix
+     * @return created web entity
+     */
+    private WebEntity createWebEntity(String LRUPrefix) {
+        String name = StringUtil.toTitle(LRUUtil.revertLRU(LRUPrefix));
+        WebEntity webEntity = new WebEntity();
         webEntity.setName(name);
         webEntity.setLRUSet(new HashSet<String>());
         webEntity.addToLRUSet(LRUPrefix);
@@ -144,28 +220,18 @@ public class Cache {
         String LRUPrefix = null;
         // only apply rule to page with lru that match the rule lruprefix (or if this is the default rule)
         if(pageLRU.startsWith(rule.getLRU()) || rule.getLRU().equals(IndexConfiguration.DEFAULT_WEBENTITY_CREATION_RULE)) {
-            if(logger.isDebugEnabled()) {
-            	logger.debug("page " + pageLRU + " matches rule prefix " + rule.getLRU());
-            }
-            String regexp = rule.getRegExp();
-            Pattern pattern = Pattern.compile(regexp, Pattern.CASE_INSENSITIVE);
-            Matcher matcher = pattern.matcher(pageLRU);
+            logger.debug("page {} matches rule prefix {}", pageLRU, rule.getLRU());
+            Matcher matcher = WebEntityCreationRuleEngine.compile(rule.getRegExp()).matcher(pageLRU);
             if(matcher.find()) {
-                if(logger.isDebugEnabled()) {
-                	logger.trace("rule matches page " + pageLRU);
-                }
+                logger.trace("rule matches page {}", pageLRU);
                 LRUPrefix = matcher.group();
             }
             else {
-                if(logger.isDebugEnabled()) {
-                	logger.trace("rule does not match page " + pageLRU);
-                }
+                logger.trace("rule does not match page {}", pageLRU);
             }
         }
         else {
-            if(logger.isDebugEnabled()) {
-            	logger.trace("page " + pageLRU + " does not match rule prefix " + rule.getLRU());
-            }
+            logger.trace("page {} does not match rule prefix {}", pageLRU, rule.getLRU());
         }
         return LRUPrefix;
     }
@@ -179,48 +245,233 @@ public class Cache {
      */
     public int createWebEntities() throws MemoryStructureException, IndexException {
     	logger.trace("createWebEntities");
-        int createdWebEntitiesCount = 0;
-        WebEntityCreationRule defaultRule = lruIndex.retrieveDefaultWECR();
-        List<WebEntityCreationRule> webEntityCreationRules = lruIndex.retrieveWebEntityCreationRules();
-        Set<String> pageLRUs = this.pageItems.keySet();
-        Set<String> doneLRUPrefixes = new HashSet<String>();
-        WebEntity webEntityDefault;
-        String ruleLRUPrefix, LRUPrefix;
-        Set<String> LRUPrefixesCandidates;
-        WebEntity WEcandidate;
-        logger.trace("cache contains # " + pageLRUs.size() + " pages");
-        for(String pageLRU : pageLRUs) {
-            if(logger.isDebugEnabled()) {
-                logger.debug("createWebEntities for page " + pageLRU);
-            }
-            webEntityDefault = applyWebEntityCreationRule(defaultRule, this.pageItems.get(pageLRU));
-            LRUPrefixesCandidates = new HashSet<String>();
-            if (webEntityDefault != null && webEntityDefault.getLRUSet().size() > 0) {
-                LRUPrefixesCandidates.add((String)(webEntityDefault.getLRUSet().toArray())[0]);
-            }
-            for(WebEntityCreationRule wecr : webEntityCreationRules) {
-                ruleLRUPrefix = wecr.getLRU();
-                if (pageLRU.startsWith(ruleLRUPrefix)) {
-                    LRUPrefixesCandidates.add(ruleLRUPrefix);
-                }
+        Map<String, WebEntity> webEntities = claimWebEntities();
+        logger.trace("indexing # {} candidate webentities", webEntities.size());
+        // store new webentities in index
+        return lruIndex.indexNewWebEntities(webEntities).size();
+    }
+
+    /**
+     * Applies the WebEntityCreationRules to the pages in this cache, without looking up existing webentities.
+     *
+     * @return candidate new webentities, by the LRU prefix they are created for
+     * @throws IndexException hmm
+     */
+    public Map<String, WebEntity> claimWebEntities() throws IndexException {
+        Iterable<PageItem> pageItems = snapshot();
+        WebEntityCreationRuleEngine rules = lruIndex.getWebEntityCreationRuleEngine();
+        // new web entities by the LRU prefix they are created for, indexed all at once
+        ConcurrentMap<String, WebEntity> webEntities = new ConcurrentHashMap<String, WebEntity>();
+        ExecutorService executor = CacheMap.getInstance().getWebEntityCreationExecutor();
+        if(executor != null && size() >= PARALLEL_WEBENTITY_CREATION_MIN_PAGES) {
+            claimWebEntitiesInParallel(rules, pageItems, webEntities, executor, CacheMap.getInstance().getWebEntityCreationThreads());
+        }
+        else {
+            Set<String> doneLRUPrefixes = new HashSet<String>();
+            for(PageItem pageItem : pageItems) {
+                claimWebEntity(rules, pageItem.getLru(), doneLRUPrefixes, webEntities);
             }
-            LRUPrefix = (String) (LRUUtil.findLongestString(LRUPrefixesCandidates)).toArray()[0];
-            if (!doneLRUPrefixes.contains(LRUPrefix)) {
-                WEcandidate = lruIndex.retrieveWebEntityByLRUPrefix(LRUPrefix);
-                if (WEcandidate == null && webEntityDefault != null) {
-                    createdWebEntitiesCount++;
-                    logger.trace("indexing new webentity for prefix "+LRUPrefix);
-                    // store new webentity in index
-                    lruIndex.indexWebEntity(webEntityDefault, false, true);
+        }
+        return webEntities;
+    }
+
+    /**
+     * Finds the LRU prefix of the web entity a page belongs to and, unless it was already found, claims a new web
+     * entity for it as given by the default rule.
+     *
+     * @param rules web entity creation rules
+     * @param pageLRU page lru
+     * @param doneLRUPrefixes LRU prefixes already found by the calling thread
+     * @param webEntities new web entities by LRU prefix, shared by threads
+     */
+    private void claimWebEntity(WebEntityCreationRuleEngine rules, String pageLRU, Set<String> doneLRUPrefixes, ConcurrentMap<String, WebEntity> webEntities) {
+        if(logger.isDebugEnabled()) {
+            logger.debug("createWebEntities for page " + pageLRU);
+        }
+        String defaultLRUPrefix = rules.getDefaultLRUPrefix(pageLRU);
+        String LRUPrefix = rules.getLRUPrefix(pageLRU, defaultLRUPrefix);
+        if(doneLRUPrefixes.add(LRUPrefix) && defaultLRUPrefix != null && !webEntities.containsKey(LRUPrefix)) {
+            webEntities.putIfAbsent(LRUPrefix, createWebEntity(defaultLRUPrefix));
+        }
+    }
+
+    /**
+     * Claims web entities for the pages on several threads. Pages are partitioned by host, so most LRU prefixes are
+     * only found in one partition; those found in several are claimed once through the shared map.
+     */
+    private void claimWebEntitiesInParallel(final WebEntityCreationRuleEngine rules, Iterable<PageItem> pageItems,
+                                            final ConcurrentMap<String, WebEntity> webEntities, ExecutorService executor,
+                                            int threads) throws IndexException {
+        long start = System.currentTimeMillis();
+        int partitionCount = threads * PARTITIONS_PER_THREAD;
+        List<List<String>> partitions = new ArrayList<List<String>>(partitionCount);
+        for(int i = 0; i < partitionCount; i++) {
+            partitions.add(new ArrayList<String>());
+        }
+        for(PageItem pageItem : pageItems) {
+            String host = LRUUtil.getHostStems(pageItem.getLru());
+            partitions.get((host.hashCode() & Integer.MAX_VALUE) % partitionCount).add(pageItem.getLru());
+        }
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(partitionCount);
+        for(final List<String> partition : partitions) {
+            tasks.add(new Callable<Void>() {
+                public Void call() {
+                    Set<String> doneLRUPrefixes = new HashSet<String>();
+                    for(String pageLRU : partition) {
+                        claimWebEntity(rules, pageLRU, doneLRUPrefixes, webEntities);
+                    }
+                    return null;
                 }
-                doneLRUPrefixes.add(LRUPrefix);
+            });
+        }
+        try {
+            for(Future<Void> result : executor.invokeAll(tasks)) {
+                result.get();
             }
         }
-        return createdWebEntitiesCount;
+        catch(InterruptedException x) {
+            Thread.currentThread().interrupt();
+            throw new IndexException("interrupted while creating web entities for cache with id: " + id, x);
+        }
+        catch(ExecutionException x) {
+            logger.error(x.getCause().getMessage());
+            x.printStackTrace();
+            throw new IndexException(x.getCause().getMessage(), x.getCause());
+        }
+        if(logger.isDebugEnabled()) {
+            logger.debug("claimed # " + webEntities.size() + " webentities in # " + partitionCount + " partitions in " + (System.currentTimeMillis() - start) + " ms");
+        }
     }
 
-    public void clear() {
-        logger.trace("clearing cache with id: " + id);
+    public synchronized void clear() {
+        logger.trace("clearing cache with id: {}", id);
+        if(spillFile != null) {
+            if(!spillFile.delete()) {
+                logger.warn("could not delete spill file " + spillFile.getAbsolutePath());
+            }
+            spillFile = null;
+        }
         this.pageItems.clear();
+        memorySize = 0;
+    }
+
+    /**
+     * Returns the estimated memory taken by the pageItems in this cache, 0 if they are spilled to disk.
+     *
+     * @return size in bytes
+     */
+    public long getMemorySize() {
+        return spillFile == null ? memorySize : 0;
+    }
+
+    public long getLastAccess() {
+        return lastAccess;
+    }
+
+    /**
+     * Marks the cache as used now.
+     */
+    public void touch() {
+        lastAccess = System.currentTimeMillis();
+    }
+
+    public boolean isSpilled() {
+        return spillFile != null;
+    }
+
+    /**
+     * Writes the pageItems to a file in the directory, in Thrift compact protocol, and releases them from memory.
+     *
+     * @param directory where to write
+     * @throws IOException hmm
+     */
+    public synchronized void spill(File directory) throws IOException {
+        if(spillFile != null) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        if(!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("could not create cache spill directory " + directory.getAbsolutePath());
+        }
+        File file = new File(directory, id + ".cache");
+        File part = new File(directory, id + ".cache.part");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(part))));
+        try {
+            TSerializer serializer = new TSerializer(new TCompactProtocol.Factory());
+            out.writeInt(pageItems.size());
+            for(PageItem pageItem : pageItems.snapshot()) {
+                byte[] bytes = serializer.serialize(pageItem);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+        catch(TException x) {
+            throw new IOException(x.getMessage(), x);
+        }
+        finally {
+            out.close();
+        }
+        if(!part.renameTo(file)) {
+            part.delete();
+            throw new IOException("could not rename " + part.getAbsolutePath() + " to " + file.getAbsolutePath());
+        }
+        spillFile = file;
+        pageItems.clear();
+        if(logger.isDebugEnabled()) {
+            logger.debug("spilled cache with id: " + id + " of " + memorySize + " bytes to " + file.getAbsolutePath() + " in " + (System.currentTimeMillis() - start) + " ms");
+        }
+    }
+
+    /**
+     * Reads the pageItems back from the file they were spilled to.
+     *
+     * @throws IOException hmm
+     */
+    public synchronized void load() throws IOException {
+        if(spillFile == null) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(spillFile))));
+        try {
+            TDeserializer deserializer = new TDeserializer(new TCompactProtocol.Factory());
+            int count = in.readInt();
+            for(int i = 0; i < count; i++) {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                PageItem pageItem = new PageItem();
+                deserializer.deserialize(pageItem, bytes);
+                pageItems.put(pageItem);
+            }
+            memorySize = pageItems.getMemorySize();
+        }
+        catch(TException x) {
+            throw new IOException(x.getMessage(), x);
+        }
+        finally {
+            in.close();
+        }
+        if(!spillFile.delete()) {
+            logger.warn("could not delete spill file " + spillFile.getAbsolutePath());
+        }
+        spillFile = null;
+        if(logger.isDebugEnabled()) {
+            logger.debug("reloaded cache with id: " + id + " in " + (System.currentTimeMillis() - start) + " ms");
+        }
+    }
+
+    /**
+     * Marks the cache as used, and reloads spilled pageItems before they are used.
+     */
+    private void ensureLoaded() {
+        touch();
+        try {
+            load();
+        }
+        catch(IOException x) {
+            logger.error(x.getMessage());
+            x.printStackTrace();
+            throw new IllegalStateException("could not reload cache with id: " + id, x);
+        }
     }
 }
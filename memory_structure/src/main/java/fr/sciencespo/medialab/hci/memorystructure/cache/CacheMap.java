@@ -1,47 +1,299 @@
 package fr.sciencespo.medialab.hci.memorystructure.cache;
 
 import fr.sciencespo.medialab.hci.memorystructure.thrift.ObjectNotFoundException;
+import fr.sciencespo.medialab.hci.memorystructure.util.DynamicLogger;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Singleton map to hold caches. Caches can be retrieved by their id.
  *
+ * The memory taken by the caches is kept within a budget: when it is exceeded, the least recently used caches are
+ * spilled to disk, and reloaded when they are retrieved again. Caches that are not used for longer than the time to
+ * live are considered abandoned and removed.
+ *
+ * The map is safe for use by concurrent Thrift workers without a global lock.
+ *
  * @author heikki doeleman
  */
 public class CacheMap {
 
-    private static CacheMap instance;
-    private static Map<String, Cache> map;
+    private static DynamicLogger logger = new DynamicLogger(CacheMap.class);
 
-    public synchronized static CacheMap getInstance() {
-        if(instance == null) {
-            instance = new CacheMap();
-        }
+    public static final long DEFAULT_MEMORY_BUDGET = Runtime.getRuntime().maxMemory() / 4;
+    public static final long DEFAULT_TIME_TO_LIVE = TimeUnit.HOURS.toMillis(2);
+    public static final File DEFAULT_SPILL_DIRECTORY = new File(System.getProperty("java.io.tmpdir"), "memorystructure-caches");
+
+    // how often abandoned caches are looked for
+    private static final long SWEEP_INTERVAL_SECONDS = 60;
+
+    private static final CacheMap instance = new CacheMap();
+    private final ConcurrentMap<String, Cache> map;
+
+    private volatile long memoryBudget = DEFAULT_MEMORY_BUDGET;
+    private volatile long timeToLive = DEFAULT_TIME_TO_LIVE;
+    private volatile File spillDirectory = DEFAULT_SPILL_DIRECTORY;
+    private volatile boolean offHeapStorage = false;
+
+    // threads that create web entities of large caches in parallel, null to create them on the calling thread
+    private volatile ExecutorService webEntityCreationExecutor;
+    private volatile int webEntityCreationThreads = 1;
+
+    public static CacheMap getInstance() {
         return instance;
     }
     public Object clone() throws CloneNotSupportedException {
         throw new CloneNotSupportedException();
     }
     private CacheMap() {
-        map = new HashMap<String, Cache>();
+        map = new ConcurrentHashMap<String, Cache>();
+        removeSpillFiles(spillDirectory);
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "cachemap-sweeper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        sweeper.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    removeExpiredCaches();
+                    enforceMemoryBudget(null);
+                }
+                catch(Throwable x) {
+                    logger.error(x.getMessage());
+                    x.printStackTrace();
+                }
+            }
+        }, SWEEP_INTERVAL_SECONDS, SWEEP_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Sets memory budget, time to live and spill directory.
+     *
+     * @param memoryBudget maximum estimated memory taken by caches, in bytes
+     * @param timeToLive time after which an unused cache is removed, in milliseconds
+     * @param spillDirectory directory where caches are spilled
+     */
+    public void configure(long memoryBudget, long timeToLive, File spillDirectory) {
+        logger.info("caches memory budget is " + memoryBudget + " bytes, time to live is " + timeToLive + " ms, spill directory is " + spillDirectory.getAbsolutePath());
+        this.memoryBudget = memoryBudget;
+        this.timeToLive = timeToLive;
+        if(!spillDirectory.equals(this.spillDirectory)) {
+            this.spillDirectory = spillDirectory;
+            removeSpillFiles(spillDirectory);
+        }
+        enforceMemoryBudget(null);
+    }
+
+    /**
+     * Sets whether new caches store their pageItems serialized outside the heap.
+     *
+     * @param offHeapStorage whether to store off-heap
+     */
+    public void setOffHeapStorage(boolean offHeapStorage) {
+        logger.info("caches store pageItems " + (offHeapStorage ? "off-heap" : "on the heap"));
+        this.offHeapStorage = offHeapStorage;
+    }
+
+    /**
+     * Sets the number of threads that create web entities of large caches in parallel; 1 to create them on the thread
+     * calling createWebEntities.
+     *
+     * @param threads number of threads
+     */
+    public synchronized void setWebEntityCreationThreads(int threads) {
+        logger.info("web entities are created with # " + threads + " threads");
+        if(webEntityCreationExecutor != null) {
+            webEntityCreationExecutor.shutdown();
+        }
+        webEntityCreationThreads = threads;
+        if(threads > 1) {
+            webEntityCreationExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "webentity-creation-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        else {
+            webEntityCreationExecutor = null;
+        }
+    }
+
+    /**
+     * @return executor to create web entities in parallel, or null
+     */
+    public ExecutorService getWebEntityCreationExecutor() {
+        return webEntityCreationExecutor;
+    }
+
+    public int getWebEntityCreationThreads() {
+        return webEntityCreationThreads;
+    }
+
+    /**
+     * Creates pageItem storage for a new cache, as configured.
+     *
+     * @return pageItem store
+     */
+    public PageItemStore createPageItemStore() {
+        return offHeapStorage ? new OffHeapPageItemStore() : new HeapPageItemStore();
     }
 
     public void add(Cache cache) {
+        cache.touch();
         map.put(cache.getId(), cache);
+        enforceMemoryBudget(cache);
     }
 
     public void remove(String id) {
-        map.remove(id);
+        Cache cache = map.remove(id);
+        if(cache != null) {
+            cache.clear();
+        }
     }
 
+    /**
+     * Returns a cache, reloading it from disk if it was spilled.
+     *
+     * @param id cache id
+     * @return cache
+     * @throws ObjectNotFoundException if there is no cache with this id
+     */
     public Cache get(String id) throws ObjectNotFoundException {
         Cache cache = map.get(id);
         if(cache == null) {
             throw new ObjectNotFoundException().setMsg("Failed to find cache with id: " + id);
         }
+        cache.touch();
+        if(cache.isSpilled()) {
+            try {
+                cache.load();
+            }
+            catch(IOException x) {
+                logger.error(x.getMessage());
+                x.printStackTrace();
+                throw new ObjectNotFoundException().setMsg("Failed to reload cache with id: " + id + ": " + x.getMessage());
+            }
+            enforceMemoryBudget(cache);
+        }
         return cache;
     }
 
-}
\ No newline at end of file
+    /**
+     * Removes caches that were not used for longer than the time to live.
+     *
+     * @return number of removed caches
+     */
+    public int removeExpiredCaches() {
+        long now = System.currentTimeMillis();
+        List<Cache> expired = new ArrayList<Cache>();
+        for(Iterator<Cache> iterator = map.values().iterator(); iterator.hasNext();) {
+            Cache cache = iterator.next();
+            if(now - cache.getLastAccess() > timeToLive && map.remove(cache.getId(), cache)) {
+                expired.add(cache);
+            }
+        }
+        for(Cache cache : expired) {
+            logger.warn("removing cache with id: " + cache.getId() + ", unused for " + (now - cache.getLastAccess()) / 1000 + " s");
+            cache.clear();
+        }
+        return expired.size();
+    }
+
+    /**
+     * Spills least recently used caches to disk until the caches in memory fit in the memory budget.
+     *
+     * @param keep cache not to spill, or null
+     */
+    private void enforceMemoryBudget(Cache keep) {
+        List<Candidate> candidates = new ArrayList<Candidate>();
+        long total = 0;
+        for(Cache cache : map.values()) {
+            long size = cache.getMemorySize();
+            if(size > 0) {
+                total += size;
+                candidates.add(new Candidate(cache, size, cache.getLastAccess()));
+            }
+        }
+        if(total <= memoryBudget) {
+            return;
+        }
+        Collections.sort(candidates);
+        for(Candidate candidate : candidates) {
+            if(total <= memoryBudget) {
+                break;
+            }
+            if(candidate.cache == keep) {
+                continue;
+            }
+            try {
+                candidate.cache.spill(spillDirectory);
+                total -= candidate.size;
+                // removed by another thread meanwhile: its spill file would not be deleted otherwise
+                if(map.get(candidate.cache.getId()) != candidate.cache) {
+                    candidate.cache.clear();
+                    continue;
+                }
+                logger.info("spilled cache with id: " + candidate.cache.getId() + " of " + candidate.size + " bytes to disk, caches now take " + total + " bytes");
+            }
+            catch(IOException x) {
+                logger.error("could not spill cache with id: " + candidate.cache.getId() + ": " + x.getMessage());
+                x.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Removes spill files left over from a previous run, as caches don't survive restarts.
+     */
+    private static void removeSpillFiles(File directory) {
+        File[] files = directory.listFiles();
+        if(files == null) {
+            return;
+        }
+        for(File file : files) {
+            if(file.getName().endsWith(".cache") || file.getName().endsWith(".cache.part")) {
+                if(!file.delete()) {
+                    logger.warn("could not delete spill file " + file.getAbsolutePath());
+                }
+            }
+        }
+    }
+
+    /**
+     * A cache in memory, with its size and time of last use when the memory budget was checked.
+     */
+    private static class Candidate implements Comparable<Candidate> {
+        private final Cache cache;
+        private final long size;
+        private final long lastAccess;
+
+        private Candidate(Cache cache, long size, long lastAccess) {
+            this.cache = cache;
+            this.size = size;
+            this.lastAccess = lastAccess;
+        }
+
+        public int compareTo(Candidate other) {
+            return lastAccess < other.lastAccess ? -1 : (lastAccess == other.lastAccess ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package fr.sciencespo.medialab.hci.memorystructure.cache;
+
+import fr.sciencespo.medialab.hci.memorystructure.thrift.PageItem;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Stores pageItems as objects on the heap. Their memory is estimated.
+ *
+ * @author agent
+ */
+public class HeapPageItemStore implements PageItemStore {
+
+    // rough per-object overhead in bytes, used to estimate the memory taken by pageItems
+    private static final int OBJECT_OVERHEAD = 48;
+
+    private final Map<String, PageItem> pageItems = new HashMap<String, PageItem>();
+    private long estimatedSize = 0;
+
+    public void put(PageItem pageItem) {
+        PageItem replaced = pageItems.put(pageItem.getLru(), pageItem);
+        estimatedSize += estimateSize(pageItem);
+        if(replaced != null) {
+            estimatedSize -= estimateSize(replaced);
+        }
+    }
+
+    public boolean remove(String lru) {
+        PageItem removed = pageItems.remove(lru);
+        if(removed == null) {
+            return false;
+        }
+        estimatedSize -= estimateSize(removed);
+        return true;
+    }
+
+    public int size() {
+        return pageItems.size();
+    }
+
+    public long getMemorySize() {
+        return estimatedSize;
+    }
+
+    public Iterable<PageItem> snapshot() {
+        return new ArrayList<PageItem>(pageItems.values());
+    }
+
+    public void clear() {
+        pageItems.clear();
+        estimatedSize = 0;
+    }
+
+    /**
+     * Estimates the memory taken by a pageItem: its strings, source set and metadata.
+     *
+     * @param pageItem pageItem
+     * @return size in bytes
+     */
+    static long estimateSize(PageItem pageItem) {
+        long size = 2 * OBJECT_OVERHEAD;
+        size += estimateSize(pageItem.getId()) + estimateSize(pageItem.getUrl()) + estimateSize(pageItem.getLru()) +
+                estimateSize(pageItem.getCrawlerTimestamp()) + estimateSize(pageItem.getErrorCode()) +
+                estimateSize(pageItem.getCreationDate()) + estimateSize(pageItem.getLastModificationDate());
+        if(pageItem.getSourceSet() != null) {
+            for(String source : pageItem.getSourceSet()) {
+                size += OBJECT_OVERHEAD + estimateSize(source);
+            }
+        }
+        if(pageItem.getMetadataItems() != null) {
+            for(Map.Entry<String, Map<String, Set<String>>> metadata : pageItem.getMetadataItems().entrySet()) {
+                size += OBJECT_OVERHEAD + estimateSize(metadata.getKey());
+                for(Map.Entry<String, Set<String>> item : metadata.getValue().entrySet()) {
+                    size += OBJECT_OVERHEAD + estimateSize(item.getKey());
+                    for(String value : item.getValue()) {
+                        size += OBJECT_OVERHEAD + estimateSize(value);
+                    }
+                }
+            }
+        }
+        return size;
+    }
+
+    private static long estimateSize(String string) {
+        return string == null ? 0 : OBJECT_OVERHEAD + 2 * string.length();
+    }
+}
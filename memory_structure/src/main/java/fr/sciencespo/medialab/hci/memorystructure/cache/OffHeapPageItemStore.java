@@ -0,0 +1,325 @@
+package fr.sciencespo.medialab.hci.memorystructure.cache;
+
+import fr.sciencespo.medialab.hci.memorystructure.thrift.PageItem;
+import org.apache.thrift.TDeserializer;
+import org.apache.thrift.TException;
+import org.apache.thrift.TSerializer;
+import org.apache.thrift.protocol.TCompactProtocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Stores pageItems serialized in Thrift compact protocol, in direct buffers outside the heap. PageItems are decoded
+ * when they are iterated, so only the index from lru to record takes heap: an open addressing table of 12 bytes per
+ * slot.
+ *
+ * A record is the length of the rest of the record, the length of the lru, the lru in UTF-8 and the serialized
+ * pageItem. Records are never overwritten: replaced and removed pageItems leave dead records, that are dropped by
+ * copying the live records to new buffers once they take more space than the live ones. Snapshots therefore only
+ * copy the table.
+ *
+ * @author agent
+ */
+public class OffHeapPageItemStore implements PageItemStore {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // size of the direct buffers records are appended to
+    public static final int CHUNK_SIZE = 4 * 1024 * 1024;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // slot values that are not an address
+    private static final long EMPTY = 0;
+    private static final long REMOVED = -1;
+
+    private final TSerializer serializer = new TSerializer(new TCompactProtocol.Factory());
+
+    private List<ByteBuffer> chunks;
+    private ByteBuffer current;
+
+    // address of the record in each slot: chunk number + 1 in the high int, offset in the low int
+    private long[] addresses;
+    // lru hash of the record in each slot, to skip comparing most lrus
+    private int[] hashes;
+
+    private int size;
+    // slots that are not empty, including removed ones
+    private int used;
+    private long liveBytes;
+    private long deadBytes;
+
+    public OffHeapPageItemStore() {
+        clear();
+    }
+
+    public void put(PageItem pageItem) {
+        byte[] lru = pageItem.getLru().getBytes(UTF8);
+        byte[] data;
+        try {
+            data = serializer.serialize(pageItem);
+        }
+        catch(TException x) {
+            throw new IllegalArgumentException("could not serialize pageItem " + pageItem.getLru(), x);
+        }
+        int hash = pageItem.getLru().hashCode();
+        int slot = find(hash, lru);
+        long address = append(lru, data);
+        if(slot >= 0) {
+            int replaced = recordLength(chunks, addresses[slot]);
+            liveBytes -= replaced;
+            deadBytes += replaced;
+            addresses[slot] = address;
+        }
+        else {
+            insert(-slot - 1, hash, address);
+        }
+        liveBytes += recordLength(chunks, address);
+        if(deadBytes > CHUNK_SIZE && deadBytes > liveBytes) {
+            rebuild(addresses.length, true);
+        }
+    }
+
+    public boolean remove(String lru) {
+        int slot = find(lru.hashCode(), lru.getBytes(UTF8));
+        if(slot < 0) {
+            return false;
+        }
+        int removed = recordLength(chunks, addresses[slot]);
+        liveBytes -= removed;
+        deadBytes += removed;
+        addresses[slot] = REMOVED;
+        size--;
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getMemorySize() {
+        long memory = 12L * addresses.length;
+        for(ByteBuffer chunk : chunks) {
+            memory += chunk.capacity();
+        }
+        return memory;
+    }
+
+    public Iterable<PageItem> snapshot() {
+        final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>(this.chunks);
+        final long[] addresses = Arrays.copyOf(this.addresses, this.addresses.length);
+        return new Iterable<PageItem>() {
+            public Iterator<PageItem> iterator() {
+                return new RecordIterator(chunks, addresses);
+            }
+        };
+    }
+
+    /**
+     * Releases the buffers; their memory is freed when they are garbage collected.
+     */
+    public void clear() {
+        chunks = new ArrayList<ByteBuffer>();
+        current = null;
+        addresses = new long[INITIAL_CAPACITY];
+        hashes = new int[INITIAL_CAPACITY];
+        size = 0;
+        used = 0;
+        liveBytes = 0;
+        deadBytes = 0;
+    }
+
+    /**
+     * Finds the slot of the record with this lru.
+     *
+     * @return slot, or -(slot to insert at) - 1 if there is no such record
+     */
+    private int find(int hash, byte[] lru) {
+        int mask = addresses.length - 1;
+        int free = -1;
+        for(int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            long address = addresses[slot];
+            if(address == EMPTY) {
+                return -(free >= 0 ? free : slot) - 1;
+            }
+            if(address == REMOVED) {
+                if(free < 0) {
+                    free = slot;
+                }
+            }
+            else if(hashes[slot] == hash && lruEquals(address, lru)) {
+                return slot;
+            }
+        }
+    }
+
+    private void insert(int slot, int hash, long address) {
+        if(addresses[slot] == EMPTY) {
+            used++;
+        }
+        addresses[slot] = address;
+        hashes[slot] = hash;
+        size++;
+        if(4L * used >= 3L * addresses.length) {
+            rebuild(size * 2 >= addresses.length ? addresses.length * 2 : addresses.length, false);
+        }
+    }
+
+    /**
+     * Rebuilds the table without removed slots, optionally copying the live records to new buffers.
+     */
+    private void rebuild(int capacity, boolean copyRecords) {
+        List<ByteBuffer> oldChunks = chunks;
+        long[] oldAddresses = addresses;
+        int[] oldHashes = hashes;
+        if(copyRecords) {
+            chunks = new ArrayList<ByteBuffer>();
+            current = null;
+            deadBytes = 0;
+        }
+        addresses = new long[capacity];
+        hashes = new int[capacity];
+        used = 0;
+        int mask = capacity - 1;
+        for(int i = 0; i < oldAddresses.length; i++) {
+            long address = oldAddresses[i];
+            if(address == EMPTY || address == REMOVED) {
+                continue;
+            }
+            if(copyRecords) {
+                address = append(oldChunks, address);
+            }
+            int slot = oldHashes[i] & mask;
+            while(addresses[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            addresses[slot] = address;
+            hashes[slot] = oldHashes[i];
+            used++;
+        }
+    }
+
+    /**
+     * Reserves room for a record of this length at the end of the buffers.
+     *
+     * @return address of the record
+     */
+    private long reserve(int length) {
+        if(current == null || current.remaining() < length) {
+            current = ByteBuffer.allocateDirect(Math.max(CHUNK_SIZE, length));
+            chunks.add(current);
+        }
+        return ((long) chunks.size() << 32) | current.position();
+    }
+
+    private long append(byte[] lru, byte[] data) {
+        long address = reserve(8 + lru.length + data.length);
+        current.putInt(4 + lru.length + data.length);
+        current.putInt(lru.length);
+        current.put(lru);
+        current.put(data);
+        return address;
+    }
+
+    /**
+     * Copies a record from other buffers.
+     */
+    private long append(List<ByteBuffer> from, long address) {
+        int length = recordLength(from, address);
+        long copy = reserve(length);
+        ByteBuffer record = chunk(from, address).duplicate();
+        record.position(offset(address));
+        record.limit(offset(address) + length);
+        current.put(record);
+        return copy;
+    }
+
+    private boolean lruEquals(long address, byte[] lru) {
+        ByteBuffer chunk = chunk(chunks, address);
+        int offset = offset(address);
+        if(chunk.getInt(offset + 4) != lru.length) {
+            return false;
+        }
+        for(int i = 0; i < lru.length; i++) {
+            if(chunk.get(offset + 8 + i) != lru[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static ByteBuffer chunk(List<ByteBuffer> chunks, long address) {
+        return chunks.get((int) (address >>> 32) - 1);
+    }
+
+    private static int offset(long address) {
+        return (int) address;
+    }
+
+    /**
+     * @return length of the record, including its length
+     */
+    private static int recordLength(List<ByteBuffer> chunks, long address) {
+        return 4 + chunk(chunks, address).getInt(offset(address));
+    }
+
+    /**
+     * Decodes the records of a snapshot as they are iterated.
+     */
+    private static class RecordIterator implements Iterator<PageItem> {
+        private final TDeserializer deserializer = new TDeserializer(new TCompactProtocol.Factory());
+        private final List<ByteBuffer> chunks;
+        private final long[] addresses;
+        private int next = -1;
+
+        private RecordIterator(List<ByteBuffer> chunks, long[] addresses) {
+            this.chunks = chunks;
+            this.addresses = addresses;
+            advance();
+        }
+
+        private void advance() {
+            do {
+                next++;
+            }
+            while(next < addresses.length && (addresses[next] == EMPTY || addresses[next] == REMOVED));
+        }
+
+        public boolean hasNext() {
+            return next < addresses.length;
+        }
+
+        public PageItem next() {
+            if(!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            long address = addresses[next];
+            ByteBuffer chunk = chunk(chunks, address);
+            int offset = offset(address);
+            int lruLength = chunk.getInt(offset + 4);
+            byte[] data = new byte[chunk.getInt(offset) - 4 - lruLength];
+            ByteBuffer record = chunk.duplicate();
+            record.position(offset + 8 + lruLength);
+            record.get(data);
+            PageItem pageItem = new PageItem();
+            try {
+                deserializer.deserialize(pageItem, data);
+            }
+            catch(TException x) {
+                throw new IllegalStateException("could not deserialize pageItem", x);
+            }
+            advance();
+            return pageItem;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
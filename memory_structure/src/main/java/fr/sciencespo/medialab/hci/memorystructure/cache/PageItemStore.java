@@ -0,0 +1,45 @@
+package fr.sciencespo.medialab.hci.memorystructure.cache;
+
+import fr.sciencespo.medialab.hci.memorystructure.thrift.PageItem;
+
+/**
+ * Storage of the pageItems of a cache, by lru. Not thread-safe: a cache guards its store.
+ *
+ * @author agent
+ */
+public interface PageItemStore {
+
+    /**
+     * Adds a pageItem, replacing the pageItem with the same lru if there is one.
+     *
+     * @param pageItem pageItem
+     */
+    void put(PageItem pageItem);
+
+    /**
+     * Removes the pageItem with this lru.
+     *
+     * @param lru lru
+     * @return whether there was a pageItem with this lru
+     */
+    boolean remove(String lru);
+
+    int size();
+
+    /**
+     * Returns the memory taken by this store, on or off the heap.
+     *
+     * @return size in bytes
+     */
+    long getMemorySize();
+
+    /**
+     * Returns the pageItems as they are now. Later changes to the store do not affect the snapshot, and it may be
+     * iterated without guarding the store.
+     *
+     * @return pageItems
+     */
+    Iterable<PageItem> snapshot();
+
+    void clear();
+}
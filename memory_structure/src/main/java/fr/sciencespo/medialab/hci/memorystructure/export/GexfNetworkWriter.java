@@ -0,0 +1,82 @@
+package fr.sciencespo.medialab.hci.memorystructure.export;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Writes a webentities network in GEXF 1.2, with weighted edges. Nodes have the status, tags, nb_pages, nb_intern_links
+ * and date attributes of the webentities; the gexf files lib/gexf.py writes have the last three but no status or tags.
+ *
+ * @author agent
+ */
+public class GexfNetworkWriter extends NetworkWriter {
+
+    public GexfNetworkWriter(FileChannel channel) {
+        super(channel);
+    }
+
+    @Override
+    public void startGraph() throws IOException {
+        write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        write("<gexf xmlns=\"http://www.gexf.net/1.2draft\" version=\"1.2\">\n");
+        write("  <meta lastmodifieddate=\"" + new SimpleDateFormat("yyyy-MM-dd").format(new Date()) + "\">\n");
+        write("    <creator>Hypertext Corpus Initiative memory structure</creator>\n");
+        write("  </meta>\n");
+        write("  <graph mode=\"static\" defaultedgetype=\"directed\">\n");
+        write("    <attributes class=\"node\" mode=\"static\">\n");
+        write("      <attribute id=\"status\" title=\"status\" type=\"string\"/>\n");
+        write("      <attribute id=\"tags\" title=\"tags\" type=\"string\"/>\n");
+        write("      <attribute id=\"nb_pages\" title=\"nb_pages\" type=\"integer\"/>\n");
+        write("      <attribute id=\"nb_intern_links\" title=\"nb_intern_links\" type=\"integer\"/>\n");
+        write("      <attribute id=\"date\" title=\"date\" type=\"string\"/>\n");
+        write("    </attributes>\n");
+        write("    <nodes>\n");
+    }
+
+    @Override
+    public void writeNode(String id, String label, String status, String tags, int nbPages, int nbInternLinks, String date) throws IOException {
+        write("      <node id=\"");
+        writeEscaped(id);
+        write("\" label=\"");
+        writeEscaped(label);
+        write("\">\n        <attvalues>\n");
+        writeAttValue("status", status);
+        writeAttValue("tags", tags);
+        writeAttValue("nb_pages", Integer.toString(nbPages));
+        writeAttValue("nb_intern_links", Integer.toString(nbInternLinks));
+        writeAttValue("date", date);
+        write("        </attvalues>\n      </node>\n");
+    }
+
+    private void writeAttValue(String attribute, String value) throws IOException {
+        write("          <attvalue for=\"" + attribute + "\" value=\"");
+        writeEscaped(value);
+        write("\"/>\n");
+    }
+
+    @Override
+    public void startEdges() throws IOException {
+        write("    </nodes>\n");
+        write("    <edges>\n");
+    }
+
+    @Override
+    public void writeEdge(String id, String source, String target, int weight) throws IOException {
+        write("      <edge id=\"");
+        writeEscaped(id);
+        write("\" source=\"");
+        writeEscaped(source);
+        write("\" target=\"");
+        writeEscaped(target);
+        write("\" weight=\"" + weight + "\"/>\n");
+    }
+
+    @Override
+    public void endGraph() throws IOException {
+        write("    </edges>\n");
+        write("  </graph>\n");
+        write("</gexf>\n");
+    }
+}
@@ -0,0 +1,74 @@
+package fr.sciencespo.medialab.hci.memorystructure.export;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes a webentities network in GraphML.
+ *
+ * @author agent
+ */
+public class GraphMLNetworkWriter extends NetworkWriter {
+
+    public GraphMLNetworkWriter(FileChannel channel) {
+        super(channel);
+    }
+
+    @Override
+    public void startGraph() throws IOException {
+        write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        write("<graphml xmlns=\"http://graphml.graphdrawing.org/xmlns\">\n");
+        write("  <key id=\"label\" for=\"node\" attr.name=\"label\" attr.type=\"string\"/>\n");
+        write("  <key id=\"status\" for=\"node\" attr.name=\"status\" attr.type=\"string\"/>\n");
+        write("  <key id=\"tags\" for=\"node\" attr.name=\"tags\" attr.type=\"string\"/>\n");
+        write("  <key id=\"nb_pages\" for=\"node\" attr.name=\"nb_pages\" attr.type=\"int\"/>\n");
+        write("  <key id=\"nb_intern_links\" for=\"node\" attr.name=\"nb_intern_links\" attr.type=\"int\"/>\n");
+        write("  <key id=\"date\" for=\"node\" attr.name=\"date\" attr.type=\"string\"/>\n");
+        write("  <key id=\"weight\" for=\"edge\" attr.name=\"weight\" attr.type=\"int\"/>\n");
+        write("  <graph id=\"webentities\" edgedefault=\"directed\">\n");
+    }
+
+    @Override
+    public void writeNode(String id, String label, String status, String tags, int nbPages, int nbInternLinks, String date) throws IOException {
+        write("    <node id=\"");
+        writeEscaped(id);
+        write("\">\n");
+        writeData("label", label);
+        writeData("status", status);
+        writeData("tags", tags);
+        writeData("nb_pages", Integer.toString(nbPages));
+        writeData("nb_intern_links", Integer.toString(nbInternLinks));
+        writeData("date", date);
+        write("    </node>\n");
+    }
+
+    private void writeData(String key, String value) throws IOException {
+        write("      <data key=\"" + key + "\">");
+        writeEscaped(value);
+        write("</data>\n");
+    }
+
+    @Override
+    public void startEdges() throws IOException {
+        // GraphML has no separate edges section
+    }
+
+    @Override
+    public void writeEdge(String id, String source, String target, int weight) throws IOException {
+        write("    <edge id=\"");
+        writeEscaped(id);
+        write("\" source=\"");
+        writeEscaped(source);
+        write("\" target=\"");
+        writeEscaped(target);
+        write("\">\n");
+        writeData("weight", Integer.toString(weight));
+        write("    </edge>\n");
+    }
+
+    @Override
+    public void endGraph() throws IOException {
+        write("  </graph>\n");
+        write("</graphml>\n");
+    }
+}
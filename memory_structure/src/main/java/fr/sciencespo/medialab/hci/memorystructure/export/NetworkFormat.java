@@ -0,0 +1,51 @@
+package fr.sciencespo.medialab.hci.memorystructure.export;
+
+import java.nio.channels.FileChannel;
+
+/**
+ * Supported formats for webentities network exports.
+ *
+ * @author agent
+ */
+public enum NetworkFormat {
+
+    GEXF("gexf") {
+        @Override
+        public NetworkWriter createWriter(FileChannel channel) {
+            return new GexfNetworkWriter(channel);
+        }
+    },
+    GRAPHML("graphml") {
+        @Override
+        public NetworkWriter createWriter(FileChannel channel) {
+            return new GraphMLNetworkWriter(channel);
+        }
+    };
+
+    private final String extension;
+
+    private NetworkFormat(String extension) {
+        this.extension = extension;
+    }
+
+    public String getExtension() {
+        return extension;
+    }
+
+    public abstract NetworkWriter createWriter(FileChannel channel);
+
+    /**
+     * Returns the format with this name, ignoring case.
+     *
+     * @param name format name
+     * @return format, or null if not supported
+     */
+    public static NetworkFormat forName(String name) {
+        for(NetworkFormat format : values()) {
+            if(format.extension.equalsIgnoreCase(name)) {
+                return format;
+            }
+        }
+        return null;
+    }
+}
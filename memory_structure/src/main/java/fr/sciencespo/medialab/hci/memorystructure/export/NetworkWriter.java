@@ -0,0 +1,161 @@
+package fr.sciencespo.medialab.hci.memorystructure.export;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+
+/**
+ * Writes a webentities network as XML to a file channel. Output goes through a char buffer that is encoded to UTF-8
+ * into a direct byte buffer and written to the channel when full, so nothing but the buffers is held in memory
+ * whatever the size of the network.
+ *
+ * @author agent
+ */
+public abstract class NetworkWriter {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    private final CharsetEncoder encoder = Charset.forName("UTF-8").newEncoder();
+    private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+    private final ByteBuffer bytes = ByteBuffer.allocateDirect(BUFFER_SIZE * 4);
+
+    protected NetworkWriter(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Writes everything that comes before the first node.
+     *
+     * @throws IOException hmm
+     */
+    public abstract void startGraph() throws IOException;
+
+    /**
+     * Writes a webentity node.
+     *
+     * @param id webentity id
+     * @param label webentity name
+     * @param status webentity status
+     * @param tags webentity tags, as namespace:key=value separated by ';'
+     * @param nbPages number of pages belonging to the webentity
+     * @param nbInternLinks weight of the links between pages of the webentity
+     * @param date last modification date, or creation date if never modified
+     * @throws IOException hmm
+     */
+    public abstract void writeNode(String id, String label, String status, String tags, int nbPages, int nbInternLinks, String date) throws IOException;
+
+    /**
+     * Writes what separates the nodes from the edges.
+     *
+     * @throws IOException hmm
+     */
+    public abstract void startEdges() throws IOException;
+
+    /**
+     * Writes a webentity link.
+     *
+     * @param id edge id
+     * @param source source webentity id
+     * @param target target webentity id
+     * @param weight link weight
+     * @throws IOException hmm
+     */
+    public abstract void writeEdge(String id, String source, String target, int weight) throws IOException;
+
+    /**
+     * Writes everything that comes after the last edge.
+     *
+     * @throws IOException hmm
+     */
+    public abstract void endGraph() throws IOException;
+
+    /**
+     * Writes a string as is.
+     *
+     * @param s string
+     * @throws IOException hmm
+     */
+    protected void write(String s) throws IOException {
+        for(int i = 0; i < s.length(); i++) {
+            put(s.charAt(i));
+        }
+    }
+
+    /**
+     * Writes a string escaped to be used as XML text or attribute value. Characters not allowed in XML are dropped.
+     *
+     * @param s string, null is written as empty
+     * @throws IOException hmm
+     */
+    protected void writeEscaped(String s) throws IOException {
+        if(s == null) {
+            return;
+        }
+        for(int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch(c) {
+                case '<': write("&lt;"); break;
+                case '>': write("&gt;"); break;
+                case '&': write("&amp;"); break;
+                case '"': write("&quot;"); break;
+                case '\'': write("&apos;"); break;
+                default:
+                    if(c >= 0x20 || c == '\t' || c == '\n' || c == '\r') {
+                        put(c);
+                    }
+            }
+        }
+    }
+
+    private void put(char c) throws IOException {
+        if(!chars.hasRemaining()) {
+            encode(false);
+        }
+        chars.put(c);
+    }
+
+    private void encode(boolean endOfInput) throws IOException {
+        chars.flip();
+        while(true) {
+            CoderResult result = encoder.encode(chars, bytes, endOfInput);
+            if(result.isOverflow()) {
+                drain();
+            }
+            else if(result.isUnderflow()) {
+                break;
+            }
+            else {
+                result.throwException();
+            }
+        }
+        // an unpaired high surrogate at the end of the buffer stays there until its low surrogate arrives
+        chars.compact();
+    }
+
+    private void drain() throws IOException {
+        bytes.flip();
+        while(bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+        bytes.clear();
+    }
+
+    /**
+     * Encodes and writes whatever is left in the buffers. Does not close the channel.
+     *
+     * @throws IOException hmm
+     */
+    public void flush() throws IOException {
+        encode(true);
+        while(encoder.flush(bytes).isOverflow()) {
+            drain();
+        }
+        drain();
+        encoder.reset();
+    }
+}
@@ -2,6 +2,7 @@ package fr.sciencespo.medialab.hci.memorystructure.index;
 
 import fr.sciencespo.medialab.hci.memorystructure.thrift.NodeLink;
 import fr.sciencespo.medialab.hci.memorystructure.thrift.PageItem;
+import fr.sciencespo.medialab.hci.memorystructure.thrift.WebEntity;
 import fr.sciencespo.medialab.hci.memorystructure.thrift.WebEntityLink;
 import fr.sciencespo.medialab.hci.memorystructure.thrift.WebEntityNodeLink;
 import fr.sciencespo.medialab.hci.memorystructure.util.DynamicLogger;
@@ -109,9 +110,7 @@ public class AsyncIndexWriterTask implements RunnableFuture {
 
                     PageItem existing = lruIndex.retrievePageItemByLRU(pageItem.getLru());
                     if(existing != null) {
-                        if(logger.isDebugEnabled()) {
-                            logger.debug("PageItem " + pageItem.getLru() + " already exists in index - updating\n");
-                        }
+                        logger.debug("PageItem {} already exists in index - updating\n", pageItem.getLru());
                         lruIndex.deletePageItem(pageItem);
                         Set<String> sources = existing.getSourceSet();
                         if (sources != null) {
@@ -123,15 +122,14 @@ public class AsyncIndexWriterTask implements RunnableFuture {
                     // it may be null if it's rejected (e.g. there is no value for LRU in the PageItem)
                     if(pageDocument != null) {
                         indexWriter.addDocument(pageDocument);
+                        lruIndex.pageItemIndexed(pageItem.getLru());
                         wasIndexed = true;
                     }
                 }
                 else if(object instanceof NodeLink) {
                     NodeLink nodeLink = (NodeLink) object;
                     
-                    if(logger.isDebugEnabled()) {
-                        logger.debug("nodelink to be indexed: source: " + nodeLink.getSourceLRU() + " target: " + nodeLink.getTargetLRU());
-                    }
+                    logger.debug("nodelink to be indexed: source: {} target: {}", nodeLink.getSourceLRU(), nodeLink.getTargetLRU());
 
                     NodeLink existing = lruIndex.retrieveNodeLink(nodeLink);
                     int weight = nodeLink.getWeight();
@@ -147,25 +145,28 @@ public class AsyncIndexWriterTask implements RunnableFuture {
                     // it may be null if it's rejected (e.g. there is no value for LRU in the PageItem)
                     if(nodelinkDocument != null) {
                         indexWriter.addDocument(nodelinkDocument);
+                        lruIndex.nodeLinkIndexed(nodeLink.getSourceLRU(), nodeLink.getTargetLRU());
                         wasIndexed = true;
                     }
                 }
                 else if(object instanceof WebEntityNodeLink) {
                     WebEntityNodeLink webEntityNodeLink = (WebEntityNodeLink) object;
-                    if(logger.isDebugEnabled()) {
-                        logger.debug("webentitynodelink to be indexed: source: " + webEntityNodeLink.getSourceId() + " target: " + webEntityNodeLink.getTargetLRU());
-                    }
+                    logger.debug("webentitynodelink to be indexed: source: {} target: {}", webEntityNodeLink.getSourceId(), webEntityNodeLink.getTargetLRU());
                     Document webEntityLinkDocument = IndexConfiguration.convertWebEntityNodeLinkToLuceneDocument(webEntityNodeLink);
                     if(webEntityLinkDocument != null) {
                         indexWriter.addDocument(webEntityLinkDocument);
                         wasIndexed = true;
                     }
                 }
+                else if(object instanceof WebEntity) {
+                    WebEntity webEntity = (WebEntity) object;
+                    logger.debug("webentity to be indexed: {}", webEntity.getId());
+                    indexWriter.addDocument(IndexConfiguration.convertWebEntityToLuceneDocument(webEntity));
+                    wasIndexed = true;
+                }
                 else if(object instanceof WebEntityLink) {
                     WebEntityLink webEntityLink = (WebEntityLink) object;
-                    if(logger.isDebugEnabled()) {
-                        logger.debug("webentitylink to be indexed: source: " + webEntityLink.getSourceId() + " target: " + webEntityLink.getTargetId());
-                    }
+                    logger.debug("webentitylink to be indexed: source: {} target: {}", webEntityLink.getSourceId(), webEntityLink.getTargetId());
 
             /*
                     WebEntityLink existing = lruIndex.retrieveWebEntityLink(webEntityLink);
@@ -206,11 +207,7 @@ public class AsyncIndexWriterTask implements RunnableFuture {
                 logger.error(x.getMessage());
                 x.printStackTrace();
             }
-            if(logger.isDebugEnabled()) {
-                if(logger.isDebugEnabled()) {
-                    logger.debug("finished run");
-                }
-            }
+            logger.debug("finished run");
         }
     }
 
@@ -0,0 +1,113 @@
+package fr.sciencespo.medialab.hci.memorystructure.index;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.FieldSelector;
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * IndexSearcher that counts the queries it executes, and reports the time to search them and to load documents to the
+ * slow query log. Every search creates the weight of its query exactly once, so that is where they are counted, and
+ * every search, whether it returns top documents or not, ends up collecting hits.
+ *
+ * @author agent
+ */
+class CountingIndexSearcher extends IndexSearcher {
+
+    private final AtomicLong queryCount;
+    private final SlowQueryLog slowQueryLog;
+
+    /**
+     * @param indexReader reader to search
+     * @param queryCount counter shared by the searchers of successive readers
+     * @param slowQueryLog slow query log shared by the searchers of successive readers
+     */
+    CountingIndexSearcher(IndexReader indexReader, AtomicLong queryCount, SlowQueryLog slowQueryLog) {
+        super(indexReader);
+        this.queryCount = queryCount;
+        this.slowQueryLog = slowQueryLog;
+    }
+
+    @Override
+    public Weight createNormalizedWeight(Query query) throws IOException {
+        queryCount.incrementAndGet();
+        slowQueryLog.queryStarted(query);
+        return super.createNormalizedWeight(query);
+    }
+
+    @Override
+    public void search(Weight weight, Filter filter, Collector collector) throws IOException {
+        HitCountingCollector hitCountingCollector = new HitCountingCollector(collector);
+        long start = System.nanoTime();
+        try {
+            super.search(weight, filter, hitCountingCollector);
+        }
+        finally {
+            slowQueryLog.searched(hitCountingCollector.hits, System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public Document doc(int docID) throws CorruptIndexException, IOException {
+        long start = System.nanoTime();
+        try {
+            return super.doc(docID);
+        }
+        finally {
+            slowQueryLog.loaded(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public Document doc(int docID, FieldSelector fieldSelector) throws CorruptIndexException, IOException {
+        long start = System.nanoTime();
+        try {
+            return super.doc(docID, fieldSelector);
+        }
+        finally {
+            slowQueryLog.loaded(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Counts the hits passed to another collector.
+     */
+    private static class HitCountingCollector extends Collector {
+        private final Collector collector;
+        private int hits = 0;
+
+        HitCountingCollector(Collector collector) {
+            this.collector = collector;
+        }
+
+        @Override
+        public void setScorer(Scorer scorer) throws IOException {
+            collector.setScorer(scorer);
+        }
+
+        @Override
+        public void collect(int doc) throws IOException {
+            hits++;
+            collector.collect(doc);
+        }
+
+        @Override
+        public void setNextReader(IndexReader reader, int docBase) throws IOException {
+            collector.setNextReader(reader, docBase);
+        }
+
+        @Override
+        public boolean acceptsDocsOutOfOrder() {
+            return collector.acceptsDocsOutOfOrder();
+        }
+    }
+}
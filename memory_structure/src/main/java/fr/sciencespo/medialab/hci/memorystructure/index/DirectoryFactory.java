@@ -0,0 +1,164 @@
+package fr.sciencespo.medialab.hci.memorystructure.index;
+
+import fr.sciencespo.medialab.hci.memorystructure.util.DynamicLogger;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.store.SimpleFSDirectory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Opens the Lucene directory of the index with the implementation chosen in the configuration. MMapDirectory reads the
+ * index through the OS page cache without copying it to the heap; NIOFSDirectory reads it with positional reads into
+ * heap buffers, without locking between threads; SimpleFSDirectory synchronizes its reads. Auto lets Lucene choose,
+ * which is MMapDirectory on 64-bit Linux, Solaris and Windows.
+ *
+ * Also holds which index files the warm-up reads, so they are in the page cache before the first requests.
+ *
+ * @author agent
+ */
+public class DirectoryFactory {
+
+    private static DynamicLogger logger = new DynamicLogger(DirectoryFactory.class);
+
+    public enum Type {
+        AUTO, MMAP, NIO, SIMPLE
+    }
+
+    /**
+     * Files of the terms dictionary, postings, norms, stored fields index and deletions. Compound files are not read
+     * whole, only the files of these extensions they hold.
+     */
+    public static final Set<String> DEFAULT_PRELOAD = Collections.unmodifiableSet(new HashSet<String>(
+            Arrays.asList("tis", "tii", "frq", "prx", "nrm", "fdx", "del")));
+
+    private Type type = Type.AUTO;
+    private boolean useUnmap = MMapDirectory.UNMAP_SUPPORTED;
+    private int maxChunkSizeMB = 0;
+    private Set<String> preload = DEFAULT_PRELOAD;
+
+    /**
+     * @param type auto, mmap, nio or simple, in any case
+     * @return the factory, for chaining
+     */
+    public DirectoryFactory setType(String type) {
+        try {
+            this.type = Type.valueOf(type.trim().toUpperCase());
+        }
+        catch(IllegalArgumentException x) {
+            throw new IllegalArgumentException("Unknown Lucene directory " + type + ", expected one of " + Arrays.toString(Type.values()));
+        }
+        return this;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * With MMapDirectory, whether to unmap closed files at once instead of when they are garbage collected. This uses
+     * an undocumented JVM API; it is ignored where the JVM does not support it.
+     *
+     * @param useUnmap whether to unmap closed files
+     * @return the factory, for chaining
+     */
+    public DirectoryFactory setUseUnmap(boolean useUnmap) {
+        this.useUnmap = useUnmap;
+        return this;
+    }
+
+    public boolean isUseUnmap() {
+        return useUnmap;
+    }
+
+    /**
+     * With MMapDirectory, the size of the parts files are mapped in. Smaller parts need less contiguous address space,
+     * which matters on 32-bit JVMs.
+     *
+     * @param maxChunkSizeMB size in MB, 0 for the Lucene default
+     * @return the factory, for chaining
+     */
+    public DirectoryFactory setMaxChunkSizeMB(int maxChunkSizeMB) {
+        if(maxChunkSizeMB < 0 || maxChunkSizeMB > 1024) {
+            throw new IllegalArgumentException("Invalid mmap chunk size " + maxChunkSizeMB + " MB, expected 0 to 1024");
+        }
+        this.maxChunkSizeMB = maxChunkSizeMB;
+        return this;
+    }
+
+    public int getMaxChunkSizeMB() {
+        return maxChunkSizeMB;
+    }
+
+    /**
+     * @param preload extensions of the files the warm-up reads, separated by commas, also within compound files; cfs
+     * to read compound files whole, all to read every file, none to read none
+     * @return the factory, for chaining
+     */
+    public DirectoryFactory setPreload(String preload) {
+        if("all".equals(preload.trim())) {
+            this.preload = null;
+        }
+        else if("none".equals(preload.trim())) {
+            this.preload = Collections.emptySet();
+        }
+        else {
+            Set<String> extensions = new HashSet<String>();
+            for(String extension : preload.split(",")) {
+                if(extension.trim().length() > 0) {
+                    extensions.add(extension.trim());
+                }
+            }
+            this.preload = Collections.unmodifiableSet(extensions);
+        }
+        return this;
+    }
+
+    /**
+     * @param file name of an index file
+     * @return whether the warm-up reads it
+     */
+    public boolean isPreloaded(String file) {
+        return preload == null || preload.contains(file.substring(file.lastIndexOf('.') + 1));
+    }
+
+    /**
+     * @param path directory of the index
+     * @return Lucene directory
+     * @throws IOException hmm
+     */
+    public FSDirectory open(File path) throws IOException {
+        FSDirectory directory;
+        switch(type) {
+            case MMAP:
+                MMapDirectory mmapDirectory = new MMapDirectory(path);
+                if(useUnmap && !MMapDirectory.UNMAP_SUPPORTED) {
+                    logger.warn("this JVM cannot unmap closed index files, they are unmapped when garbage collected");
+                }
+                else {
+                    mmapDirectory.setUseUnmap(useUnmap);
+                }
+                if(maxChunkSizeMB > 0) {
+                    mmapDirectory.setMaxChunkSize(maxChunkSizeMB * 1024 * 1024);
+                }
+                directory = mmapDirectory;
+                break;
+            case NIO:
+                directory = new NIOFSDirectory(path);
+                break;
+            case SIMPLE:
+                directory = new SimpleFSDirectory(path);
+                break;
+            default:
+                directory = FSDirectory.open(path);
+        }
+        logger.info("opened Lucene " + directory.getClass().getSimpleName() + " (" + type.name().toLowerCase() + ") at " + path.getAbsolutePath());
+        return directory;
+    }
+}
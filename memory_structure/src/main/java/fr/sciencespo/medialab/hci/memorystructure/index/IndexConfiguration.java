@@ -454,9 +454,7 @@ public class IndexConfiguration {
         if(StringUtils.isEmpty(webEntity.getId())) {
             id = UUID.randomUUID().toString();
         }
-        if(logger.isDebugEnabled()) {
-            logger.trace("lucene document for webentity with id " + id);
-        }
+        logger.trace("lucene document for webentity with id {}", id);
         Field idField = new Field(FieldName.ID.name(), id, Field.Store.YES, Field.Index.NOT_ANALYZED_NO_NORMS);
         idField.setIndexOptions(FieldInfo.IndexOptions.DOCS_ONLY);
         document.add(idField);
@@ -480,7 +478,7 @@ public class IndexConfiguration {
                 document.add(lruField);
             }
         }
-        if(logger.isDebugEnabled()) {
+        if(logger.isTraceEnabled()) {
             logger.trace("lucene document has # " + document.getFieldables(FieldName.LRU.name()).length + " lrufields in webentity " + id);
         }
 
@@ -626,9 +624,7 @@ public class IndexConfiguration {
         webEntity.setName(name);
 
         Fieldable[] lruFields = document.getFieldables(FieldName.LRU.name());
-        if(logger.isDebugEnabled()) {
-            logger.trace("lucene doc for webentity has # " + lruFields.length + " lru fields");
-        }
+        logger.trace("lucene doc for webentity has # {} lru fields", lruFields.length);
         Set<String> lruList = new HashSet<String>();
         for(Fieldable lruField : lruFields) {
             lruList.add(lruField.stringValue());
@@ -656,9 +652,7 @@ public class IndexConfiguration {
         webEntity.setCreationDate(document.get(FieldName.DATECREA.name()));
         webEntity.setLastModificationDate(document.get(FieldName.DATEMODIF.name()));
 
-        if(logger.isDebugEnabled()) {
-            logger.trace("convertLuceneDocumentToWebEntity returns webentity with id: " + id);
-        }
+        logger.trace("convertLuceneDocumentToWebEntity returns webentity with id: {}", id);
         return webEntity;
     }
 
@@ -689,9 +683,7 @@ public class IndexConfiguration {
         nodeLink.setCreationDate(document.get(FieldName.DATECREA.name()));
         nodeLink.setLastModificationDate(document.get(FieldName.DATEMODIF.name()));
 
-        if(logger.isDebugEnabled()) {
-            logger.trace("convertLuceneDocumentToNodeLink returns nodelink with id: " + id);
-        }
+        logger.trace("convertLuceneDocumentToNodeLink returns nodelink with id: {}", id);
         return nodeLink;
     }
 
@@ -720,9 +712,7 @@ public class IndexConfiguration {
         }
         webEntityNodeLink.setWeight(weight);
 
-        if(logger.isDebugEnabled()) {
-            logger.trace("convertLuceneDocumentToWebEntityNodeLink returns webEntityNodeLink with id: " + id);
-        }
+        logger.trace("convertLuceneDocumentToWebEntityNodeLink returns webEntityNodeLink with id: {}", id);
         return webEntityNodeLink;
     }
 
@@ -753,9 +743,7 @@ public class IndexConfiguration {
         webEntityLink.setCreationDate(document.get(FieldName.DATECREA.name()));
         webEntityLink.setLastModificationDate(document.get(FieldName.DATEMODIF.name()));
 
-        if(logger.isDebugEnabled()) {
-            logger.trace("convertLuceneDocumentToWebEntityLink returns webEntityLink with id: " + id);
-        }
+        logger.trace("convertLuceneDocumentToWebEntityLink returns webEntityLink with id: {}", id);
         return webEntityLink;
     }
 
@@ -775,9 +763,7 @@ public class IndexConfiguration {
         webEntityCreationRule.setCreationDate(document.get(FieldName.DATECREA.name()));
         webEntityCreationRule.setLastModificationDate(document.get(FieldName.DATEMODIF.name()));
 
-        if(logger.isDebugEnabled()) {
-            logger.trace("convertLuceneDocumentToWebEntity returns webEntityCreationRule with lru: " + lru + " and regexp " + regexp);
-        }
+        logger.trace("convertLuceneDocumentToWebEntity returns webEntityCreationRule with lru: {} and regexp {}", lru, regexp);
         return webEntityCreationRule;
     }
 
@@ -0,0 +1,237 @@
+package fr.sciencespo.medialab.hci.memorystructure.index;
+
+import fr.sciencespo.medialab.hci.memorystructure.thrift.SegmentStats;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.FieldSelector;
+import org.apache.lucene.document.MapFieldSelector;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.Directory;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Index reader and searcher of one point in time, with caches derived from them. A snapshot never changes: when the
+ * index changes, LRUIndex publishes a new one. Readers acquire the current snapshot and release it when they are
+ * done, so they see one consistent state of the index without locking, and its reader is closed once the snapshot is
+ * replaced and the last of them has released it. The webentities by LRU prefix are taken over from the previous
+ * snapshot when no webentity changed in between.
+ *
+ * @author agent
+ */
+public class IndexSnapshot {
+
+    private final IndexReader indexReader;
+    private final IndexSearcher indexSearcher;
+    private final long generation;
+
+    /**
+     * Version of the webentities the reader sees, or -1 if they changed while it was opened.
+     */
+    private final long webEntitiesVersion;
+
+    /**
+     * Ids of webentities by LRU prefix, built when first needed.
+     */
+    private volatile Map<String, String> webEntitiesByLRU;
+
+    /**
+     * Number of documents by DocType, counted when first needed.
+     */
+    private volatile Map<String, Integer> docsByType;
+
+    /**
+     * @param indexReader reader; the snapshot takes over the reference to it
+     * @param queryCount counter of the queries of all snapshots
+     * @param slowQueryLog slow query log of all snapshots
+     * @param generation number of snapshots published before this one
+     * @param webEntitiesVersion version of the webentities the reader sees, or -1 if unknown
+     * @param previous snapshot replaced by this one, or null
+     */
+    IndexSnapshot(IndexReader indexReader, AtomicLong queryCount, SlowQueryLog slowQueryLog, long generation,
+                  long webEntitiesVersion, IndexSnapshot previous) {
+        this.indexReader = indexReader;
+        this.indexSearcher = new CountingIndexSearcher(indexReader, queryCount, slowQueryLog);
+        this.generation = generation;
+        this.webEntitiesVersion = webEntitiesVersion;
+        // same webentities as the previous snapshot: its ids by LRU prefix still hold, whatever the doc ids became
+        if(previous != null && webEntitiesVersion >= 0 && previous.webEntitiesVersion == webEntitiesVersion) {
+            this.webEntitiesByLRU = previous.webEntitiesByLRU;
+        }
+    }
+
+    IndexReader getIndexReader() {
+        return indexReader;
+    }
+
+    IndexSearcher getIndexSearcher() {
+        return indexSearcher;
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    public int numDocs() {
+        return indexReader.numDocs();
+    }
+
+    /**
+     * @return true once the last release closed the reader
+     */
+    boolean isClosed() {
+        return indexReader.getRefCount() == 0;
+    }
+
+    /**
+     * @return false if the snapshot was closed, true if it stays open until it is released
+     */
+    boolean tryAcquire() {
+        return indexReader.tryIncRef();
+    }
+
+    /**
+     * Releases a snapshot; the last release closes its reader.
+     *
+     * @throws IOException hmm
+     */
+    void release() throws IOException {
+        indexReader.decRef();
+    }
+
+    /**
+     * @param lru lru prefix
+     * @return id of the webentity with this lru prefix, or null if there is none
+     * @throws IOException hmm
+     */
+    String findWebEntityByLRU(String lru) throws IOException {
+        Map<String, String> webEntities = this.webEntitiesByLRU;
+        if(webEntities == null) {
+            synchronized(this) {
+                webEntities = this.webEntitiesByLRU;
+                if(webEntities == null) {
+                    webEntities = readWebEntitiesByLRU();
+                    this.webEntitiesByLRU = webEntities;
+                }
+            }
+        }
+        return webEntities.get(lru);
+    }
+
+    /**
+     * Counts the documents of each DocType from the frequencies of its term, without loading them. Frequencies include
+     * deleted documents, so if there are any, the documents of the term are counted instead.
+     *
+     * @return number of documents by DocType
+     * @throws IOException hmm
+     */
+    Map<String, Integer> getDocsByType() throws IOException {
+        Map<String, Integer> docs = this.docsByType;
+        if(docs == null) {
+            synchronized(this) {
+                docs = this.docsByType;
+                if(docs == null) {
+                    docs = new TreeMap<String, Integer>();
+                    for(IndexConfiguration.DocType docType : IndexConfiguration.DocType.values()) {
+                        Term type = new Term(IndexConfiguration.FieldName.TYPE.name(), docType.name());
+                        int count = 0;
+                        if(!indexReader.hasDeletions()) {
+                            count = indexReader.docFreq(type);
+                        }
+                        else {
+                            TermDocs termDocs = indexReader.termDocs(type);
+                            try {
+                                while(termDocs.next()) {
+                                    count++;
+                                }
+                            }
+                            finally {
+                                termDocs.close();
+                            }
+                        }
+                        docs.put(docType.name(), count);
+                    }
+                    docs = Collections.unmodifiableMap(docs);
+                    this.docsByType = docs;
+                }
+            }
+        }
+        return docs;
+    }
+
+    /**
+     * Describes the segments of the reader. Their size is that of their files in the directory.
+     *
+     * @param directory directory of the index
+     * @return segments, in the order of the reader
+     * @throws IOException hmm
+     */
+    List<SegmentStats> getSegmentStats(Directory directory) throws IOException {
+        String[] files = directory.listAll();
+        List<SegmentStats> segments = new ArrayList<SegmentStats>();
+        IndexReader[] subReaders = indexReader.getSequentialSubReaders();
+        if(subReaders == null) {
+            subReaders = new IndexReader[] { indexReader };
+        }
+        for(IndexReader subReader : subReaders) {
+            if(!(subReader instanceof SegmentReader)) {
+                continue;
+            }
+            String name = ((SegmentReader) subReader).getSegmentName();
+            long size = 0;
+            for(String file : files) {
+                // e.g. _3.cfs and _3_1.del for segment _3
+                if(file.startsWith(name + ".") || file.startsWith(name + "_")) {
+                    try {
+                        size += directory.fileLength(file);
+                    }
+                    catch(FileNotFoundException x) {
+                        // deleted by a merge since it was listed
+                    }
+                }
+            }
+            segments.add(new SegmentStats().setName(name).setDocs(subReader.numDocs())
+                    .setDeletedDocs(subReader.numDeletedDocs()).setSizeInBytes(size));
+        }
+        return segments;
+    }
+
+    /**
+     * Reads the LRU prefixes of all webentities. If several webentities have the same prefix, the first one is kept,
+     * as a query would find it first.
+     */
+    private Map<String, String> readWebEntitiesByLRU() throws IOException {
+        Map<String, String> webEntities = new HashMap<String, String>();
+        FieldSelector fieldSelector = new MapFieldSelector(IndexConfiguration.FieldName.LRU.name(), IndexConfiguration.FieldName.ID.name());
+        TermDocs termDocs = indexReader.termDocs(LuceneQueryFactory.typeEqualWebEntity);
+        try {
+            while(termDocs.next()) {
+                Document document = indexReader.document(termDocs.doc(), fieldSelector);
+                String id = document.get(IndexConfiguration.FieldName.ID.name());
+                String[] lrus = document.getValues(IndexConfiguration.FieldName.LRU.name());
+                if(id != null && lrus != null) {
+                    for(String lru : lrus) {
+                        if(!webEntities.containsKey(lru)) {
+                            webEntities.put(lru, id);
+                        }
+                    }
+                }
+            }
+        }
+        finally {
+            termDocs.close();
+        }
+        return Collections.unmodifiableMap(webEntities);
+    }
+}
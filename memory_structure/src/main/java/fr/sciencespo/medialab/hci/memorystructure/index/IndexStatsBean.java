@@ -0,0 +1,96 @@
+package fr.sciencespo.medialab.hci.memorystructure.index;
+
+import fr.sciencespo.medialab.hci.memorystructure.thrift.IndexStats;
+import fr.sciencespo.medialab.hci.memorystructure.thrift.SegmentStats;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Statistics of the index for JMX. JMX clients read the attributes one after the other, so the statistics are kept
+ * for a second rather than computed for each of them.
+ *
+ * @author agent
+ */
+public class IndexStatsBean implements IndexStatsMXBean {
+
+    public static final String OBJECT_NAME = "fr.sciencespo.medialab.hci.memorystructure:type=Index";
+
+    private static final long MAX_AGE = 1000;
+
+    private final LRUIndex lruIndex;
+    private IndexStats indexStats;
+    private long computed;
+
+    public IndexStatsBean(LRUIndex lruIndex) {
+        this.lruIndex = lruIndex;
+    }
+
+    private synchronized IndexStats stats() {
+        long now = System.currentTimeMillis();
+        if(indexStats == null || now - computed > MAX_AGE) {
+            try {
+                indexStats = lruIndex.getIndexStats();
+                computed = now;
+            }
+            catch(IndexException x) {
+                throw new IllegalStateException(x.getMessage(), x);
+            }
+        }
+        return indexStats;
+    }
+
+    public int getNumDocs() {
+        return stats().getNumDocs();
+    }
+
+    public int getMaxDoc() {
+        return stats().getMaxDoc();
+    }
+
+    public int getDeletedDocs() {
+        return stats().getDeletedDocs();
+    }
+
+    public double getDeletedRatio() {
+        return stats().getDeletedRatio();
+    }
+
+    public Map<String, Integer> getDocsByType() {
+        return stats().getDocsByType();
+    }
+
+    public int getSegmentCount() {
+        return stats().getSegmentsSize();
+    }
+
+    public List<String> getSegments() {
+        List<String> segments = new ArrayList<String>();
+        for(SegmentStats segment : stats().getSegments()) {
+            segments.add(segment.getName() + " docs=" + segment.getDocs() + " deleted=" + segment.getDeletedDocs() +
+                    " bytes=" + segment.getSizeInBytes());
+        }
+        return segments;
+    }
+
+    public long getReaderGeneration() {
+        return stats().getReaderGeneration();
+    }
+
+    public List<Long> getOpenReaderGenerations() {
+        return stats().getOpenReaderGenerations();
+    }
+
+    public long getWriterRamBytes() {
+        return stats().getWriterRamBytes();
+    }
+
+    public int getWriterRamDocs() {
+        return stats().getWriterRamDocs();
+    }
+
+    public long getSizeOnDisk() {
+        return stats().getSizeOnDisk();
+    }
+}
@@ -0,0 +1,39 @@
+package fr.sciencespo.medialab.hci.memorystructure.index;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JMX view of the statistics of the index, as returned by getIndexStats.
+ *
+ * @author agent
+ */
+public interface IndexStatsMXBean {
+
+    int getNumDocs();
+
+    int getMaxDoc();
+
+    int getDeletedDocs();
+
+    double getDeletedRatio();
+
+    Map<String, Integer> getDocsByType();
+
+    int getSegmentCount();
+
+    /**
+     * @return one line per segment: name, documents, deleted documents and size in bytes
+     */
+    List<String> getSegments();
+
+    long getReaderGeneration();
+
+    List<Long> getOpenReaderGenerations();
+
+    long getWriterRamBytes();
+
+    int getWriterRamDocs();
+
+    long getSizeOnDisk();
+}
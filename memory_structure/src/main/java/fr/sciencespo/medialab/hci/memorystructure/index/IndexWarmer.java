@@ -0,0 +1,307 @@
+package fr.sciencespo.medialab.hci.memorystructure.index;
+
+import fr.sciencespo.medialab.hci.memorystructure.util.DynamicLogger;
+import org.apache.lucene.analysis.KeywordAnalyzer;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.queryParser.ParseException;
+import org.apache.lucene.queryParser.QueryParser;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.util.Version;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Prepares the index for its first requests after a start: builds what LRUIndex otherwise builds lazily on the first
+ * request that needs it, reads the index files most searches use so they are in the OS cache, and runs warm-up
+ * queries. The steps run in parallel and each reports how long it took. It also warms the segments the writer merges,
+ * before the readers that search them are published.
+ *
+ * @author agent
+ */
+class IndexWarmer {
+
+    private static DynamicLogger logger = new DynamicLogger(IndexWarmer.class);
+
+    // number of documents loaded for each warm-up query
+    private static final int WARM_UP_HITS = 100;
+
+    private final LRUIndex lruIndex;
+    private final Directory directory;
+    private final DirectoryFactory directoryFactory;
+
+    IndexWarmer(LRUIndex lruIndex, Directory directory, DirectoryFactory directoryFactory) {
+        this.lruIndex = lruIndex;
+        this.directory = directory;
+        this.directoryFactory = directoryFactory;
+    }
+
+    /**
+     * Parses warm-up queries in Lucene query syntax. Values are not analyzed, as in the index; the default field is
+     * LRU, e.g. TYPE:WEBENTITY or s\:http\|h\:fr\|h\:sciences-po*.
+     *
+     * @param queries queries separated by ;
+     * @return parsed queries
+     * @throws IndexException if a query cannot be parsed
+     */
+    static List<Query> parseQueries(String queries) throws IndexException {
+        List<Query> parsed = new ArrayList<Query>();
+        QueryParser queryParser = new QueryParser(Version.LUCENE_35, IndexConfiguration.FieldName.LRU.name(), new KeywordAnalyzer());
+        queryParser.setAllowLeadingWildcard(false);
+        for(String query : queries.split(";")) {
+            if(query.trim().length() > 0) {
+                try {
+                    parsed.add(queryParser.parse(query.trim()));
+                }
+                catch(ParseException x) {
+                    throw new IndexException("Invalid warm-up query " + query + ": " + x.getMessage(), x);
+                }
+            }
+        }
+        return parsed;
+    }
+
+    /**
+     * @return the term of the documents of each DocType
+     */
+    static List<Term> typeTerms() {
+        List<Term> terms = new ArrayList<Term>();
+        for(IndexConfiguration.DocType docType : IndexConfiguration.DocType.values()) {
+            terms.add(new Term(IndexConfiguration.FieldName.TYPE.name(), docType.name()));
+        }
+        return terms;
+    }
+
+    /**
+     * @return a query for the documents of each DocType
+     */
+    static List<Query> typeQueries() {
+        List<Query> queries = new ArrayList<Query>();
+        for(Term term : typeTerms()) {
+            queries.add(new TermQuery(term));
+        }
+        return queries;
+    }
+
+    /**
+     * Runs the warm-up steps in parallel. A step that fails is logged and does not stop the others.
+     *
+     * @param queries warm-up queries
+     * @param threads number of steps run at the same time
+     * @return duration of each step in milliseconds, by step; -1 for steps that failed
+     */
+    Map<String, Long> warm(List<Query> queries, int threads) {
+        long start = System.currentTimeMillis();
+        Map<String, Callable<Void>> steps = new LinkedHashMap<String, Callable<Void>>();
+        steps.put("index files", new Callable<Void>() {
+            public Void call() throws Exception {
+                touchIndexFiles();
+                return null;
+            }
+        });
+        steps.put("webentity prefixes and document counts", new Callable<Void>() {
+            public Void call() throws Exception {
+                IndexSnapshot snapshot = lruIndex.acquireSnapshot();
+                try {
+                    snapshot.findWebEntityByLRU("");
+                    snapshot.getDocsByType();
+                }
+                finally {
+                    lruIndex.releaseSnapshot(snapshot);
+                }
+                return null;
+            }
+        });
+        steps.put("webentity creation rules", new Callable<Void>() {
+            public Void call() throws Exception {
+                lruIndex.getWebEntityCreationRuleEngine();
+                return null;
+            }
+        });
+        steps.put("precision exceptions", new Callable<Void>() {
+            public Void call() throws Exception {
+                lruIndex.retrievePrecisionExceptions();
+                return null;
+            }
+        });
+        for(final Query query : queries) {
+            steps.put("query " + query, new Callable<Void>() {
+                public Void call() throws Exception {
+                    IndexSnapshot snapshot = lruIndex.acquireSnapshot();
+                    try {
+                        runQuery(snapshot.getIndexSearcher(), query);
+                    }
+                    finally {
+                        lruIndex.releaseSnapshot(snapshot);
+                    }
+                    return null;
+                }
+            });
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        Map<String, Future<Long>> durations = new LinkedHashMap<String, Future<Long>>();
+        try {
+            for(final Map.Entry<String, Callable<Void>> step : steps.entrySet()) {
+                durations.put(step.getKey(), executor.submit(new Callable<Long>() {
+                    public Long call() throws Exception {
+                        long stepStart = System.currentTimeMillis();
+                        step.getValue().call();
+                        return System.currentTimeMillis() - stepStart;
+                    }
+                }));
+            }
+            Map<String, Long> timings = new LinkedHashMap<String, Long>();
+            for(Map.Entry<String, Future<Long>> duration : durations.entrySet()) {
+                long took = -1;
+                try {
+                    took = duration.getValue().get();
+                    logger.info("warm-up: " + duration.getKey() + " took " + took + " ms");
+                }
+                catch(ExecutionException x) {
+                    logger.error("warm-up: " + duration.getKey() + " failed: " + x.getCause().getMessage());
+                    x.getCause().printStackTrace();
+                }
+                catch(InterruptedException x) {
+                    Thread.currentThread().interrupt();
+                    logger.error("warm-up interrupted");
+                    break;
+                }
+                timings.put(duration.getKey(), took);
+            }
+            logger.info("warm-up of # " + steps.size() + " steps on " + threads + " threads took " + (System.currentTimeMillis() - start) + " ms");
+            return timings;
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Reads the index files chosen in the DirectoryFactory, by default those most searches use, so the OS caches them.
+     * Unless compound files are chosen themselves, only the chosen files they hold are read.
+     *
+     * @throws IOException hmm
+     */
+    private void touchIndexFiles() throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        long bytes = 0;
+        for(String file : directory.listAll()) {
+            boolean preloaded = directoryFactory.isPreloaded(file);
+            boolean compound = file.endsWith(".cfs") || file.endsWith(".cfx");
+            if(!preloaded && !compound) {
+                continue;
+            }
+            IndexInput input = directory.openInput(file);
+            try {
+                if(preloaded) {
+                    bytes += touch(input, 0, input.length(), buffer);
+                }
+                else {
+                    bytes += touchCompoundFile(input, buffer);
+                }
+            }
+            finally {
+                input.close();
+            }
+        }
+        if(logger.isDebugEnabled()) {
+            logger.debug("read # " + bytes + " bytes of index files");
+        }
+    }
+
+    /**
+     * Reads the chosen files a compound file holds. Its header is an optional format, the number of files, then the
+     * offset and name of each; a file ends where the next one starts.
+     *
+     * @return # bytes read
+     * @throws IOException hmm
+     */
+    private long touchCompoundFile(IndexInput input, byte[] buffer) throws IOException {
+        int count = input.readVInt();
+        if(count < 0) {
+            count = input.readVInt();
+        }
+        long[] offsets = new long[count + 1];
+        String[] names = new String[count];
+        for(int i = 0; i < count; i++) {
+            offsets[i] = input.readLong();
+            names[i] = input.readString();
+        }
+        offsets[count] = input.length();
+        long bytes = 0;
+        for(int i = 0; i < count; i++) {
+            if(directoryFactory.isPreloaded(names[i])) {
+                bytes += touch(input, offsets[i], offsets[i + 1], buffer);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Reads a part of a file.
+     *
+     * @return # bytes read
+     * @throws IOException hmm
+     */
+    private static long touch(IndexInput input, long from, long to, byte[] buffer) throws IOException {
+        input.seek(from);
+        while(input.getFilePointer() < to) {
+            int read = (int) Math.min(buffer.length, to - input.getFilePointer());
+            input.readBytes(buffer, 0, read);
+        }
+        return to - from;
+    }
+
+    /**
+     * Runs a query and loads its first documents.
+     *
+     * @throws IOException hmm
+     */
+    private static void runQuery(IndexSearcher indexSearcher, Query query) throws IOException {
+        TopDocs topDocs = indexSearcher.search(query, WARM_UP_HITS);
+        for(ScoreDoc scoreDoc : topDocs.scoreDocs) {
+            indexSearcher.doc(scoreDoc.doc);
+        }
+    }
+
+    /**
+     * Touches the terms dictionary and postings of the type terms on segments the writer merged, before readers search
+     * them. It runs on every merge, so it neither scores nor loads documents.
+     */
+    static class MergedSegmentWarmer extends IndexWriter.IndexReaderWarmer {
+        @Override
+        public void warm(IndexReader reader) throws IOException {
+            for(Term term : typeTerms()) {
+                if(reader.docFreq(term) == 0) {
+                    continue;
+                }
+                TermDocs termDocs = reader.termDocs(term);
+                try {
+                    // follows the skip list to the last postings
+                    termDocs.skipTo(reader.maxDoc() - 1);
+                }
+                finally {
+                    termDocs.close();
+                }
+            }
+        }
+    }
+}
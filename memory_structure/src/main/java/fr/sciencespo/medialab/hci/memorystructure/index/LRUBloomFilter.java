@@ -0,0 +1,190 @@
+package fr.sciencespo.medialab.hci.memorystructure.index;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter over keys of the index, such as page LRUs: if it does not contain a key, there is no document for it
+ * and no need to search. Keys are never removed, so deleted documents only add false positives. Keys can be added
+ * from several threads at once.
+ *
+ * @author agent
+ */
+public class LRUBloomFilter {
+
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+    // identifies files written by writeTo
+    private static final int MAGIC = 0x4c524246;
+
+    private final AtomicLongArray bits;
+    private final long bitCount;
+    private final int hashCount;
+    private final long capacity;
+    private final AtomicLong size = new AtomicLong();
+
+    /**
+     * @param capacity number of keys the filter is sized for
+     * @param falsePositiveRate rate of false positives once it holds that many keys
+     */
+    public LRUBloomFilter(long capacity, double falsePositiveRate) {
+        this.capacity = Math.max(1, capacity);
+        long bitCount = (long) Math.ceil(-this.capacity * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        int words = (int) Math.min(Integer.MAX_VALUE, Math.max(1, (bitCount + 63) / 64));
+        this.bits = new AtomicLongArray(words);
+        this.bitCount = 64L * words;
+        this.hashCount = Math.max(1, (int) Math.round((double) this.bitCount / this.capacity * Math.log(2)));
+    }
+
+    private LRUBloomFilter(long capacity, int hashCount, long size, long[] words) {
+        this.capacity = capacity;
+        this.hashCount = hashCount;
+        this.bits = new AtomicLongArray(words);
+        this.bitCount = 64L * words.length;
+        this.size.set(size);
+    }
+
+    /**
+     * Adds a key.
+     *
+     * @param key key
+     */
+    public void put(String key) {
+        long hash = HASH_FUNCTION.hashString(key).asLong();
+        int hash1 = (int) hash;
+        int hash2 = (int) (hash >>> 32);
+        boolean changed = false;
+        for(int i = 1; i <= hashCount; i++) {
+            long bit = bitIndex(hash1, hash2, i);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long value = bits.get(word);
+            while((value & mask) == 0) {
+                if(bits.compareAndSet(word, value, value | mask)) {
+                    changed = true;
+                    break;
+                }
+                value = bits.get(word);
+            }
+        }
+        if(changed) {
+            size.incrementAndGet();
+        }
+    }
+
+    /**
+     * @param key key
+     * @return false if the key was never added, true if it may have been
+     */
+    public boolean mightContain(String key) {
+        long hash = HASH_FUNCTION.hashString(key).asLong();
+        int hash1 = (int) hash;
+        int hash2 = (int) (hash >>> 32);
+        for(int i = 1; i <= hashCount; i++) {
+            long bit = bitIndex(hash1, hash2, i);
+            if((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return i-th bit of a key, from the two halves of its hash
+     */
+    private long bitIndex(int hash1, int hash2, int i) {
+        return ((hash1 + (long) i * hash2) & Long.MAX_VALUE) % bitCount;
+    }
+
+    /**
+     * @return number of keys added, not counting keys that were found already present
+     */
+    public long size() {
+        return size.get();
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return whether the filter holds more keys than it was sized for, so false positives are more frequent
+     */
+    public boolean isSaturated() {
+        return size.get() > capacity;
+    }
+
+    /**
+     * @return memory taken by the bits, in bytes
+     */
+    public long getMemorySize() {
+        return bitCount / 8;
+    }
+
+    /**
+     * Writes the filter to a file, with a version to tell whether it is still up to date when it is read.
+     *
+     * @param file file
+     * @param version version of the data the filter was built from
+     * @throws IOException hmm
+     */
+    public void writeTo(File file, long version) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeLong(version);
+            out.writeLong(capacity);
+            out.writeInt(hashCount);
+            out.writeLong(size.get());
+            out.writeInt(bits.length());
+            for(int i = 0; i < bits.length(); i++) {
+                out.writeLong(bits.get(i));
+            }
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads a filter written by writeTo.
+     *
+     * @param file file
+     * @param version version of the data the filter must have been built from
+     * @return filter, or null if the file does not exist, is not a filter or has another version
+     * @throws IOException hmm
+     */
+    public static LRUBloomFilter readFrom(File file, long version) throws IOException {
+        if(!file.isFile()) {
+            return null;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if(in.readInt() != MAGIC || in.readLong() != version) {
+                return null;
+            }
+            long capacity = in.readLong();
+            int hashCount = in.readInt();
+            long size = in.readLong();
+            long[] words = new long[in.readInt()];
+            for(int i = 0; i < words.length; i++) {
+                words[i] = in.readLong();
+            }
+            return new LRUBloomFilter(capacity, hashCount, size, words);
+        }
+        finally {
+            in.close();
+        }
+    }
+}
@@ -1,5 +1,12 @@
 package fr.sciencespo.medialab.hci.memorystructure.index;
 
+import fr.sciencespo.medialab.hci.memorystructure.analytics.AnalyticsException;
+import fr.sciencespo.medialab.hci.memorystructure.analytics.GraphAnalytics;
+import fr.sciencespo.medialab.hci.memorystructure.analytics.GraphScores;
+import fr.sciencespo.medialab.hci.memorystructure.analytics.LinkGraph;
+import fr.sciencespo.medialab.hci.memorystructure.export.NetworkFormat;
+import fr.sciencespo.medialab.hci.memorystructure.thrift.IndexStats;
+import fr.sciencespo.medialab.hci.memorystructure.thrift.NetworkExport;
 import fr.sciencespo.medialab.hci.memorystructure.thrift.NodeLink;
 import fr.sciencespo.medialab.hci.memorystructure.thrift.ObjectNotFoundException;
 import fr.sciencespo.medialab.hci.memorystructure.thrift.PageItem;
@@ -15,11 +22,15 @@ import org.apache.commons.lang.StringUtils;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.KeywordAnalyzer;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.FieldSelector;
+import org.apache.lucene.document.MapFieldSelector;
 import org.apache.lucene.index.CorruptIndexException;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
 import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
 import org.apache.lucene.index.TieredMergePolicy;
 import org.apache.lucene.search.Collector;
 import org.apache.lucene.search.IndexSearcher;
@@ -28,25 +39,43 @@ import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.Scorer;
 import org.apache.lucene.search.TopScoreDocCollector;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.ArrayUtil;
 import org.apache.lucene.util.Version;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -72,24 +101,138 @@ public class LRUIndex {
     // Lucene settings to be tested to optimize
     private static final int RAM_BUFFER_SIZE_MB = 512;
 
+    // maximum # of nodelinks kept in the adjacency index of webentities
+    private static final int ADJACENCY_MAX_LINKS = 1000000;
+
     private final Analyzer analyzer = new KeywordAnalyzer();
-    private IndexReader indexReader;
-    private IndexSearcher indexSearcher;
     private IndexWriter indexWriter;
 
     /**
-     * Executor service used for asynchronous batch index tasks.
+     * Current state of the index for readers. Each read acquires it once, so it sees one state of the index even if
+     * writers publish a new snapshot meanwhile.
+     */
+    private final AtomicReference<IndexSnapshot> snapshot = new AtomicReference<IndexSnapshot>();
+    private final AtomicLong snapshotGeneration = new AtomicLong();
+    // snapshots whose reader is still open: the current one and replaced ones that reads still use
+    private final Set<IndexSnapshot> openSnapshots = Collections.newSetFromMap(new ConcurrentHashMap<IndexSnapshot, Boolean>());
+
+    /**
+     * Number of Lucene queries executed since the index was opened.
+     */
+    private final AtomicLong queryCount = new AtomicLong();
+
+    /**
+     * Last queries that took longer than its threshold.
+     */
+    private final SlowQueryLog slowQueryLog = new SlowQueryLog();
+
+    /**
+     * Executor service used for asynchronous batch index tasks. Each index has its own, as close shuts it down.
+     */
+    private final ScheduledExecutorService executorService = Executors.newScheduledThreadPool(Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Computes degrees and rankings over the webentity links graph. Each index has its own, as close shuts it down.
+     */
+    private final GraphAnalytics graphAnalytics = new GraphAnalytics(Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Incremented whenever webentities or webentity links may have changed, so cached graph scores are recomputed.
+     */
+    private final AtomicLong webEntityGraphVersion = new AtomicLong();
+    private volatile GraphScores graphScores;
+    private final Object graphScoresLock = new Object();
+
+    /**
+     * Page-level links of recently requested webentities, kept up to date with newly indexed nodelinks.
+     */
+    private final WebEntityAdjacencyIndex webEntityAdjacencyIndex = new WebEntityAdjacencyIndex(ADJACENCY_MAX_LINKS);
+
+    /**
+     * Held while a new snapshot is published, so a new set of webentity links becomes visible to readers all at once.
+     */
+    private final Object readerLock = new Object();
+
+    /**
+     * Incremented at the end of each change of webentities, while webEntityChangesInProgress counts those not ended yet,
+     * so a snapshot knows whether it sees the same webentities as the previous one.
+     */
+    private final AtomicLong webEntitiesVersion = new AtomicLong();
+    private final AtomicInteger webEntityChangesInProgress = new AtomicInteger();
+
+    /**
+     * Serializes webentity links regenerations.
+     */
+    private final ReentrantLock webEntityLinksRegenerationLock = new ReentrantLock();
+
+    /**
+     * Incremented whenever webentity creation rules change, so the compiled rules are rebuilt.
+     */
+    private final AtomicLong webEntityCreationRulesVersion = new AtomicLong();
+    private volatile WebEntityCreationRuleEngine webEntityCreationRuleEngine;
+
+    /**
+     * Held while checking for existing webentities and creating new ones, so concurrent creations don't duplicate them.
+     */
+    private final Object webEntityCreationLock = new Object();
+
+    /**
+     * Number of LRUs looked up in one query when checking for existing webentities, within the maximum number of
+     * clauses of a BooleanQuery.
+     */
+    private static final int LRUS_PER_QUERY = 1000;
+
+    /**
+     * Bloom filters over the LRUs of pageItems and the sources and targets of nodelinks, so looking up pages and links
+     * that are not in the index does not search it. They are saved in the index directory when the index is closed,
+     * and rebuilt from the index when it is opened if they are missing or out of date.
+     */
+    private volatile LRUBloomFilter pageItemFilter;
+    private volatile LRUBloomFilter nodeLinkFilter;
+    private static final long LRU_FILTER_MIN_CAPACITY = 1000000;
+    private static final double LRU_FILTER_FALSE_POSITIVE_RATE = 0.01;
+    private static final String PAGE_ITEM_FILTER_FILE = "pageitems.bloom";
+    private static final String NODE_LINK_FILTER_FILE = "nodelinks.bloom";
+    private File indexDirectory;
+    private DirectoryFactory directoryFactory;
+
+    /**
+     * Incremented each time a newly generated set of webentity links replaces the previous one.
+     */
+    private final AtomicLong webEntityLinksGeneration = new AtomicLong();
+
+    /**
+     * Number of nodelinks indexed since webentity links were last generated, and the number after which a
+     * regeneration is scheduled; 0 disables automatic regeneration.
+     */
+    private final AtomicLong nodeLinksSinceRegeneration = new AtomicLong();
+    private volatile long webEntityLinksRegenerationThreshold = 0;
+    private final AtomicBoolean webEntityLinksRegenerationScheduled = new AtomicBoolean(false);
+
+    /**
+     * Executor service used for webentity links regenerations in the background, at low priority. Each index has its
+     * own, as close shuts it down.
      */
-    private static ScheduledExecutorService executorService = Executors.newScheduledThreadPool(Runtime.getRuntime().availableProcessors());
+    private final ExecutorService regenerationExecutorService = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "webentitylinks-regeneration");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    });
 
     //
     // singleton-ness
     //
     private static LRUIndex instance;
     public synchronized static LRUIndex getInstance(String path, IndexWriterConfig.OpenMode openMode) {
+        return getInstance(path, openMode, new DirectoryFactory());
+    }
+    public synchronized static LRUIndex getInstance(String path, IndexWriterConfig.OpenMode openMode, DirectoryFactory directoryFactory) {
         if(instance == null) {
             //logger.trace("creating new LRUIndex object");
-            instance = new LRUIndex(path, openMode);
+            instance = new LRUIndex(path, openMode, directoryFactory);
         }
         else {
             //logger.trace("returning existing LRUIndex object");
@@ -117,13 +260,27 @@ public class LRUIndex {
      */
     public synchronized void clearIndex() throws IndexException {
         try {
-            if(logger.isDebugEnabled()) {
+            if(logger.isTraceEnabled()) {
             	logger.trace("clearing index");
             }
-            this.indexWriter.deleteAll();
-            this.indexWriter.commit();
-            this.indexReader = IndexReader.open(this.indexWriter, false);
-            this.indexSearcher = new IndexSearcher(this.indexReader);
+            beginWebEntitiesChange();
+            try {
+                this.indexWriter.deleteAll();
+                this.indexWriter.commit();
+            }
+            finally {
+                endWebEntitiesChange();
+            }
+            synchronized(readerLock) {
+                long version = readWebEntitiesVersion();
+                publishSnapshot(IndexReader.open(this.indexWriter, false), version);
+            }
+            webEntityGraphVersion.incrementAndGet();
+            webEntityAdjacencyIndex.clear();
+            webEntityCreationRulesVersion.incrementAndGet();
+            nodeLinksSinceRegeneration.set(0);
+            this.pageItemFilter = new LRUBloomFilter(LRU_FILTER_MIN_CAPACITY, LRU_FILTER_FALSE_POSITIVE_RATE);
+            this.nodeLinkFilter = new LRUBloomFilter(LRU_FILTER_MIN_CAPACITY, LRU_FILTER_FALSE_POSITIVE_RATE);
             if(logger.isDebugEnabled()) {
                 logger.debug("index now has # " + indexCount() + " documents");
             }
@@ -144,8 +301,9 @@ public class LRUIndex {
      *
      * @param path path to the index
      * @param openMode how to open
+     * @param directoryFactory opens the Lucene directory
      */
-    private LRUIndex(String path, IndexWriterConfig.OpenMode openMode) {
+    private LRUIndex(String path, IndexWriterConfig.OpenMode openMode, DirectoryFactory directoryFactory) {
         logger.info("creating LRUIndex, openMode is " + openMode.name() + ", path to Lucene index is " + path);
         try {
             OPEN_MODE = openMode;
@@ -159,14 +317,14 @@ public class LRUIndex {
             else if(! indexDirectory.isDirectory()) {
                 throw new ExceptionInInitializerError("can't create Lucene index in requested location " + path);
             }
-            logger.info("opening Lucene FileSytemDirectory: " + indexDirectory.getAbsolutePath());
-            FSDirectory diskDirectory = FSDirectory.open(indexDirectory);
+            this.directoryFactory = directoryFactory;
+            FSDirectory diskDirectory = directoryFactory.open(indexDirectory);
             logger.trace("creating IndexWriter");
             this.indexWriter = createIndexWriter(diskDirectory);
             logger.trace("creating IndexReader");
-            this.indexReader = IndexReader.open(this.indexWriter, false);
-            logger.trace("creating IndexSearcher");
-            this.indexSearcher = new IndexSearcher(this.indexReader);
+            publishSnapshot(IndexReader.open(this.indexWriter, false), readWebEntitiesVersion());
+            this.indexDirectory = indexDirectory;
+            loadLRUFilters();
             logger.info("successfully created LRUIndex");
         }
         catch(IndexException x) {
@@ -205,6 +363,8 @@ public class LRUIndex {
         TieredMergePolicy tieredMergePolicy = new TieredMergePolicy();
         tieredMergePolicy.setUseCompoundFile(true);
         indexWriterConfig.setMergePolicy(tieredMergePolicy);
+        // merged segments are searched for the first time before the readers that contain them are published
+        indexWriterConfig.setMergedSegmentWarmer(new IndexWarmer.MergedSegmentWarmer());
         
         try {
             return new IndexWriter(diskDirectory, indexWriterConfig);
@@ -223,12 +383,19 @@ public class LRUIndex {
      */
     public void close() throws IOException {
         logger.info("close: closing IndexReader and IndexWriter");
-        if(indexReader != null) {
-            indexReader.close();
+        // the reader is closed once reads in progress are done with it
+        IndexSnapshot current = snapshot.getAndSet(null);
+        if(current != null) {
+            current.release();
+            forgetIfClosed(current);
         }
         if(indexWriter != null) {
+            Directory directory = indexWriter.getDirectory();
             indexWriter.close();
+            saveLRUFilters(directory);
         }
+        graphAnalytics.shutdown();
+        regenerationExecutorService.shutdownNow();
         executorService.shutdown();
         try {
             // pool didn't terminate after the first try
@@ -245,12 +412,308 @@ public class LRUIndex {
             executorService.shutdownNow();
             Thread.currentThread().interrupt();
         }
+        // the next getInstance opens the index again, with new pools
+        synchronized(LRUIndex.class) {
+            if(instance == this) {
+                instance = null;
+            }
+        }
+    }
+
+    /**
+     * Reads the saved LRU filters if they were saved for the current version of the index, or else rebuilds them from
+     * the index: page LRUs from the term dictionary, nodelinks from their stored sources and targets.
+     *
+     * @throws IOException hmm
+     */
+    private void loadLRUFilters() throws IOException {
+        long start = System.currentTimeMillis();
+        LRUBloomFilter pageItemFilter = null;
+        LRUBloomFilter nodeLinkFilter = null;
+        // a new index has no commit yet, nor saved filters
+        if(IndexReader.indexExists(indexWriter.getDirectory())) {
+            long version = IndexReader.getCurrentVersion(indexWriter.getDirectory());
+            try {
+                pageItemFilter = LRUBloomFilter.readFrom(new File(indexDirectory, PAGE_ITEM_FILTER_FILE), version);
+                nodeLinkFilter = LRUBloomFilter.readFrom(new File(indexDirectory, NODE_LINK_FILTER_FILE), version);
+            }
+            catch(IOException x) {
+                logger.warn("could not read saved LRU filters, rebuilding them: " + x.getMessage());
+            }
+        }
+        if(pageItemFilter != null && nodeLinkFilter != null && !pageItemFilter.isSaturated() && !nodeLinkFilter.isSaturated()) {
+            this.pageItemFilter = pageItemFilter;
+            this.nodeLinkFilter = nodeLinkFilter;
+            logger.info("read LRU filters of # " + pageItemFilter.size() + " pageItems and # " + nodeLinkFilter.size() + " nodeLinks in " + (System.currentTimeMillis() - start) + " ms");
+            return;
+        }
+
+        IndexReader reader = snapshot.get().getIndexReader();
+        pageItemFilter = new LRUBloomFilter(Math.max(LRU_FILTER_MIN_CAPACITY, 2L * reader.docFreq(LuceneQueryFactory.typeEqualPageItem)), LRU_FILTER_FALSE_POSITIVE_RATE);
+        nodeLinkFilter = new LRUBloomFilter(Math.max(LRU_FILTER_MIN_CAPACITY, 2L * reader.docFreq(LuceneQueryFactory.typeEqualNodeLink)), LRU_FILTER_FALSE_POSITIVE_RATE);
+        // LRUs of other objects, such as webentities, are in the same field: they only add false positives
+        String lruField = IndexConfiguration.FieldName.LRU.name();
+        TermEnum terms = reader.terms(new Term(lruField, ""));
+        try {
+            do {
+                Term term = terms.term();
+                if(term == null || !term.field().equals(lruField)) {
+                    break;
+                }
+                pageItemFilter.put(term.text());
+            }
+            while(terms.next());
+        }
+        finally {
+            terms.close();
+        }
+        FieldSelector linkSelector = new MapFieldSelector(IndexConfiguration.FieldName.SOURCE.name(), IndexConfiguration.FieldName.TARGET.name());
+        TermDocs termDocs = reader.termDocs(LuceneQueryFactory.typeEqualNodeLink);
+        try {
+            while(termDocs.next()) {
+                Document document = reader.document(termDocs.doc(), linkSelector);
+                nodeLinkFilter.put(nodeLinkKey(document.get(IndexConfiguration.FieldName.SOURCE.name()), document.get(IndexConfiguration.FieldName.TARGET.name())));
+            }
+        }
+        finally {
+            termDocs.close();
+        }
+        this.pageItemFilter = pageItemFilter;
+        this.nodeLinkFilter = nodeLinkFilter;
+        logger.info("rebuilt LRU filters of # " + pageItemFilter.size() + " pageItems and # " + nodeLinkFilter.size() + " nodeLinks in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Saves the LRU filters in the index directory, with the version of the index, once the index writer is closed.
+     *
+     * @param directory directory of the closed index writer
+     */
+    private void saveLRUFilters(Directory directory) {
+        try {
+            long version = IndexReader.getCurrentVersion(directory);
+            pageItemFilter.writeTo(new File(indexDirectory, PAGE_ITEM_FILTER_FILE), version);
+            nodeLinkFilter.writeTo(new File(indexDirectory, NODE_LINK_FILTER_FILE), version);
+        }
+        catch(IOException x) {
+            logger.error("could not save LRU filters: " + x.getMessage());
+            x.printStackTrace();
+        }
+    }
+
+    private static String nodeLinkKey(String source, String target) {
+        return source + "\n" + target;
+    }
+
+    /**
+     * Adds the LRU of a pageItem that is being indexed to the LRU filter.
+     *
+     * @param lru page lru
+     */
+    void pageItemIndexed(String lru) {
+        pageItemFilter.put(lru);
+    }
+
+    /**
+     * Adds a nodelink that is being indexed to the LRU filter.
+     *
+     * @param source source lru
+     * @param target target lru
+     */
+    void nodeLinkIndexed(String source, String target) {
+        nodeLinkFilter.put(nodeLinkKey(source, target));
+    }
+
+    /**
+     * Returns which of the LRUs are LRUs of pageItems in the index. The LRU filter rules out most LRUs that are not,
+     * and the others are looked up in bulk.
+     *
+     * @param lrus lrus
+     * @return the lrus of pageItems, in the order they were given
+     * @throws IndexException hmm
+     */
+    public List<String> retrieveKnownPageItemLRUs(Collection<String> lrus) throws IndexException {
+        List<String> candidates = new ArrayList<String>();
+        for(String lru : lrus) {
+            if(lru != null && pageItemFilter.mightContain(lru)) {
+                candidates.add(lru);
+            }
+        }
+        Set<String> known = new HashSet<String>();
+        try {
+            FieldSelector lruSelector = new MapFieldSelector(IndexConfiguration.FieldName.LRU.name());
+            for(int i = 0; i < candidates.size(); i += LRUS_PER_QUERY) {
+                List<String> batch = candidates.subList(i, Math.min(candidates.size(), i + LRUS_PER_QUERY));
+                Query q = LuceneQueryFactory.getPageItemsByExactLRUsQuery(batch);
+                for(Document hit : executeMultipleResultsQuery(q, lruSelector)) {
+                    known.add(hit.get(IndexConfiguration.FieldName.LRU.name()));
+                }
+            }
+        }
+        catch(IOException x) {
+            logger.error(x.getMessage());
+            x.printStackTrace();
+            throw new IndexException(x.getMessage(), x);
+        }
+        List<String> results = new ArrayList<String>();
+        for(String lru : lrus) {
+            if(known.remove(lru)) {
+                results.add(lru);
+            }
+        }
+        if(logger.isDebugEnabled()) {
+            logger.debug("# " + results.size() + " known pageItems among # " + lrus.size() + " lrus, # " + candidates.size() + " looked up");
+        }
+        return results;
     }
 
     public String indexWebEntity(WebEntity webEntity) throws IndexException{
         return indexWebEntity(webEntity, true, true);
     }
 
+    /**
+     * Indexes new webentities with a single commit, skipping those for which a webentity already exists: with the LRU
+     * prefix they are created for, or with one of their own LRUs. Existing webentities are looked up for all LRU
+     * prefixes at once rather than one by one.
+     *
+     * @param webEntities new webentities, by the LRU prefix they are created for
+     * @return ids of the indexed webentities
+     * @throws IndexException hmm
+     */
+    public List<String> indexNewWebEntities(Map<String, WebEntity> webEntities) throws IndexException {
+        List<String> ids = new ArrayList<String>();
+        if(webEntities.isEmpty()) {
+            return ids;
+        }
+        long start = System.currentTimeMillis();
+        synchronized(webEntityCreationLock) {
+            try {
+                List<WebEntity> newWebEntities;
+                beginWebEntitiesChange();
+                try {
+                    newWebEntities = selectNewWebEntities(webEntities);
+                    for(WebEntity webEntity : newWebEntities) {
+                        Document webEntityDocument = IndexConfiguration.convertWebEntityToLuceneDocument(webEntity);
+                        this.indexWriter.addDocument(webEntityDocument);
+                        ids.add(webEntityDocument.get(IndexConfiguration.FieldName.ID.name()));
+                    }
+                    if(!ids.isEmpty()) {
+                        this.indexWriter.commit();
+                    }
+                }
+                finally {
+                    endWebEntitiesChange();
+                }
+                if(!ids.isEmpty()) {
+                    reloadIndexIfChange();
+                    webEntityGraphVersion.incrementAndGet();
+                    webEntityAdjacencyIndex.webEntitiesChanged(newWebEntities);
+                }
+            }
+            catch(CorruptIndexException x) {
+                logger.error(x.getMessage());
+                x.printStackTrace();
+                throw new IndexException(x);
+            }
+            catch(IOException x) {
+                logger.error(x.getMessage());
+                x.printStackTrace();
+                throw new IndexException(x);
+            }
+        }
+        if(logger.isDebugEnabled()) {
+            logger.debug("indexed # " + ids.size() + " new webentities out of # " + webEntities.size() + " in " + (System.currentTimeMillis() - start) + " ms");
+        }
+        return ids;
+    }
+
+    /**
+     * Indexes a batch of objects together with new webentities, with a single commit: as indexNewWebEntities, new
+     * webentities for which a webentity already exists are skipped.
+     *
+     * @param objects objects to index, as for batchIndex
+     * @param webEntities new webentities, by the LRU prefix they are created for
+     * @return ids of the indexed webentities
+     * @throws IndexException hmm
+     */
+    public List<String> batchIndex(List<Object> objects, Map<String, WebEntity> webEntities) throws IndexException {
+        List<String> ids = new ArrayList<String>();
+        synchronized(webEntityCreationLock) {
+            List<Object> batch = new ArrayList<Object>(objects);
+            try {
+                for(WebEntity webEntity : selectNewWebEntities(webEntities)) {
+                    if(StringUtils.isEmpty(webEntity.getId())) {
+                        webEntity.setId(UUID.randomUUID().toString());
+                    }
+                    ids.add(webEntity.getId());
+                    batch.add(webEntity);
+                }
+            }
+            catch(IOException x) {
+                logger.error(x.getMessage());
+                x.printStackTrace();
+                throw new IndexException(x);
+            }
+            batchIndex(batch);
+        }
+        if(logger.isDebugEnabled()) {
+            logger.debug("indexed # " + objects.size() + " objects and # " + ids.size() + " new webentities out of # " + webEntities.size());
+        }
+        return ids;
+    }
+
+    /**
+     * Returns the new webentities for which no webentity exists yet, with the LRU prefix they are created for or with
+     * one of their own LRUs, looking up existing webentities for all LRU prefixes at once.
+     *
+     * @param webEntities new webentities, by the LRU prefix they are created for
+     * @return webentities to index
+     * @throws IOException hmm
+     */
+    private List<WebEntity> selectNewWebEntities(Map<String, WebEntity> webEntities) throws IOException {
+        List<WebEntity> selected = new ArrayList<WebEntity>();
+        if(webEntities.isEmpty()) {
+            return selected;
+        }
+        Set<String> lrus = new HashSet<String>(webEntities.keySet());
+        for(WebEntity webEntity : webEntities.values()) {
+            lrus.addAll(webEntity.getLRUSet());
+        }
+        Set<String> taken = retrieveWebEntityLRUs(lrus);
+        for(Map.Entry<String, WebEntity> entry : webEntities.entrySet()) {
+            WebEntity webEntity = entry.getValue();
+            if(taken.contains(entry.getKey()) || CollectionUtils.containsAny(taken, webEntity.getLRUSet())) {
+                continue;
+            }
+            selected.add(webEntity);
+            // several prefixes may give the same webentity
+            taken.addAll(webEntity.getLRUSet());
+        }
+        return selected;
+    }
+
+    /**
+     * Returns the LRUs of the webentities having any of these LRUs.
+     *
+     * @param lrus lrus
+     * @return lrus of matching webentities
+     * @throws IOException hmm
+     */
+    private Set<String> retrieveWebEntityLRUs(Collection<String> lrus) throws IOException {
+        Set<String> result = new HashSet<String>();
+        List<String> batch = new ArrayList<String>(LRUS_PER_QUERY);
+        Iterator<String> iterator = lrus.iterator();
+        while(iterator.hasNext()) {
+            batch.add(iterator.next());
+            if(batch.size() == LRUS_PER_QUERY || !iterator.hasNext()) {
+                for(Document hit : executeMultipleResultsQuery(LuceneQueryFactory.getWebEntitiesByLRUsQuery(batch))) {
+                    result.addAll(IndexConfiguration.convertLuceneDocumentToWebEntity(hit).getLRUSet());
+                }
+                batch.clear();
+            }
+        }
+        return result;
+    }
+
     /**
       * Adds or updates a WebEntity to the index. If ID is not empty, the existing WebEntity with that ID is retrieved
       * and this LRU is added to it; if no existing WebEntity with that ID is found, or if ID is empty, a new WebEntity
@@ -287,52 +750,68 @@ public class LRUIndex {
         try {
             boolean updating = false;
             String id = webEntity.getId();
+            WebEntity toUpdate = null;
 
             // id has no value: create new
             if(StringUtils.isEmpty(id)) {
-                if(logger.isDebugEnabled()) {
+                if(logger.isTraceEnabled()) {
                 	logger.trace("indexing webentity with id null (new webentity will be created)");
                 }
             }
             // id has a value
             else {
-                if(logger.isDebugEnabled()) {
+                if(logger.isTraceEnabled()) {
                 	logger.trace("indexing webentity with id " + id);
                 }
                 // retrieve webEntity with that id
-                WebEntity toUpdate = retrieveWebEntity(id);
+                toUpdate = retrieveWebEntity(id);
                 if(toUpdate != null) {
                 	logger.trace("webentity found");
                     updating = true;
                 } else {
-                    if(logger.isDebugEnabled()) {
+                    if(logger.isTraceEnabled()) {
                     	logger.trace("did not find webentity with id " + id + " (new webentity will be created)");
                     }
                     updating = false;
                 }
             }
 
-            if(updating) {
-               // delete old webentity before indexing
-                if(logger.isDebugEnabled()) {
-                	logger.trace("deleting existing webentity with id " + id);
+            Document webEntityDocument;
+            beginWebEntitiesChange();
+            try {
+                if(updating) {
+                   // delete old webentity before indexing
+                    if(logger.isTraceEnabled()) {
+                    	logger.trace("deleting existing webentity with id " + id);
+                    }
+                    // Delete and commit
+                    deleteObject(LuceneQueryFactory.getWebEntityByIdQuery(id), true);
                 }
-                // Delete and commit
-                deleteObject(LuceneQueryFactory.getWebEntityByIdQuery(id), true);
-            }
 
-            Document webEntityDocument = IndexConfiguration.convertWebEntityToLuceneDocument(webEntity);
-            this.indexWriter.addDocument(webEntityDocument);
-            
-            // Commit the addDocument
-            if (commit) {
-                this.indexWriter.commit();
+                webEntityDocument = IndexConfiguration.convertWebEntityToLuceneDocument(webEntity);
+                this.indexWriter.addDocument(webEntityDocument);
+
+                // Commit the addDocument
+                if (commit) {
+                    this.indexWriter.commit();
+                }
+            }
+            finally {
+                endWebEntitiesChange();
             }
             reloadIndexIfChange();
+            webEntityGraphVersion.incrementAndGet();
+            // links may move from the previous lrus of the webentity as well as to its new ones
+            List<WebEntity> changedWebEntities = new ArrayList<WebEntity>();
+            changedWebEntities.add(webEntity);
+            if(toUpdate != null) {
+                changedWebEntities.add(toUpdate);
+            }
+            webEntityAdjacencyIndex.webEntitiesChanged(changedWebEntities);
 
             // return id of indexed webentity
             String indexedId = webEntityDocument.get(IndexConfiguration.FieldName.ID.name());
-            if(logger.isDebugEnabled()){
+            if(logger.isTraceEnabled()){
             	logger.trace("indexed webentity with id " + indexedId);
             }
 
@@ -361,7 +840,7 @@ public class LRUIndex {
         for(WebEntityCreationRule webEntityCreationRule : existingWebEntityCreationRules) {
             String existingPrefix = webEntityCreationRule.getLRU();
             if(existingPrefix.equals(prefix)) {
-                if(logger.isDebugEnabled()) {
+                if(logger.isTraceEnabled()) {
                 	logger.trace("found already existing webentity creation rule prefix: " + prefix);
                 }
                 return prefix;
@@ -390,7 +869,9 @@ public class LRUIndex {
             throw new IndexException("WebEntityCreationRule has already existing LRU prefix: " + existingPrefix);
         }
 
+        IndexSnapshot snapshot = acquireSnapshot();
         try {
+            IndexSearcher indexSearcher = snapshot.getIndexSearcher();
             boolean update = false;
             WebEntityCreationRule existing = null;
             TopScoreDocCollector collector = TopScoreDocCollector.create(1, false);
@@ -424,6 +905,7 @@ public class LRUIndex {
             this.indexWriter.commit();
             
             reloadIndexIfChange();
+            webEntityCreationRulesVersion.incrementAndGet();
         }
         catch(CorruptIndexException x) {
             logger.error(x.getMessage());
@@ -435,6 +917,9 @@ public class LRUIndex {
             x.printStackTrace();
             throw new IndexException(x);
         }
+        finally {
+            releaseSnapshot(snapshot);
+        }
     }
 
     public void deletePageItem(PageItem pageItem) throws IndexException {
@@ -454,7 +939,7 @@ public class LRUIndex {
     private boolean allDone(Collection<ScheduledFuture> scheduledFutures ) {
         for(ScheduledFuture scheduledFuture : scheduledFutures) {
             if(!scheduledFuture.isDone()) {
-                if(logger.isDebugEnabled()) {
+                if(logger.isTraceEnabled()) {
                     logger.trace("not all scheduledfutures are done yet");
                 }
                 return false;
@@ -484,16 +969,15 @@ public class LRUIndex {
                 logger.debug("batchIndex processing # " + batchSize + " objects");
             }
 
-/*   Unicity check from Heiki, shouldn't be necessary if processes are correct in core and preprocess
- *   makes things a lot slower with big objectsets
-            Set<Object> objectsSet = new HashSet<Object>(objects);
-
-            if(objectsSet.size() != objects.size()) {
-                logger.warn("There were # " + (objects.size() - objectsSet.size()) + " duplicates in the batch to index. These were removed.");
-                objects = new ArrayList<Object>(objectsSet);
+            // pageItems found several times in the batch are merged, to index one document for each lru
+            long startDeduplication = System.currentTimeMillis();
+            objects = PageItemDeduplicator.deduplicate(objects);
+            if(objects.size() != batchSize) {
+                if(logger.isDebugEnabled()) {
+                    logger.debug("merged # " + (batchSize - objects.size()) + " duplicate pageItems in the batch to index in " + (System.currentTimeMillis() - startDeduplication) + " ms");
+                }
                 batchSize = objects.size();
             }
-*/
 
             long startRAMIndexing = System.currentTimeMillis();
 
@@ -552,15 +1036,54 @@ public class LRUIndex {
             if(logger.isDebugEnabled()) {
                 logger.debug("# docs in filesystem index before adding the newly indexed objects: " + this.indexWriter.numDocs());
             }
-            this.indexWriter.addIndexes(ramsj);
-            if(logger.isDebugEnabled()) {
-                logger.debug("# docs in filesystem index after adding the newly indexed objects: " + this.indexWriter.numDocs());
+            boolean webEntityGraphChanged = false;
+            boolean webEntitiesChanged = false;
+            List<WebEntity> changedWebEntities = new ArrayList<WebEntity>();
+            List<NodeLink> nodeLinks = new ArrayList<NodeLink>();
+            for(Object object : objects) {
+                if(object instanceof WebEntityLink || object instanceof WebEntity) {
+                    webEntityGraphChanged = true;
+                    if(object instanceof WebEntity) {
+                        webEntitiesChanged = true;
+                        changedWebEntities.add((WebEntity) object);
+                    }
+                }
+                else if(object instanceof NodeLink) {
+                    nodeLinks.add((NodeLink) object);
+                }
+            }
+
+            if(webEntitiesChanged) {
+                beginWebEntitiesChange();
+            }
+            try {
+                this.indexWriter.addIndexes(ramsj);
+                if(logger.isDebugEnabled()) {
+                    logger.debug("# docs in filesystem index after adding the newly indexed objects: " + this.indexWriter.numDocs());
+                }
+
+                // Commit the addDocument ?
+                this.indexWriter.commit();
+            }
+            finally {
+                if(webEntitiesChanged) {
+                    endWebEntitiesChange();
+                }
             }
 
-            // Commit the addDocument ?
-            this.indexWriter.commit();
-            
             reloadIndexIfChange();
+            if(webEntityGraphChanged) {
+                webEntityGraphVersion.incrementAndGet();
+            }
+            if(webEntitiesChanged) {
+                webEntityAdjacencyIndex.webEntitiesChanged(changedWebEntities);
+            }
+            if(nodeLinks.size() > 0) {
+                webEntityAdjacencyIndex.nodeLinksIndexed(nodeLinks);
+            }
+            if(nodeLinks.size() > 0) {
+                nodeLinksIndexed(nodeLinks.size());
+            }
 
             if(logger.isDebugEnabled()) {
                 long end2 = System.currentTimeMillis();
@@ -661,9 +1184,11 @@ public class LRUIndex {
      */
     public List<String> retrievePrecisionExceptions() throws IndexException {
         logger.debug("retrieving precisionexceptions");
+        IndexSnapshot snapshot = acquireSnapshot();
         try {
+            IndexReader indexReader = snapshot.getIndexReader();
             List<String> results = new ArrayList<String>();
-            TermDocs termDocs = this.indexReader.termDocs(LuceneQueryFactory.typeEqualPrecisionException);
+            TermDocs termDocs = indexReader.termDocs(LuceneQueryFactory.typeEqualPrecisionException);
             while(termDocs.next()) {
                 Document precisionExceptionDoc = indexReader.document(termDocs.doc());
                 String precisionExceptionFound = precisionExceptionDoc.get(IndexConfiguration.FieldName.LRU.name());
@@ -682,6 +1207,9 @@ public class LRUIndex {
             x.printStackTrace();
             throw new IndexException(x.getMessage(), x);
         }
+        finally {
+            releaseSnapshot(snapshot);
+        }
     }
 
     /**
@@ -694,7 +1222,9 @@ public class LRUIndex {
         if(logger.isDebugEnabled()) {
             logger.debug("retrieveWebEntity with id " + id);
         }
+        IndexSnapshot snapshot = acquireSnapshot();
         try {
+            IndexSearcher indexSearcher = snapshot.getIndexSearcher();
             WebEntity result = null;
             TopScoreDocCollector collector = TopScoreDocCollector.create(1, false);
             Query q = LuceneQueryFactory.getWebEntityByIdQuery(id);
@@ -729,6 +1259,9 @@ public class LRUIndex {
             x.printStackTrace();
             throw new IndexException(x.getMessage(), x);
         }
+        finally {
+            releaseSnapshot(snapshot);
+        }
     }
 
     /**
@@ -738,7 +1271,9 @@ public class LRUIndex {
      * @throws IndexException hmm
      */
     public WebEntityLink retrieveWebEntityLink(WebEntityLink webEntityLink) throws IndexException {
+        IndexSnapshot snapshot = acquireSnapshot();
         try {
+            IndexSearcher indexSearcher = snapshot.getIndexSearcher();
             WebEntityLink result = null;
             TopScoreDocCollector collector = TopScoreDocCollector.create(1, false);
             Query q = LuceneQueryFactory.getWebEntityLinkBySourceAndTargetQuery(webEntityLink.getSourceId(), webEntityLink.getTargetId());
@@ -753,11 +1288,13 @@ public class LRUIndex {
                 Document doc = indexSearcher.doc(i);
                 result = IndexConfiguration.convertLuceneDocumentToWebEntityLink(doc);
             }
-            if(result != null && logger.isDebugEnabled()) {
-                logger.debug("retrieved webentitylink with id " + result.getId());
-            }
-            else {
-                logger.debug("failed to retrieve webentitylink");
+            if(logger.isDebugEnabled()) {
+                if(result != null) {
+                    logger.debug("retrieved webentitylink with id " + result.getId());
+                }
+                else {
+                    logger.debug("failed to retrieve webentitylink");
+                }
             }
             return result;
         }
@@ -771,6 +1308,9 @@ public class LRUIndex {
             x.printStackTrace();
             throw new IndexException(x.getMessage(), x);
         }
+        finally {
+            releaseSnapshot(snapshot);
+        }
     }
 
     /**
@@ -781,8 +1321,15 @@ public class LRUIndex {
      * @throws IndexException hmm
      */
     public NodeLink retrieveNodeLink(NodeLink nodeLink) throws IndexException {
-        logger.debug("retrieveNodeLink");
+        if(logger.isDebugEnabled()) {
+            logger.debug("retrieveNodeLink with source " + nodeLink.getSourceLRU() + " and target " + nodeLink.getTargetLRU());
+        }
+        if(!nodeLinkFilter.mightContain(nodeLinkKey(nodeLink.getSourceLRU(), nodeLink.getTargetLRU()))) {
+            return null;
+        }
+        IndexSnapshot snapshot = acquireSnapshot();
         try {
+            IndexSearcher indexSearcher = snapshot.getIndexSearcher();
             NodeLink result = null;
             TopScoreDocCollector collector = TopScoreDocCollector.create(1, false);
             Query q = LuceneQueryFactory.getNodeLinkBySourceAndTargetQuery(nodeLink.getSourceLRU(), nodeLink.getTargetLRU());
@@ -797,11 +1344,13 @@ public class LRUIndex {
                 Document doc = indexSearcher.doc(i);
                 result = IndexConfiguration.convertLuceneDocumentToNodeLink(doc);
             }
-            if(result != null && logger.isDebugEnabled()) {
-                logger.debug("retrieved NodeLink with source " + nodeLink.getSourceLRU() + " and target " + nodeLink.getTargetLRU());
-            }
-            else {
-                logger.debug("failed to retrieve NodeLink with source " + nodeLink.getSourceLRU() + " and target " + nodeLink.getTargetLRU());
+            if(logger.isDebugEnabled()) {
+                if(result != null) {
+                    logger.debug("retrieved NodeLink with source " + nodeLink.getSourceLRU() + " and target " + nodeLink.getTargetLRU());
+                }
+                else {
+                    logger.debug("failed to retrieve NodeLink with source " + nodeLink.getSourceLRU() + " and target " + nodeLink.getTargetLRU());
+                }
             }
             return result;
         }
@@ -815,6 +1364,9 @@ public class LRUIndex {
             x.printStackTrace();
             throw new IndexException(x.getMessage(), x);
         }
+        finally {
+            releaseSnapshot(snapshot);
+        }
     }
 
     /**
@@ -940,20 +1492,38 @@ public class LRUIndex {
        if(logger.isDebugEnabled()) {
            logger.debug("retrieveNodeLinksByWebentity: " + webEntityId);
        }
-       try {
-           WebEntity webEntity = retrieveWebEntity(webEntityId);
-           List<WebEntity> subWebEntities = findSubWebEntities(webEntity);
-           List<NodeLink> results = retrieveNodeLinksByQuery(LuceneQueryFactory.getNodeLinksMatchingWebEntityButNotMatchingSubWebEntities(webEntity, subWebEntities, includeExternalLinks));
-           if(logger.isDebugEnabled()) {
-               logger.debug("retrieved # " + results.size() + " nodelinks from index");
+       boolean includeFrontierLinks = includeExternalLinks != null && includeExternalLinks;
+       List<NodeLink> results = webEntityAdjacencyIndex.getLinks(webEntityId, includeFrontierLinks);
+       if(results == null) {
+           // read outside of the adjacency index lock, so neither other reads nor indexing wait for it
+           WebEntityAdjacencyIndex.Build build = webEntityAdjacencyIndex.startBuild(webEntityId);
+           boolean finished = false;
+           try {
+               WebEntity webEntity = retrieveWebEntity(webEntityId);
+               if(webEntity == null) {
+                   throw new IndexException("Could not find webentity with id " + webEntityId);
+               }
+               webEntityAdjacencyIndex.setWebEntity(build, webEntity);
+               List<WebEntity> subWebEntities = findSubWebEntities(webEntity);
+               List<NodeLink> nodeLinks = retrieveNodeLinksByQuery(LuceneQueryFactory.getNodeLinksMatchingWebEntityButNotMatchingSubWebEntities(webEntity, subWebEntities, true));
+               results = webEntityAdjacencyIndex.finishBuild(build, subWebEntities, nodeLinks, includeFrontierLinks);
+               finished = true;
+           }
+           catch(IOException x) {
+               logger.error(x.getMessage());
+               x.printStackTrace();
+               throw new IndexException(x.getMessage(), x);
+           }
+           finally {
+               if(!finished) {
+                   webEntityAdjacencyIndex.abandonBuild(build);
+               }
            }
-           return results;
        }
-       catch(IOException x) {
-           logger.error(x.getMessage());
-           x.printStackTrace();
-           throw new IndexException(x.getMessage(), x);
+       if(logger.isDebugEnabled()) {
+           logger.debug("retrieved # " + results.size() + " nodelinks from adjacency index");
        }
+       return results;
    }
 
     /**
@@ -1075,7 +1645,9 @@ public class LRUIndex {
      */
     public WebEntityCreationRule retrieveDefaultWECR() throws IndexException {
         logger.debug("retrieve default webentity creation rule");
+        IndexSnapshot snapshot = acquireSnapshot();
         try {
+            IndexSearcher indexSearcher = snapshot.getIndexSearcher();
             WebEntityCreationRule result = null;
             TopScoreDocCollector collector = TopScoreDocCollector.create(1, false);
             Query q = LuceneQueryFactory.getDefaultWebEntityCreationRuleQuery();
@@ -1083,16 +1655,20 @@ public class LRUIndex {
 
             ScoreDoc[] hits = collector.topDocs().scoreDocs;
             if(hits != null && hits.length > 0) {
-                logger.debug("found # " + hits.length + " default webentity creation rules");
+                if(logger.isDebugEnabled()) {
+                    logger.debug("found # " + hits.length + " default webentity creation rules");
+                }
                 int i = hits[0].doc;
                 Document doc = indexSearcher.doc(i);
                 result = IndexConfiguration.convertLuceneDocumentToWebEntityCreationRule(doc);
             }
-            if(result != null && logger.isDebugEnabled()) {
-                logger.debug("retrieved default Web Entity Creation Rule");
-            }
-            else {
-                logger.debug("failed to retrieve default Web Entity Creation Rule");
+            if(logger.isDebugEnabled()) {
+                if(result != null) {
+                    logger.debug("retrieved default Web Entity Creation Rule");
+                }
+                else {
+                    logger.debug("failed to retrieve default Web Entity Creation Rule");
+                }
             }
             return result;
         }
@@ -1106,6 +1682,9 @@ public class LRUIndex {
             x.printStackTrace();
             throw new IndexException(x.getMessage(), x);
         }
+        finally {
+            releaseSnapshot(snapshot);
+        }
     }
 
     /**
@@ -1132,13 +1711,14 @@ public class LRUIndex {
         if(logger.isDebugEnabled()) {
             logger.debug("retrieveWebEntityMatchingLRU: " + lru);
         }
+        IndexSnapshot snapshot = acquireSnapshot();
         try {
             int lastIndex;
             String prefixLRU = lru;
             WebEntity webentity = null;
             final Pattern pattern = Pattern.compile("\\|[shpqft]:");
             while (webentity == null && prefixLRU != null && prefixLRU.length() > 0) {
-                webentity = retrieveWebEntityByLRUPrefix(prefixLRU);
+                webentity = retrieveWebEntityByLRUPrefix(snapshot, prefixLRU);
                 if (webentity == null) {
                     lastIndex = -1;
                     Matcher matcher = pattern.matcher(prefixLRU);
@@ -1154,11 +1734,14 @@ public class LRUIndex {
             }
             return webentity;
         }
-        catch (IndexException x) {
+        catch (IOException x) {
             logger.error(x.getMessage());
             x.printStackTrace();
             throw new IndexException(x.getMessage(), x);
         }
+        finally {
+            releaseSnapshot(snapshot);
+        }
     }
 
     /**
@@ -1172,6 +1755,7 @@ public class LRUIndex {
         if(logger.isDebugEnabled()) {
             logger.debug("findParentWebEntities: " + webEntity);
         }
+        IndexSnapshot snapshot = acquireSnapshot();
         try {
             int lastIndex;
             WebEntity parent = null;
@@ -1190,7 +1774,7 @@ public class LRUIndex {
                     } else {
                         prefixLRU = "";
                     }
-                    parent = retrieveWebEntityByLRUPrefix(prefixLRU);
+                    parent = retrieveWebEntityByLRUPrefix(snapshot, prefixLRU);
                     if (parent != null) {
                         if (!parent.getId().equals(webEntity.getId())) {
                             parents.add(parent);
@@ -1200,11 +1784,14 @@ public class LRUIndex {
             }
             return new ArrayList<WebEntity>(parents);
         }
-        catch (IndexException x) {
+        catch (IOException x) {
             logger.error(x.getMessage());
             x.printStackTrace();
             throw new IndexException(x.getMessage(), x);
         }
+        finally {
+            releaseSnapshot(snapshot);
+        }
     }
 
     /**
@@ -1221,23 +1808,46 @@ public class LRUIndex {
         if(logger.isDebugEnabled()) {
             logger.debug("retrieveWebEntityByLRUPrefix: " + prefix);
         }
+        IndexSnapshot snapshot = acquireSnapshot();
         try {
-            Query q = LuceneQueryFactory.getWebEntitiesByLRUQuery(prefix);
-            final List<Document> hits = executeMultipleResultsQuery(q);
-            if (hits.size() < 1) {
-                return null;
-            }
-            if (hits.size() > 1) {
-                logger.warn("WARNING : " + hits.size() + "multiple WEs found for lru "+prefix);
-            }
-            WebEntity webEntity = IndexConfiguration.convertLuceneDocumentToWebEntity(hits.get(0));
-            return webEntity;
+            return retrieveWebEntityByLRUPrefix(snapshot, prefix);
         }
         catch (IOException x) {
             logger.error(x.getMessage());
             x.printStackTrace();
             throw new IndexException(x.getMessage(), x);
         }
+        finally {
+            releaseSnapshot(snapshot);
+        }
+    }
+
+    /**
+     * Looks up exact prefixes in the webentities by LRU of the snapshot instead of searching.
+     *
+     * @param snapshot snapshot, acquired by the caller
+     * @param prefix
+     * @return web entity having prefix in its list of lru prefixes
+     * @throws IOException hmm
+     */
+    private WebEntity retrieveWebEntityByLRUPrefix(IndexSnapshot snapshot, String prefix) throws IOException {
+        if(!prefix.contains("*") && !prefix.contains("?")) {
+            String id = snapshot.findWebEntityByLRU(prefix);
+            if(id == null) {
+                return null;
+            }
+            List<Document> hits = executeMultipleResultsQuery(snapshot, LuceneQueryFactory.getWebEntityByIdQuery(id));
+            return hits.isEmpty() ? null : IndexConfiguration.convertLuceneDocumentToWebEntity(hits.get(0));
+        }
+        Query q = LuceneQueryFactory.getWebEntitiesByLRUQuery(prefix);
+        final List<Document> hits = executeMultipleResultsQuery(snapshot, q);
+        if (hits.size() < 1) {
+            return null;
+        }
+        if (hits.size() > 1) {
+            logger.warn("WARNING : " + hits.size() + "multiple WEs found for lru "+prefix);
+        }
+        return IndexConfiguration.convertLuceneDocumentToWebEntity(hits.get(0));
     }
 
     /**
@@ -1375,6 +1985,9 @@ public class LRUIndex {
         if(logger.isDebugEnabled()) {
             logger.debug("retrieving PageItem by LRU " + lru);
         }
+        if(lru != null && !lru.contains("*") && !lru.contains("?") && !pageItemFilter.mightContain(lru)) {
+            return null;
+        }
         Query q = LuceneQueryFactory.getPageItemByLRUQuery(lru);
         return retrievePageItemByFieldQuery(q);
     }
@@ -1387,7 +2000,9 @@ public class LRUIndex {
      * @throws IndexException hmm
      */
     public PageItem retrievePageItemByFieldQuery(Query fieldQuery) throws IndexException {
+        IndexSnapshot snapshot = acquireSnapshot();
         try {
+            IndexSearcher indexSearcher = snapshot.getIndexSearcher();
             PageItem result = null;
             TopScoreDocCollector collector = TopScoreDocCollector.create(1, false);
             indexSearcher.search(fieldQuery, collector);
@@ -1407,6 +2022,9 @@ public class LRUIndex {
             x.printStackTrace();
             throw new IndexException(x.getMessage(), x);
         }
+        finally {
+            releaseSnapshot(snapshot);
+        }
 
     }
 
@@ -1438,6 +2056,33 @@ public class LRUIndex {
         }
         // Commit the IndexWriter
         deleteObject(LuceneQueryFactory.getWebEntityCreationRuleByLRUQuery(webEntityCreationRule.getLRU()), true);
+        webEntityCreationRulesVersion.incrementAndGet();
+    }
+
+    /**
+     * Returns the webentity creation rules compiled for matching pages. They are compiled again only after the rules
+     * changed.
+     *
+     * @return compiled rules
+     * @throws IndexException hmm
+     */
+    public WebEntityCreationRuleEngine getWebEntityCreationRuleEngine() throws IndexException {
+        WebEntityCreationRuleEngine engine = webEntityCreationRuleEngine;
+        if(engine != null && engine.getVersion() == webEntityCreationRulesVersion.get()) {
+            return engine;
+        }
+        synchronized(webEntityCreationRulesVersion) {
+            long version = webEntityCreationRulesVersion.get();
+            engine = webEntityCreationRuleEngine;
+            if(engine == null || engine.getVersion() != version) {
+                engine = new WebEntityCreationRuleEngine(retrieveDefaultWECR(), retrieveWebEntityCreationRules(), version);
+                webEntityCreationRuleEngine = engine;
+                if(logger.isDebugEnabled()) {
+                    logger.debug("compiled # " + engine.getRuleCount() + " webentity creation rules, version " + version);
+                }
+            }
+            return engine;
+        }
     }
 
     /**
@@ -1462,7 +2107,16 @@ public class LRUIndex {
          if(logger.isDebugEnabled()) {
              logger.debug("deleting webEntity with id " + webEntity.getId());
          }
-         deleteObject(LuceneQueryFactory.getWebEntityByIdQuery(webEntity.getId()), true);
+         // its lrus, to invalidate the webentities its links go back to
+         WebEntity deleted = retrieveWebEntity(webEntity.getId());
+         beginWebEntitiesChange();
+         try {
+             deleteObject(LuceneQueryFactory.getWebEntityByIdQuery(webEntity.getId()), true);
+         }
+         finally {
+             endWebEntitiesChange();
+         }
+         webEntityAdjacencyIndex.webEntitiesChanged(Collections.singletonList(deleted != null ? deleted : webEntity));
      }
 
    /**
@@ -1490,6 +2144,7 @@ public class LRUIndex {
             	this.indexWriter.commit();
             }
             reloadIndexIfChange();
+            webEntityGraphVersion.incrementAndGet();
         }
         catch (CorruptIndexException x) {
             logger.error(x.getMessage());
@@ -1520,22 +2175,22 @@ public class LRUIndex {
         }
     }
 
-    private List<PageItem> findPagesMatchingWebEntityButNotMatchingSubWebEntities(WebEntity webEntity, List<WebEntity> subWebEntities) throws IndexException {
+    private List<PageItem> findPagesMatchingWebEntityButNotMatchingSubWebEntities(IndexSnapshot snapshot, WebEntity webEntity, List<WebEntity> subWebEntities) throws IndexException {
         if(logger.isDebugEnabled()) {
             logger.debug("findPagesMatchingWebEntityButNotMatchingSubWebEntities for webEntity " + webEntity.getName());
         }
         try {
             List<PageItem> results = new ArrayList<PageItem>();
             Query q = LuceneQueryFactory.getPageItemMatchingWebEntityButNotMatchingSubWebEntities(webEntity, subWebEntities);
-            final List<Document> hits = executeMultipleResultsQuery(q);
+            final List<Document> hits = executeMultipleResultsQuery(snapshot, q);
             for(Document hit: hits) {
                 PageItem pageItem = IndexConfiguration.convertLuceneDocumentToPageItem(hit);
                 results.add(pageItem);
             }
-            if(logger.isDebugEnabled()) {
-                logger.debug("findPagesMatchingWebEntityButNotMatchingSubWebEntities returns # " + results.size() + " pages:");
+            logger.debug("findPagesMatchingWebEntityButNotMatchingSubWebEntities returns # {} pages", results.size());
+            if(logger.isTraceEnabled()) {
                 for(PageItem page : results) {
-                    logger.debug("page " + page.getLru() + " with id " + page.getId());
+                    logger.trace("page {} with id {}", page.getLru(), page.getId());
                 }
             }
             return results;
@@ -1562,23 +2217,29 @@ public class LRUIndex {
         if(StringUtils.isEmpty(id)) {
             return results;
         }
-        WebEntity webEntity = retrieveWebEntity(id);
-        if(webEntity == null) {
-            throw new ObjectNotFoundException().setMsg("Could not find webentity with id: " + id);
-        }
-
+        // the webentity, its sub-webentities and their pages are all read from the same snapshot
+        IndexSnapshot snapshot = acquireSnapshot();
+        WebEntity webEntity;
         try {
-            List<WebEntity> subWebEntities = findSubWebEntities(webEntity);
-            results = findPagesMatchingWebEntityButNotMatchingSubWebEntities(webEntity, subWebEntities);
+            List<Document> hits = executeMultipleResultsQuery(snapshot, LuceneQueryFactory.getWebEntityByIdQuery(id));
+            if(hits.isEmpty()) {
+                throw new ObjectNotFoundException().setMsg("Could not find webentity with id: " + id);
+            }
+            webEntity = IndexConfiguration.convertLuceneDocumentToWebEntity(hits.get(0));
+            List<WebEntity> subWebEntities = findSubWebEntities(snapshot, webEntity);
+            results = findPagesMatchingWebEntityButNotMatchingSubWebEntities(snapshot, webEntity, subWebEntities);
         }
         catch(IOException x) {
             throw new IndexException(x.getMessage(), x);
         }
+        finally {
+            releaseSnapshot(snapshot);
+        }
 
-        if(logger.isDebugEnabled()) {
-            logger.debug("found " + results.size() + " pages for web entity " + webEntity.getName() + ":");
+        logger.debug("found {} pages for web entity {}", results.size(), webEntity.getName());
+        if(logger.isTraceEnabled()) {
             for(PageItem p : results) {
-                logger.debug(p.getLru());
+                logger.trace(p.getLru());
             }
         }
         return results;
@@ -1591,24 +2252,45 @@ public class LRUIndex {
      * @throws IOException
      */
     private List<Document> executeMultipleResultsQuery(Query q) throws IOException {
-        final List<Document> hits = new ArrayList<Document>();
-        indexSearcher.search(q, new Collector() {
-            private IndexReader reader;
-            @Override
-            public void setScorer(Scorer scorer) throws IOException {}
-            @Override
-            public void collect(int doc) throws IOException {
-                hits.add(reader.document(doc));
-            }
-            @Override
-            public void setNextReader(IndexReader reader, int docBase) throws IOException {
-                this.reader = reader;
-            }
-            @Override
-            public boolean acceptsDocsOutOfOrder() {
-                return true;
-            }
-        });
+        return executeMultipleResultsQuery(q, null);
+    }
+
+    /**
+     * @param q query
+     * @param fieldSelector fields to load, or null to load all fields
+     * @return matching documents
+     * @throws IOException hmm
+     */
+    private List<Document> executeMultipleResultsQuery(Query q, FieldSelector fieldSelector) throws IOException {
+        IndexSnapshot snapshot = acquireSnapshot();
+        try {
+            return executeMultipleResultsQuery(snapshot, q, fieldSelector);
+        }
+        finally {
+            releaseSnapshot(snapshot);
+        }
+    }
+
+    private List<Document> executeMultipleResultsQuery(IndexSnapshot snapshot, Query q) throws IOException {
+        return executeMultipleResultsQuery(snapshot, q, null);
+    }
+
+    /**
+     * @param snapshot snapshot to search, acquired by the caller
+     * @param q query
+     * @param fieldSelector fields to load, or null to load all fields
+     * @return matching documents
+     * @throws IOException hmm
+     */
+    private List<Document> executeMultipleResultsQuery(IndexSnapshot snapshot, Query q, FieldSelector fieldSelector) throws IOException {
+        // documents are loaded once they are all found, so the slow query log tells searching and loading apart
+        IndexSearcher indexSearcher = snapshot.getIndexSearcher();
+        DocIdCollector collector = new DocIdCollector();
+        indexSearcher.search(q, collector);
+        List<Document> hits = new ArrayList<Document>(collector.count);
+        for(int i = 0; i < collector.count; i++) {
+            hits.add(indexSearcher.doc(collector.docs[i], fieldSelector));
+        }
         if(logger.isDebugEnabled()) {
             logger.debug("# hits: " + hits.size());
         }
@@ -1624,11 +2306,21 @@ public class LRUIndex {
      * @throws IOException
      */
     public List<WebEntity> findSubWebEntities(WebEntity webEntity) throws IOException {
+        IndexSnapshot snapshot = acquireSnapshot();
+        try {
+            return findSubWebEntities(snapshot, webEntity);
+        }
+        finally {
+            releaseSnapshot(snapshot);
+        }
+    }
+
+    private List<WebEntity> findSubWebEntities(IndexSnapshot snapshot, WebEntity webEntity) throws IOException {
         if(logger.isDebugEnabled()) {
             logger.debug("findSubWebEntities for webEntity with name " + webEntity.getName());
         }
         Query q = LuceneQueryFactory.getSubWebEntitiesQuery(webEntity);
-        List<Document> hits = executeMultipleResultsQuery(q);
+        List<Document> hits = executeMultipleResultsQuery(snapshot, q);
         List<WebEntity> results = new ArrayList<WebEntity>(hits.size());
         for(Document hit: hits) {
             WebEntity subWebEntity = IndexConfiguration.convertLuceneDocumentToWebEntity(hit);
@@ -1636,10 +2328,10 @@ public class LRUIndex {
                 results.add(subWebEntity);
             }
         }
-        if(logger.isDebugEnabled()) {
-            logger.debug("findSubWebEntities for webEntity with name " + webEntity.getName() + " returns # " + results.size() + " subWebEntities:");
+        logger.debug("findSubWebEntities for webEntity with name {} returns # {} subWebEntities", webEntity.getName(), results.size());
+        if(logger.isTraceEnabled()) {
             for(WebEntity sub : results) {
-                logger.debug("subWebEntity with name " + sub.getName());
+                logger.trace("subWebEntity with name {}", sub.getName());
             }
         }
         return results;
@@ -1650,7 +2342,9 @@ public class LRUIndex {
      * @throws IndexException hmm
      */
     public List<WebEntityLink> generateWebEntityLinksOld() throws IndexException {
+        IndexSnapshot snapshot = acquireSnapshot();
         try {
+            IndexSearcher indexSearcher = snapshot.getIndexSearcher();
             logger.debug("generateWebEntityLinks");
             final Query nodeLinksQuery = LuceneQueryFactory.getNodeLinksQuery();
             TopDocs results = indexSearcher.search(nodeLinksQuery, null, 1);
@@ -1665,9 +2359,7 @@ public class LRUIndex {
             String sourceWEid, sourceLRU, targetWEid, targetLRU, lPrefix, lNode, shortLRU;
             for (int i = 0 ; i < totalResults ; i++) {
                 NodeLink nodeLink = IndexConfiguration.convertLuceneDocumentToNodeLink(indexSearcher.doc(scoreDocs[i].doc)); 
-                if(logger.isDebugEnabled()) {
-                    logger.debug("generating webentitylinks for nodelink from " + nodeLink.getSourceLRU() + " to " + nodeLink.getTargetLRU());
-                }
+                logger.trace("generating webentitylinks for nodelink from {} to {}", nodeLink.getSourceLRU(), nodeLink.getTargetLRU());
                 sourceLRU = nodeLink.getSourceLRU();
                 lPrefix = LRUUtil.getTLD(sourceLRU);
                 lNode = LRUUtil.getLimitedStemsLRU(sourceLRU, 1).replace(lPrefix, "");
@@ -1759,26 +2451,36 @@ public class LRUIndex {
                 webEntityLinksMap.put(webEntityLinkId, webEntityLink);
             }
             logger.info("Saving " + webEntityLinksMap.size() + " WebEntityLinks");
-            @SuppressWarnings({"unchecked"})
-            List<Object> webEntityLinksList = new ArrayList(webEntityLinksMap.values());
-            logger.info("Map converted to array");
-            deleteObject(LuceneQueryFactory.getWebEntityLinksQuery(), true);
-            logger.info("old webentitylinks deleted");
-            batchIndex(webEntityLinksList);
+            List<WebEntityLink> webEntityLinks = new ArrayList<WebEntityLink>(webEntityLinksMap.values());
+            publishWebEntityLinks(webEntityLinks);
             logger.info("finished indexing webEntityLinks");
-            return new ArrayList<WebEntityLink>(webEntityLinksMap.values());
+            return webEntityLinks;
         }
         catch(IOException x) {
             logger.error(x.getMessage());
             x.printStackTrace();
             throw new IndexException(x.getMessage(), x);
         }
+        finally {
+            releaseSnapshot(snapshot);
+        }
     }
 
+    /**
+     * Regenerates all webentity links from the nodelinks. While the new links are computed, readers keep seeing the
+     * previous ones; the new links replace them at once when they are all written.
+     *
+     * @return generated webentity links
+     * @throws IndexException hmm
+     */
     public List<WebEntityLink> generateWebEntityLinks() throws IndexException {
-        long start = System.currentTimeMillis();
-        List<WebEntityLink> res1 = generateWebEntityLinksViaMap();
-        logger.info("Generated " + res1.size() + " WebEntityLinks (method Target + better maps) in " + (System.currentTimeMillis()-start)/1000 + "s");
+        webEntityLinksRegenerationLock.lock();
+        try {
+            // nodelinks indexed from here on may not be taken into account by this generation
+            nodeLinksSinceRegeneration.set(0);
+            long start = System.currentTimeMillis();
+            List<WebEntityLink> res1 = generateWebEntityLinksViaMap();
+            logger.info("Generated " + res1.size() + " WebEntityLinks (method Target + better maps) in " + (System.currentTimeMillis()-start)/1000 + "s");
 /*
         long mid = System.currentTimeMillis();
         List<WebEntityLink> res2 = generateWebEntityLinksviaWENL();
@@ -1787,7 +2489,150 @@ public class LRUIndex {
         logger.info("Method WENL : " + res2.size() + " results in " + (last-mid)/1000);
         logger.info("Method Old + better maps : " + res1.size() + " results in " + (System.currentTimeMillis()-last)/1000);
 */
-        return res1;
+            return res1;
+        }
+        finally {
+            webEntityLinksRegenerationLock.unlock();
+        }
+    }
+
+    /**
+     * Replaces all webentity links in the index by the given ones. The new links are first indexed in memory; the old
+     * ones are then deleted and the new ones added while the index reader can't be replaced, and the reader is reopened
+     * once at the end, so readers see either all previous webentity links or all new ones. The commit follows, outside
+     * the lock.
+     *
+     * @param webEntityLinks new webentity links
+     * @throws IOException hmm
+     */
+    private void publishWebEntityLinks(List<WebEntityLink> webEntityLinks) throws IOException {
+        long start = System.currentTimeMillis();
+        // the new links are indexed apart, so that readers only wait while the old ones are swapped for them
+        RAMDirectory ramDirectory = new RAMDirectory();
+        try {
+            IndexWriterConfig ramWriterConfig = new IndexWriterConfig(LUCENE_VERSION, analyzer);
+            ramWriterConfig.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+            ramWriterConfig.setRAMBufferSizeMB(RAM_BUFFER_SIZE_MB);
+            IndexWriter ramWriter = new IndexWriter(ramDirectory, ramWriterConfig);
+            try {
+                for(WebEntityLink webEntityLink : webEntityLinks) {
+                    Document webEntityLinkDocument = IndexConfiguration.convertWebEntityLinkToLuceneDocument(webEntityLink);
+                    if(webEntityLinkDocument != null) {
+                        ramWriter.addDocument(webEntityLinkDocument);
+                    }
+                }
+            }
+            finally {
+                ramWriter.close();
+            }
+            // no reader is opened between the deletion of the old links and the addition of the new ones
+            synchronized(readerLock) {
+                this.indexWriter.deleteDocuments(LuceneQueryFactory.getWebEntityLinksQuery());
+                this.indexWriter.addIndexes(ramDirectory);
+                reloadIndexIfChange();
+            }
+            this.indexWriter.commit();
+        }
+        finally {
+            ramDirectory.close();
+        }
+        long generation = webEntityLinksGeneration.incrementAndGet();
+        webEntityGraphVersion.incrementAndGet();
+        logger.info("published generation " + generation + " of # " + webEntityLinks.size() + " webentitylinks in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Deletes all webentity links.
+     *
+     * @throws IndexException hmm
+     */
+    public void deleteWebEntityLinks() throws IndexException {
+        logger.info("deleting all webentitylinks");
+        deleteObject(LuceneQueryFactory.getWebEntityLinksQuery(), true);
+    }
+
+    /**
+     * @return number of Lucene queries executed since the index was opened
+     */
+    public long getQueryCount() {
+        return queryCount.get();
+    }
+
+    /**
+     * @return last queries that took longer than its threshold
+     */
+    public SlowQueryLog getSlowQueryLog() {
+        return slowQueryLog;
+    }
+
+    /**
+     * Builds the structures otherwise built by the first requests that need them, reads the index files into the OS
+     * cache and runs a query for each document type and the given queries. The steps run in parallel; steps that fail
+     * are logged and skipped.
+     *
+     * @param queries more warm-up queries in Lucene query syntax, separated by ;, or null
+     * @param threads number of steps run at the same time
+     * @return duration in milliseconds of each step, -1 for steps that failed
+     * @throws IndexException if a query cannot be parsed
+     */
+    public Map<String, Long> warmUp(String queries, int threads) throws IndexException {
+        List<Query> warmUpQueries = IndexWarmer.typeQueries();
+        if(queries != null) {
+            warmUpQueries.addAll(IndexWarmer.parseQueries(queries));
+        }
+        return new IndexWarmer(this, indexWriter.getDirectory(), directoryFactory).warm(warmUpQueries, threads);
+    }
+
+    /**
+     * @return number of times webentity links were regenerated since the index was opened
+     */
+    public long getWebEntityLinksGeneration() {
+        return webEntityLinksGeneration.get();
+    }
+
+    /**
+     * Sets after how many newly indexed nodelinks webentity links are regenerated in the background.
+     *
+     * @param threshold number of nodelinks, 0 to disable
+     */
+    public void setWebEntityLinksRegenerationThreshold(long threshold) {
+        logger.info("webentity links regeneration threshold is " + threshold + " nodelinks");
+        this.webEntityLinksRegenerationThreshold = threshold;
+    }
+
+    /**
+     * Counts indexed nodelinks, and schedules a background regeneration of webentity links when there are enough of
+     * them and none is scheduled yet.
+     *
+     * @param count number of nodelinks indexed
+     */
+    private void nodeLinksIndexed(int count) {
+        long dirty = nodeLinksSinceRegeneration.addAndGet(count);
+        long threshold = this.webEntityLinksRegenerationThreshold;
+        if(threshold > 0 && dirty >= threshold && webEntityLinksRegenerationScheduled.compareAndSet(false, true)) {
+            logger.info("# " + dirty + " nodelinks indexed since webentity links were generated, scheduling regeneration");
+            try {
+                regenerationExecutorService.submit(new Runnable() {
+                    public void run() {
+                        try {
+                            generateWebEntityLinks();
+                        }
+                        catch(IndexException x) {
+                            logger.error(x.getMessage());
+                            x.printStackTrace();
+                        }
+                        finally {
+                            webEntityLinksRegenerationScheduled.set(false);
+                        }
+                    }
+                });
+            }
+            catch(RejectedExecutionException x) {
+                // the index is closing; the nodelinks are indexed, only their webentity links are not regenerated
+                logger.warn("could not schedule regeneration of webentity links: " + x.getMessage());
+                webEntityLinksRegenerationScheduled.set(false);
+            }
+        }
     }
 
     /**
@@ -1795,7 +2640,9 @@ public class LRUIndex {
      * @throws IndexException hmm
      */
     public List<WebEntityLink> generateWebEntityLinksViaMap() throws IndexException {
+        IndexSnapshot snapshot = acquireSnapshot();
         try {
+            IndexSearcher indexSearcher = snapshot.getIndexSearcher();
             logger.info("generateWebEntityLinks");
             final Query query = LuceneQueryFactory.getWebEntitiesQuery();
             TopDocs results = indexSearcher.search(query, null, 1);
@@ -1815,9 +2662,7 @@ public class LRUIndex {
             String sourceId, sourceLRU, sourceNode, sourcePrefix, shortLRU;
             for (int i = 0 ; i < totalResults ; i++) {
                 WebEntity WE = IndexConfiguration.convertLuceneDocumentToWebEntity(indexSearcher.doc(scoreDocs[i].doc)); 
-                if(logger.isDebugEnabled()) {
-                    logger.debug("generating webentitylinks for webentity " + WE.getName() + " / " + WE.getId());
-                }
+                logger.trace("generating webentitylinks for webentity {} / {}", WE.getName(), WE.getId());
                 if (WE.getName().equals("OUTSIDE_WEB")) {
                     continue;
                 }
@@ -1888,12 +2733,8 @@ public class LRUIndex {
                 }
             }
             if (webEntityLinks.size() > 0) {
-                logger.info("delete all webentitylinks existing");
-                deleteObject(LuceneQueryFactory.getWebEntityLinksQuery(), true);
-                logger.info("index reloaded, Saving " + webEntityLinks.size() + " WebEntityLinks...");
-                @SuppressWarnings({"unchecked"})
-                List<Object> webEntityLinksList = new ArrayList(webEntityLinks);
-                batchIndex(webEntityLinksList);
+                logger.info("Saving " + webEntityLinks.size() + " WebEntityLinks in place of the existing ones...");
+                publishWebEntityLinks(webEntityLinks);
                 logger.info("...WebEntityLinks saved.");
             }
             return webEntityLinks;
@@ -1903,6 +2744,9 @@ public class LRUIndex {
             x.printStackTrace();
             throw new IndexException(x.getMessage(), x);
         }
+        finally {
+            releaseSnapshot(snapshot);
+        }
     }
 
     /**
@@ -1910,7 +2754,9 @@ public class LRUIndex {
      * @throws IndexException hmm
      */
     public List<WebEntityLink> generateWebEntityLinksviaWENL() throws IndexException {
+        IndexSnapshot snapshot = acquireSnapshot();
         try {
+            IndexSearcher indexSearcher = snapshot.getIndexSearcher();
             logger.debug("generateWebEntityLinks");
             List<WebEntity> linkedWEs = retrieveUserDefinedWebEntities();
             logger.info("Total # of linked webentities in index is " + linkedWEs.size());
@@ -1968,9 +2814,7 @@ public class LRUIndex {
             ScoreDoc[] scoreDocs = results.scoreDocs;
             for (int i = 0 ; i < totalResults ; i++) {
                 WebEntity WE = IndexConfiguration.convertLuceneDocumentToWebEntity(indexSearcher.doc(scoreDocs[i].doc)); 
-                if(logger.isDebugEnabled()) {
-                    logger.debug("generating webentitylinks for webentity " + WE.getName() + " / " + WE.getId());
-                }
+                logger.trace("generating webentitylinks for webentity {} / {}", WE.getName(), WE.getId());
                 List<WebEntity> subWEs = findSubWebEntities(WE);
                 if (WE.getName().equals("OUTSIDE_WEB") || (subWEs != null && subWEs.size() > 500)) {
                     continue;
@@ -1997,12 +2841,8 @@ public class LRUIndex {
                 }
             }
             if (webEntityLinks.size() > 0) {
-                logger.info("delete all webentitylinks existing");
-                deleteObject(LuceneQueryFactory.getWebEntityLinksQuery(), true);
-                logger.info("index reloaded, Saving " + webEntityLinks.size() + " WebEntityLinks");
-                @SuppressWarnings({"unchecked"})
-                List<Object> webEntityLinksList = new ArrayList(webEntityLinks);
-                batchIndex(webEntityLinksList);
+                logger.info("Saving " + webEntityLinks.size() + " WebEntityLinks in place of the existing ones");
+                publishWebEntityLinks(webEntityLinks);
             }
             logger.info(webEntityLinks.size()+" webentitylinks saved");
             return webEntityLinks;
@@ -2012,13 +2852,306 @@ public class LRUIndex {
             x.printStackTrace();
             throw new IndexException(x.getMessage(), x);
         }
+        finally {
+            releaseSnapshot(snapshot);
+        }
+    }
+    /**
+     * Writes the webentities network (webentities and webentity links) to a file, streaming it from the current
+     * index reader.
+     *
+     * @param format export format
+     * @param file file to write
+     * @return description of the written file
+     * @throws IndexException hmm
+     */
+    public NetworkExport exportWebEntitiesNetwork(NetworkFormat format, File file) throws IndexException {
+        logger.info("exportWebEntitiesNetwork as " + format.getExtension() + " to " + file.getAbsolutePath());
+        // keep the reader open even if it is replaced during the export
+        IndexSnapshot snapshot = acquireSnapshot();
+        try {
+            return new NetworkExporter(snapshot.getIndexReader()).export(format, file);
+        }
+        catch(IOException x) {
+            logger.error(x.getMessage());
+            x.printStackTrace();
+            throw new IndexException(x.getMessage(), x);
+        }
+        finally {
+            releaseSnapshot(snapshot);
+        }
+    }
+
+    /**
+     * Returns degrees, PageRank and HITS scores of the webentities in the webentity links graph. Scores are computed
+     * on a snapshot of the graph and reused until webentities or webentity links change.
+     *
+     * @return graph scores
+     * @throws IndexException hmm
+     */
+    public GraphScores retrieveGraphScores() throws IndexException {
+        GraphScores scores = this.graphScores;
+        if(scores != null && scores.getVersion() == webEntityGraphVersion.get()) {
+            return scores;
+        }
+        synchronized(graphScoresLock) {
+            scores = this.graphScores;
+            long version = webEntityGraphVersion.get();
+            if(scores != null && scores.getVersion() == version) {
+                return scores;
+            }
+            try {
+                scores = graphAnalytics.compute(readWebEntityLinkGraph(version));
+                this.graphScores = scores;
+                return scores;
+            }
+            catch(IOException x) {
+                logger.error(x.getMessage());
+                x.printStackTrace();
+                throw new IndexException(x.getMessage(), x);
+            }
+            catch(AnalyticsException x) {
+                logger.error(x.getMessage());
+                x.printStackTrace();
+                throw new IndexException(x.getMessage(), x);
+            }
+        }
+    }
+
+    /**
+     * Reads all webentities and webentity links into a LinkGraph, loading only the fields that are needed.
+     *
+     * @param version version of the graph being read
+     * @return graph
+     * @throws IOException hmm
+     */
+    private LinkGraph readWebEntityLinkGraph(long version) throws IOException {
+        long start = System.currentTimeMillis();
+        LinkGraph.Builder builder = new LinkGraph.Builder();
+        IndexSnapshot snapshot = acquireSnapshot();
+        IndexReader reader = snapshot.getIndexReader();
+        try {
+            FieldSelector idSelector = new MapFieldSelector(IndexConfiguration.FieldName.ID.name());
+            TermDocs termDocs = reader.termDocs(LuceneQueryFactory.typeEqualWebEntity);
+            try {
+                while(termDocs.next()) {
+                    builder.addNode(reader.document(termDocs.doc(), idSelector).get(IndexConfiguration.FieldName.ID.name()));
+                }
+            }
+            finally {
+                termDocs.close();
+            }
+            FieldSelector linkSelector = new MapFieldSelector(IndexConfiguration.FieldName.SOURCE.name(), IndexConfiguration.FieldName.TARGET.name(), IndexConfiguration.FieldName.WEIGHT.name());
+            termDocs = reader.termDocs(LuceneQueryFactory.typeEqualWebEntityLink);
+            try {
+                while(termDocs.next()) {
+                    Document document = reader.document(termDocs.doc(), linkSelector);
+                    String weight = document.get(IndexConfiguration.FieldName.WEIGHT.name());
+                    builder.addEdge(document.get(IndexConfiguration.FieldName.SOURCE.name()),
+                            document.get(IndexConfiguration.FieldName.TARGET.name()),
+                            StringUtils.isEmpty(weight) ? 0 : Integer.parseInt(weight));
+                }
+            }
+            finally {
+                termDocs.close();
+            }
+        }
+        finally {
+            releaseSnapshot(snapshot);
+        }
+        LinkGraph graph = builder.build(version);
+        logger.info("read webentity links graph of " + graph.getNodeCount() + " webentities and " + graph.getEdgeCount() + " links in " + (System.currentTimeMillis() - start) + " ms");
+        return graph;
     }
+
     private void reloadIndexIfChange() throws IOException {
-    	 IndexReader maybeChanged = IndexReader.openIfChanged(this.indexReader, this.indexWriter, false);
-         // if not changed, that returns null
-         if(maybeChanged != null) {
-             this.indexReader = maybeChanged;
-             this.indexSearcher = new IndexSearcher(this.indexReader);
-         }
+        synchronized(readerLock) {
+            long version = readWebEntitiesVersion();
+            IndexReader maybeChanged = IndexReader.openIfChanged(snapshot.get().getIndexReader(), this.indexWriter, false);
+            // if not changed, that returns null
+            if(maybeChanged != null) {
+                publishSnapshot(maybeChanged, version);
+            }
+        }
+    }
+
+    /**
+     * Marks the start of a change of webentities in the index writer; endWebEntitiesChange must follow, once the
+     * changes are done.
+     */
+    private void beginWebEntitiesChange() {
+        webEntityChangesInProgress.incrementAndGet();
+    }
+
+    private void endWebEntitiesChange() {
+        webEntitiesVersion.incrementAndGet();
+        webEntityChangesInProgress.decrementAndGet();
+    }
+
+    /**
+     * To be called before opening a reader.
+     *
+     * @return current version of the webentities, or -1 if they are being changed
+     */
+    private long readWebEntitiesVersion() {
+        long version = webEntitiesVersion.get();
+        return webEntityChangesInProgress.get() == 0 ? version : -1;
+    }
+
+    /**
+     * Makes a new reader the current snapshot. The previous snapshot is released, its reader is closed once the reads
+     * that acquired it are done.
+     *
+     * @param indexReader new reader
+     * @param webEntitiesVersion version of the webentities read before the reader was opened
+     * @throws IOException hmm
+     */
+    private void publishSnapshot(IndexReader indexReader, long webEntitiesVersion) throws IOException {
+        // the reader sees that version only if no change of webentities began or ended while it was opened
+        if(webEntityChangesInProgress.get() != 0 || this.webEntitiesVersion.get() != webEntitiesVersion) {
+            webEntitiesVersion = -1;
+        }
+        IndexSnapshot published = new IndexSnapshot(indexReader, queryCount, slowQueryLog, snapshotGeneration.incrementAndGet(),
+                webEntitiesVersion, snapshot.get());
+        openSnapshots.add(published);
+        IndexSnapshot previous = snapshot.getAndSet(published);
+        if(previous != null) {
+            previous.release();
+            forgetIfClosed(previous);
+        }
+    }
+
+    /**
+     * Returns the current snapshot, which stays open until it is released with releaseSnapshot.
+     *
+     * @return snapshot
+     */
+    IndexSnapshot acquireSnapshot() {
+        while(true) {
+            IndexSnapshot current = snapshot.get();
+            if(current == null) {
+                throw new AlreadyClosedException("LRUIndex is closed");
+            }
+            // fails if a new snapshot was published and this one closed meanwhile
+            if(current.tryAcquire()) {
+                return current;
+            }
+        }
+    }
+
+    void releaseSnapshot(IndexSnapshot snapshot) {
+        slowQueryLog.queryEnded();
+        try {
+            snapshot.release();
+            forgetIfClosed(snapshot);
+        }
+        catch(IOException x) {
+            logger.error(x.getMessage());
+            x.printStackTrace();
+        }
+    }
+
+    private void forgetIfClosed(IndexSnapshot snapshot) {
+        if(snapshot.isClosed()) {
+            openSnapshots.remove(snapshot);
+        }
+    }
+
+    /**
+     * Computes statistics of the index from the metadata of its current reader and writer and the frequencies of the
+     * document types, without loading documents.
+     *
+     * @return statistics of the index
+     * @throws IndexException hmm
+     */
+    public IndexStats getIndexStats() throws IndexException {
+        IndexSnapshot current = acquireSnapshot();
+        try {
+            IndexReader indexReader = current.getIndexReader();
+            Directory directory = indexWriter.getDirectory();
+            IndexStats indexStats = new IndexStats();
+            indexStats.setNumDocs(indexReader.numDocs());
+            indexStats.setMaxDoc(indexReader.maxDoc());
+            indexStats.setDeletedDocs(indexReader.numDeletedDocs());
+            indexStats.setDeletedRatio(indexReader.maxDoc() == 0 ? 0 : (double) indexReader.numDeletedDocs() / indexReader.maxDoc());
+            indexStats.setDocsByType(new HashMap<String, Integer>(current.getDocsByType()));
+            indexStats.setSegments(current.getSegmentStats(directory));
+            indexStats.setReaderVersion(indexReader.getVersion());
+            indexStats.setReaderGeneration(current.getGeneration());
+            List<Long> openGenerations = new ArrayList<Long>();
+            for(IndexSnapshot openSnapshot : openSnapshots) {
+                openGenerations.add(openSnapshot.getGeneration());
+            }
+            Collections.sort(openGenerations);
+            indexStats.setOpenReaderGenerations(openGenerations);
+            indexStats.setWriterRamBytes(indexWriter.ramSizeInBytes());
+            indexStats.setWriterRamDocs(indexWriter.numRamDocs());
+            long sizeOnDisk = 0;
+            for(String file : directory.listAll()) {
+                try {
+                    sizeOnDisk += directory.fileLength(file);
+                }
+                catch(FileNotFoundException x) {
+                    // deleted by a merge since it was listed
+                }
+            }
+            indexStats.setSizeOnDisk(sizeOnDisk);
+            return indexStats;
+        }
+        catch(IOException x) {
+            logger.error(x.getMessage());
+            x.printStackTrace();
+            throw new IndexException(x.getMessage(), x);
+        }
+        finally {
+            releaseSnapshot(current);
+        }
+    }
+
+    /**
+     * Registers the statistics of the index as an MXBean, fr.sciencespo.medialab.hci.memorystructure:type=Index.
+     */
+    public void registerMBean() {
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(IndexStatsBean.OBJECT_NAME);
+            if(!mBeanServer.isRegistered(name)) {
+                mBeanServer.registerMBean(new IndexStatsBean(this), name);
+            }
+        }
+        catch(Exception x) {
+            logger.error("could not register index MBean: " + x.getMessage());
+            x.printStackTrace();
+        }
+    }
+
+    /**
+     * Collects the ids of all the documents found, in the top-level reader.
+     */
+    private static class DocIdCollector extends Collector {
+        private int[] docs = new int[16];
+        private int count = 0;
+        private int docBase;
+
+        @Override
+        public void setScorer(Scorer scorer) throws IOException {}
+
+        @Override
+        public void collect(int doc) throws IOException {
+            if(count == docs.length) {
+                docs = ArrayUtil.grow(docs);
+            }
+            docs[count++] = docBase + doc;
+        }
+
+        @Override
+        public void setNextReader(IndexReader reader, int docBase) throws IOException {
+            this.docBase = docBase;
+        }
+
+        @Override
+        public boolean acceptsDocsOutOfOrder() {
+            return true;
+        }
     }
 }
@@ -10,6 +10,7 @@ import org.apache.lucene.search.Query;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.WildcardQuery;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Set;
 
@@ -22,11 +23,11 @@ public class LuceneQueryFactory {
 
     private static DynamicLogger logger = new DynamicLogger(LuceneQueryFactory.class);
 
-    private static Term typeEqualNodeLink = new Term(IndexConfiguration.FieldName.TYPE.name(), IndexConfiguration.DocType.NODE_LINK.name());
-    private static Term typeEqualPageItem = new Term(IndexConfiguration.FieldName.TYPE.name(), IndexConfiguration.DocType.PAGE_ITEM.name());
+    protected static Term typeEqualNodeLink = new Term(IndexConfiguration.FieldName.TYPE.name(), IndexConfiguration.DocType.NODE_LINK.name());
+    protected static Term typeEqualPageItem = new Term(IndexConfiguration.FieldName.TYPE.name(), IndexConfiguration.DocType.PAGE_ITEM.name());
     public static Term typeEqualPrecisionException = new Term(IndexConfiguration.FieldName.TYPE.name(), IndexConfiguration.DocType.PRECISION_EXCEPTION.name());
-    private static Term typeEqualWebEntity = new Term(IndexConfiguration.FieldName.TYPE.name(), IndexConfiguration.DocType.WEBENTITY.name());
-    private static Term typeEqualWebEntityLink = new Term(IndexConfiguration.FieldName.TYPE.name(), IndexConfiguration.DocType.WEBENTITY_LINK.name());
+    protected static Term typeEqualWebEntity = new Term(IndexConfiguration.FieldName.TYPE.name(), IndexConfiguration.DocType.WEBENTITY.name());
+    protected static Term typeEqualWebEntityLink = new Term(IndexConfiguration.FieldName.TYPE.name(), IndexConfiguration.DocType.WEBENTITY_LINK.name());
     private static Term typeEqualWebEntityNodeLink = new Term(IndexConfiguration.FieldName.TYPE.name(), IndexConfiguration.DocType.WEBENTITY_NODE_LINK.name());
     private static Term typeEqualWebEntityCreationRule = new Term(IndexConfiguration.FieldName.TYPE.name(), IndexConfiguration.DocType.WEBENTITY_CREATION_RULE.name());
     private static Term lruEqualDefaultWebEntityCreationRule = new Term(IndexConfiguration.FieldName.LRU.name(), IndexConfiguration.DEFAULT_WEBENTITY_CREATION_RULE);
@@ -89,6 +90,34 @@ public class LuceneQueryFactory {
         return getWebEntityByFieldQuery(IndexConfiguration.FieldName.LRU, lru);
     }
 
+    /**
+     * Query to search for WebEntities having any of these LRUs. Mind the maximum number of clauses of a BooleanQuery.
+     *
+     * @param lrus lrus
+     * @return query
+     */
+    protected static Query getPageItemsByExactLRUsQuery(Collection<String> lrus) {
+        BooleanQuery q = new BooleanQuery();
+        q.add(new TermQuery(typeEqualPageItem), BooleanClause.Occur.MUST);
+        BooleanQuery qLRUs = new BooleanQuery();
+        for(String lru : lrus) {
+            qLRUs.add(new TermQuery(new Term(IndexConfiguration.FieldName.LRU.name(), lru)), BooleanClause.Occur.SHOULD);
+        }
+        q.add(qLRUs, BooleanClause.Occur.MUST);
+        return q;
+    }
+
+    protected static Query getWebEntitiesByLRUsQuery(Collection<String> lrus) {
+        BooleanQuery q = new BooleanQuery();
+        q.add(new TermQuery(typeEqualWebEntity), BooleanClause.Occur.MUST);
+        BooleanQuery qLRUs = new BooleanQuery();
+        for(String lru : lrus) {
+            qLRUs.add(getLRUWildcardManagedQuery(IndexConfiguration.FieldName.LRU.name(), lru), BooleanClause.Occur.SHOULD);
+        }
+        q.add(qLRUs, BooleanClause.Occur.MUST);
+        return q;
+    }
+
     protected static Query getWebEntityNodeLinkByFieldQuery(IndexConfiguration.FieldName fieldName, String fieldValue) {
         return getObjectItemByFieldQuery(typeEqualWebEntityNodeLink, fieldName, fieldValue);
     }
@@ -0,0 +1,260 @@
+package fr.sciencespo.medialab.hci.memorystructure.index;
+
+import fr.sciencespo.medialab.hci.memorystructure.export.NetworkFormat;
+import fr.sciencespo.medialab.hci.memorystructure.export.NetworkWriter;
+import fr.sciencespo.medialab.hci.memorystructure.thrift.NetworkExport;
+import fr.sciencespo.medialab.hci.memorystructure.util.DynamicLogger;
+import fr.sciencespo.medialab.hci.memorystructure.util.LRUUtil;
+import org.apache.commons.lang.StringUtils;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.FieldSelector;
+import org.apache.lucene.document.Fieldable;
+import org.apache.lucene.document.MapFieldSelector;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.TermDocs;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streams the webentities network straight from an index reader to a file. Only the webentity ids and lru prefixes
+ * and one counter per webentity are kept in memory; pages and links are read one document at a time, loading only
+ * the fields that are needed.
+ *
+ * Webentities, pages and links are read in five passes:
+ * - webentity ids and lru prefixes, to know which webentity a page belongs to (the one with the longest prefix)
+ * - page lrus, to count the pages of each webentity
+ * - webentity links from a webentity to itself, which are not edges but the weight of its internal links
+ * - webentities, written as nodes
+ * - webentity links between different webentities, written as edges.
+ *
+ * @author agent
+ */
+class NetworkExporter {
+
+    private static DynamicLogger logger = new DynamicLogger(NetworkExporter.class);
+
+    private static final FieldSelector WEBENTITY_PREFIXES = new MapFieldSelector(IndexConfiguration.FieldName.ID.name(), IndexConfiguration.FieldName.LRU.name());
+    private static final FieldSelector PAGE_LRU = new MapFieldSelector(IndexConfiguration.FieldName.LRU.name());
+    private static final FieldSelector LINK_ENDS = new MapFieldSelector(IndexConfiguration.FieldName.ID.name(), IndexConfiguration.FieldName.SOURCE.name(), IndexConfiguration.FieldName.TARGET.name(), IndexConfiguration.FieldName.WEIGHT.name());
+
+    private final IndexReader reader;
+
+    // webentity id -> position in the counters
+    private final Map<String, Integer> webEntities = new HashMap<String, Integer>();
+    // lru prefix -> position in the counters
+    private final Map<String, Integer> prefixes = new HashMap<String, Integer>();
+    private int[] nbPages;
+    private int[] nbInternLinks;
+
+    NetworkExporter(IndexReader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * Writes the network to a file. The file is first written next to its final location and renamed when complete,
+     * so a file at the requested path is never a partial export; if the export fails, the partial file is deleted.
+     *
+     * @param format format
+     * @param file file to write
+     * @return description of the written file
+     * @throws IOException hmm
+     */
+    NetworkExport export(NetworkFormat format, File file) throws IOException {
+        long start = System.currentTimeMillis();
+        readWebEntityPrefixes();
+        countPages();
+        readInternLinks();
+
+        File partial = new File(file.getAbsolutePath() + ".part");
+        int nodes;
+        int edges;
+        boolean renamed = false;
+        try {
+            FileOutputStream out = new FileOutputStream(partial);
+            try {
+                FileChannel channel = out.getChannel();
+                NetworkWriter writer = format.createWriter(channel);
+                writer.startGraph();
+                nodes = writeNodes(writer);
+                writer.startEdges();
+                edges = writeEdges(writer);
+                writer.endGraph();
+                writer.flush();
+            }
+            finally {
+                out.close();
+            }
+            if(file.exists() && !file.delete()) {
+                throw new IOException("can't replace existing export " + file.getAbsolutePath());
+            }
+            if(!partial.renameTo(file)) {
+                throw new IOException("can't rename " + partial.getAbsolutePath() + " to " + file.getAbsolutePath());
+            }
+            renamed = true;
+        }
+        finally {
+            // a failed export leaves no partial file behind
+            if(!renamed && partial.exists() && !partial.delete()) {
+                logger.warn("could not delete partial export " + partial.getAbsolutePath());
+            }
+        }
+        logger.info("exported " + nodes + " webentities and " + edges + " webentity links to " + file.getAbsolutePath() + " in " + (System.currentTimeMillis() - start) + " ms");
+        return new NetworkExport(format.getExtension(), file.getAbsolutePath(), file.length(), nodes, edges);
+    }
+
+    private void readWebEntityPrefixes() throws IOException {
+        TermDocs termDocs = reader.termDocs(LuceneQueryFactory.typeEqualWebEntity);
+        try {
+            while(termDocs.next()) {
+                Document document = reader.document(termDocs.doc(), WEBENTITY_PREFIXES);
+                Integer position = webEntities.size();
+                webEntities.put(document.get(IndexConfiguration.FieldName.ID.name()), position);
+                for(Fieldable lru : document.getFieldables(IndexConfiguration.FieldName.LRU.name())) {
+                    prefixes.put(lru.stringValue(), position);
+                }
+            }
+        }
+        finally {
+            termDocs.close();
+        }
+        nbPages = new int[webEntities.size()];
+        nbInternLinks = new int[webEntities.size()];
+        if(logger.isDebugEnabled()) {
+            logger.debug("export: read " + prefixes.size() + " prefixes of " + webEntities.size() + " webentities");
+        }
+    }
+
+    /**
+     * Finds the webentity a page belongs to: the one having the longest prefix of the page's lru, which is also the
+     * one retrieveWebEntityMatchingLRU and findPagesForWebEntity would give.
+     */
+    private Integer findWebEntity(String lru) {
+        String prefix = lru;
+        while(prefix.length() > 0) {
+            Integer position = prefixes.get(prefix);
+            if(position != null) {
+                return position;
+            }
+            prefix = LRUUtil.stripLastStem(prefix);
+        }
+        return null;
+    }
+
+    private void countPages() throws IOException {
+        int pages = 0;
+        int orphans = 0;
+        TermDocs termDocs = reader.termDocs(LuceneQueryFactory.typeEqualPageItem);
+        try {
+            while(termDocs.next()) {
+                String lru = reader.document(termDocs.doc(), PAGE_LRU).get(IndexConfiguration.FieldName.LRU.name());
+                pages++;
+                Integer position = lru == null ? null : findWebEntity(lru);
+                if(position == null) {
+                    orphans++;
+                }
+                else {
+                    nbPages[position]++;
+                }
+            }
+        }
+        finally {
+            termDocs.close();
+        }
+        if(logger.isDebugEnabled()) {
+            logger.debug("export: counted " + pages + " pages, " + orphans + " not belonging to any webentity");
+        }
+    }
+
+    private void readInternLinks() throws IOException {
+        TermDocs termDocs = reader.termDocs(LuceneQueryFactory.typeEqualWebEntityLink);
+        try {
+            while(termDocs.next()) {
+                Document document = reader.document(termDocs.doc(), LINK_ENDS);
+                String source = document.get(IndexConfiguration.FieldName.SOURCE.name());
+                if(source != null && source.equals(document.get(IndexConfiguration.FieldName.TARGET.name()))) {
+                    Integer position = webEntities.get(source);
+                    if(position != null) {
+                        nbInternLinks[position] += weight(document);
+                    }
+                }
+            }
+        }
+        finally {
+            termDocs.close();
+        }
+    }
+
+    private int writeNodes(NetworkWriter writer) throws IOException {
+        int nodes = 0;
+        TermDocs termDocs = reader.termDocs(LuceneQueryFactory.typeEqualWebEntity);
+        try {
+            while(termDocs.next()) {
+                Document document = reader.document(termDocs.doc());
+                String id = document.get(IndexConfiguration.FieldName.ID.name());
+                Integer position = webEntities.get(id);
+                String date = document.get(IndexConfiguration.FieldName.DATEMODIF.name());
+                if(StringUtils.isEmpty(date)) {
+                    date = document.get(IndexConfiguration.FieldName.DATECREA.name());
+                }
+                List<String> tags = new ArrayList<String>();
+                for(Fieldable tag : document.getFieldables(IndexConfiguration.FieldName.TAG.name())) {
+                    tags.add(tag.stringValue());
+                }
+                writer.writeNode(id, document.get(IndexConfiguration.FieldName.NAME.name()),
+                        IndexConfiguration.getWEStatusValue(document.get(IndexConfiguration.FieldName.STATUS.name())),
+                        StringUtils.join(tags, ';'), nbPages[position], nbInternLinks[position], date);
+                nodes++;
+            }
+        }
+        finally {
+            termDocs.close();
+        }
+        return nodes;
+    }
+
+    private int writeEdges(NetworkWriter writer) throws IOException {
+        int edges = 0;
+        int dangling = 0;
+        TermDocs termDocs = reader.termDocs(LuceneQueryFactory.typeEqualWebEntityLink);
+        try {
+            while(termDocs.next()) {
+                Document document = reader.document(termDocs.doc(), LINK_ENDS);
+                String source = document.get(IndexConfiguration.FieldName.SOURCE.name());
+                String target = document.get(IndexConfiguration.FieldName.TARGET.name());
+                if(source == null || source.equals(target)) {
+                    continue;
+                }
+                // links to or from deleted webentities would make the file unreadable for most tools
+                if(!webEntities.containsKey(source) || !webEntities.containsKey(target)) {
+                    dangling++;
+                    continue;
+                }
+                String id = document.get(IndexConfiguration.FieldName.ID.name());
+                if(id == null) {
+                    id = Integer.toString(edges);
+                }
+                writer.writeEdge(id, source, target, weight(document));
+                edges++;
+            }
+        }
+        finally {
+            termDocs.close();
+        }
+        if(dangling > 0) {
+            logger.warn("export: skipped " + dangling + " webentity links to or from unknown webentities");
+        }
+        return edges;
+    }
+
+    private int weight(Document document) {
+        String weight = document.get(IndexConfiguration.FieldName.WEIGHT.name());
+        return StringUtils.isEmpty(weight) ? 0 : Integer.parseInt(weight);
+    }
+}
@@ -0,0 +1,158 @@
+package fr.sciencespo.medialab.hci.memorystructure.index;
+
+import fr.sciencespo.medialab.hci.memorystructure.thrift.PageItem;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Merges pageItems with the same LRU in a batch to index, so each LRU gives one document. PageItems are found by a
+ * 64-bit hash of their LRU in an open addressing table of primitive arrays; LRUs are compared only when hashes are
+ * equal.
+ *
+ * A duplicate is merged into the first pageItem with its LRU: their sourceSets are joined, the minimum depth and the
+ * latest crawler timestamp are kept, and fields the first pageItem lacks are taken from the duplicate.
+ *
+ * @author agent
+ */
+public class PageItemDeduplicator {
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private PageItemDeduplicator() {}
+
+    /**
+     * Returns the objects of a batch with duplicate pageItems merged. Other objects are kept as they are, in the same
+     * order; the batch is returned itself if it has no duplicates.
+     *
+     * @param objects objects to index
+     * @return objects to index, each LRU once
+     */
+    public static List<Object> deduplicate(List<Object> objects) {
+        int capacity = Integer.highestOneBit(Math.max(4, objects.size()) * 2 - 1) << 1;
+        long[] hashes = new long[capacity];
+        // position in the batch + 1 of the pageItem in each slot, 0 if empty
+        int[] positions = new int[capacity];
+        int mask = capacity - 1;
+
+        boolean[] merged = null;
+        for(int i = 0; i < objects.size(); i++) {
+            Object object = objects.get(i);
+            if(!(object instanceof PageItem) || ((PageItem) object).getLru() == null) {
+                continue;
+            }
+            PageItem pageItem = (PageItem) object;
+            long hash = hash(pageItem.getLru());
+            int slot = (int) (hash ^ (hash >>> 32)) & mask;
+            while(positions[slot] != 0) {
+                if(hashes[slot] == hash) {
+                    PageItem first = (PageItem) objects.get(positions[slot] - 1);
+                    if(first.getLru().equals(pageItem.getLru())) {
+                        break;
+                    }
+                }
+                slot = (slot + 1) & mask;
+            }
+            if(positions[slot] == 0) {
+                hashes[slot] = hash;
+                positions[slot] = i + 1;
+            }
+            else {
+                if(merged == null) {
+                    merged = new boolean[objects.size()];
+                }
+                merge((PageItem) objects.get(positions[slot] - 1), pageItem);
+                merged[i] = true;
+            }
+        }
+        if(merged == null) {
+            return objects;
+        }
+        List<Object> result = new ArrayList<Object>(objects.size());
+        for(int i = 0; i < objects.size(); i++) {
+            if(!merged[i]) {
+                result.add(objects.get(i));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Merges a duplicate into the first pageItem with its LRU.
+     *
+     * @param first pageItem kept
+     * @param duplicate pageItem merged into it
+     */
+    static void merge(PageItem first, PageItem duplicate) {
+        if(duplicate.getSourceSet() != null) {
+            if(first.getSourceSet() == null) {
+                first.setSourceSet(new HashSet<String>(duplicate.getSourceSet()));
+            }
+            else {
+                first.getSourceSet().addAll(duplicate.getSourceSet());
+            }
+        }
+        if(duplicate.isSetDepth() && (!first.isSetDepth() || duplicate.getDepth() < first.getDepth())) {
+            first.setDepth(duplicate.getDepth());
+        }
+        if(isLater(duplicate.getCrawlerTimestamp(), first.getCrawlerTimestamp())) {
+            first.setCrawlerTimestamp(duplicate.getCrawlerTimestamp());
+        }
+        if(first.getId() == null) {
+            first.setId(duplicate.getId());
+        }
+        if(first.getUrl() == null) {
+            first.setUrl(duplicate.getUrl());
+        }
+        if(!first.isSetHttpStatusCode() && duplicate.isSetHttpStatusCode()) {
+            first.setHttpStatusCode(duplicate.getHttpStatusCode());
+        }
+        if(first.getErrorCode() == null) {
+            first.setErrorCode(duplicate.getErrorCode());
+        }
+        if(!first.isSetIsNode() && duplicate.isSetIsNode()) {
+            first.setIsNode(duplicate.isIsNode());
+        }
+        first.setIsFullPrecision(first.isIsFullPrecision() || duplicate.isIsFullPrecision());
+        if(first.getMetadataItems() == null || first.getMetadataItems().isEmpty()) {
+            first.setMetadataItems(duplicate.getMetadataItems());
+        }
+    }
+
+    /**
+     * Compares crawler timestamps as numbers if they are, as strings otherwise.
+     *
+     * @return whether timestamp is later than other, false if it is null
+     */
+    private static boolean isLater(String timestamp, String other) {
+        if(timestamp == null) {
+            return false;
+        }
+        if(other == null) {
+            return true;
+        }
+        try {
+            return Long.parseLong(timestamp) > Long.parseLong(other);
+        }
+        catch(NumberFormatException x) {
+            return timestamp.compareTo(other) > 0;
+        }
+    }
+
+    /**
+     * 64-bit FNV-1a hash of the characters of an lru, with a final mix so the low bits depend on all of them.
+     */
+    static long hash(String lru) {
+        long hash = FNV_OFFSET_BASIS;
+        for(int i = 0; i < lru.length(); i++) {
+            hash ^= lru.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
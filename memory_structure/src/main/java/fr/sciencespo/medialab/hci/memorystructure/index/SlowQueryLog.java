@@ -0,0 +1,195 @@
+package fr.sciencespo.medialab.hci.memorystructure.index;
+
+import fr.sciencespo.medialab.hci.memorystructure.thrift.SlowQuery;
+import fr.sciencespo.medialab.hci.memorystructure.util.DynamicLogger;
+import org.apache.commons.lang.StringUtils;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the last queries that took longer than a threshold, with the time to search them and the time to load the
+ * documents they found. The searchers of the index snapshots report each query of a thread: it starts when its weight
+ * is created, and ends when the thread starts its next query or releases the snapshot. Documents loaded in between
+ * count for that query. Only queries over the threshold are described and kept, in a ring buffer of fixed size.
+ *
+ * @author agent
+ */
+public class SlowQueryLog {
+
+    private static DynamicLogger logger = new DynamicLogger(SlowQueryLog.class);
+
+    public static final long DEFAULT_THRESHOLD = 100;
+    public static final int DEFAULT_SIZE = 100;
+    // longer queries are cut in the log
+    private static final int MAX_QUERY_LENGTH = 4000;
+
+    /**
+     * Service call a thread runs, if any.
+     */
+    private static final ThreadLocal<String> currentCall = new ThreadLocal<String>();
+
+    /**
+     * Query a thread runs now.
+     */
+    private final ThreadLocal<Trace> traces = new ThreadLocal<Trace>() {
+        @Override
+        protected Trace initialValue() {
+            return new Trace();
+        }
+    };
+
+    private volatile long thresholdNanos = DEFAULT_THRESHOLD * 1000000;
+    private SlowQuery[] slowQueries = new SlowQuery[DEFAULT_SIZE];
+    // number of slow queries kept since the start; the next one goes to slowQueriesCount % slowQueries.length
+    private long slowQueriesCount = 0;
+
+    /**
+     * @param thresholdMillis queries that take at least this long are kept, 0 to keep all
+     * @param size number of slow queries kept
+     */
+    public synchronized void configure(long thresholdMillis, int size) {
+        if(thresholdMillis < 0 || size < 1) {
+            throw new IllegalArgumentException("Invalid slow query log: threshold " + thresholdMillis + " ms, size " + size);
+        }
+        this.thresholdNanos = thresholdMillis * 1000000;
+        if(size != slowQueries.length) {
+            List<SlowQuery> kept = getSlowQueries();
+            slowQueries = new SlowQuery[size];
+            slowQueriesCount = 0;
+            for(int i = Math.min(kept.size(), size) - 1; i >= 0; i--) {
+                add(kept.get(i));
+            }
+        }
+    }
+
+    /**
+     * Names the service call the current thread runs, to know where slow queries come from.
+     *
+     * @param call method name, or null when the call is over
+     */
+    public static void setCurrentCall(String call) {
+        if(call == null) {
+            currentCall.remove();
+        }
+        else {
+            currentCall.set(call);
+        }
+    }
+
+    /**
+     * Starts a query of the current thread, and ends the previous one.
+     *
+     * @param query query as it was built, before it is rewritten
+     */
+    void queryStarted(Query query) {
+        Trace trace = traces.get();
+        end(trace);
+        trace.query = query;
+    }
+
+    /**
+     * @param hits number of documents the query of the current thread found
+     * @param nanos time to find them
+     */
+    void searched(int hits, long nanos) {
+        Trace trace = traces.get();
+        trace.hits += hits;
+        trace.searchNanos += nanos;
+    }
+
+    /**
+     * @param nanos time the current thread took to load a document
+     */
+    void loaded(long nanos) {
+        traces.get().loadNanos += nanos;
+    }
+
+    /**
+     * Ends the query of the current thread.
+     */
+    void queryEnded() {
+        end(traces.get());
+    }
+
+    private void end(Trace trace) {
+        if(trace.query != null && trace.searchNanos + trace.loadNanos >= thresholdNanos) {
+            SlowQuery slowQuery = new SlowQuery()
+                    .setMethod(currentCall.get())
+                    .setSource(source())
+                    .setQuery(StringUtils.abbreviate(trace.query.toString(), MAX_QUERY_LENGTH))
+                    .setClauses(clauses(trace.query))
+                    .setHits(trace.hits)
+                    .setSearchMicros(trace.searchNanos / 1000)
+                    .setLoadMicros(trace.loadNanos / 1000)
+                    .setTimestamp(System.currentTimeMillis());
+            logger.info("slow query" + (slowQuery.getMethod() != null ? " from " + slowQuery.getMethod() : "") +
+                    " in " + slowQuery.getSource() + ": " +
+                    slowQuery.getClauses() + " clauses, # " + slowQuery.getHits() + " hits, search " +
+                    slowQuery.getSearchMicros() / 1000 + " ms, loading documents " + slowQuery.getLoadMicros() / 1000 + " ms: " +
+                    StringUtils.abbreviate(slowQuery.getQuery(), 200));
+            add(slowQuery);
+        }
+        trace.query = null;
+        trace.hits = 0;
+        trace.searchNanos = 0;
+        trace.loadNanos = 0;
+    }
+
+    private synchronized void add(SlowQuery slowQuery) {
+        slowQueries[(int) (slowQueriesCount % slowQueries.length)] = slowQuery;
+        slowQueriesCount++;
+    }
+
+    /**
+     * @return slow queries kept, the most recent first
+     */
+    public synchronized List<SlowQuery> getSlowQueries() {
+        int size = (int) Math.min(slowQueriesCount, slowQueries.length);
+        List<SlowQuery> result = new ArrayList<SlowQuery>(size);
+        for(int i = 1; i <= size; i++) {
+            result.add(slowQueries[(int) ((slowQueriesCount - i) % slowQueries.length)]);
+        }
+        return result;
+    }
+
+    /**
+     * @return number of leaf clauses of a query
+     */
+    static int clauses(Query query) {
+        if(query instanceof BooleanQuery) {
+            int clauses = 0;
+            for(BooleanClause clause : ((BooleanQuery) query).getClauses()) {
+                clauses += clauses(clause.getQuery());
+            }
+            return clauses;
+        }
+        return 1;
+    }
+
+    /**
+     * @return outermost method of LRUIndex on the stack, as LRUIndex methods call each other
+     */
+    private static String source() {
+        String source = null;
+        for(StackTraceElement element : Thread.currentThread().getStackTrace()) {
+            if(element.getClassName().equals(LRUIndex.class.getName())) {
+                source = element.getMethodName();
+            }
+        }
+        return source;
+    }
+
+    /**
+     * Query of a thread, reused for its next queries.
+     */
+    private static class Trace {
+        Query query;
+        int hits;
+        long searchNanos;
+        long loadNanos;
+    }
+}
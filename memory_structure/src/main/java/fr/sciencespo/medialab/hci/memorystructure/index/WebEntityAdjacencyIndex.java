@@ -0,0 +1,362 @@
+package fr.sciencespo.medialab.hci.memorystructure.index;
+
+import fr.sciencespo.medialab.hci.memorystructure.thrift.NodeLink;
+import fr.sciencespo.medialab.hci.memorystructure.thrift.WebEntity;
+import fr.sciencespo.medialab.hci.memorystructure.util.DynamicLogger;
+import fr.sciencespo.medialab.hci.memorystructure.util.LRUUtil;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Page-level links of webentities, grouped by webentity. For each webentity, its internal links (source and target
+ * both in the webentity) are kept apart from its frontier links (only one of them in the webentity); links to or from
+ * its sub-webentities are not part of it, as in
+ * {@link LuceneQueryFactory#getNodeLinksMatchingWebEntityButNotMatchingSubWebEntities}.
+ *
+ * Webentities are added when first requested and kept up to date with newly indexed nodelinks; the least recently
+ * used ones are evicted when the total number of links exceeds the maximum. A new, changed or deleted webentity
+ * invalidates only the webentities it may take links from: itself and those with a prefix of one of its LRUs.
+ *
+ * The links of a webentity are read from the index outside of the lock, between startBuild and finishBuild; the
+ * nodelinks indexed meanwhile are added to them, and they are not kept if a webentity they depend on changed.
+ *
+ * @author agent
+ */
+class WebEntityAdjacencyIndex {
+
+    private static DynamicLogger logger = new DynamicLogger(WebEntityAdjacencyIndex.class);
+
+    /**
+     * Links of a webentity, keyed by source and target LRU.
+     */
+    static class Adjacency {
+        private final WebEntity webEntity;
+        private final List<WebEntity> subWebEntities;
+        private final Map<String, NodeLink> internalLinks = new LinkedHashMap<String, NodeLink>();
+        private final Map<String, NodeLink> frontierLinks = new LinkedHashMap<String, NodeLink>();
+
+        private Adjacency(WebEntity webEntity, List<WebEntity> subWebEntities) {
+            this.webEntity = webEntity;
+            this.subWebEntities = subWebEntities;
+        }
+
+        private List<NodeLink> getLinks(boolean includeFrontierLinks) {
+            List<NodeLink> links = new ArrayList<NodeLink>(internalLinks.values());
+            if(includeFrontierLinks) {
+                links.addAll(frontierLinks.values());
+            }
+            return links;
+        }
+
+        int size() {
+            return internalLinks.size() + frontierLinks.size();
+        }
+
+        /**
+         * Adds or replaces a link if it belongs to this webentity.
+         *
+         * @return 1 if a link was added, 0 if it was replaced or does not belong to this webentity
+         */
+        private int add(NodeLink nodeLink) {
+            String source = nodeLink.getSourceLRU();
+            String target = nodeLink.getTargetLRU();
+            if(inSubWebEntity(source) || inSubWebEntity(target)) {
+                return 0;
+            }
+            boolean sourceIn = inWebEntity(source);
+            boolean targetIn = inWebEntity(target);
+            if(!sourceIn && !targetIn) {
+                return 0;
+            }
+            Map<String, NodeLink> links = sourceIn && targetIn ? internalLinks : frontierLinks;
+            return links.put(source + '\n' + target, nodeLink) == null ? 1 : 0;
+        }
+
+        private boolean inWebEntity(String lru) {
+            for(String prefix : webEntity.getLRUSet()) {
+                if(lru.startsWith(prefix)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean inSubWebEntity(String lru) {
+            for(WebEntity subWebEntity : subWebEntities) {
+                for(String prefix : subWebEntity.getLRUSet()) {
+                    if(lru.startsWith(prefix)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Links of a webentity being read from the index.
+     */
+    static class Build {
+        private final String webEntityId;
+        // known once the webentity is read
+        private WebEntity webEntity;
+        // false once a webentity it may depend on changed
+        private boolean valid = true;
+        private final List<NodeLink> indexedNodeLinks = new ArrayList<NodeLink>();
+
+        private Build(String webEntityId) {
+            this.webEntityId = webEntityId;
+        }
+    }
+
+    private final int maxLinks;
+    private int linkCount = 0;
+
+    private final Set<Build> builds = new HashSet<Build>();
+
+    // access ordered, for eviction of the least recently used webentities
+    private final LinkedHashMap<String, Adjacency> adjacencies = new LinkedHashMap<String, Adjacency>(16, 0.75f, true);
+
+    // lru prefixes of the webentities in the index, to find the webentities a newly indexed link may belong to
+    private final Map<String, Adjacency> prefixes = new HashMap<String, Adjacency>();
+
+    WebEntityAdjacencyIndex(int maxLinks) {
+        this.maxLinks = maxLinks;
+    }
+
+    /**
+     * @param webEntityId webentity id
+     * @param includeFrontierLinks whether to return the frontier links too
+     * @return links of the webentity, or null if it is not in the index
+     */
+    synchronized List<NodeLink> getLinks(String webEntityId, boolean includeFrontierLinks) {
+        Adjacency adjacency = adjacencies.get(webEntityId);
+        return adjacency == null ? null : adjacency.getLinks(includeFrontierLinks);
+    }
+
+    /**
+     * Starts reading the links of a webentity from the index; finishBuild or abandonBuild must follow. To be called
+     * before the webentity is read.
+     *
+     * @param webEntityId webentity id
+     * @return build
+     */
+    synchronized Build startBuild(String webEntityId) {
+        Build build = new Build(webEntityId);
+        builds.add(build);
+        return build;
+    }
+
+    /**
+     * @param build build
+     * @param webEntity webentity of the build, as read from the index
+     */
+    synchronized void setWebEntity(Build build, WebEntity webEntity) {
+        build.webEntity = webEntity;
+    }
+
+    /**
+     * Adds the links of a webentity, with the nodelinks indexed since the build started, unless a webentity it may
+     * depend on changed meanwhile.
+     *
+     * @param build build
+     * @param subWebEntities sub-webentities of the webentity of the build
+     * @param nodeLinks nodelinks matching the webentity but not its sub-webentities
+     * @param includeFrontierLinks whether to return the frontier links too
+     * @return links of the webentity
+     */
+    synchronized List<NodeLink> finishBuild(Build build, List<WebEntity> subWebEntities, List<NodeLink> nodeLinks, boolean includeFrontierLinks) {
+        builds.remove(build);
+        WebEntity webEntity = build.webEntity;
+        Adjacency adjacency = new Adjacency(webEntity, subWebEntities);
+        for(NodeLink nodeLink : nodeLinks) {
+            adjacency.add(nodeLink);
+        }
+        // those may already be in nodeLinks: they replace them
+        for(NodeLink nodeLink : build.indexedNodeLinks) {
+            adjacency.add(nodeLink);
+        }
+        if(build.valid) {
+            remove(webEntity.getId());
+            adjacencies.put(webEntity.getId(), adjacency);
+            for(String prefix : webEntity.getLRUSet()) {
+                prefixes.put(prefix, adjacency);
+            }
+            linkCount += adjacency.size();
+            evict(webEntity.getId());
+        }
+        else if(logger.isDebugEnabled()) {
+            logger.debug("not keeping adjacency of webentity " + webEntity.getId() + ", webentities changed while it was read");
+        }
+        return adjacency.getLinks(includeFrontierLinks);
+    }
+
+    /**
+     * Ends a build that failed.
+     *
+     * @param build build
+     */
+    synchronized void abandonBuild(Build build) {
+        builds.remove(build);
+    }
+
+    /**
+     * Adds newly indexed nodelinks to the webentities in the index they belong to.
+     *
+     * @param nodeLinks nodelinks, with their weight as indexed
+     */
+    synchronized void nodeLinksIndexed(List<NodeLink> nodeLinks) {
+        if(adjacencies.isEmpty() && builds.isEmpty()) {
+            return;
+        }
+        for(NodeLink nodeLink : nodeLinks) {
+            if(nodeLink.getSourceLRU() == null || nodeLink.getTargetLRU() == null) {
+                continue;
+            }
+            NodeLink copy = nodeLink.deepCopy();
+            for(Build build : builds) {
+                build.indexedNodeLinks.add(copy);
+            }
+            Adjacency source = findAdjacency(nodeLink.getSourceLRU());
+            if(source != null) {
+                linkCount += source.add(copy);
+            }
+            Adjacency target = findAdjacency(nodeLink.getTargetLRU());
+            if(target != null && target != source) {
+                linkCount += target.add(copy);
+            }
+        }
+        evict(null);
+    }
+
+    synchronized void clear() {
+        if(logger.isDebugEnabled()) {
+            logger.debug("clearing adjacencies of # " + adjacencies.size() + " webentities");
+        }
+        adjacencies.clear();
+        prefixes.clear();
+        linkCount = 0;
+        for(Build build : builds) {
+            build.valid = false;
+        }
+    }
+
+    /**
+     * Invalidates the webentities whose links may have moved because webentities were created, changed or deleted:
+     * the webentities themselves, and those having a prefix of one of their LRUs, as links under those LRUs may now
+     * belong to a sub-webentity or may no longer.
+     *
+     * @param webEntities new, changed or deleted webentities, with their LRUs before and after the change
+     */
+    synchronized void webEntitiesChanged(Collection<WebEntity> webEntities) {
+        Set<String> ids = new HashSet<String>();
+        Set<String> lrus = new HashSet<String>();
+        for(WebEntity webEntity : webEntities) {
+            if(webEntity.getId() != null) {
+                ids.add(webEntity.getId());
+            }
+            if(webEntity.getLRUSet() != null) {
+                lrus.addAll(webEntity.getLRUSet());
+            }
+        }
+        Set<Adjacency> invalid = new HashSet<Adjacency>();
+        for(String id : ids) {
+            Adjacency adjacency = adjacencies.get(id);
+            if(adjacency != null) {
+                invalid.add(adjacency);
+            }
+        }
+        for(String lru : lrus) {
+            String prefix = lru;
+            while(prefix.length() > 0) {
+                Adjacency adjacency = prefixes.get(prefix);
+                if(adjacency != null) {
+                    invalid.add(adjacency);
+                }
+                prefix = LRUUtil.stripLastStem(prefix);
+            }
+        }
+        for(Adjacency adjacency : invalid) {
+            remove(adjacency.webEntity.getId());
+        }
+        for(Build build : builds) {
+            // a build that hasn't read its webentity yet may depend on any of them
+            if(build.webEntity == null || ids.contains(build.webEntityId) || dependsOn(build.webEntity, lrus)) {
+                build.valid = false;
+            }
+        }
+        if(logger.isDebugEnabled()) {
+            logger.debug("invalidated adjacencies of # " + invalid.size() + " webentities for # " + webEntities.size() + " changed webentities");
+        }
+    }
+
+    /**
+     * @return whether one of the lrus is in the webentity
+     */
+    private static boolean dependsOn(WebEntity webEntity, Set<String> lrus) {
+        for(String lru : lrus) {
+            for(String prefix : webEntity.getLRUSet()) {
+                if(lru.startsWith(prefix)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds the most specific webentity in the index with a prefix of the lru.
+     */
+    private Adjacency findAdjacency(String lru) {
+        String prefix = lru;
+        while(prefix.length() > 0) {
+            Adjacency adjacency = prefixes.get(prefix);
+            if(adjacency != null) {
+                return adjacency;
+            }
+            prefix = LRUUtil.stripLastStem(prefix);
+        }
+        return null;
+    }
+
+    private void remove(String webEntityId) {
+        Adjacency adjacency = adjacencies.remove(webEntityId);
+        if(adjacency != null) {
+            linkCount -= adjacency.size();
+            for(String prefix : adjacency.webEntity.getLRUSet()) {
+                prefixes.remove(prefix);
+            }
+        }
+    }
+
+    /**
+     * Evicts least recently used webentities until there are no more than the maximum number of links.
+     *
+     * @param keep id of a webentity not to evict
+     */
+    private void evict(String keep) {
+        Iterator<Map.Entry<String, Adjacency>> iterator = adjacencies.entrySet().iterator();
+        while(linkCount > maxLinks && iterator.hasNext()) {
+            Map.Entry<String, Adjacency> eldest = iterator.next();
+            if(eldest.getKey().equals(keep)) {
+                continue;
+            }
+            iterator.remove();
+            linkCount -= eldest.getValue().size();
+            for(String prefix : eldest.getValue().webEntity.getLRUSet()) {
+                prefixes.remove(prefix);
+            }
+            if(logger.isDebugEnabled()) {
+                logger.debug("evicted adjacency of webentity " + eldest.getKey());
+            }
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package fr.sciencespo.medialab.hci.memorystructure.index;
+
+import fr.sciencespo.medialab.hci.memorystructure.thrift.WebEntityCreationRule;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * WebEntityCreationRules compiled for matching many pages: the regular expression of each rule is compiled once, with
+ * a Matcher per thread, and the rules that apply to a page are found in a trie on the rule LRUs instead of checking
+ * every rule. An engine is immutable; LRUIndex builds a new one when the rules change.
+ *
+ * @author agent
+ */
+public class WebEntityCreationRuleEngine {
+
+    // compiled regular expressions of rules, shared by engines as most rules outlive a change of the rules
+    private static final Map<String, Pattern> patterns = new ConcurrentHashMap<String, Pattern>();
+    private static final int MAX_PATTERNS = 10000;
+
+    /**
+     * Node of the trie on rule LRUs, by character.
+     */
+    private static class Node {
+        private final Map<Character, Node> children = new HashMap<Character, Node>(4);
+        private CompiledRule rule;
+    }
+
+    /**
+     * A rule with its regular expression, compiled when it is first matched.
+     */
+    private static class CompiledRule {
+        private final WebEntityCreationRule rule;
+        private final ThreadLocal<Matcher> matcher;
+
+        private CompiledRule(final WebEntityCreationRule rule) {
+            this.rule = rule;
+            this.matcher = new ThreadLocal<Matcher>() {
+                @Override
+                protected Matcher initialValue() {
+                    return compile(rule.getRegExp()).matcher("");
+                }
+            };
+        }
+
+        /**
+         * @return the part of the lru matched by the regular expression, or null
+         */
+        private String match(String lru) {
+            Matcher matcher = this.matcher.get().reset(lru);
+            return matcher.find() ? matcher.group() : null;
+        }
+    }
+
+    private final CompiledRule defaultRule;
+    private final Node root = new Node();
+    private final int ruleCount;
+    private final long version;
+
+    /**
+     * @param defaultRule default rule, or null
+     * @param rules all rules; the default rule among them is ignored
+     * @param version version of the rules in the index
+     */
+    WebEntityCreationRuleEngine(WebEntityCreationRule defaultRule, List<WebEntityCreationRule> rules, long version) {
+        this.defaultRule = defaultRule == null ? null : new CompiledRule(defaultRule);
+        int ruleCount = 0;
+        for(WebEntityCreationRule rule : rules) {
+            if(rule.getLRU() == null || rule.getLRU().equals(IndexConfiguration.DEFAULT_WEBENTITY_CREATION_RULE)) {
+                continue;
+            }
+            Node node = root;
+            for(int i = 0; i < rule.getLRU().length(); i++) {
+                Character c = rule.getLRU().charAt(i);
+                Node child = node.children.get(c);
+                if(child == null) {
+                    child = new Node();
+                    node.children.put(c, child);
+                }
+                node = child;
+            }
+            node.rule = new CompiledRule(rule);
+            ruleCount++;
+        }
+        this.ruleCount = ruleCount;
+        this.version = version;
+    }
+
+    /**
+     * Returns a compiled regular expression, case insensitive as rules are.
+     *
+     * @param regexp regular expression
+     * @return pattern
+     */
+    public static Pattern compile(String regexp) {
+        Pattern pattern = patterns.get(regexp);
+        if(pattern == null) {
+            if(patterns.size() > MAX_PATTERNS) {
+                patterns.clear();
+            }
+            pattern = Pattern.compile(regexp, Pattern.CASE_INSENSITIVE);
+            patterns.put(regexp, pattern);
+        }
+        return pattern;
+    }
+
+    public WebEntityCreationRule getDefaultRule() {
+        return defaultRule == null ? null : defaultRule.rule;
+    }
+
+    /**
+     * @return number of rules, not counting the default rule
+     */
+    public int getRuleCount() {
+        return ruleCount;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the LRU prefix the default rule gives to a page: the part of its lru matched by the default rule, or its
+     * scheme if there is no match.
+     *
+     * @param lru page lru
+     * @return LRU prefix, or null if there is no default rule
+     */
+    public String getDefaultLRUPrefix(String lru) {
+        if(defaultRule == null) {
+            return null;
+        }
+        String prefix = defaultRule.match(lru);
+        return prefix != null ? prefix : lru.substring(0, lru.indexOf('|'));
+    }
+
+    /**
+     * Returns the longest rule LRU that the page lru starts with.
+     *
+     * @param lru page lru
+     * @return rule, or null if no rule applies to the page
+     */
+    public WebEntityCreationRule findRule(String lru) {
+        Node node = root;
+        CompiledRule longest = null;
+        for(int i = 0; i < lru.length() && node != null; i++) {
+            node = node.children.get(lru.charAt(i));
+            if(node != null && node.rule != null) {
+                longest = node.rule;
+            }
+        }
+        return longest == null ? null : longest.rule;
+    }
+
+    /**
+     * Returns the LRU prefix of the webentity a page belongs to: the longest of the prefix given by the default rule
+     * and the LRUs of the rules that apply to the page.
+     *
+     * @param lru page lru
+     * @param defaultPrefix LRU prefix given by the default rule, as returned by getDefaultLRUPrefix
+     * @return LRU prefix, empty if there are no rules
+     */
+    public String getLRUPrefix(String lru, String defaultPrefix) {
+        WebEntityCreationRule rule = findRule(lru);
+        String rulePrefix = rule == null ? null : rule.getLRU();
+        if(defaultPrefix == null && rulePrefix == null) {
+            return "";
+        }
+        if(defaultPrefix == null) {
+            return rulePrefix;
+        }
+        if(rulePrefix == null) {
+            return defaultPrefix;
+        }
+        return rulePrefix.length() >= defaultPrefix.length() ? rulePrefix : defaultPrefix;
+    }
+}
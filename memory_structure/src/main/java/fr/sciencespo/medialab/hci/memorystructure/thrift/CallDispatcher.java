@@ -0,0 +1,289 @@
+package fr.sciencespo.medialab.hci.memorystructure.thrift;
+
+import fr.sciencespo.medialab.hci.memorystructure.index.SlowQueryLog;
+import fr.sciencespo.medialab.hci.memorystructure.util.DynamicLogger;
+import org.apache.thrift.TException;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the calls of the Thrift service on a pool per class of call, so that long bulk ingests and analytics cannot
+ * take the threads quick interactive calls need. Each class has a fixed number of threads and a bounded queue; a call
+ * that finds both full is refused at once with a MemoryStructureException, instead of waiting behind the others. The
+ * stats of every call, refused ones included, are recorded in CallMetrics.
+ *
+ * The Thrift worker that received a call waits for its result, so the server needs more workers than the bulk ingest
+ * and analytics classes can hold (see getHeavyCapacity), or interactive calls would wait for a free worker anyway.
+ *
+ * @author agent
+ */
+public class CallDispatcher implements InvocationHandler {
+
+    private static DynamicLogger logger = new DynamicLogger(CallDispatcher.class);
+
+    /**
+     * Classes of calls, with their default number of threads and queue size.
+     */
+    public enum CallClass {
+        INTERACTIVE("interactive", 8, 32),
+        BULK_INGEST("bulk", 2, 2),
+        ANALYTICS("analytics", 1, 1);
+
+        private final String propertyName;
+        private final int defaultThreads;
+        private final int defaultQueueSize;
+
+        CallClass(String propertyName, int defaultThreads, int defaultQueueSize) {
+            this.propertyName = propertyName;
+            this.defaultThreads = defaultThreads;
+            this.defaultQueueSize = defaultQueueSize;
+        }
+
+        /**
+         * @return name of the class in the properties, e.g. calls.bulk.threads
+         */
+        public String getPropertyName() {
+            return propertyName;
+        }
+
+        public int getDefaultThreads() {
+            return defaultThreads;
+        }
+
+        public int getDefaultQueueSize() {
+            return defaultQueueSize;
+        }
+    }
+
+    private static final List<String> BULK_INGEST_METHODS = Arrays.asList(
+            "clearIndex", "createCache", "indexCache", "createWebEntities", "savePageItems", "saveNodeLinks",
+            "ingestCrawlBatch", "ingestCrawledPages");
+
+    // calls over the whole graph; those about one webentity, such as getWebentityNodeLinks and getWebEntityDegrees,
+    // are interactive
+    private static final List<String> ANALYTICS_METHODS = Arrays.asList(
+            "generateWebEntityLinks", "getWebEntityLinks", "getNodeLinks", "exportWebEntitiesNetwork",
+            "getWebEntityRanking");
+
+    /**
+     * @param methodName name of a method of the service
+     * @return class of its calls; methods not known as bulk ingest or analytics are interactive
+     */
+    public static CallClass classOf(String methodName) {
+        if(BULK_INGEST_METHODS.contains(methodName)) {
+            return CallClass.BULK_INGEST;
+        }
+        if(ANALYTICS_METHODS.contains(methodName)) {
+            return CallClass.ANALYTICS;
+        }
+        return CallClass.INTERACTIVE;
+    }
+
+    private final MemoryStructure.Iface memoryStructure;
+    private final CallMetrics callMetrics;
+    private final Map<CallClass, ThreadPoolExecutor> executors = new EnumMap<CallClass, ThreadPoolExecutor>(CallClass.class);
+    private final Map<CallClass, Integer> queueSizes = new EnumMap<CallClass, Integer>(CallClass.class);
+    private final Map<CallClass, AtomicLong> rejections = new EnumMap<CallClass, AtomicLong>(CallClass.class);
+    private final Map<String, CallClass> callClasses = new HashMap<String, CallClass>();
+
+    /**
+     * @param memoryStructure service that runs the calls
+     * @param callMetrics stats of the calls
+     * @param threads number of threads per class; classes that are missing get their default
+     * @param queueSizes number of calls that may wait per class, 0 for none; classes that are missing get their default
+     */
+    public CallDispatcher(MemoryStructure.Iface memoryStructure, CallMetrics callMetrics, Map<CallClass, Integer> threads,
+                          Map<CallClass, Integer> queueSizes) {
+        this.memoryStructure = memoryStructure;
+        this.callMetrics = callMetrics;
+        for(CallClass callClass : CallClass.values()) {
+            int classThreads = threads.containsKey(callClass) ? threads.get(callClass) : callClass.getDefaultThreads();
+            int queueSize = queueSizes.containsKey(callClass) ? queueSizes.get(callClass) : callClass.getDefaultQueueSize();
+            if(classThreads < 1 || queueSize < 0) {
+                throw new IllegalArgumentException("Invalid pool for " + callClass.getPropertyName() + " calls: " +
+                        classThreads + " threads, queue of " + queueSize);
+            }
+            BlockingQueue<Runnable> queue = queueSize == 0 ? new SynchronousQueue<Runnable>() : new ArrayBlockingQueue<Runnable>(queueSize);
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(classThreads, classThreads, 60, TimeUnit.SECONDS, queue,
+                    new CallThreadFactory(callClass), new ThreadPoolExecutor.AbortPolicy());
+            executor.allowCoreThreadTimeOut(true);
+            this.executors.put(callClass, executor);
+            this.queueSizes.put(callClass, queueSize);
+            this.rejections.put(callClass, new AtomicLong());
+        }
+        for(Method method : MemoryStructure.Iface.class.getMethods()) {
+            callClasses.put(method.getName(), classOf(method.getName()));
+        }
+    }
+
+    /**
+     * @return the service, running each call on the pool of its class
+     */
+    public MemoryStructure.Iface getDispatchingService() {
+        return (MemoryStructure.Iface) Proxy.newProxyInstance(MemoryStructure.Iface.class.getClassLoader(),
+                new Class[] { MemoryStructure.Iface.class }, this);
+    }
+
+    /**
+     * Runs a call on the pool of its class, waits for its result and records its stats.
+     *
+     * @throws Throwable what the call throws, or a MemoryStructureException if its class is overloaded
+     */
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if(method.getDeclaringClass() == Object.class) {
+            return method.invoke(this, args);
+        }
+        MethodStats stats = callMetrics.getMethodStats(method.getName());
+        long start = System.nanoTime();
+        stats.start();
+        boolean error = true;
+        try {
+            Object result = dispatch(method, args);
+            error = false;
+            return result;
+        }
+        finally {
+            stats.end(System.nanoTime() - start, error);
+        }
+    }
+
+    /**
+     * Runs a call on the pool of its class and waits for its result.
+     */
+    private Object dispatch(final Method method, final Object[] args) throws Throwable {
+        CallClass callClass = callClasses.get(method.getName());
+        Future<Object> result;
+        try {
+            result = executors.get(callClass).submit(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    SlowQueryLog.setCurrentCall(method.getName());
+                    try {
+                        return method.invoke(memoryStructure, args);
+                    }
+                    catch(InvocationTargetException x) {
+                        if(x.getCause() instanceof Exception) {
+                            throw (Exception) x.getCause();
+                        }
+                        throw (Error) x.getCause();
+                    }
+                    finally {
+                        SlowQueryLog.setCurrentCall(null);
+                    }
+                }
+            });
+        }
+        catch(RejectedExecutionException x) {
+            rejections.get(callClass).incrementAndGet();
+            String message = "Server overloaded: refused " + method.getName() + ", " + callClass.getPropertyName() +
+                    " calls are limited to " + executors.get(callClass).getMaximumPoolSize() + " running and " +
+                    queueSizes.get(callClass) + " waiting";
+            logger.warn(message);
+            if(Arrays.asList(method.getExceptionTypes()).contains(MemoryStructureException.class)) {
+                throw new MemoryStructureException(message, null, RejectedExecutionException.class.getName());
+            }
+            throw new TException(message, x);
+        }
+        try {
+            return result.get();
+        }
+        catch(ExecutionException x) {
+            throw x.getCause();
+        }
+        catch(InterruptedException x) {
+            result.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new TException("Interrupted while waiting for " + method.getName(), x);
+        }
+    }
+
+    /**
+     * @return number of Thrift workers the bulk ingest and analytics calls can keep waiting
+     */
+    public int getHeavyCapacity() {
+        return capacity(CallClass.BULK_INGEST) + capacity(CallClass.ANALYTICS);
+    }
+
+    /**
+     * @return number of calls of a class that can run or wait at the same time
+     */
+    public int capacity(CallClass callClass) {
+        return executors.get(callClass).getMaximumPoolSize() + queueSizes.get(callClass);
+    }
+
+    public int getThreads(CallClass callClass) {
+        return executors.get(callClass).getMaximumPoolSize();
+    }
+
+    public int getQueueSize(CallClass callClass) {
+        return queueSizes.get(callClass);
+    }
+
+    /**
+     * @return number of calls of a class running now
+     */
+    public int getActiveCalls(CallClass callClass) {
+        return executors.get(callClass).getActiveCount();
+    }
+
+    /**
+     * @return number of calls of a class waiting now
+     */
+    public int getQueuedCalls(CallClass callClass) {
+        return executors.get(callClass).getQueue().size();
+    }
+
+    /**
+     * @return number of calls of a class refused since the start
+     */
+    public long getRejectedCalls(CallClass callClass) {
+        return rejections.get(callClass).get();
+    }
+
+    /**
+     * Stops the pools after the calls they run; waiting calls are still run.
+     */
+    public void shutdown() {
+        for(ThreadPoolExecutor executor : executors.values()) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Names threads after the class of their calls, for the logs.
+     */
+    private static class CallThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        CallThreadFactory(CallClass callClass) {
+            this.prefix = callClass.getPropertyName() + "-call-";
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, prefix + count.incrementAndGet());
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package fr.sciencespo.medialab.hci.memorystructure.thrift;
+
+import fr.sciencespo.medialab.hci.memorystructure.util.DynamicLogger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Stats of the calls of every method of the service. There are stats for each method from the start, so recording a
+ * call only touches the stats of its method.
+ *
+ * @author agent
+ */
+public class CallMetrics {
+
+    private static DynamicLogger logger = new DynamicLogger(CallMetrics.class);
+
+    public static final String JMX_DOMAIN = "fr.sciencespo.medialab.hci.memorystructure";
+
+    private final Map<String, MethodStats> methodStats;
+
+    public CallMetrics() {
+        Map<String, MethodStats> stats = new TreeMap<String, MethodStats>();
+        for(Method method : MemoryStructure.Iface.class.getMethods()) {
+            stats.put(method.getName(), new MethodStats(method.getName()));
+        }
+        this.methodStats = Collections.unmodifiableMap(stats);
+    }
+
+    /**
+     * @param method name of a method of the service
+     * @return its stats
+     */
+    public MethodStats getMethodStats(String method) {
+        return methodStats.get(method);
+    }
+
+    /**
+     * @return stats of the methods that were called, by method name
+     */
+    public List<MethodMetrics> getMetrics() {
+        List<MethodMetrics> metrics = new ArrayList<MethodMetrics>();
+        for(MethodStats stats : methodStats.values()) {
+            if(stats.getCalls() > 0 || stats.getInFlight() > 0) {
+                metrics.add(stats.toMethodMetrics());
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Registers the stats of each method as an MBean, e.g.
+     * fr.sciencespo.medialab.hci.memorystructure:type=Calls,name=getWebEntity.
+     */
+    public void registerMBeans() {
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        for(MethodStats stats : methodStats.values()) {
+            try {
+                ObjectName name = new ObjectName(JMX_DOMAIN + ":type=Calls,name=" + stats.getMethod());
+                if(!mBeanServer.isRegistered(name)) {
+                    mBeanServer.registerMBean(stats, name);
+                }
+            }
+            catch(Exception x) {
+                logger.error("could not register MBean for " + stats.getMethod() + ": " + x.getMessage());
+                x.printStackTrace();
+            }
+        }
+    }
+}
@@ -1,19 +1,26 @@
 package fr.sciencespo.medialab.hci.memorystructure.thrift;
 
+import fr.sciencespo.medialab.hci.memorystructure.analytics.GraphScores;
 import fr.sciencespo.medialab.hci.memorystructure.cache.Cache;
 import fr.sciencespo.medialab.hci.memorystructure.cache.CacheMap;
 import fr.sciencespo.medialab.hci.memorystructure.cache.MaxCacheSizeException;
+import fr.sciencespo.medialab.hci.memorystructure.export.NetworkFormat;
+import fr.sciencespo.medialab.hci.memorystructure.index.DirectoryFactory;
 import fr.sciencespo.medialab.hci.memorystructure.index.IndexException;
 import fr.sciencespo.medialab.hci.memorystructure.index.LRUIndex;
+import fr.sciencespo.medialab.hci.memorystructure.util.CrawlProcessor;
 import fr.sciencespo.medialab.hci.memorystructure.util.DynamicLogger;
 import fr.sciencespo.medialab.hci.memorystructure.util.ExceptionUtils;
+import fr.sciencespo.medialab.hci.memorystructure.util.LRUUtil;
 import org.apache.commons.lang.StringUtils;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.thrift.TException;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Implementation of MemoryStructure interface.
@@ -24,10 +31,46 @@ public class MemoryStructureImpl implements MemoryStructure.Iface {
 
     private static DynamicLogger logger = new DynamicLogger(MemoryStructureImpl.class);
 
+    // number of pages from a cache indexed at a time
+    private static final int INDEX_CACHE_BATCH_SIZE = 100000;
+
     private LRUIndex lruIndex;
 
+    // recorded by the CallDispatcher the server runs calls through
+    private final CallMetrics callMetrics = new CallMetrics();
+
+    // network exports are written in this directory only
+    private File exportDirectory = new File(System.getProperty("user.dir"));
+
     public MemoryStructureImpl(String lucenePath, IndexWriterConfig.OpenMode openMode) {
-        this.lruIndex = LRUIndex.getInstance(lucenePath, openMode);
+        this(lucenePath, openMode, new DirectoryFactory());
+    }
+
+    /**
+     * @param lucenePath directory of the index
+     * @param openMode how to open it
+     * @param directoryFactory opens the Lucene directory
+     */
+    public MemoryStructureImpl(String lucenePath, IndexWriterConfig.OpenMode openMode, DirectoryFactory directoryFactory) {
+        this.lruIndex = LRUIndex.getInstance(lucenePath, openMode, directoryFactory);
+    }
+
+    /**
+     * Sets after how many newly indexed nodelinks webentity links are regenerated in the background.
+     *
+     * @param threshold number of nodelinks, 0 to disable
+     */
+    public void setWebEntityLinksRegenerationThreshold(long threshold) {
+        lruIndex.setWebEntityLinksRegenerationThreshold(threshold);
+    }
+
+    /**
+     * Sets the directory network exports are written to; paths of exports are relative to it.
+     *
+     * @param exportDirectory export directory
+     */
+    public void setExportDirectory(File exportDirectory) {
+        this.exportDirectory = exportDirectory;
     }
 
     /**
@@ -319,10 +362,19 @@ public class MemoryStructureImpl implements MemoryStructure.Iface {
                 onf.setStacktrace(ExceptionUtils.stacktrace2string(Thread.currentThread().getStackTrace()));
                 throw onf;
             }
-            @SuppressWarnings({"unchecked"})
-            List pageItems = new ArrayList(cache.getPageItems());
-            @SuppressWarnings({"unchecked"})
-            int indexedPages = lruIndex.batchIndex(pageItems);
+            // pages are decoded and indexed batch by batch, so an off-heap cache is never entirely on the heap
+            int indexedPages = 0;
+            List<Object> pageItems = new ArrayList<Object>(INDEX_CACHE_BATCH_SIZE);
+            for(PageItem pageItem : cache.snapshot()) {
+                pageItems.add(pageItem);
+                if(pageItems.size() == INDEX_CACHE_BATCH_SIZE) {
+                    indexedPages += lruIndex.batchIndex(pageItems);
+                    pageItems.clear();
+                }
+            }
+            if(!pageItems.isEmpty()) {
+                indexedPages += lruIndex.batchIndex(pageItems);
+            }
 
             if(logger.isDebugEnabled()) {
                 logger.debug("indexCache finished indexing cache with id: " + cacheId);
@@ -755,6 +807,121 @@ public class MemoryStructureImpl implements MemoryStructure.Iface {
         }
     }
 
+    /**
+     * Returns which of the lrus are lrus of pages in the index. Most lrus of pages that are not in the index are ruled
+     * out without searching it.
+     *
+     * @param lrus lrus
+     * @return lrus of pages in the index
+     * @throws TException hmm
+     * @throws MemoryStructureException hmm
+     */
+    @Override
+    public List<String> knownLRUs(List<String> lrus) throws TException, MemoryStructureException {
+        if(logger.isDebugEnabled()) {
+            logger.debug("knownLRUs for # " + lrus.size() + " lrus");
+        }
+        try {
+            return lruIndex.retrieveKnownPageItemLRUs(lrus);
+        }
+        catch(IndexException x) {
+            logger.error(x.getMessage());
+            x.printStackTrace();
+            throw new MemoryStructureException(x.getMessage(), ExceptionUtils.stacktrace2string(x), IndexException.class.getName());
+        }
+    }
+
+    /**
+     * Ingests a crawl batch: indexes the pages and nodelinks and creates the webentities of the pages, in one batch
+     * with a single commit. The pages are kept in a cache of their own for the duration of the call, that is not
+     * in the cache map.
+     *
+     * @param pageItems pages
+     * @param nodeLinks nodelinks, their weights are added to those of existing nodelinks
+     * @return number of indexed pages, indexed nodelinks and created webentities
+     * @throws TException hmm
+     * @throws MemoryStructureException hmm
+     */
+    @Override
+    public IngestResult ingestCrawlBatch(List<PageItem> pageItems, List<NodeLink> nodeLinks) throws TException, MemoryStructureException {
+        if(logger.isDebugEnabled()) {
+            logger.debug("ingestCrawlBatch for # " + pageItems.size() + " pageItems and # " + nodeLinks.size() + " nodeLinks");
+        }
+        return ingest(pageItems, nodeLinks, System.currentTimeMillis());
+    }
+
+    /**
+     * Ingests pages as crawled: their lrus and those of their links are cleaned, and their nodes computed with the
+     * precision limit and the precision exceptions in the index, as core/processor.py did before sending them. The
+     * pages, the pages they link to and the aggregated links between nodes are then ingested as by ingestCrawlBatch.
+     *
+     * @param crawledPages crawled pages with their links
+     * @return number of indexed pages, indexed nodelinks and created webentities
+     * @throws TException hmm
+     * @throws MemoryStructureException hmm
+     */
+    @Override
+    public IngestResult ingestCrawledPages(List<CrawledPage> crawledPages) throws TException, MemoryStructureException {
+        if(logger.isDebugEnabled()) {
+            logger.debug("ingestCrawledPages for # " + crawledPages.size() + " crawledPages");
+        }
+        long start = System.currentTimeMillis();
+        List<String> precisionExceptions;
+        try {
+            precisionExceptions = lruIndex.retrievePrecisionExceptions();
+        }
+        catch(IndexException x) {
+            logger.error(x.getMessage());
+            x.printStackTrace();
+            throw new MemoryStructureException(x.getMessage(), ExceptionUtils.stacktrace2string(x), IndexException.class.getName());
+        }
+        CrawlProcessor crawlProcessor = new CrawlProcessor(LRUUtil.PRECISION_LIMIT, precisionExceptions);
+        crawlProcessor.addAll(crawledPages);
+        return ingest(crawlProcessor.getPageItems(), crawlProcessor.getNodeLinks(), start);
+    }
+
+    /**
+     * Indexes pages and nodelinks and creates the webentities of the pages, with a single commit.
+     *
+     * @param pageItems pages
+     * @param nodeLinks nodelinks
+     * @param start time the ingestion started
+     * @return number of indexed pages, indexed nodelinks and created webentities
+     * @throws MemoryStructureException hmm
+     */
+    private IngestResult ingest(List<PageItem> pageItems, List<NodeLink> nodeLinks, long start) throws MemoryStructureException {
+        Cache cache = new Cache(lruIndex);
+        try {
+            cache.setPageItems(pageItems);
+            Map<String, WebEntity> webEntities = cache.claimWebEntities();
+            List<Object> objects = new ArrayList<Object>(cache.size() + nodeLinks.size());
+            for(PageItem pageItem : cache.snapshot()) {
+                objects.add(pageItem);
+            }
+            int pageItemCount = objects.size();
+            objects.addAll(nodeLinks);
+            List<String> webEntityIds = lruIndex.batchIndex(objects, webEntities);
+            IngestResult result = new IngestResult(pageItemCount, nodeLinks.size(), webEntityIds.size(), System.currentTimeMillis() - start);
+            if(logger.isDebugEnabled()) {
+                logger.debug("ingest finished: " + result);
+            }
+            return result;
+        }
+        catch(MaxCacheSizeException x) {
+            logger.error(x.getMessage());
+            x.printStackTrace();
+            throw new MemoryStructureException(x.getMessage(), ExceptionUtils.stacktrace2string(x), MaxCacheSizeException.class.getName());
+        }
+        catch(IndexException x) {
+            logger.error(x.getMessage());
+            x.printStackTrace();
+            throw new MemoryStructureException(x.getMessage(), ExceptionUtils.stacktrace2string(x), IndexException.class.getName());
+        }
+        finally {
+            cache.clear();
+        }
+    }
+
     /**
      * Saves pageItems to index, bypassing cache.
      *
@@ -780,6 +947,210 @@ public class MemoryStructureImpl implements MemoryStructure.Iface {
         }
     }
 
+    /**
+     * Writes the webentities network to a file.
+     *
+     * @param format gexf or graphml
+     * @param path file to write in the export directory, or empty for webentities_network.<format>
+     * @return description of the written file, with its absolute path
+     * @throws MemoryStructureException if the path is outside the export directory, or the export fails
+     */
+    @Override
+    public NetworkExport exportWebEntitiesNetwork(String format, String path) throws MemoryStructureException {
+        if(logger.isDebugEnabled()) {
+            logger.debug("exportWebEntitiesNetwork as " + format + " to " + path);
+        }
+        NetworkFormat networkFormat = NetworkFormat.forName(format);
+        if(networkFormat == null) {
+            throw new MemoryStructureException().setMsg("Unsupported network export format: " + format);
+        }
+        if(StringUtils.isEmpty(path)) {
+            path = "webentities_network." + networkFormat.getExtension();
+        }
+        try {
+            return lruIndex.exportWebEntitiesNetwork(networkFormat, resolveExportFile(path));
+        }
+        catch(IndexException x) {
+            logger.error(x.getMessage());
+            x.printStackTrace();
+            throw new MemoryStructureException(x.getMessage(), ExceptionUtils.stacktrace2string(x), IndexException.class.getName());
+        }
+        catch(IOException x) {
+            logger.error(x.getMessage());
+            x.printStackTrace();
+            throw new MemoryStructureException(x.getMessage(), ExceptionUtils.stacktrace2string(x), IOException.class.getName());
+        }
+    }
+
+    /**
+     * Resolves the path of an export against the export directory. Paths leading outside of it, whether absolute or
+     * through .. or links, are refused, so callers cannot overwrite other files of the host.
+     *
+     * @param path path of the export
+     * @return file in the export directory
+     * @throws MemoryStructureException if the file is not in the export directory
+     * @throws IOException hmm
+     */
+    private File resolveExportFile(String path) throws MemoryStructureException, IOException {
+        File directory = exportDirectory.getCanonicalFile();
+        File file = new File(path);
+        if(!file.isAbsolute()) {
+            file = new File(directory, path);
+        }
+        file = file.getCanonicalFile();
+        for(File parent = file.getParentFile(); parent != null; parent = parent.getParentFile()) {
+            if(parent.equals(directory)) {
+                return file;
+            }
+        }
+        logger.warn("refused network export to " + path + ", outside of " + directory.getPath());
+        throw new MemoryStructureException().setMsg("Network export path " + path + " is outside of the export directory");
+    }
+
+    /**
+     * Returns PageRank and HITS scores of webentities, by decreasing PageRank.
+     *
+     * @param max maximum number of webentities to return, all if 0 or less
+     * @return webentity scores
+     * @throws MemoryStructureException hmm
+     */
+    @Override
+    public List<WebEntityRank> getWebEntityRanking(int max) throws MemoryStructureException {
+        logger.debug("getWebEntityRanking");
+        try {
+            GraphScores scores = lruIndex.retrieveGraphScores();
+            int[] order = scores.getPageRankOrder();
+            int size = max > 0 ? Math.min(max, order.length) : order.length;
+            List<WebEntityRank> ranking = new ArrayList<WebEntityRank>(size);
+            for(int i = 0; i < size; i++) {
+                int node = order[i];
+                ranking.add(new WebEntityRank(scores.getId(node), scores.getPageRank(node), scores.getHub(node), scores.getAuthority(node)));
+            }
+            return ranking;
+        }
+        catch(IndexException x) {
+            logger.error(x.getMessage());
+            x.printStackTrace();
+            throw new MemoryStructureException(x.getMessage(), ExceptionUtils.stacktrace2string(x), IndexException.class.getName());
+        }
+    }
+
+    /**
+     * Returns in- and out-degrees of webentities. Webentities without any link have all degrees 0.
+     *
+     * @param webEntityIds ids of webentities, all webentities if empty
+     * @return webentity degrees
+     * @throws MemoryStructureException hmm
+     */
+    @Override
+    public List<WebEntityDegrees> getWebEntityDegrees(List<String> webEntityIds) throws MemoryStructureException {
+        logger.debug("getWebEntityDegrees");
+        try {
+            GraphScores scores = lruIndex.retrieveGraphScores();
+            List<WebEntityDegrees> degrees = new ArrayList<WebEntityDegrees>();
+            if(webEntityIds == null || webEntityIds.isEmpty()) {
+                for(int node = 0; node < scores.size(); node++) {
+                    degrees.add(new WebEntityDegrees(scores.getId(node), scores.getInDegree(node), scores.getOutDegree(node), scores.getWeightedInDegree(node), scores.getWeightedOutDegree(node)));
+                }
+            }
+            else {
+                for(String id : webEntityIds) {
+                    int node = scores.positionOf(id);
+                    if(node == -1) {
+                        degrees.add(new WebEntityDegrees(id, 0, 0, 0, 0));
+                    }
+                    else {
+                        degrees.add(new WebEntityDegrees(id, scores.getInDegree(node), scores.getOutDegree(node), scores.getWeightedInDegree(node), scores.getWeightedOutDegree(node)));
+                    }
+                }
+            }
+            return degrees;
+        }
+        catch(IndexException x) {
+            logger.error(x.getMessage());
+            x.printStackTrace();
+            throw new MemoryStructureException(x.getMessage(), ExceptionUtils.stacktrace2string(x), IndexException.class.getName());
+        }
+    }
+
+    /**
+     * Returns the stats of the calls of each method.
+     *
+     * @return metrics of the methods called since the server started
+     */
+    @Override
+    public List<MethodMetrics> getMetrics() {
+        logger.debug("getMetrics");
+        return callMetrics.getMetrics();
+    }
+
+    /**
+     * Returns the last queries that took longer than the slow query threshold.
+     *
+     * @return slow queries, the most recent first
+     */
+    @Override
+    public List<SlowQuery> getSlowQueries() {
+        logger.debug("getSlowQueries");
+        return lruIndex.getSlowQueryLog().getSlowQueries();
+    }
+
+    /**
+     * Returns statistics of the index.
+     *
+     * @return statistics of the index
+     * @throws MemoryStructureException hmm
+     */
+    @Override
+    public IndexStats getIndexStats() throws MemoryStructureException {
+        logger.debug("getIndexStats");
+        try {
+            return lruIndex.getIndexStats();
+        }
+        catch(IndexException x) {
+            logger.error(x.getMessage());
+            x.printStackTrace();
+            throw new MemoryStructureException(x.getMessage(), ExceptionUtils.stacktrace2string(x), IndexException.class.getName());
+        }
+    }
+
+    /**
+     * Registers the MBeans of the calls and of the index.
+     */
+    public void registerMBeans() {
+        callMetrics.registerMBeans();
+        lruIndex.registerMBean();
+    }
+
+    /**
+     * Prepares the index for the first requests, see LRUIndex.warmUp.
+     *
+     * @param queries more warm-up queries, separated by ;, or null
+     * @param threads number of warm-up steps run at the same time
+     * @return duration in milliseconds of each step
+     * @throws IndexException if a query cannot be parsed
+     */
+    public Map<String, Long> warmUp(String queries, int threads) throws IndexException {
+        return lruIndex.warmUp(queries, threads);
+    }
+
+    /**
+     * Sets which queries are kept in the slow query log.
+     *
+     * @param thresholdMillis queries that take at least this long are kept
+     * @param size number of slow queries kept
+     */
+    public void configureSlowQueryLog(long thresholdMillis, int size) {
+        lruIndex.getSlowQueryLog().configure(thresholdMillis, size);
+    }
+
+    /**
+     * @return stats of the calls of the service
+     */
+    public CallMetrics getCallMetrics() {
+        return callMetrics;
+    }
+
     /**
      * Shortcut method only to be used in unit tests, not part of MemoryStructure interface.
      * @return
@@ -0,0 +1,122 @@
+package fr.sciencespo.medialab.hci.memorystructure.thrift;
+
+import fr.sciencespo.medialab.hci.memorystructure.util.LatencyHistogram;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Calls, errors, calls in progress and durations of one method of the service, since the server started.
+ *
+ * @author agent
+ */
+public class MethodStats implements MethodStatsMBean {
+
+    // calls per second are counted over a minute
+    private static final long RATE_INTERVAL = 60 * 1000;
+
+    private final String method;
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final AtomicLong intervalCalls = new AtomicLong();
+    private volatile long intervalStart = System.currentTimeMillis();
+    private volatile double callsPerSecond = 0;
+
+    public MethodStats(String method) {
+        this.method = method;
+    }
+
+    /**
+     * Counts a call that starts.
+     */
+    public void start() {
+        inFlight.incrementAndGet();
+    }
+
+    /**
+     * Counts a call that ends.
+     *
+     * @param nanos duration of the call
+     * @param error whether the call ended with an exception
+     */
+    public void end(long nanos, boolean error) {
+        inFlight.decrementAndGet();
+        latencies.record(nanos / 1000);
+        if(error) {
+            errors.incrementAndGet();
+        }
+        intervalCalls.incrementAndGet();
+        updateRate(System.currentTimeMillis());
+    }
+
+    /**
+     * Starts a new interval when the current one is over, with the rate of the one that ended.
+     */
+    private void updateRate(long now) {
+        if(now - intervalStart >= RATE_INTERVAL) {
+            synchronized(this) {
+                long elapsed = now - intervalStart;
+                if(elapsed >= RATE_INTERVAL) {
+                    callsPerSecond = intervalCalls.getAndSet(0) * 1000.0 / elapsed;
+                    intervalStart = now;
+                }
+            }
+        }
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public long getCalls() {
+        return latencies.getCount();
+    }
+
+    public long getErrors() {
+        return errors.get();
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return calls per second in the last complete minute
+     */
+    public double getCallsPerSecond() {
+        updateRate(System.currentTimeMillis());
+        return callsPerSecond;
+    }
+
+    public long getMeanMicros() {
+        return latencies.getMean();
+    }
+
+    public long getP50Micros() {
+        return latencies.getPercentile(50);
+    }
+
+    public long getP90Micros() {
+        return latencies.getPercentile(90);
+    }
+
+    public long getP99Micros() {
+        return latencies.getPercentile(99);
+    }
+
+    public long getMaxMicros() {
+        return latencies.getMax();
+    }
+
+    /**
+     * @return the stats as sent to Thrift clients
+     */
+    public MethodMetrics toMethodMetrics() {
+        return new MethodMetrics().setMethod(method).setCalls(getCalls()).setErrors(getErrors())
+                .setInFlight(getInFlight()).setCallsPerSecond(getCallsPerSecond()).setMeanMicros(getMeanMicros())
+                .setP50Micros(getP50Micros()).setP90Micros(getP90Micros()).setP99Micros(getP99Micros())
+                .setMaxMicros(getMaxMicros());
+    }
+}
@@ -0,0 +1,30 @@
+package fr.sciencespo.medialab.hci.memorystructure.thrift;
+
+/**
+ * JMX view of the calls of one method of the service. Durations are in microseconds, from the moment the call is
+ * received to its result, including the time it waits for a thread.
+ *
+ * @author agent
+ */
+public interface MethodStatsMBean {
+
+    String getMethod();
+
+    long getCalls();
+
+    long getErrors();
+
+    int getInFlight();
+
+    double getCallsPerSecond();
+
+    long getMeanMicros();
+
+    long getP50Micros();
+
+    long getP90Micros();
+
+    long getP99Micros();
+
+    long getMaxMicros();
+}
@@ -1,5 +1,9 @@
 package fr.sciencespo.medialab.hci.memorystructure.thrift;
 
+import fr.sciencespo.medialab.hci.memorystructure.cache.CacheMap;
+import fr.sciencespo.medialab.hci.memorystructure.index.DirectoryFactory;
+import fr.sciencespo.medialab.hci.memorystructure.index.IndexException;
+import fr.sciencespo.medialab.hci.memorystructure.index.SlowQueryLog;
 import fr.sciencespo.medialab.hci.memorystructure.util.DynamicLogger;
 
 import org.apache.commons.io.IOUtils;
@@ -7,9 +11,12 @@ import org.apache.commons.lang.StringUtils;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.thrift.TException;
 import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TCompactProtocol;
 import org.apache.thrift.protocol.TProtocolFactory;
+import org.apache.thrift.server.AbstractNonblockingServer;
 import org.apache.thrift.server.THsHaServer;
 import org.apache.thrift.server.TServer;
+import org.apache.thrift.server.TThreadedSelectorServer;
 import org.apache.thrift.transport.TFramedTransport;
 import org.apache.thrift.transport.TNonblockingServerSocket;
 import org.apache.thrift.transport.TNonblockingServerTransport;
@@ -18,6 +25,7 @@ import org.json.JSONObject;
 import org.json.JSONException;
 import java.io.FileInputStream;
 import java.io.File;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.Map;
 import java.lang.Integer;
@@ -36,8 +44,18 @@ public class ThriftServer {
     private static String luceneDirectoryPath = null;
     private static String logLevel = null;
     private static String precisionLimit = null;
+    private static long webEntityLinksRegenerationThreshold = 0;
+    private static String protocol = null;
+    private static String transport = null;
+    private static String serverType = null;
+    // 0 for the defaults of Thrift
+    private static int workerThreads = 0;
+    private static int selectorThreads = 0;
+    private static int acceptQueueSize = 0;
+    private static long readBufferSize = 0;
 
     private static MemoryStructureImpl memoryStructureImpl;
+    private static CallDispatcher callDispatcher;
 
 
     /**
@@ -150,6 +168,40 @@ public class ThriftServer {
         port = Integer.parseInt(resolvedProperties.get("thrift.port"));
         luceneDirectoryPath = resolvedProperties.get("lucene.path");
         logLevel = resolvedProperties.get("log.level");
+        protocol = resolvedProperties.get("thrift.protocol");
+        transport = resolvedProperties.get("thrift.transport");
+        serverType = resolvedProperties.get("thrift.server");
+        workerThreads = intProperty(resolvedProperties, "thrift.worker.threads");
+        selectorThreads = intProperty(resolvedProperties, "thrift.selector.threads");
+        acceptQueueSize = intProperty(resolvedProperties, "thrift.accept.queue");
+        readBufferSize = intProperty(resolvedProperties, "thrift.read.buffer.mb") * 1024L * 1024L;
+        String regenerationThreshold = resolvedProperties.get("webentitylinks.regeneration.threshold");
+        if(StringUtils.isNotEmpty(regenerationThreshold)) {
+            webEntityLinksRegenerationThreshold = Long.parseLong(regenerationThreshold);
+        }
+        long cacheMemoryBudget = CacheMap.DEFAULT_MEMORY_BUDGET;
+        String cacheMemoryBudgetMB = resolvedProperties.get("cache.memory.budget.mb");
+        if(StringUtils.isNotEmpty(cacheMemoryBudgetMB)) {
+            cacheMemoryBudget = Long.parseLong(cacheMemoryBudgetMB) * 1024 * 1024;
+        }
+        long cacheTimeToLive = CacheMap.DEFAULT_TIME_TO_LIVE;
+        String cacheTimeToLiveMinutes = resolvedProperties.get("cache.ttl.minutes");
+        if(StringUtils.isNotEmpty(cacheTimeToLiveMinutes)) {
+            cacheTimeToLive = Long.parseLong(cacheTimeToLiveMinutes) * 60 * 1000;
+        }
+        File cacheSpillDirectory = CacheMap.DEFAULT_SPILL_DIRECTORY;
+        String cacheSpillPath = resolvedProperties.get("cache.spill.path");
+        if(StringUtils.isNotEmpty(cacheSpillPath)) {
+            cacheSpillDirectory = new File(cacheSpillPath);
+        }
+        CacheMap.getInstance().configure(cacheMemoryBudget, cacheTimeToLive, cacheSpillDirectory);
+        CacheMap.getInstance().setOffHeapStorage("offheap".equals(resolvedProperties.get("cache.storage")));
+        int webEntityCreationThreads = Runtime.getRuntime().availableProcessors();
+        String webEntityCreationThreadsProperty = resolvedProperties.get("cache.webentities.threads");
+        if(StringUtils.isNotEmpty(webEntityCreationThreadsProperty)) {
+            webEntityCreationThreads = Integer.parseInt(webEntityCreationThreadsProperty);
+        }
+        CacheMap.getInstance().setWebEntityCreationThreads(webEntityCreationThreads);
 
         //
         // defaults
@@ -164,6 +216,15 @@ public class ThriftServer {
             luceneDirectoryPath = System.getProperty("user.home") + File.separator + "memorystructure.lucene";
             logger.warn("Using default: lucene.path is " + luceneDirectoryPath);
         }
+        if(StringUtils.isEmpty(protocol)) {
+            protocol = "binary";
+        }
+        if(StringUtils.isEmpty(transport)) {
+            transport = "framed";
+        }
+        if(StringUtils.isEmpty(serverType)) {
+            serverType = "hsha";
+        }
         if(StringUtils.isEmpty(logLevel)) {
             logger.warn("Could not find log.level either from memorystructure.properties or from command line arguments.");
             logLevel = "INFO";
@@ -176,6 +237,8 @@ public class ThriftServer {
             logger.warn("Using default: log.level is " + logLevel);
         }
         DynamicLogger.setLogLevel(logLevel);
+        // prefixing debug messages with their method and line walks the stack on every message
+        DynamicLogger.setCallerLocation(Boolean.parseBoolean(resolvedProperties.get("log.caller")));
 
         File luceneDir = new File(luceneDirectoryPath);
         if(luceneDir.exists() && !luceneDir.isDirectory()) {
@@ -190,7 +253,91 @@ public class ThriftServer {
             logger.info("Using existing Lucene path: " + luceneDirectoryPath);
         }
 
-        memoryStructureImpl = new MemoryStructureImpl(luceneDirectoryPath, IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
+        // lucene.directory is auto, mmap, nio or simple
+        DirectoryFactory directoryFactory = new DirectoryFactory();
+        String directoryType = resolvedProperties.get("lucene.directory");
+        if(StringUtils.isNotEmpty(directoryType)) {
+            directoryFactory.setType(directoryType);
+        }
+        String useUnmap = resolvedProperties.get("lucene.mmap.unmap");
+        if(StringUtils.isNotEmpty(useUnmap)) {
+            directoryFactory.setUseUnmap(Boolean.parseBoolean(useUnmap));
+        }
+        String maxChunkSizeMB = resolvedProperties.get("lucene.mmap.chunk.mb");
+        if(StringUtils.isNotEmpty(maxChunkSizeMB)) {
+            directoryFactory.setMaxChunkSizeMB(Integer.parseInt(maxChunkSizeMB));
+        }
+        String preload = resolvedProperties.get("lucene.preload");
+        if(StringUtils.isNotEmpty(preload)) {
+            directoryFactory.setPreload(preload);
+        }
+        memoryStructureImpl = new MemoryStructureImpl(luceneDirectoryPath, IndexWriterConfig.OpenMode.CREATE_OR_APPEND, directoryFactory);
+        memoryStructureImpl.setWebEntityLinksRegenerationThreshold(webEntityLinksRegenerationThreshold);
+        // network exports can only be written in export.path
+        String exportPath = resolvedProperties.get("export.path");
+        if(StringUtils.isEmpty(exportPath)) {
+            exportPath = System.getProperty("user.home") + File.separator + "memorystructure.exports";
+            logger.warn("Could not find export.path in memorystructure config.json, using default: " + exportPath);
+        }
+        File exportDir = new File(exportPath);
+        if(exportDir.exists() && !exportDir.isDirectory()) {
+            logger.error("Export path already exists: " + exportPath + " but it is not a directory, exiting");
+            System.exit(0);
+        }
+        else if(!exportDir.exists()) {
+            logger.info("Export path does not exist, creating directory: " + exportPath);
+            exportDir.mkdirs();
+        }
+        memoryStructureImpl.setExportDirectory(exportDir);
+        long slowQueryThreshold = SlowQueryLog.DEFAULT_THRESHOLD;
+        String slowQueryThresholdMillis = resolvedProperties.get("slowquery.threshold.ms");
+        if(StringUtils.isNotEmpty(slowQueryThresholdMillis)) {
+            slowQueryThreshold = Long.parseLong(slowQueryThresholdMillis);
+        }
+        int slowQueryLogSize = SlowQueryLog.DEFAULT_SIZE;
+        String slowQueryLogSizeProperty = resolvedProperties.get("slowquery.log.size");
+        if(StringUtils.isNotEmpty(slowQueryLogSizeProperty)) {
+            slowQueryLogSize = Integer.parseInt(slowQueryLogSizeProperty);
+        }
+        memoryStructureImpl.configureSlowQueryLog(slowQueryThreshold, slowQueryLogSize);
+        logger.info("keeping the last " + slowQueryLogSize + " queries that take at least " + slowQueryThreshold + " ms");
+
+        // pools per class of calls, e.g. calls.bulk.threads and calls.bulk.queue
+        Map<CallDispatcher.CallClass, Integer> callThreads = new EnumMap<CallDispatcher.CallClass, Integer>(CallDispatcher.CallClass.class);
+        Map<CallDispatcher.CallClass, Integer> callQueueSizes = new EnumMap<CallDispatcher.CallClass, Integer>(CallDispatcher.CallClass.class);
+        for(CallDispatcher.CallClass callClass : CallDispatcher.CallClass.values()) {
+            String threads = resolvedProperties.get("calls." + callClass.getPropertyName() + ".threads");
+            if(StringUtils.isNotEmpty(threads)) {
+                callThreads.put(callClass, Integer.parseInt(threads));
+            }
+            String queueSize = resolvedProperties.get("calls." + callClass.getPropertyName() + ".queue");
+            if(StringUtils.isNotEmpty(queueSize)) {
+                callQueueSizes.put(callClass, Integer.parseInt(queueSize));
+            }
+        }
+        callDispatcher = new CallDispatcher(memoryStructureImpl, memoryStructureImpl.getCallMetrics(), callThreads, callQueueSizes);
+        memoryStructureImpl.registerMBeans();
+        for(CallDispatcher.CallClass callClass : CallDispatcher.CallClass.values()) {
+            logger.info(callClass.getPropertyName() + " calls: " + callDispatcher.getThreads(callClass) + " threads, " +
+                    callDispatcher.getQueueSize(callClass) + " waiting at most");
+        }
+
+        // warm up before the port opens, so the first requests do not build what the index builds lazily
+        if(!"false".equals(resolvedProperties.get("warmup.enabled"))) {
+            int warmUpThreads = Runtime.getRuntime().availableProcessors();
+            String warmUpThreadsProperty = resolvedProperties.get("warmup.threads");
+            if(StringUtils.isNotEmpty(warmUpThreadsProperty)) {
+                warmUpThreads = Integer.parseInt(warmUpThreadsProperty);
+            }
+            try {
+                memoryStructureImpl.warmUp(resolvedProperties.get("warmup.queries"), warmUpThreads);
+            }
+            catch(IndexException x) {
+                logger.error(x.getMessage() + ", exiting");
+                x.printStackTrace();
+                System.exit(-1);
+            }
+        }
 
         logger.info("successfully created Memory Structure");
 
@@ -199,6 +346,7 @@ public class ThriftServer {
             public void run() {
                 try {
                     logger.info("Memory Structure shutdown hook");
+                    callDispatcher.shutdown();
                     memoryStructureImpl.shutdown();
                 }
                 catch (TException x) {
@@ -221,21 +369,111 @@ public class ThriftServer {
         //
         // server code provided by Patrick Browne
         //
-        TProtocolFactory pfactory = new TBinaryProtocol.Factory();
-
         TNonblockingServerTransport serverTransport = new TNonblockingServerSocket(port);
-        MemoryStructure.Processor processor = new MemoryStructure.Processor(memoryStructureImpl);
-        THsHaServer.Args serverArgs = new THsHaServer.Args(serverTransport);
+        MemoryStructure.Processor processor = new MemoryStructure.Processor(callDispatcher.getDispatchingService());
+        // workers wait for the calls they dispatch: by default, enough of them for the heavy calls and all interactive
+        // calls that can run
+        if(workerThreads == 0) {
+            workerThreads = callDispatcher.getHeavyCapacity() + callDispatcher.getThreads(CallDispatcher.CallClass.INTERACTIVE);
+        }
+        else if(workerThreads <= callDispatcher.getHeavyCapacity()) {
+            logger.warn("thrift.worker.threads is " + workerThreads + ", bulk and analytics calls can keep # " +
+                    callDispatcher.getHeavyCapacity() + " workers waiting and block interactive calls");
+        }
+        AbstractNonblockingServer.AbstractNonblockingServerArgs serverArgs;
+        String settings;
+        if("threadedselector".equals(serverType)) {
+            TThreadedSelectorServer.Args threadedSelectorArgs = new TThreadedSelectorServer.Args(serverTransport);
+            if(workerThreads > 0) {
+                threadedSelectorArgs.workerThreads(workerThreads);
+            }
+            if(selectorThreads > 0) {
+                threadedSelectorArgs.selectorThreads(selectorThreads);
+            }
+            if(acceptQueueSize > 0) {
+                threadedSelectorArgs.acceptQueueSizePerThread(acceptQueueSize);
+            }
+            serverArgs = threadedSelectorArgs;
+            settings = "TThreadedSelectorServer with " + threadedSelectorArgs.getSelectorThreads() + " selector threads, " +
+                    threadedSelectorArgs.getWorkerThreads() + " worker threads, accept queue of " +
+                    threadedSelectorArgs.getAcceptQueueSizePerThread() + " connections per selector thread";
+        }
+        else if("hsha".equals(serverType)) {
+            THsHaServer.Args hsHaArgs = new THsHaServer.Args(serverTransport);
+            if(workerThreads > 0) {
+                hsHaArgs.workerThreads(workerThreads);
+            }
+            if(selectorThreads > 0 || acceptQueueSize > 0) {
+                logger.warn("thrift.selector.threads and thrift.accept.queue are only used by the threadedselector server");
+            }
+            serverArgs = hsHaArgs;
+            settings = "THsHaServer with 1 selector thread, " + hsHaArgs.getWorkerThreads() + " worker threads";
+        }
+        else {
+            throw new IllegalArgumentException("Unknown thrift.server: " + serverType + ", use hsha or threadedselector");
+        }
+        // bytes all connections may use together to read frames; Thrift 0.8 has no limit per frame. Only a frame
+        // larger than the whole budget closes its connection: one that does not fit in what is left of it stays
+        // unread until enough frames are processed, and the selector keeps retrying it meanwhile
+        if(readBufferSize > 0) {
+            serverArgs.maxReadBufferBytes = readBufferSize;
+        }
         serverArgs.processor(processor);
         serverArgs.transportFactory(new TFramedTransport.Factory());
-        serverArgs.protocolFactory(new TBinaryProtocol.Factory(true, true));
-        TServer server = new THsHaServer(serverArgs);
+        serverArgs.protocolFactory(createProtocolFactory(protocol, transport));
+        TServer server;
+        if(serverArgs instanceof TThreadedSelectorServer.Args) {
+            server = new TThreadedSelectorServer((TThreadedSelectorServer.Args) serverArgs);
+        }
+        else {
+            server = new THsHaServer((THsHaServer.Args) serverArgs);
+        }
         //
         // end server code provided by Patrick Browne
         //
 
-        logger.info("starting Thrift server (THsHaServer) at port " + port);
+        logger.info("starting Thrift server at port " + port + ": " + settings + ", " +
+                (serverArgs.maxReadBufferBytes == Long.MAX_VALUE ? "unlimited read buffers" : "read buffers of at most " + serverArgs.maxReadBufferBytes + " bytes") +
+                ", " + protocol + " protocol over " + transport + " transport");
         server.serve();
     }
 
+    /**
+     * @return value of an integer property, 0 if it is not set
+     */
+    private static int intProperty(Map<String, String> properties, String name) {
+        String value = properties.get(name);
+        return StringUtils.isNotEmpty(value) ? Integer.parseInt(value) : 0;
+    }
+
+    /**
+     * Creates the factory of the protocol clients must use. The server always reads and writes frames; with the zlib
+     * transport, each frame holds one compressed message.
+     *
+     * @param protocol binary or compact
+     * @param transport framed or zlib
+     * @return protocol factory
+     */
+    public static TProtocolFactory createProtocolFactory(String protocol, String transport) {
+        TProtocolFactory protocolFactory;
+        if("compact".equals(protocol)) {
+            protocolFactory = new TCompactProtocol.Factory();
+        }
+        else if("binary".equals(protocol)) {
+            protocolFactory = new TBinaryProtocol.Factory(true, true);
+        }
+        else {
+            throw new IllegalArgumentException("Unknown thrift.protocol: " + protocol + ", use binary or compact");
+        }
+        if("zlib".equals(transport)) {
+            return new ZlibTransport.ProtocolFactory(protocolFactory);
+        }
+        else if("framed".equals(transport)) {
+            return protocolFactory;
+        }
+        else {
+            throw new IllegalArgumentException("Unknown thrift.transport: " + transport + ", use framed or zlib");
+        }
+    }
+
 }
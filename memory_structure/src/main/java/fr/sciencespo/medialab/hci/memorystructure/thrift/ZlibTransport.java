@@ -0,0 +1,246 @@
+package fr.sciencespo.medialab.hci.memorystructure.thrift;
+
+import org.apache.thrift.TByteArrayOutputStream;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolFactory;
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.TTransportException;
+import org.apache.thrift.transport.TTransportFactory;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Transport that compresses each message with zlib. A message is compressed as a whole when it is flushed, so every
+ * message is a complete zlib stream and does not depend on the messages before it: this lets the non-blocking servers,
+ * which create new transports for each request, read it. Used over the framed transport, a frame holds one compressed
+ * message, as written by Python's zlib.compress.
+ *
+ * Thrift 0.8 has no zlib transport for Java, and its non-blocking servers do not apply transport factories to the
+ * frames they read, so the server uses ProtocolFactory to add this transport under its protocol.
+ *
+ * @author agent
+ */
+public class ZlibTransport extends TTransport {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final TTransport transport;
+    private final int level;
+
+    // created on first use, as the servers only read from or only write to each transport
+    private TByteArrayOutputStream writeBuffer;
+    // the non-blocking servers never close their transports, so the inflater and deflater are ended after each message
+    private Inflater inflater;
+    private byte[] compressed;
+    // compressed bytes read from the transport, from compressedOffset to compressedLength
+    private int compressedOffset = 0;
+    private int compressedLength = 0;
+    private byte[] inflated;
+    // decompressed bytes not read yet, from inflatedPosition to inflatedLength
+    private int inflatedPosition = 0;
+    private int inflatedLength = 0;
+
+    /**
+     * @param transport transport to read and write compressed messages from
+     * @param level compression level, from Deflater.BEST_SPEED to Deflater.BEST_COMPRESSION
+     */
+    public ZlibTransport(TTransport transport, int level) {
+        this.transport = transport;
+        this.level = level;
+    }
+
+    public ZlibTransport(TTransport transport) {
+        this(transport, Deflater.BEST_SPEED);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return transport.isOpen();
+    }
+
+    @Override
+    public void open() throws TTransportException {
+        transport.open();
+    }
+
+    @Override
+    public void close() {
+        transport.close();
+        endInflater();
+    }
+
+    @Override
+    public int read(byte[] buf, int off, int len) throws TTransportException {
+        if(inflatedPosition == inflatedLength) {
+            inflate();
+        }
+        int read = Math.min(len, inflatedLength - inflatedPosition);
+        System.arraycopy(inflated, inflatedPosition, buf, off, read);
+        inflatedPosition += read;
+        return read;
+    }
+
+    /**
+     * Decompresses the next bytes of the current message, or of the next one if it is finished.
+     *
+     * @throws TTransportException hmm
+     */
+    private void inflate() throws TTransportException {
+        if(compressed == null) {
+            compressed = new byte[BUFFER_SIZE];
+            inflated = new byte[BUFFER_SIZE];
+        }
+        try {
+            while(true) {
+                if(inflater == null) {
+                    inflater = new Inflater();
+                }
+                if(inflater.needsInput() && compressedOffset < compressedLength) {
+                    inflater.setInput(compressed, compressedOffset, compressedLength - compressedOffset);
+                    compressedOffset = compressedLength;
+                }
+                int length = inflater.inflate(inflated);
+                if(inflater.finished()) {
+                    // the next message starts with what this one did not use
+                    compressedOffset = compressedLength - inflater.getRemaining();
+                    endInflater();
+                }
+                if(length > 0) {
+                    inflatedPosition = 0;
+                    inflatedLength = length;
+                    return;
+                }
+                if(inflater == null) {
+                    continue;
+                }
+                if(inflater.needsDictionary()) {
+                    throw new TTransportException("zlib message compressed with a dictionary");
+                }
+                if(inflater.needsInput()) {
+                    compressedLength = transport.read(compressed, 0, compressed.length);
+                    compressedOffset = 0;
+                    if(compressedLength <= 0) {
+                        throw new TTransportException(TTransportException.END_OF_FILE, "No more data available.");
+                    }
+                }
+            }
+        }
+        catch(DataFormatException x) {
+            endInflater();
+            throw new TTransportException("Invalid zlib data: " + x.getMessage(), x);
+        }
+        catch(TTransportException x) {
+            endInflater();
+            throw x;
+        }
+    }
+
+    private void endInflater() {
+        if(inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+    }
+
+    // the protocols read small values straight from the decompressed bytes
+
+    @Override
+    public byte[] getBuffer() {
+        return inflated;
+    }
+
+    @Override
+    public int getBufferPosition() {
+        return inflatedPosition;
+    }
+
+    @Override
+    public int getBytesRemainingInBuffer() {
+        return inflatedLength - inflatedPosition;
+    }
+
+    @Override
+    public void consumeBuffer(int len) {
+        inflatedPosition += len;
+    }
+
+    @Override
+    public void write(byte[] buf, int off, int len) throws TTransportException {
+        if(writeBuffer == null) {
+            writeBuffer = new TByteArrayOutputStream(BUFFER_SIZE);
+        }
+        writeBuffer.write(buf, off, len);
+    }
+
+    /**
+     * Compresses the message written since the previous flush and writes it to the transport.
+     *
+     * @throws TTransportException hmm
+     */
+    @Override
+    public void flush() throws TTransportException {
+        if(writeBuffer == null) {
+            transport.flush();
+            return;
+        }
+        Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(writeBuffer.get(), 0, writeBuffer.len());
+            deflater.finish();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while(!deflater.finished()) {
+                int length = deflater.deflate(buffer);
+                transport.write(buffer, 0, length);
+            }
+        }
+        finally {
+            deflater.end();
+            writeBuffer.reset();
+        }
+        transport.flush();
+    }
+
+    /**
+     * Creates ZlibTransports over other transports.
+     */
+    public static class Factory extends TTransportFactory {
+        private final int level;
+
+        public Factory(int level) {
+            this.level = level;
+        }
+
+        public Factory() {
+            this(Deflater.BEST_SPEED);
+        }
+
+        @Override
+        public TTransport getTransport(TTransport base) {
+            return new ZlibTransport(base, level);
+        }
+    }
+
+    /**
+     * Creates protocols of another factory over a ZlibTransport, so messages are compressed under the protocol even
+     * where the server creates the transports itself.
+     */
+    public static class ProtocolFactory implements TProtocolFactory {
+        private final TProtocolFactory protocolFactory;
+        private final int level;
+
+        public ProtocolFactory(TProtocolFactory protocolFactory, int level) {
+            this.protocolFactory = protocolFactory;
+            this.level = level;
+        }
+
+        public ProtocolFactory(TProtocolFactory protocolFactory) {
+            this(protocolFactory, Deflater.BEST_SPEED);
+        }
+
+        public TProtocol getProtocol(TTransport transport) {
+            return protocolFactory.getProtocol(new ZlibTransport(transport, level));
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package fr.sciencespo.medialab.hci.memorystructure.util;
+
+import fr.sciencespo.medialab.hci.memorystructure.thrift.CrawledPage;
+import fr.sciencespo.medialab.hci.memorystructure.thrift.NodeLink;
+import fr.sciencespo.medialab.hci.memorystructure.thrift.PageItem;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Turns crawled pages into the pageItems and nodelinks to index, as core/processor.py generate_cache_from_pages_list
+ * does: lrus are cleaned, pages found several times are merged, the pages they link to are added, and links are
+ * aggregated into weighted links between nodes.
+ *
+ * @author agent
+ */
+public class CrawlProcessor {
+
+    private static DynamicLogger logger = new DynamicLogger(CrawlProcessor.class);
+
+    public static final String SOURCE_CRAWL = "CRAWL";
+    public static final String SOURCE_LINK = "LINK";
+
+    private final int precisionLimit;
+    private final Set<String> precisionExceptions;
+
+    // pages by lru, in the order they were found
+    private final Map<String, PageItem> pageItems = new LinkedHashMap<String, PageItem>();
+    // links by source node and target node
+    private final Map<String, Map<String, NodeLink>> nodeLinks = new LinkedHashMap<String, Map<String, NodeLink>>();
+    private int nodeLinkCount = 0;
+    private int linkCount = 0;
+
+    /**
+     * @param precisionLimit number of stems after the head of an lru that its node has
+     * @param precisionExceptions lrus whose pages are nodes at full precision
+     */
+    public CrawlProcessor(int precisionLimit, Collection<String> precisionExceptions) {
+        this.precisionLimit = precisionLimit;
+        this.precisionExceptions = new HashSet<String>(precisionExceptions);
+    }
+
+    /**
+     * Adds crawled pages.
+     *
+     * @param crawledPages crawled pages
+     */
+    public void addAll(Collection<CrawledPage> crawledPages) {
+        for(CrawledPage crawledPage : crawledPages) {
+            add(crawledPage);
+        }
+    }
+
+    /**
+     * Adds a crawled page, the pages it links to and its links.
+     *
+     * @param crawledPage crawled page
+     */
+    public void add(CrawledPage crawledPage) {
+        String lru = LRUUtil.cleanLRU(crawledPage.getLru());
+        String head = LRUUtil.getLRUHead(lru, precisionExceptions);
+        boolean isNode = LRUUtil.isLRUNode(lru, precisionLimit, head);
+        String node = isNode ? lru : LRUUtil.getLRUNode(lru, precisionLimit, head);
+
+        PageItem pageItem = pageItems.get(lru);
+        if(pageItem == null) {
+            pageItem = createPageItem(crawledPage.getId(), crawledPage.getUrl(), lru, crawledPage.getCrawlerTimestamp(),
+                    crawledPage.getDepth(), SOURCE_CRAWL, isNode);
+            if(crawledPage.isSetHttpStatusCode()) {
+                pageItem.setHttpStatusCode(crawledPage.getHttpStatusCode());
+            }
+            pageItem.setErrorCode(crawledPage.getErrorCode());
+            pageItems.put(lru, pageItem);
+        }
+        else {
+            pageItem.getSourceSet().add(SOURCE_CRAWL);
+            pageItem.setDepth(Math.max(0, Math.min(pageItem.getDepth(), crawledPage.getDepth())));
+        }
+
+        if(crawledPage.getLruLinks() == null) {
+            return;
+        }
+        int index = 0;
+        for(String lruLink : crawledPage.getLruLinks()) {
+            lruLink = LRUUtil.cleanLRU(lruLink);
+            String targetHead = LRUUtil.getLRUHead(lruLink, precisionExceptions);
+            boolean isTargetNode = LRUUtil.isLRUNode(lruLink, precisionLimit, targetHead);
+            String targetNode = isTargetNode ? lruLink : LRUUtil.getLRUNode(lruLink, precisionLimit, targetHead);
+
+            PageItem target = pageItems.get(lruLink);
+            if(target == null) {
+                target = createPageItem(crawledPage.getId() + "_" + index, LRUUtil.LRUToURL(lruLink), lruLink,
+                        crawledPage.getCrawlerTimestamp(), crawledPage.getDepth() + 1, SOURCE_LINK, isTargetNode);
+                pageItems.put(lruLink, target);
+            }
+            else {
+                target.getSourceSet().add(SOURCE_LINK);
+            }
+            addNodeLink(node, targetNode);
+            linkCount++;
+            index++;
+        }
+    }
+
+    private PageItem createPageItem(String id, String url, String lru, String crawlerTimestamp, int depth, String source, boolean isNode) {
+        Set<String> sources = new HashSet<String>();
+        sources.add(source);
+        return new PageItem()
+                .setId(id)
+                .setUrl(url)
+                .setLru(lru)
+                .setCrawlerTimestamp(crawlerTimestamp)
+                .setDepth(depth)
+                .setSourceSet(sources)
+                .setIsFullPrecision(precisionExceptions.contains(lru))
+                .setIsNode(isNode)
+                .setMetadataItems(new HashMap<String, Map<String, Set<String>>>());
+    }
+
+    private void addNodeLink(String source, String target) {
+        Map<String, NodeLink> targets = nodeLinks.get(source);
+        if(targets == null) {
+            targets = new HashMap<String, NodeLink>();
+            nodeLinks.put(source, targets);
+        }
+        NodeLink nodeLink = targets.get(target);
+        if(nodeLink == null) {
+            targets.put(target, new NodeLink().setSourceLRU(source).setTargetLRU(target).setWeight(1));
+            nodeLinkCount++;
+        }
+        else {
+            nodeLink.setWeight(nodeLink.getWeight() + 1);
+        }
+    }
+
+    /**
+     * @return pages found, each once
+     */
+    public List<PageItem> getPageItems() {
+        return new ArrayList<PageItem>(pageItems.values());
+    }
+
+    /**
+     * @return links between nodes, weighted by the number of links between their pages
+     */
+    public List<NodeLink> getNodeLinks() {
+        List<NodeLink> result = new ArrayList<NodeLink>(nodeLinkCount);
+        for(Map<String, NodeLink> targets : nodeLinks.values()) {
+            result.addAll(targets.values());
+        }
+        if(logger.isDebugEnabled()) {
+            logger.debug("# " + pageItems.size() + " unique pages, # " + linkCount + " links, # " + nodeLinkCount + " unique links between nodes");
+        }
+        return result;
+    }
+
+    /**
+     * @return number of links added, before aggregation
+     */
+    public int getLinkCount() {
+        return linkCount;
+    }
+}
@@ -4,7 +4,12 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Replaces SLF4J Logger to enable dynamic setting of log level.
+ * Replaces SLF4J Logger to enable dynamic setting of log level. The level is shared by all loggers; each logger logs
+ * under the name of its own class.
+ *
+ * Messages can take {} placeholders, as in SLF4J, filled in only when the message is logged: use them rather than
+ * concatenation on frequent calls, or check isDebugEnabled / isTraceEnabled first. Debug and trace messages start with
+ * the method and line that logged them only if setCallerLocation is on, as finding them walks the stack.
  *
  * @author heikki doeleman
  */
@@ -13,62 +18,141 @@ public class DynamicLogger {
     public enum LogLevel {
         TRACE, DEBUG, INFO, WARNING, ERROR
     }
-    
-    private static Logger logger ;
-    private static LogLevel logLevel = LogLevel.WARNING;
+
+    private static volatile LogLevel logLevel = LogLevel.WARNING;
+    private static volatile boolean callerLocation = false;
+
+    private final Logger logger;
 
     public DynamicLogger(Class clazz, LogLevel logLevel) {
-        DynamicLogger.logger = LoggerFactory.getLogger(clazz);
+        this(clazz);
         DynamicLogger.logLevel = logLevel;
     }
 
     public DynamicLogger(Class clazz) {
-        DynamicLogger.logger = LoggerFactory.getLogger(clazz);
+        this.logger = LoggerFactory.getLogger(clazz);
     }
 
     public static void setLogLevel(String logLevel) {
         DynamicLogger.logLevel = DynamicLogger.LogLevel.valueOf(logLevel.toUpperCase());
     }
 
+    /**
+     * @param callerLocation whether debug and trace messages start with the method and line that logged them
+     */
+    public static void setCallerLocation(boolean callerLocation) {
+        DynamicLogger.callerLocation = callerLocation;
+    }
+
+    private static boolean isEnabled(LogLevel level) {
+        return logLevel.compareTo(level) <= 0;
+    }
+
+    public boolean isTraceEnabled() {
+        return isEnabled(LogLevel.TRACE);
+    }
+
     public boolean isDebugEnabled() {
-        return DynamicLogger.logLevel == LogLevel.TRACE || DynamicLogger.logLevel == LogLevel.DEBUG;
+        return isEnabled(LogLevel.DEBUG);
+    }
+
+    public boolean isInfoEnabled() {
+        return isEnabled(LogLevel.INFO);
     }
 
     public void trace(String message) {
-        if(DynamicLogger.logLevel == LogLevel.TRACE) {
-            StackTraceElement stackTraceElement = Thread.currentThread().getStackTrace()[2];
-            message = stackTraceElement.getMethodName() + ":" +  stackTraceElement.getLineNumber() + " "+ message;
-            logger.trace(message);
+        if(isEnabled(LogLevel.TRACE)) {
+            logger.trace(withCallerLocation(message));
         }
     }
+
+    public void trace(String format, Object argument) {
+        if(isEnabled(LogLevel.TRACE)) {
+            logger.trace(withCallerLocation(format), argument);
+        }
+    }
+
+    public void trace(String format, Object argument1, Object argument2) {
+        if(isEnabled(LogLevel.TRACE)) {
+            logger.trace(withCallerLocation(format), argument1, argument2);
+        }
+    }
+
+    public void trace(String format, Object... arguments) {
+        if(isEnabled(LogLevel.TRACE)) {
+            logger.trace(withCallerLocation(format), arguments);
+        }
+    }
+
     public void debug(String message) {
-        if(DynamicLogger.logLevel == LogLevel.TRACE || DynamicLogger.logLevel == LogLevel.DEBUG) {
-            StackTraceElement stackTraceElement2 = Thread.currentThread().getStackTrace()[2];
-            message = stackTraceElement2.getMethodName() + ":" +  stackTraceElement2.getLineNumber() + " "+ message;
-            logger.debug(message);
+        if(isEnabled(LogLevel.DEBUG)) {
+            logger.debug(withCallerLocation(message));
+        }
+    }
+
+    public void debug(String format, Object argument) {
+        if(isEnabled(LogLevel.DEBUG)) {
+            logger.debug(withCallerLocation(format), argument);
+        }
+    }
+
+    public void debug(String format, Object argument1, Object argument2) {
+        if(isEnabled(LogLevel.DEBUG)) {
+            logger.debug(withCallerLocation(format), argument1, argument2);
+        }
+    }
+
+    public void debug(String format, Object... arguments) {
+        if(isEnabled(LogLevel.DEBUG)) {
+            logger.debug(withCallerLocation(format), arguments);
         }
     }
 
     public void info(String message) {
-        if(DynamicLogger.logLevel == LogLevel.TRACE || DynamicLogger.logLevel == LogLevel.DEBUG ||
-                DynamicLogger.logLevel == LogLevel.INFO) {
+        if(isEnabled(LogLevel.INFO)) {
             logger.info(message);
         }
     }
 
+    public void info(String format, Object argument) {
+        if(isEnabled(LogLevel.INFO)) {
+            logger.info(format, argument);
+        }
+    }
+
+    public void info(String format, Object argument1, Object argument2) {
+        if(isEnabled(LogLevel.INFO)) {
+            logger.info(format, argument1, argument2);
+        }
+    }
+
     public void warn(String message) {
-        if(DynamicLogger.logLevel == LogLevel.TRACE || DynamicLogger.logLevel == LogLevel.DEBUG ||
-                DynamicLogger.logLevel == LogLevel.INFO || DynamicLogger.logLevel == LogLevel.WARNING) {
+        if(isEnabled(LogLevel.WARNING)) {
             logger.warn(message);
         }
     }
 
+    public void warn(String format, Object argument) {
+        if(isEnabled(LogLevel.WARNING)) {
+            logger.warn(format, argument);
+        }
+    }
+
     public void error(String message) {
-        if(DynamicLogger.logLevel == LogLevel.TRACE || DynamicLogger.logLevel == LogLevel.DEBUG ||
-                DynamicLogger.logLevel == LogLevel.INFO || DynamicLogger.logLevel == LogLevel.WARNING ||
-                DynamicLogger.logLevel == LogLevel.ERROR) {
+        if(isEnabled(LogLevel.ERROR)) {
             logger.error(message);
         }
     }
 
+    /**
+     * @return message, after the method and line of the caller of the logging method if caller location is on
+     */
+    private static String withCallerLocation(String message) {
+        if(!callerLocation) {
+            return message;
+        }
+        // 0 is getStackTrace, 1 this method, 2 the logging method, 3 its caller
+        StackTraceElement stackTraceElement = Thread.currentThread().getStackTrace()[3];
+        return stackTraceElement.getMethodName() + ":" + stackTraceElement.getLineNumber() + " " + message;
+    }
 }
@@ -1,9 +1,15 @@
 package fr.sciencespo.medialab.hci.memorystructure.util;
 
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Scanner;
 import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.apache.commons.lang.StringUtils;
 
@@ -19,6 +25,11 @@ public class LRUUtil {
 
 	public static int PRECISION_LIMIT = ThriftServer.readPrecisionLimitFromProperties();
 
+    // empty path stem right after the host
+    private static final Pattern TRAILING_SLASH = Pattern.compile("(h:[^|]*)\\|p:\\|?$");
+    // scheme, port and host stems at the start of an lru
+    private static final Pattern HOST_STEMS = Pattern.compile("(([sth]:[^|]*(\\||$))+)", Pattern.CASE_INSENSITIVE);
+
     public static String getPrecisionLimitNode(String lru) {
         return getLimitedStemsLRU(lru, PRECISION_LIMIT);
     }
@@ -49,6 +60,180 @@ public class LRUUtil {
 	    return n;
 	}
 
+    /**
+     * Removes the last stem of an lru, the same way retrieveWebEntityMatchingLRU walks up to shorter prefixes but
+     * without a regular expression.
+     *
+     * @param lru lru
+     * @return lru without its last stem, or the empty string if it has only one stem
+     */
+    public static String stripLastStem(String lru) {
+        for(int i = lru.length() - 3; i >= 0; i--) {
+            if(lru.charAt(i) == '|' && lru.charAt(i + 2) == ':' && "shpqft".indexOf(lru.charAt(i + 1)) != -1) {
+                return lru.substring(0, i);
+            }
+        }
+        return "";
+    }
+
+    /**
+     * Returns the scheme, port and host stems of an lru, without splitting it.
+     *
+     * @param lru lru
+     * @return lru up to its first path, query or fragment stem
+     */
+    public static String getHostStems(String lru) {
+        for(int i = 0; i + 2 < lru.length(); i++) {
+            if(lru.charAt(i) == '|' && lru.charAt(i + 2) == ':' && "pqf".indexOf(lru.charAt(i + 1)) != -1) {
+                return lru.substring(0, i);
+            }
+        }
+        return lru;
+    }
+
+    /**
+     * Cleans an lru as lib/lru.py cleanLRU does: removes the port stem if it is 80 and a trailing empty path stem
+     * after the host.
+     *
+     * @param lru lru
+     * @return clean lru
+     */
+    public static String cleanLRU(String lru) {
+        List<String> stems = new ArrayList<String>();
+        for(String stem : lru.split("\\|", -1)) {
+            if(!stem.equals("t:80")) {
+                stems.add(stem);
+            }
+        }
+        String clean = StringUtils.join(stems, '|');
+        return TRAILING_SLASH.matcher(clean).replaceFirst("$1");
+    }
+
+    /**
+     * Returns the head of an lru, that its node is counted from: the longest precision exception it starts with, or
+     * else its scheme, port and host stems.
+     *
+     * @param lru lru
+     * @param precisionExceptions precision exceptions
+     * @return head of the lru
+     */
+    public static String getLRUHead(String lru, Collection<String> precisionExceptions) {
+        String head = "";
+        for(String precisionException : precisionExceptions) {
+            if(lru.startsWith(precisionException) && precisionException.length() > head.length()) {
+                head = precisionException;
+            }
+        }
+        if(head.length() > 0) {
+            return head;
+        }
+        Matcher matcher = HOST_STEMS.matcher(lru);
+        return matcher.lookingAt() ? StringUtils.strip(matcher.group(1), "|") : "";
+    }
+
+    /**
+     * Whether an lru has no more stems after its head than the precision limit.
+     *
+     * @param lru lru
+     * @param precisionLimit precision limit
+     * @param head head of the lru, as returned by getLRUHead
+     * @return whether the lru is a node
+     */
+    public static boolean isLRUNode(String lru, int precisionLimit, String head) {
+        return StringUtils.strip(lru.replace(head, ""), "|").split("\\|", -1).length <= precisionLimit;
+    }
+
+    /**
+     * Returns the node of an lru: its head and as many stems after it as the precision limit.
+     *
+     * @param lru lru
+     * @param precisionLimit precision limit
+     * @param head head of the lru, as returned by getLRUHead
+     * @return node lru
+     */
+    public static String getLRUNode(String lru, int precisionLimit, String head) {
+        String[] stems = StringUtils.strip(lru.replace(head, ""), "|").split("\\|", -1);
+        StringBuilder node = new StringBuilder(head);
+        for(int i = 0; i < stems.length && i < precisionLimit; i++) {
+            node.append('|').append(stems[i]);
+        }
+        return node.toString();
+    }
+
+    /**
+     * Converts an lru to an url as lib/lru.py lru_to_url does: unlike revertLRU, it keeps the scheme.
+     *
+     * @param lru lru
+     * @return url
+     */
+    public static String LRUToURL(String lru) {
+        String scheme = null;
+        String port = null;
+        String query = null;
+        String fragment = null;
+        boolean hasPath = false;
+        List<String> hosts = new ArrayList<String>();
+        List<String> paths = new ArrayList<String>();
+        for(String stem : lru.split("\\|", -1)) {
+            int colon = stem.indexOf(':');
+            String type = colon < 0 ? stem : stem.substring(0, colon);
+            String value = colon < 0 ? "" : stem.substring(colon + 1);
+            if(type.equals("s") && scheme == null) {
+                scheme = value;
+            }
+            else if(type.equals("t") && port == null) {
+                port = value;
+            }
+            else if(type.equals("h")) {
+                hosts.add(0, value);
+            }
+            else if(type.equals("p")) {
+                hasPath = true;
+                paths.add(value);
+            }
+            else if(type.equals("q") && query == null) {
+                query = value;
+            }
+            else if(type.equals("f") && fragment == null) {
+                fragment = value;
+            }
+        }
+        StringBuilder url = new StringBuilder();
+        url.append(scheme).append("://").append(StringUtils.join(hosts, '.'));
+        if(StringUtils.isNotEmpty(port) && !port.equals("80") && !port.equals("443")) {
+            url.append(':').append(port);
+        }
+        if(hasPath) {
+            String path = StringUtils.join(paths, '/');
+            url.append('/');
+            if(path.length() > 0) {
+                url.append(unquote(path));
+            }
+        }
+        if(query != null) {
+            url.append('?').append(unquote(query));
+        }
+        if(fragment != null) {
+            url.append('#').append(unquote(fragment));
+        }
+        return url.toString();
+    }
+
+    /**
+     * Decodes an url-encoded stem; stems that are not validly encoded are returned as they are.
+     */
+    private static String unquote(String stem) {
+        try {
+            return URLDecoder.decode(stem, "UTF-8");
+        }
+        catch(UnsupportedEncodingException x) {
+            return stem;
+        }
+        catch(IllegalArgumentException x) {
+            return stem;
+        }
+    }
+
 	public static boolean isPrecisionLimitNode(String lru) {
 	    return lru.split("\\|").length <= PRECISION_LIMIT;
 	}
@@ -83,11 +83,108 @@ struct WebEntityCreationRule {
   4: string lastModificationDate
 }
 
+struct NetworkExport {
+  1: string format,
+  2: string path,
+  3: i64 size,
+  4: i32 nodesCount,
+  5: i32 edgesCount
+}
+
+struct WebEntityRank {
+  1: string webEntityId,
+  2: double pageRank,
+  3: double hubScore,
+  4: double authorityScore
+}
+
+struct WebEntityDegrees {
+  1: string webEntityId,
+  2: i32 inDegree,
+  3: i32 outDegree,
+  4: i64 weightedInDegree,
+  5: i64 weightedOutDegree
+}
+
+struct CrawledPage {
+  1: string id,
+  2: string url,
+  3: string lru,
+  4: string crawlerTimestamp,
+  5: i32 httpStatusCode,
+  6: i32 depth,
+  7: string errorCode,
+  8: list<string> lruLinks
+}
+
+struct IngestResult {
+  1: i32 pageItems,
+  2: i32 nodeLinks,
+  3: i32 webEntities,
+  4: i64 duration
+}
+
 struct PingPong {
   1: string ping,
   2: string pong
 }
 
+/**
+ * Calls of a method since the server started; durations in microseconds, including the time calls wait for a thread.
+ */
+struct MethodMetrics {
+  1: string method,
+  2: i64 calls,
+  3: i64 errors,
+  4: i32 inFlight,
+  5: double callsPerSecond,
+  6: i64 meanMicros,
+  7: i64 p50Micros,
+  8: i64 p90Micros,
+  9: i64 p99Micros,
+  10: i64 maxMicros
+}
+
+/**
+ * Lucene query that took longer than the slow query threshold; durations in microseconds.
+ */
+struct SlowQuery {
+  1: string method,
+  2: string source,
+  3: string query,
+  4: i32 clauses,
+  5: i32 hits,
+  6: i64 searchMicros,
+  7: i64 loadMicros,
+  8: i64 timestamp
+}
+
+struct SegmentStats {
+  1: string name,
+  2: i32 docs,
+  3: i32 deletedDocs,
+  4: i64 sizeInBytes
+}
+
+/**
+ * Statistics of the index: documents by DocType, deleted documents, segments, generations of the readers still open
+ * (the current one and replaced ones that reads still use), writer buffer and size on disk.
+ */
+struct IndexStats {
+  1: i32 numDocs,
+  2: i32 maxDoc,
+  3: i32 deletedDocs,
+  4: double deletedRatio,
+  5: map<string, i32> docsByType,
+  6: list<SegmentStats> segments,
+  7: i64 readerVersion,
+  8: i64 readerGeneration,
+  9: list<i64> openReaderGenerations,
+  10: i64 writerRamBytes,
+  11: i32 writerRamDocs,
+  12: i64 sizeOnDisk
+}
+
 
 # Services
 
@@ -266,6 +363,35 @@ void savePageItems(1:list<PageItem> pageItems) throws (1:MemoryStructureExceptio
  */
 void saveNodeLinks(1:list<NodeLink> nodeLinks) throws (1:MemoryStructureException me),
 
+// known pages
+/**
+ * @param 1 lrus : lrus to look for
+ * @return the lrus of pages in the index, among those given
+ */
+list<string> knownLRUs(1:list<string> lrus) throws (1:MemoryStructureException me),
+
+// ingest a crawl batch
+/**
+ * Indexes pages and nodelinks and creates the webentities of the pages, in a single operation with one commit.
+ * Replaces createCache, indexCache, saveNodeLinks, createWebEntities and deleteCache for a crawl batch.
+ *
+ * @param 1 pageItems : set of PageItem objects
+ * @param 2 nodeLinks : set of NodeLink objects, their weights are added to those of existing nodelinks
+ * @return number of indexed pages, indexed nodelinks and created webentities
+ */
+IngestResult ingestCrawlBatch(1:list<PageItem> pageItems, 2:list<NodeLink> nodeLinks) throws (1:MemoryStructureException me),
+
+// ingest raw crawl results
+/**
+ * Ingests pages as crawled: cleans their lrus and those of their links, computes their nodes with the precision limit
+ * and the precision exceptions, and indexes the pages, the linked pages and the links between nodes as
+ * ingestCrawlBatch does.
+ *
+ * @param 1 crawledPages : set of CrawledPage objects
+ * @return number of indexed pages, indexed nodelinks and created webentities
+ */
+IngestResult ingestCrawledPages(1:list<CrawledPage> crawledPages) throws (1:MemoryStructureException me),
+
 /**
  * @param 1 lru to search for
  * @return web entity whose lruprefixes contain this LRU and not contained in any wubwebentity
@@ -312,5 +438,60 @@ list<WebEntityLink> findWebEntityLinksBySource(1:string id) throws (1:MemoryStru
  * @param 1 id: id of web entity
  * @return webentities whose target id are this
  */
-list<WebEntityLink> findWebEntityLinksByTarget(1:string id) throws (1:MemoryStructureException me)
+list<WebEntityLink> findWebEntityLinksByTarget(1:string id) throws (1:MemoryStructureException me),
+
+// export webentities network
+/**
+ * Writes the webentities network to a file on the memory structure's host, streamed from the index.
+ *
+ * @param 1 format : "gexf" or "graphml"
+ * @param 2 path : file to write, relative to the memory structure's export directory (export.path in config.json);
+ *   paths outside of it are refused. If empty, webentities_network.<format>
+ * @return format, absolute path, size in bytes and numbers of nodes and edges of the written file
+ */
+NetworkExport exportWebEntitiesNetwork(1:string format, 2:string path) throws (1:MemoryStructureException me),
+
+// webentities ranking
+/**
+ * Weighted PageRank and HITS hub and authority scores in the webentity links graph, links from a webentity to
+ * itself excluded.
+ *
+ * @param 1 max : maximum number of webentities to return, all if 0
+ * @return webentities scores by decreasing PageRank
+ */
+list<WebEntityRank> getWebEntityRanking(1:i32 max) throws (1:MemoryStructureException me),
+
+// webentities degrees
+/**
+ * In- and out-degrees, plain and weighted, in the webentity links graph, links from a webentity to itself excluded.
+ *
+ * @param 1 webEntityIds : ids of webentities, all webentities if empty
+ * @return degrees of these webentities
+ */
+list<WebEntityDegrees> getWebEntityDegrees(1:list<string> webEntityIds) throws (1:MemoryStructureException me),
+
+// metrics
+/**
+ * Calls, errors, calls in progress, throughput and latency percentiles of each method called since the server started.
+ *
+ * @return metrics by method name
+ */
+list<MethodMetrics> getMetrics(),
+
+// slow queries
+/**
+ * Last Lucene queries that took longer than the slow query threshold, with the service call and LRUIndex method that
+ * ran them, their number of clauses and hits, and the time to search them and to load the documents found.
+ *
+ * @return slow queries, the most recent first
+ */
+list<SlowQuery> getSlowQueries(),
+
+// index statistics
+/**
+ * Statistics of the index, computed from the metadata of its reader and writer without loading documents.
+ *
+ * @return statistics of the index
+ */
+IndexStats getIndexStats() throws (1:MemoryStructureException me)
 }
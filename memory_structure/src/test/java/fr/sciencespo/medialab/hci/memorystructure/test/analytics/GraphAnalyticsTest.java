@@ -0,0 +1,164 @@
+package fr.sciencespo.medialab.hci.memorystructure.test.analytics;
+
+import fr.sciencespo.medialab.hci.memorystructure.analytics.AnalyticsException;
+import fr.sciencespo.medialab.hci.memorystructure.analytics.GraphAnalytics;
+import fr.sciencespo.medialab.hci.memorystructure.analytics.GraphScores;
+import fr.sciencespo.medialab.hci.memorystructure.analytics.LinkGraph;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.Random;
+
+/**
+ * Test GraphAnalytics.
+ *
+ * @author agent
+ */
+public class GraphAnalyticsTest extends TestCase {
+
+    private static final double EPSILON = 1.0e-6;
+
+    private GraphAnalytics graphAnalytics;
+
+    public void setUp() {
+        graphAnalytics = new GraphAnalytics(4);
+    }
+
+    public void tearDown() {
+        graphAnalytics.shutdown();
+    }
+
+    /**
+     * Tests degrees, and that links from a webentity to itself are ignored.
+     */
+    public void testDegrees() {
+        try {
+            LinkGraph.Builder builder = new LinkGraph.Builder();
+            builder.addEdge("a", "b", 3);
+            builder.addEdge("a", "c", 1);
+            builder.addEdge("c", "b", 2);
+            builder.addEdge("b", "b", 10);
+            builder.addNode("lonely");
+            GraphScores scores = graphAnalytics.compute(builder.build(1));
+
+            assertEquals("Unexpected # of webentities", 4, scores.size());
+            int b = scores.positionOf("b");
+            assertEquals("Unexpected in-degree", 2, scores.getInDegree(b));
+            assertEquals("Unexpected out-degree", 0, scores.getOutDegree(b));
+            assertEquals("Unexpected weighted in-degree", 5, scores.getWeightedInDegree(b));
+            int a = scores.positionOf("a");
+            assertEquals("Unexpected out-degree", 2, scores.getOutDegree(a));
+            assertEquals("Unexpected weighted out-degree", 4, scores.getWeightedOutDegree(a));
+            assertEquals("Unexpected in-degree", 0, scores.getInDegree(scores.positionOf("lonely")));
+            assertEquals("Unexpected position of unknown webentity", -1, scores.positionOf("unknown"));
+        }
+        catch(AnalyticsException x) {
+            fail(x.getMessage());
+        }
+    }
+
+    /**
+     * Tests PageRank on a cycle, where all webentities have the same rank, and on a star, where the center ranks first.
+     */
+    public void testPageRank() {
+        try {
+            LinkGraph.Builder cycle = new LinkGraph.Builder();
+            cycle.addEdge("a", "b", 1);
+            cycle.addEdge("b", "c", 1);
+            cycle.addEdge("c", "a", 1);
+            GraphScores scores = graphAnalytics.compute(cycle.build(1));
+            for(int i = 0; i < scores.size(); i++) {
+                assertEquals("Unexpected PageRank", 1.0 / 3, scores.getPageRank(i), EPSILON);
+            }
+
+            LinkGraph.Builder star = new LinkGraph.Builder();
+            star.addEdge("a", "center", 1);
+            star.addEdge("b", "center", 1);
+            star.addEdge("c", "center", 5);
+            star.addEdge("center", "a", 1);
+            scores = graphAnalytics.compute(star.build(1));
+            assertEquals("Unexpected best ranked webentity", "center", scores.getId(scores.getPageRankOrder()[0]));
+            assertEquals("PageRank does not sum to 1", 1.0, sumPageRank(scores), EPSILON);
+        }
+        catch(AnalyticsException x) {
+            fail(x.getMessage());
+        }
+    }
+
+    /**
+     * Tests HITS: webentities linking to the authority are hubs.
+     */
+    public void testHits() {
+        try {
+            LinkGraph.Builder builder = new LinkGraph.Builder();
+            builder.addEdge("hub1", "authority", 1);
+            builder.addEdge("hub2", "authority", 1);
+            builder.addEdge("hub1", "other", 1);
+            GraphScores scores = graphAnalytics.compute(builder.build(1));
+            int authority = scores.positionOf("authority");
+            int other = scores.positionOf("other");
+            int hub1 = scores.positionOf("hub1");
+            int hub2 = scores.positionOf("hub2");
+            assertTrue("Unexpected authority scores", scores.getAuthority(authority) > scores.getAuthority(other));
+            assertTrue("Unexpected hub scores", scores.getHub(hub1) > scores.getHub(hub2));
+            assertEquals("Unexpected hub score", 0.0, scores.getHub(authority), EPSILON);
+        }
+        catch(AnalyticsException x) {
+            fail(x.getMessage());
+        }
+    }
+
+    /**
+     * Tests that a graph large enough to be split over several threads gives the same scores as a single thread.
+     */
+    public void testParallelScoresEqualSequentialScores() {
+        GraphAnalytics sequential = new GraphAnalytics(1);
+        try {
+            Random random = new Random(42);
+            LinkGraph.Builder builder = new LinkGraph.Builder();
+            for(int i = 0; i < 20000; i++) {
+                builder.addEdge("we" + random.nextInt(5000), "we" + random.nextInt(5000), 1 + random.nextInt(10));
+            }
+            LinkGraph graph = builder.build(1);
+            GraphScores parallelScores = graphAnalytics.compute(graph);
+            GraphScores sequentialScores = sequential.compute(graph);
+            for(int i = 0; i < graph.getNodeCount(); i++) {
+                assertEquals("Unexpected in-degree", sequentialScores.getInDegree(i), parallelScores.getInDegree(i));
+                assertEquals("Unexpected PageRank", sequentialScores.getPageRank(i), parallelScores.getPageRank(i), EPSILON);
+                assertEquals("Unexpected authority", sequentialScores.getAuthority(i), parallelScores.getAuthority(i), EPSILON);
+            }
+            assertEquals("PageRank does not sum to 1", 1.0, sumPageRank(parallelScores), EPSILON);
+        }
+        catch(AnalyticsException x) {
+            fail(x.getMessage());
+        }
+        finally {
+            sequential.shutdown();
+        }
+    }
+
+    private double sumPageRank(GraphScores scores) {
+        double sum = 0;
+        for(int i = 0; i < scores.size(); i++) {
+            sum += scores.getPageRank(i);
+        }
+        return sum;
+    }
+
+    /**
+     * Creates the test case.
+     *
+     * @param testName name of the test case
+     */
+    public GraphAnalyticsTest(String testName) {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite( GraphAnalyticsTest.class );
+    }
+}
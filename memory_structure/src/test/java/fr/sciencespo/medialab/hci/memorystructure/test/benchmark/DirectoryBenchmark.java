@@ -0,0 +1,202 @@
+package fr.sciencespo.medialab.hci.memorystructure.test.benchmark;
+
+import fr.sciencespo.medialab.hci.memorystructure.index.DirectoryFactory;
+import fr.sciencespo.medialab.hci.memorystructure.index.IndexException;
+import fr.sciencespo.medialab.hci.memorystructure.index.LRUIndex;
+import fr.sciencespo.medialab.hci.memorystructure.util.LatencyHistogram;
+import org.apache.commons.io.FileUtils;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.store.FSDirectory;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compares the Lucene directories DirectoryFactory can open on an index of a synthetic corpus: for each one, random
+ * stored field loads and random term lookups of LRUs, with their mean and 99th percentile latency and the garbage
+ * collections they caused. Not a test: run it with the test classpath, e.g.
+ *
+ *   java -Xmx1g -cp target/classes:target/test-classes:&lt;dependencies&gt; \
+ *       fr.sciencespo.medialab.hci.memorystructure.test.benchmark.DirectoryBenchmark pages=200000 lookups=100000
+ *
+ * Parameters are key=value pairs: path, pages, hosts, lookups, types (comma-separated, default mmap,nio,simple), chunkMB
+ * (mmap chunk size, 0 for the default), seed and runs. The index at path is overwritten. The first run also warms up the
+ * JIT, and all directories read the same files, so after it they are all in the page cache; to compare cold reads,
+ * drop the caches and run one type at a time.
+ *
+ * @author agent
+ */
+public class DirectoryBenchmark {
+
+    public static void main(String[] args) throws IndexException, IOException {
+        Map<String, String> parameters = new HashMap<String, String>();
+        for(String arg : args) {
+            parameters.put(arg.substring(0, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        int pages = intParameter(parameters, "pages", 50000);
+        int lookups = intParameter(parameters, "lookups", 50000);
+        int chunkMB = intParameter(parameters, "chunkMB", 0);
+        long seed = Long.parseLong(stringParameter(parameters, "seed", "42"));
+        int runs = intParameter(parameters, "runs", 2);
+        String[] types = stringParameter(parameters, "types", "mmap,nio,simple").split(",");
+        File path = new File(stringParameter(parameters, "path", System.getProperty("java.io.tmpdir") + File.separator + "directory-benchmark"));
+
+        FileUtils.deleteQuietly(path);
+        SyntheticCorpus corpus = new SyntheticCorpus(pages, intParameter(parameters, "hosts", 200), 100, 2, 5, 0.7, 1.0, seed);
+        LRUIndex lruIndex = LRUIndex.getInstance(path.getAbsolutePath(), IndexWriterConfig.OpenMode.CREATE);
+        System.out.println("corpus: " + corpus);
+        long start = System.currentTimeMillis();
+        corpus.index(lruIndex);
+        lruIndex.close();
+        System.out.println("indexed in " + (System.currentTimeMillis() - start) + " ms, index of " + FileUtils.sizeOf(path) / (1024 * 1024) + " MB at " + path.getAbsolutePath());
+
+        System.out.println(String.format("%-8s %4s %-14s %10s %10s %10s %6s %8s", "type", "run", "operation", "ops/s", "mean (us)", "p99 (us)", "GCs", "GC (ms)"));
+        for(int run = 1; run <= runs; run++) {
+            for(String type : types) {
+                DirectoryFactory directoryFactory = new DirectoryFactory().setType(type).setMaxChunkSizeMB(chunkMB);
+                FSDirectory directory = directoryFactory.open(path);
+                IndexReader indexReader = IndexReader.open(directory);
+                try {
+                    List<Term> terms = sampleTerms(indexReader, lookups, new Random(seed));
+                    measure(type, run, "stored field", new StoredFieldLoad(indexReader, new Random(seed)), lookups);
+                    measure(type, run, "term lookup", new TermLookup(indexReader, terms, new Random(seed)), lookups);
+                }
+                finally {
+                    indexReader.close();
+                    directory.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * A random read of the index.
+     */
+    private interface Operation {
+        void run() throws IOException;
+    }
+
+    private static class StoredFieldLoad implements Operation {
+        private final IndexReader indexReader;
+        private final Random random;
+
+        StoredFieldLoad(IndexReader indexReader, Random random) {
+            this.indexReader = indexReader;
+            this.random = random;
+        }
+
+        public void run() throws IOException {
+            indexReader.document(random.nextInt(indexReader.maxDoc()));
+        }
+    }
+
+    private static class TermLookup implements Operation {
+        private final IndexReader indexReader;
+        private final List<Term> terms;
+        private final Random random;
+
+        TermLookup(IndexReader indexReader, List<Term> terms, Random random) {
+            this.indexReader = indexReader;
+            this.terms = terms;
+            this.random = random;
+        }
+
+        public void run() throws IOException {
+            TermDocs termDocs = indexReader.termDocs(terms.get(random.nextInt(terms.size())));
+            try {
+                while(termDocs.next()) {
+                    termDocs.doc();
+                }
+            }
+            finally {
+                termDocs.close();
+            }
+        }
+    }
+
+    private static void measure(String type, int run, String name, Operation operation, int lookups) throws IOException {
+        System.gc();
+        long collections = gcCount();
+        long gcTime = gcTime();
+        LatencyHistogram histogram = new LatencyHistogram();
+        long start = System.nanoTime();
+        for(int i = 0; i < lookups; i++) {
+            long operationStart = System.nanoTime();
+            operation.run();
+            histogram.record((System.nanoTime() - operationStart) / 1000);
+        }
+        long time = System.nanoTime() - start;
+        System.out.println(String.format("%-8s %4d %-14s %10d %10d %10d %6d %8d", type, run, name,
+                (long) (lookups / (time / 1000000000.0)), histogram.getMean(), histogram.getPercentile(99),
+                gcCount() - collections, gcTime() - gcTime));
+    }
+
+    /**
+     * @return LRU terms picked at random among those of the index
+     */
+    private static List<Term> sampleTerms(IndexReader indexReader, int count, Random random) throws IOException {
+        List<Term> terms = new ArrayList<Term>();
+        TermEnum termEnum = indexReader.terms(new Term("LRU", ""));
+        try {
+            int seen = 0;
+            do {
+                Term term = termEnum.term();
+                if(term == null || !"LRU".equals(term.field())) {
+                    break;
+                }
+                // reservoir sampling
+                if(terms.size() < count) {
+                    terms.add(term);
+                }
+                else {
+                    int i = random.nextInt(seen + 1);
+                    if(i < count) {
+                        terms.set(i, term);
+                    }
+                }
+                seen++;
+            }
+            while(termEnum.next());
+        }
+        finally {
+            termEnum.close();
+        }
+        return terms;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += gc.getCollectionCount();
+        }
+        return count;
+    }
+
+    private static long gcTime() {
+        long time = 0;
+        for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += gc.getCollectionTime();
+        }
+        return time;
+    }
+
+    private static String stringParameter(Map<String, String> parameters, String name, String defaultValue) {
+        String value = parameters.get(name);
+        return value == null ? defaultValue : value;
+    }
+
+    private static int intParameter(Map<String, String> parameters, String name, int defaultValue) {
+        return Integer.parseInt(stringParameter(parameters, name, String.valueOf(defaultValue)));
+    }
+}
@@ -0,0 +1,181 @@
+package fr.sciencespo.medialab.hci.memorystructure.test.benchmark;
+
+import fr.sciencespo.medialab.hci.memorystructure.index.IndexException;
+import fr.sciencespo.medialab.hci.memorystructure.index.LRUIndex;
+import fr.sciencespo.medialab.hci.memorystructure.thrift.NodeLink;
+import fr.sciencespo.medialab.hci.memorystructure.thrift.PageItem;
+import fr.sciencespo.medialab.hci.memorystructure.thrift.WebEntity;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Reproducible random corpus of pages, webentities and nodelinks. Pages are spread evenly over hosts, in a tree of
+ * directories of the given depth. Each host is a webentity; sub-webentities are directories of random hosts. Each page
+ * links to between 0 and twice the mean number of pages; a link stays within its host with the given ratio, otherwise
+ * its target host follows a Zipf distribution, so a few hosts receive most links.
+ *
+ * @author agent
+ */
+public class SyntheticCorpus {
+
+    // number of subdirectories of each directory
+    private static final int FANOUT = 4;
+
+    private static final int BATCH_SIZE = 10000;
+
+    private final int pages;
+    private final int hosts;
+    private final int subWebEntities;
+    private final int depth;
+    private final int linksPerPage;
+    private final double internalRatio;
+    private final double skew;
+    private final long seed;
+
+    /**
+     * @param pages number of pages
+     * @param hosts number of hosts, each one a webentity
+     * @param subWebEntities number of sub-webentities
+     * @param depth depth of the directories under each host, and maximum depth of sub-webentities
+     * @param linksPerPage mean number of links per page
+     * @param internalRatio ratio of links within the same host
+     * @param skew exponent of the Zipf distribution of link targets over hosts, 0 for uniform
+     * @param seed random seed
+     */
+    public SyntheticCorpus(int pages, int hosts, int subWebEntities, int depth, int linksPerPage, double internalRatio, double skew, long seed) {
+        this.pages = pages;
+        this.hosts = hosts;
+        this.subWebEntities = subWebEntities;
+        this.depth = depth;
+        this.linksPerPage = linksPerPage;
+        this.internalRatio = internalRatio;
+        this.skew = skew;
+        this.seed = seed;
+    }
+
+    private String hostLRU(int host) {
+        return "s:http|h:com|h:host" + host;
+    }
+
+    /**
+     * Page i is on host i % hosts, in the directory given by the digits of i / hosts in base FANOUT.
+     */
+    private String pageLRU(int page) {
+        StringBuilder lru = new StringBuilder(hostLRU(page % hosts));
+        int position = page / hosts;
+        for(int level = 0; level < depth; level++) {
+            lru.append("|p:d").append(position % FANOUT);
+            position /= FANOUT;
+        }
+        return lru.append("|p:page").append(page).toString();
+    }
+
+    List<PageItem> createPageItems() {
+        List<PageItem> pageItems = new ArrayList<PageItem>(pages);
+        for(int page = 0; page < pages; page++) {
+            pageItems.add(new PageItem().setLru(pageLRU(page)));
+        }
+        return pageItems;
+    }
+
+    List<WebEntity> createWebEntities() {
+        Random random = new Random(seed);
+        List<WebEntity> webEntities = new ArrayList<WebEntity>();
+        for(int host = 0; host < hosts; host++) {
+            webEntities.add(newWebEntity("host" + host, hostLRU(host)));
+        }
+        Set<String> prefixes = new HashSet<String>();
+        for(int i = 0; i < subWebEntities && depth > 0; i++) {
+            StringBuilder prefix = new StringBuilder(hostLRU(random.nextInt(hosts)));
+            int level = 1 + random.nextInt(depth);
+            for(int l = 0; l < level; l++) {
+                prefix.append("|p:d").append(random.nextInt(FANOUT));
+            }
+            if(prefixes.add(prefix.toString())) {
+                webEntities.add(newWebEntity("sub" + i, prefix.toString()));
+            }
+        }
+        return webEntities;
+    }
+
+    private WebEntity newWebEntity(String name, String prefix) {
+        Set<String> lrus = new HashSet<String>();
+        lrus.add(prefix);
+        return new WebEntity().setName(name).setLRUSet(lrus);
+    }
+
+    List<NodeLink> createNodeLinks() {
+        Random random = new Random(seed + 1);
+        double[] hostWeights = new double[hosts];
+        double total = 0;
+        for(int host = 0; host < hosts; host++) {
+            total += 1 / Math.pow(host + 1, skew);
+            hostWeights[host] = total;
+        }
+        Map<String, NodeLink> nodeLinks = new LinkedHashMap<String, NodeLink>();
+        for(int source = 0; source < pages; source++) {
+            int links = random.nextInt(2 * linksPerPage + 1);
+            for(int i = 0; i < links; i++) {
+                int host;
+                if(random.nextDouble() < internalRatio) {
+                    host = source % hosts;
+                }
+                else {
+                    host = Arrays.binarySearch(hostWeights, random.nextDouble() * total);
+                    host = host < 0 ? Math.min(-host - 1, hosts - 1) : host;
+                }
+                int pagesOnHost = (pages - host + hosts - 1) / hosts;
+                if(pagesOnHost == 0) {
+                    continue;
+                }
+                int target = host + hosts * random.nextInt(pagesOnHost);
+                String key = source + " " + target;
+                NodeLink nodeLink = nodeLinks.get(key);
+                if(nodeLink == null) {
+                    nodeLinks.put(key, new NodeLink().setSourceLRU(pageLRU(source)).setTargetLRU(pageLRU(target)).setWeight(1));
+                }
+                else {
+                    nodeLink.setWeight(nodeLink.getWeight() + 1);
+                }
+            }
+        }
+        return new ArrayList<NodeLink>(nodeLinks.values());
+    }
+
+    /**
+     * Indexes pages, webentities and nodelinks.
+     *
+     * @param lruIndex index
+     * @return number of nodelinks
+     * @throws IndexException hmm
+     */
+    public int index(LRUIndex lruIndex) throws IndexException {
+        batchIndex(lruIndex, new ArrayList<Object>(createPageItems()));
+        List<WebEntity> webEntities = createWebEntities();
+        for(int i = 0; i < webEntities.size(); i++) {
+            lruIndex.indexWebEntity(webEntities.get(i), false, i == webEntities.size() - 1);
+        }
+        List<NodeLink> nodeLinks = createNodeLinks();
+        batchIndex(lruIndex, new ArrayList<Object>(nodeLinks));
+        return nodeLinks.size();
+    }
+
+    private void batchIndex(LRUIndex lruIndex, List<Object> objects) throws IndexException {
+        for(int from = 0; from < objects.size(); from += BATCH_SIZE) {
+            lruIndex.batchIndex(objects.subList(from, Math.min(objects.size(), from + BATCH_SIZE)));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return pages + " pages, " + hosts + " hosts, " + subWebEntities + " sub-webentities, depth " + depth + ", " +
+                linksPerPage + " links per page, internal ratio " + internalRatio + ", skew " + skew + ", seed " + seed;
+    }
+}
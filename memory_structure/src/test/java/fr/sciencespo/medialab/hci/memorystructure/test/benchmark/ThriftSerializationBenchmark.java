@@ -0,0 +1,180 @@
+package fr.sciencespo.medialab.hci.memorystructure.test.benchmark;
+
+import fr.sciencespo.medialab.hci.memorystructure.thrift.PageItem;
+import fr.sciencespo.medialab.hci.memorystructure.thrift.ThriftServer;
+import fr.sciencespo.medialab.hci.memorystructure.thrift.WebEntity;
+import org.apache.thrift.TBase;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TField;
+import org.apache.thrift.protocol.TList;
+import org.apache.thrift.protocol.TMessage;
+import org.apache.thrift.protocol.TMessageType;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolFactory;
+import org.apache.thrift.protocol.TStruct;
+import org.apache.thrift.protocol.TType;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TMemoryBuffer;
+import org.apache.thrift.transport.TMemoryInputTransport;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares the Thrift protocols and transports ThriftServer can use on typical payloads: the pageItems of createCache,
+ * and the results of getWebEntities and getNodeLinks, taken from a synthetic corpus. For each payload, protocol and
+ * transport it reports the bytes on the wire, including the frame, and the time to write and to read a message. Not a
+ * test: run it with the test classpath, e.g.
+ *
+ *   java -cp target/classes:target/test-classes:&lt;dependencies&gt; \
+ *       fr.sciencespo.medialab.hci.memorystructure.test.benchmark.ThriftSerializationBenchmark pages=100000
+ *
+ * Parameters are key=value pairs, as for the Thrift server: pages, hosts, subWebEntities, depth, linksPerPage, seed
+ * and runs.
+ *
+ * @author agent
+ */
+public class ThriftSerializationBenchmark {
+
+    private static final String[] PROTOCOLS = { "binary", "compact" };
+    private static final String[] TRANSPORTS = { "framed", "zlib" };
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> parameters = new HashMap<String, String>();
+        for(String arg : args) {
+            parameters.put(arg.substring(0, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        SyntheticCorpus corpus = new SyntheticCorpus(
+                intParameter(parameters, "pages", 20000),
+                intParameter(parameters, "hosts", 200),
+                intParameter(parameters, "subWebEntities", 100),
+                intParameter(parameters, "depth", 2),
+                intParameter(parameters, "linksPerPage", 5),
+                0.7, 1.0,
+                Long.parseLong(stringParameter(parameters, "seed", "42")));
+        int runs = intParameter(parameters, "runs", 5);
+        System.out.println("corpus: " + corpus);
+
+        Map<String, List<? extends TBase>> payloads = new LinkedHashMap<String, List<? extends TBase>>();
+        payloads.put("createCache", crawledPageItems(corpus.createPageItems()));
+        List<WebEntity> webEntities = corpus.createWebEntities();
+        for(int i = 0; i < webEntities.size(); i++) {
+            webEntities.get(i).setId("webentity" + i).setHomepage(webEntities.get(i).getLRUSet().iterator().next())
+                    .setStatus("DISCOVERED").setCreationDate("1340000000000").setLastModificationDate("1340000000000");
+        }
+        payloads.put("getWebEntities", webEntities);
+        payloads.put("getNodeLinks", corpus.createNodeLinks());
+
+        System.out.println(String.format("%-15s %8s %-8s %-9s %12s %8s %11s %10s", "payload", "objects", "protocol", "transport", "bytes", "ratio", "write (ms)", "read (ms)"));
+        for(Map.Entry<String, List<? extends TBase>> payload : payloads.entrySet()) {
+            long reference = 0;
+            for(String protocol : PROTOCOLS) {
+                for(String transport : TRANSPORTS) {
+                    TProtocolFactory protocolFactory = ThriftServer.createProtocolFactory(protocol, transport);
+                    byte[] message = null;
+                    long writeTime = Long.MAX_VALUE;
+                    long readTime = Long.MAX_VALUE;
+                    // best of the runs, the first ones warm up the JIT
+                    for(int run = 0; run < runs; run++) {
+                        long start = System.nanoTime();
+                        message = write(protocolFactory, payload.getKey(), payload.getValue());
+                        writeTime = Math.min(writeTime, System.nanoTime() - start);
+                        start = System.nanoTime();
+                        int read = read(protocolFactory, message, payload.getValue().get(0).getClass());
+                        readTime = Math.min(readTime, System.nanoTime() - start);
+                        if(read != payload.getValue().size()) {
+                            throw new IllegalStateException("read # " + read + " objects instead of # " + payload.getValue().size());
+                        }
+                    }
+                    if(reference == 0) {
+                        reference = message.length;
+                    }
+                    System.out.println(String.format("%-15s %8d %-8s %-9s %12d %8.2f %11.1f %10.1f", payload.getKey(),
+                            payload.getValue().size(), protocol, transport, message.length, (double) message.length / reference,
+                            writeTime / 1000000.0, readTime / 1000000.0));
+                }
+            }
+        }
+    }
+
+    /**
+     * Gives pageItems the fields a crawl sets.
+     */
+    private static List<PageItem> crawledPageItems(List<PageItem> pageItems) {
+        for(int i = 0; i < pageItems.size(); i++) {
+            PageItem pageItem = pageItems.get(i);
+            String[] stems = pageItem.getLru().split("\\|");
+            StringBuilder url = new StringBuilder("http://").append(stems[2].substring(2)).append('.').append(stems[1].substring(2));
+            for(int s = 3; s < stems.length; s++) {
+                url.append('/').append(stems[s].substring(2));
+            }
+            pageItem.setId(String.valueOf(i)).setUrl(url.toString()).setCrawlerTimestamp(String.valueOf(1340000000000L + i))
+                    .setHttpStatusCode(200).setDepth(i % 3).setIsNode(false).setIsFullPrecision(false)
+                    .setSourceSet(new HashSet<String>(Arrays.asList(i % 2 == 0 ? "CRAWL" : "LINK")));
+        }
+        return pageItems;
+    }
+
+    /**
+     * Writes a list as a service call result, in a frame.
+     *
+     * @return bytes on the wire
+     */
+    private static byte[] write(TProtocolFactory protocolFactory, String method, List<? extends TBase> objects) throws TException {
+        TMemoryBuffer buffer = new TMemoryBuffer(1024 * 1024);
+        TProtocol protocol = protocolFactory.getProtocol(new TFramedTransport(buffer));
+        protocol.writeMessageBegin(new TMessage(method, TMessageType.REPLY, 1));
+        protocol.writeStructBegin(new TStruct(method + "_result"));
+        protocol.writeFieldBegin(new TField("success", TType.LIST, (short) 0));
+        protocol.writeListBegin(new TList(TType.STRUCT, objects.size()));
+        for(TBase object : objects) {
+            object.write(protocol);
+        }
+        protocol.writeListEnd();
+        protocol.writeFieldEnd();
+        protocol.writeFieldStop();
+        protocol.writeStructEnd();
+        protocol.writeMessageEnd();
+        protocol.getTransport().flush();
+        return Arrays.copyOf(buffer.getArray(), buffer.length());
+    }
+
+    /**
+     * Reads a list written by write.
+     *
+     * @return number of objects read
+     */
+    private static int read(TProtocolFactory protocolFactory, byte[] message, Class<? extends TBase> type) throws Exception {
+        TProtocol protocol = protocolFactory.getProtocol(new TFramedTransport(new TMemoryInputTransport(message)));
+        protocol.readMessageBegin();
+        protocol.readStructBegin();
+        protocol.readFieldBegin();
+        TList list = protocol.readListBegin();
+        List<TBase> objects = new ArrayList<TBase>(list.size);
+        for(int i = 0; i < list.size; i++) {
+            TBase object = type.newInstance();
+            object.read(protocol);
+            objects.add(object);
+        }
+        protocol.readListEnd();
+        protocol.readFieldEnd();
+        protocol.readFieldBegin();
+        protocol.readStructEnd();
+        protocol.readMessageEnd();
+        return objects.size();
+    }
+
+    private static String stringParameter(Map<String, String> parameters, String name, String defaultValue) {
+        String value = parameters.get(name);
+        return value == null ? defaultValue : value;
+    }
+
+    private static int intParameter(Map<String, String> parameters, String name, int defaultValue) {
+        return Integer.parseInt(stringParameter(parameters, name, String.valueOf(defaultValue)));
+    }
+}
@@ -0,0 +1,183 @@
+package fr.sciencespo.medialab.hci.memorystructure.test.benchmark;
+
+import fr.sciencespo.medialab.hci.memorystructure.index.IndexException;
+import fr.sciencespo.medialab.hci.memorystructure.index.LRUIndex;
+import fr.sciencespo.medialab.hci.memorystructure.thrift.WebEntityLink;
+import org.apache.commons.io.FileUtils;
+import org.apache.lucene.index.IndexWriterConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares the WebEntityLink generation strategies of LRUIndex on a synthetic corpus. For each strategy it reports
+ * wall time, peak heap, the number of Lucene queries issued, and whether it generates the same links as the first
+ * strategy. Not a test: run it with the test classpath, e.g.
+ *
+ *   java -Xmx2g -cp target/classes:target/test-classes:&lt;dependencies&gt; \
+ *       fr.sciencespo.medialab.hci.memorystructure.test.benchmark.WebEntityLinksBenchmark pages=100000 hosts=500
+ *
+ * Parameters are key=value pairs, as for the Thrift server: path, pages, hosts, subWebEntities, depth, linksPerPage,
+ * internalRatio, skew, seed and runs. The index at path is overwritten.
+ *
+ * @author agent
+ */
+public class WebEntityLinksBenchmark {
+
+    /**
+     * A way to generate webentity links. To benchmark a new strategy, add it to STRATEGIES.
+     */
+    public interface Strategy {
+        String getName();
+        List<WebEntityLink> generate(LRUIndex lruIndex) throws IndexException;
+    }
+
+    public static final List<Strategy> STRATEGIES = new ArrayList<Strategy>();
+    static {
+        STRATEGIES.add(new Strategy() {
+            public String getName() {
+                return "viaMap";
+            }
+            public List<WebEntityLink> generate(LRUIndex lruIndex) throws IndexException {
+                return lruIndex.generateWebEntityLinksViaMap();
+            }
+        });
+        STRATEGIES.add(new Strategy() {
+            public String getName() {
+                return "viaWENL";
+            }
+            public List<WebEntityLink> generate(LRUIndex lruIndex) throws IndexException {
+                return lruIndex.generateWebEntityLinksviaWENL();
+            }
+        });
+        STRATEGIES.add(new Strategy() {
+            public String getName() {
+                return "old";
+            }
+            public List<WebEntityLink> generate(LRUIndex lruIndex) throws IndexException {
+                return lruIndex.generateWebEntityLinksOld();
+            }
+        });
+    }
+
+    public static void main(String[] args) throws IndexException, IOException {
+        Map<String, String> parameters = new HashMap<String, String>();
+        for(String arg : args) {
+            parameters.put(arg.substring(0, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        SyntheticCorpus corpus = new SyntheticCorpus(
+                intParameter(parameters, "pages", 20000),
+                intParameter(parameters, "hosts", 200),
+                intParameter(parameters, "subWebEntities", 100),
+                intParameter(parameters, "depth", 2),
+                intParameter(parameters, "linksPerPage", 5),
+                Double.parseDouble(stringParameter(parameters, "internalRatio", "0.7")),
+                Double.parseDouble(stringParameter(parameters, "skew", "1.0")),
+                Long.parseLong(stringParameter(parameters, "seed", "42")));
+        int runs = intParameter(parameters, "runs", 1);
+        File path = new File(stringParameter(parameters, "path", System.getProperty("java.io.tmpdir") + File.separator + "webentitylinks-benchmark"));
+
+        FileUtils.deleteQuietly(path);
+        LRUIndex lruIndex = LRUIndex.getInstance(path.getAbsolutePath(), IndexWriterConfig.OpenMode.CREATE);
+        System.out.println("corpus: " + corpus);
+        long start = System.currentTimeMillis();
+        int nodeLinks = corpus.index(lruIndex);
+        System.out.println("indexed # " + nodeLinks + " nodelinks in " + (System.currentTimeMillis() - start) + " ms, index at " + path.getAbsolutePath());
+
+        System.out.println(String.format("%-10s %4s %10s %12s %10s %8s  %s", "strategy", "run", "time (ms)", "peak heap MB", "queries", "links", "same links as " + STRATEGIES.get(0).getName()));
+        Map<String, Integer> reference = null;
+        for(int run = 1; run <= runs; run++) {
+            for(Strategy strategy : STRATEGIES) {
+                // each strategy starts without webentity links, as some of them add to existing ones
+                lruIndex.deleteWebEntityLinks();
+                System.gc();
+                resetPeakHeap();
+                long queries = lruIndex.getQueryCount();
+                start = System.currentTimeMillis();
+                List<WebEntityLink> webEntityLinks = strategy.generate(lruIndex);
+                long time = System.currentTimeMillis() - start;
+                long peakHeap = peakHeap();
+                queries = lruIndex.getQueryCount() - queries;
+
+                Map<String, Integer> weights = weights(webEntityLinks);
+                String comparison;
+                if(reference == null) {
+                    reference = weights;
+                    comparison = "-";
+                }
+                else {
+                    int differences = differences(reference, weights);
+                    comparison = differences == 0 ? "yes" : "no, " + differences + " links differ";
+                }
+                System.out.println(String.format("%-10s %4d %10d %12d %10d %8d  %s", strategy.getName(), run, time, peakHeap / (1024 * 1024), queries, webEntityLinks.size(), comparison));
+            }
+        }
+        lruIndex.close();
+    }
+
+    private static String stringParameter(Map<String, String> parameters, String name, String defaultValue) {
+        String value = parameters.get(name);
+        return value == null ? defaultValue : value;
+    }
+
+    private static int intParameter(Map<String, String> parameters, String name, int defaultValue) {
+        return Integer.parseInt(stringParameter(parameters, name, String.valueOf(defaultValue)));
+    }
+
+    private static void resetPeakHeap() {
+        for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if(pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    /**
+     * @return sum of the peak usage of the heap memory pools since they were last reset
+     */
+    private static long peakHeap() {
+        long peak = 0;
+        for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if(pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    /**
+     * @return weight of each link, by source and target
+     */
+    private static Map<String, Integer> weights(List<WebEntityLink> webEntityLinks) {
+        Map<String, Integer> weights = new HashMap<String, Integer>();
+        for(WebEntityLink webEntityLink : webEntityLinks) {
+            weights.put(webEntityLink.getSourceId() + " " + webEntityLink.getTargetId(), webEntityLink.getWeight());
+        }
+        return weights;
+    }
+
+    /**
+     * @return number of links that are missing from either map or have a different weight
+     */
+    private static int differences(Map<String, Integer> reference, Map<String, Integer> weights) {
+        int differences = 0;
+        for(Map.Entry<String, Integer> entry : reference.entrySet()) {
+            if(!entry.getValue().equals(weights.get(entry.getKey()))) {
+                differences++;
+            }
+        }
+        for(String link : weights.keySet()) {
+            if(!reference.containsKey(link)) {
+                differences++;
+            }
+        }
+        return differences;
+    }
+}
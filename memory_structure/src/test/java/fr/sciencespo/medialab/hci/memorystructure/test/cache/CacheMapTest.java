@@ -0,0 +1,198 @@
+package fr.sciencespo.medialab.hci.memorystructure.test.cache;
+
+import fr.sciencespo.medialab.hci.memorystructure.cache.Cache;
+import fr.sciencespo.medialab.hci.memorystructure.cache.CacheMap;
+import fr.sciencespo.medialab.hci.memorystructure.cache.MaxCacheSizeException;
+import fr.sciencespo.medialab.hci.memorystructure.index.IndexConfiguration;
+import fr.sciencespo.medialab.hci.memorystructure.index.LRUIndex;
+import fr.sciencespo.medialab.hci.memorystructure.thrift.ObjectNotFoundException;
+import fr.sciencespo.medialab.hci.memorystructure.thrift.PageItem;
+import fr.sciencespo.medialab.hci.memorystructure.thrift.WebEntityCreationRule;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.apache.commons.io.FileUtils;
+import org.apache.lucene.index.IndexWriterConfig;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Test CacheMap.
+ *
+ * @author agent
+ */
+public class CacheMapTest extends TestCase {
+
+    private LRUIndex lruIndex;
+    private File spillDirectory;
+
+    private Cache createCache(String prefix, int size) throws MaxCacheSizeException {
+        Cache cache = new Cache(lruIndex);
+        List<PageItem> pageItems = new ArrayList<PageItem>();
+        for(int i = 0; i < size; i++) {
+            pageItems.add(new PageItem().setLru("s:http|h:com|h:" + prefix + "|p:page" + i).setCrawlerTimestamp("" + i).setDepth(1));
+        }
+        cache.setPageItems(pageItems);
+        return cache;
+    }
+
+    /**
+     * Tests that the least recently used cache is spilled when the memory budget is exceeded, and reloaded unchanged.
+     */
+    public void testSpillWhenOverBudget() {
+        try {
+            Cache first = createCache("first", 100);
+            long budget = first.getMemorySize() + first.getMemorySize() / 2;
+            CacheMap.getInstance().configure(budget, CacheMap.DEFAULT_TIME_TO_LIVE, spillDirectory);
+            List<PageItem> pageItems = new ArrayList<PageItem>(first.getPageItems());
+
+            CacheMap.getInstance().add(first);
+            assertFalse("Cache spilled while within budget", first.isSpilled());
+            Thread.sleep(5);
+            Cache second = createCache("second", 100);
+            CacheMap.getInstance().add(second);
+            assertTrue("Least recently used cache not spilled", first.isSpilled());
+            assertFalse("Added cache spilled", second.isSpilled());
+            assertEquals("Spilled cache still takes memory", 0, first.getMemorySize());
+
+            Cache reloaded = CacheMap.getInstance().get(first.getId());
+            assertFalse("Cache not reloaded", reloaded.isSpilled());
+            assertEquals("Unexpected page items after reload", pageItems, reloaded.getPageItems());
+            assertTrue("Other cache not spilled after reload", second.isSpilled());
+            assertEquals("Unexpected # of spill files", 1, spillDirectory.list().length);
+
+            CacheMap.getInstance().remove(first.getId());
+            CacheMap.getInstance().remove(second.getId());
+            assertEquals("Spill file not removed", 0, spillDirectory.list().length);
+        }
+        catch(Exception x) {
+            fail(x.getMessage());
+        }
+    }
+
+    /**
+     * Tests that caches unused for longer than their time to live are removed.
+     */
+    public void testRemoveExpiredCaches() {
+        try {
+            CacheMap.getInstance().configure(CacheMap.DEFAULT_MEMORY_BUDGET, 1, spillDirectory);
+            Cache cache = createCache("expired", 10);
+            CacheMap.getInstance().add(cache);
+            Thread.sleep(5);
+            assertEquals("Unexpected # of expired caches", 1, CacheMap.getInstance().removeExpiredCaches());
+            try {
+                CacheMap.getInstance().get(cache.getId());
+                fail("Expected exception not thrown");
+            }
+            catch(ObjectNotFoundException x) {
+                // expected
+            }
+        }
+        catch(Exception x) {
+            fail(x.getMessage());
+        }
+    }
+
+    /**
+     * Stages caches from concurrent threads, as parallel crawl jobs do, with a memory budget small enough for caches to
+     * be spilled and reloaded meanwhile. Each thread must get back its own pages, and web entities for hosts shared by
+     * the threads must be created only once.
+     */
+    public void testConcurrentCaches() {
+        final int threads = 8;
+        final int cachesPerThread = 20;
+        final int hosts = 10;
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        try {
+            WebEntityCreationRule defaultRule = new WebEntityCreationRule();
+            defaultRule.setLRU(IndexConfiguration.DEFAULT_WEBENTITY_CREATION_RULE);
+            defaultRule.setRegExp("(s:[a-zA-Z]+\\|(h:www|)?h:[a-zA-Z]+(\\|h:[^|]+)+)");
+            lruIndex.indexWebEntityCreationRule(defaultRule);
+            CacheMap.getInstance().configure(3 * createCache("budget", 50).getMemorySize(), CacheMap.DEFAULT_TIME_TO_LIVE, spillDirectory);
+
+            List<Callable<Integer>> jobs = new ArrayList<Callable<Integer>>();
+            for(int t = 0; t < threads; t++) {
+                final int thread = t;
+                jobs.add(new Callable<Integer>() {
+                    public Integer call() throws Exception {
+                        int created = 0;
+                        for(int c = 0; c < cachesPerThread; c++) {
+                            Cache cache = new Cache(lruIndex);
+                            List<PageItem> pageItems = new ArrayList<PageItem>();
+                            for(int i = 0; i < 50; i++) {
+                                pageItems.add(new PageItem().setLru("s:http|h:com|h:host" + (i % hosts) + "|p:thread" + thread + "|p:cache" + c + "|p:page" + i));
+                            }
+                            cache.setPageItems(pageItems);
+                            CacheMap.getInstance().add(cache);
+
+                            Cache retrieved = CacheMap.getInstance().get(cache.getId());
+                            assertSame("Unexpected cache", cache, retrieved);
+                            Set<PageItem> expected = new HashSet<PageItem>(pageItems);
+                            assertEquals("Unexpected page items", expected, new HashSet<PageItem>(retrieved.getPageItems()));
+                            created += CacheMap.getInstance().get(cache.getId()).createWebEntities();
+                            CacheMap.getInstance().remove(cache.getId());
+                        }
+                        return created;
+                    }
+                });
+            }
+            int created = 0;
+            for(Future<Integer> result : executorService.invokeAll(jobs)) {
+                created += result.get();
+            }
+            assertEquals("Unexpected # of web entities created", hosts, created);
+            assertEquals("Unexpected # of web entities", hosts, lruIndex.retrieveWebEntities().size());
+            String[] spillFiles = spillDirectory.list();
+            assertEquals("Spill files left", 0, spillFiles == null ? 0 : spillFiles.length);
+        }
+        catch(Exception x) {
+            x.printStackTrace();
+            fail(x.getMessage());
+        }
+        finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    /**
+     * Invoked before each test* method.
+     */
+    public void setUp() {
+        lruIndex = LRUIndex.getInstance("luceneindex", IndexWriterConfig.OpenMode.CREATE);
+        spillDirectory = new File("cachemaptest");
+    }
+
+    /**
+     * Invoked after each test* method.
+     */
+    public void tearDown() throws Exception {
+        CacheMap.getInstance().configure(CacheMap.DEFAULT_MEMORY_BUDGET, CacheMap.DEFAULT_TIME_TO_LIVE, CacheMap.DEFAULT_SPILL_DIRECTORY);
+        FileUtils.deleteQuietly(spillDirectory);
+        lruIndex.clearIndex();
+    }
+
+    /**
+     * Creates the test case.
+     *
+     * @param testName name of the test case
+     */
+    public CacheMapTest(String testName) {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite( CacheMapTest.class );
+    }
+}
@@ -1,6 +1,7 @@
 package fr.sciencespo.medialab.hci.memorystructure.test.cache;
 
 import fr.sciencespo.medialab.hci.memorystructure.cache.Cache;
+import fr.sciencespo.medialab.hci.memorystructure.cache.CacheMap;
 import fr.sciencespo.medialab.hci.memorystructure.cache.MaxCacheSizeException;
 import fr.sciencespo.medialab.hci.memorystructure.index.IndexConfiguration;
 import fr.sciencespo.medialab.hci.memorystructure.index.IndexException;
@@ -19,7 +20,9 @@ import junit.framework.TestSuite;
 import org.apache.lucene.index.IndexWriterConfig;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Test Cache.
@@ -2487,6 +2490,55 @@ public class CacheTest extends TestCase {
         }
     }
 
+    /**
+     * Tests that web entities created in parallel for a large cache are the ones created on a single thread.
+     */
+    public void testCreateWebEntitiesInParallel() {
+        try {
+            List<PageItem> pages = new ArrayList<PageItem>();
+            for(int i = 0; i < 20000; i++) {
+                pages.add(new PageItem().setLru("s:http|h:com|h:host" + (i % 500) + (i % 3 == 0 ? "|h:blog" : "") + "|p:page" + i));
+            }
+            Set<String> parallel = createWebEntities(pages, 4);
+            lruIndex.clearIndex();
+            Set<String> sequential = createWebEntities(pages, 1);
+            assertEquals("Unexpected # of web entities", 1000, sequential.size());
+            assertEquals("Parallel web entities differ", sequential, parallel);
+        }
+        catch (IndexException x) {
+            x.printStackTrace();
+            fail(x.getMessage());
+        }
+        catch (MaxCacheSizeException x) {
+            x.printStackTrace();
+            fail(x.getMessage());
+        }
+        catch (MemoryStructureException x) {
+            x.printStackTrace();
+            fail(x.getMsg());
+        }
+        finally {
+            CacheMap.getInstance().setWebEntityCreationThreads(1);
+        }
+    }
+
+    private Set<String> createWebEntities(List<PageItem> pages, int threads) throws IndexException, MaxCacheSizeException, MemoryStructureException {
+        WebEntityCreationRule defaultWebEntityCreationRule = new WebEntityCreationRule();
+        defaultWebEntityCreationRule.setLRU(IndexConfiguration.DEFAULT_WEBENTITY_CREATION_RULE);
+        defaultWebEntityCreationRule.setRegExp("(s:[a-zA-Z]+\\|(h:www|)?h:[a-zA-Z]+(\\|h:[^|]+)+)");
+        lruIndex.indexWebEntityCreationRule(defaultWebEntityCreationRule);
+        CacheMap.getInstance().setWebEntityCreationThreads(threads);
+        Cache cache = new Cache(lruIndex);
+        cache.setPageItems(pages);
+        int created = cache.createWebEntities();
+        Set<String> prefixes = new HashSet<String>();
+        for(WebEntity webEntity : lruIndex.retrieveWebEntities()) {
+            prefixes.addAll(webEntity.getLRUSet());
+        }
+        assertEquals("Unexpected # of web entities created", prefixes.size(), created);
+        return prefixes;
+    }
+
     public void testRevertLRU() {
         assertEquals("Unexpected URL", "megaupload.com", LRUUtil.revertLRU("s:http|h:www|h:com|h:megaupload"));
         assertEquals("Unexpected URL", "jiminy.medialab.sciences-po.fr/hci/index.php?title=Reverse_URLs&secondparameter=there#bottom", LRUUtil.revertLRU("s:http|h:fr|h:sciences-po|h:medialab|h:jiminy|p:hci|p:index.php|q:title=Reverse_URLs|q:secondparameter=there|r:bottom"));
@@ -0,0 +1,165 @@
+package fr.sciencespo.medialab.hci.memorystructure.test.cache;
+
+import fr.sciencespo.medialab.hci.memorystructure.cache.Cache;
+import fr.sciencespo.medialab.hci.memorystructure.cache.OffHeapPageItemStore;
+import fr.sciencespo.medialab.hci.memorystructure.index.LRUIndex;
+import fr.sciencespo.medialab.hci.memorystructure.thrift.PageItem;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.apache.commons.io.FileUtils;
+import org.apache.lucene.index.IndexWriterConfig;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Test OffHeapPageItemStore.
+ *
+ * @author agent
+ */
+public class OffHeapPageItemStoreTest extends TestCase {
+
+    private OffHeapPageItemStore store;
+
+    private PageItem createPageItem(int i) {
+        Set<String> sources = new HashSet<String>();
+        sources.add("crawl");
+        Set<String> values = new HashSet<String>();
+        values.add("value" + i);
+        Map<String, Set<String>> item = new HashMap<String, Set<String>>();
+        item.put("key", values);
+        Map<String, Map<String, Set<String>>> metadata = new HashMap<String, Map<String, Set<String>>>();
+        metadata.put("meta", item);
+        return new PageItem().setLru("s:http|h:com|h:host" + (i % 7) + "|p:page" + i).setUrl("http://host" + (i % 7) + ".com/page" + i)
+                .setCrawlerTimestamp("" + i).setHttpStatusCode(200).setDepth(i % 3).setSourceSet(sources).setMetadataItems(metadata);
+    }
+
+    private Map<String, PageItem> byLRU(Iterable<PageItem> pageItems) {
+        Map<String, PageItem> byLRU = new HashMap<String, PageItem>();
+        for(PageItem pageItem : pageItems) {
+            assertNull("Duplicate lru " + pageItem.getLru(), byLRU.put(pageItem.getLru(), pageItem));
+        }
+        return byLRU;
+    }
+
+    /**
+     * Tests that pageItems are decoded as they were stored, also when the table grows.
+     */
+    public void testPutAndSnapshot() {
+        Map<String, PageItem> expected = new HashMap<String, PageItem>();
+        for(int i = 0; i < 5000; i++) {
+            PageItem pageItem = createPageItem(i);
+            store.put(pageItem);
+            expected.put(pageItem.getLru(), pageItem);
+        }
+        assertEquals("Unexpected size", 5000, store.size());
+        assertEquals("Unexpected pageItems", expected, byLRU(store.snapshot()));
+    }
+
+    /**
+     * Tests replacing and removing pageItems, and that a snapshot is not affected by later changes.
+     */
+    public void testReplaceAndRemove() {
+        for(int i = 0; i < 100; i++) {
+            store.put(createPageItem(i));
+        }
+        Iterable<PageItem> before = store.snapshot();
+
+        PageItem replacement = createPageItem(5).setErrorCode("404");
+        store.put(replacement);
+        assertTrue("Could not remove pageItem", store.remove(createPageItem(6).getLru()));
+        assertFalse("Removed unknown pageItem", store.remove("s:http|h:com|h:unknown"));
+        store.put(createPageItem(100));
+
+        Map<String, PageItem> after = byLRU(store.snapshot());
+        assertEquals("Unexpected size", 100, store.size());
+        assertEquals("Unexpected # of pageItems", 100, after.size());
+        assertEquals("PageItem not replaced", replacement, after.get(replacement.getLru()));
+        assertFalse("PageItem not removed", after.containsKey(createPageItem(6).getLru()));
+
+        Map<String, PageItem> snapshot = byLRU(before);
+        assertEquals("Snapshot changed", 100, snapshot.size());
+        assertEquals("Snapshot changed", createPageItem(5), snapshot.get(replacement.getLru()));
+        assertTrue("Snapshot changed", snapshot.containsKey(createPageItem(6).getLru()));
+    }
+
+    /**
+     * Tests that dead records of replaced pageItems are dropped, and that a snapshot survives it.
+     */
+    public void testCompaction() {
+        for(int i = 0; i < 100; i++) {
+            store.put(createPageItem(i));
+        }
+        Iterable<PageItem> before = store.snapshot();
+        long memory = store.getMemorySize();
+        for(int round = 0; round < 500; round++) {
+            for(int i = 0; i < 100; i++) {
+                store.put(createPageItem(i).setErrorCode("round" + round));
+            }
+        }
+        assertTrue("Dead records not dropped", store.getMemorySize() <= memory + 2L * OffHeapPageItemStore.CHUNK_SIZE);
+        Map<String, PageItem> after = byLRU(store.snapshot());
+        assertEquals("Unexpected # of pageItems", 100, after.size());
+        assertEquals("Unexpected pageItem", "round499", after.get(createPageItem(42).getLru()).getErrorCode());
+        assertEquals("Snapshot changed", createPageItem(42), byLRU(before).get(createPageItem(42).getLru()));
+    }
+
+    /**
+     * Tests that a cache with off-heap storage can be spilled and reloaded.
+     */
+    public void testCacheSpill() {
+        File spillDirectory = new File("offheaptest");
+        LRUIndex lruIndex = LRUIndex.getInstance("luceneindex", IndexWriterConfig.OpenMode.CREATE);
+        try {
+            Cache cache = new Cache(lruIndex, store);
+            Map<String, PageItem> expected = new HashMap<String, PageItem>();
+            List<PageItem> pageItems = new ArrayList<PageItem>();
+            for(int i = 0; i < 1000; i++) {
+                PageItem pageItem = createPageItem(i);
+                pageItems.add(pageItem);
+                expected.put(pageItem.getLru(), pageItem);
+            }
+            cache.setPageItems(pageItems);
+            assertTrue("Unexpected memory size", cache.getMemorySize() > 0);
+            cache.spill(spillDirectory);
+            assertEquals("Unexpected memory size after spill", 0, cache.getMemorySize());
+            assertEquals("Unexpected pageItems after reload", expected, byLRU(cache.getPageItems()));
+            cache.clear();
+        }
+        catch(Exception x) {
+            fail(x.getMessage());
+        }
+        finally {
+            FileUtils.deleteQuietly(spillDirectory);
+        }
+    }
+
+    /**
+     * Invoked before each test* method.
+     */
+    public void setUp() {
+        store = new OffHeapPageItemStore();
+    }
+
+    /**
+     * Creates the test case.
+     *
+     * @param testName name of the test case
+     */
+    public OffHeapPageItemStoreTest(String testName) {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite( OffHeapPageItemStoreTest.class );
+    }
+}
@@ -0,0 +1,129 @@
+package fr.sciencespo.medialab.hci.memorystructure.test.index;
+
+import fr.sciencespo.medialab.hci.memorystructure.index.DirectoryFactory;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.apache.commons.io.FileUtils;
+import org.apache.lucene.analysis.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.store.SimpleFSDirectory;
+import org.apache.lucene.util.Version;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Test DirectoryFactory.
+ *
+ * @author agent
+ */
+public class DirectoryFactoryTest extends TestCase {
+
+    private File path;
+
+    /**
+     * Tests that each type opens its implementation, and that an index written and read through it is intact.
+     */
+    public void testTypes() throws IOException {
+        assertOpens(new DirectoryFactory().setType("mmap").setMaxChunkSizeMB(1), MMapDirectory.class);
+        assertOpens(new DirectoryFactory().setType("NIO"), NIOFSDirectory.class);
+        assertOpens(new DirectoryFactory().setType("simple"), SimpleFSDirectory.class);
+        assertOpens(new DirectoryFactory(), FSDirectory.open(path).getClass());
+
+        FSDirectory directory = new DirectoryFactory().setType("mmap").setUseUnmap(false).open(path);
+        assertFalse("Unexpected unmap", ((MMapDirectory) directory).getUseUnmap());
+        directory.close();
+    }
+
+    public void testInvalidSettings() {
+        try {
+            new DirectoryFactory().setType("ram");
+            fail("Expected IllegalArgumentException for unknown type");
+        }
+        catch(IllegalArgumentException x) {
+            // expected
+        }
+        try {
+            new DirectoryFactory().setMaxChunkSizeMB(4096);
+            fail("Expected IllegalArgumentException for chunk size beyond 1 GB");
+        }
+        catch(IllegalArgumentException x) {
+            // expected
+        }
+    }
+
+    public void testPreload() {
+        DirectoryFactory directoryFactory = new DirectoryFactory();
+        assertFalse("Compound file preloaded whole by default", directoryFactory.isPreloaded("_0.cfs"));
+        assertTrue("Terms not preloaded by default", directoryFactory.isPreloaded("_0.tis"));
+        assertFalse("Stored fields preloaded by default", directoryFactory.isPreloaded("_0.fdt"));
+        directoryFactory.setPreload("fdt, tis");
+        assertTrue("Stored fields not preloaded", directoryFactory.isPreloaded("_0.fdt"));
+        assertFalse("Compound file preloaded", directoryFactory.isPreloaded("_0.cfs"));
+        directoryFactory.setPreload("cfs");
+        assertTrue("Compound file not preloaded", directoryFactory.isPreloaded("_0.cfs"));
+        directoryFactory.setPreload("none");
+        assertFalse("Terms preloaded", directoryFactory.isPreloaded("_0.tis"));
+        directoryFactory.setPreload("all");
+        assertTrue("Segments file not preloaded", directoryFactory.isPreloaded("segments_1"));
+    }
+
+    private void assertOpens(DirectoryFactory directoryFactory, Class<?> expected) throws IOException {
+        FileUtils.deleteQuietly(path);
+        FSDirectory directory = directoryFactory.open(path);
+        try {
+            assertEquals("Unexpected directory for " + directoryFactory.getType(), expected, directory.getClass());
+            IndexWriter indexWriter = new IndexWriter(directory, new IndexWriterConfig(Version.LUCENE_35, new KeywordAnalyzer()));
+            for(int i = 0; i < 100; i++) {
+                Document document = new Document();
+                document.add(new Field("LRU", "s:http|h:fr|h:sciences-po|p:page" + i, Field.Store.YES, Field.Index.NOT_ANALYZED_NO_NORMS));
+                indexWriter.addDocument(document);
+            }
+            indexWriter.close();
+            IndexReader indexReader = IndexReader.open(directory);
+            assertEquals("Unexpected # of documents", 100, indexReader.numDocs());
+            assertEquals("Unexpected document frequency", 1, indexReader.docFreq(new Term("LRU", "s:http|h:fr|h:sciences-po|p:page42")));
+            assertEquals("Unexpected stored field", "s:http|h:fr|h:sciences-po|p:page7", indexReader.document(7).get("LRU"));
+            indexReader.close();
+        }
+        finally {
+            directory.close();
+        }
+    }
+
+    @Override
+    protected void setUp() {
+        path = new File(System.getProperty("java.io.tmpdir"), "directoryfactorytest");
+        FileUtils.deleteQuietly(path);
+    }
+
+    @Override
+    protected void tearDown() {
+        FileUtils.deleteQuietly(path);
+    }
+
+    /**
+     * Creates the test case.
+     *
+     * @param testName name of the test case
+     */
+    public DirectoryFactoryTest(String testName) {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite( DirectoryFactoryTest.class );
+    }
+}
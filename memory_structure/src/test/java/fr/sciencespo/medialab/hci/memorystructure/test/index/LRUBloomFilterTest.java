@@ -0,0 +1,79 @@
+package fr.sciencespo.medialab.hci.memorystructure.test.index;
+
+import fr.sciencespo.medialab.hci.memorystructure.index.LRUBloomFilter;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Test LRUBloomFilter.
+ *
+ * @author agent
+ */
+public class LRUBloomFilterTest extends TestCase {
+
+    /**
+     * Tests that added keys are always found, and that few others are.
+     */
+    public void testMightContain() {
+        LRUBloomFilter filter = new LRUBloomFilter(100000, 0.01);
+        for(int i = 0; i < 100000; i++) {
+            filter.put("s:http|h:com|h:site" + (i % 500) + "|p:page" + i);
+        }
+        for(int i = 0; i < 100000; i++) {
+            assertTrue("Added key not found", filter.mightContain("s:http|h:com|h:site" + (i % 500) + "|p:page" + i));
+        }
+        int falsePositives = 0;
+        for(int i = 0; i < 100000; i++) {
+            if(filter.mightContain("s:http|h:org|h:other" + (i % 500) + "|p:page" + i)) {
+                falsePositives++;
+            }
+        }
+        assertTrue("Too many false positives: " + falsePositives, falsePositives < 2000);
+        assertFalse("Unexpected saturation", filter.isSaturated());
+    }
+
+    /**
+     * Tests that a saved filter is read back only for the version it was saved with.
+     */
+    public void testWriteAndRead() {
+        File file = new File("bloomfiltertest");
+        try {
+            LRUBloomFilter filter = new LRUBloomFilter(1000, 0.01);
+            filter.put("s:http|h:com|h:site");
+            filter.writeTo(file, 42);
+            assertNull("Filter read for another version", LRUBloomFilter.readFrom(file, 43));
+            LRUBloomFilter read = LRUBloomFilter.readFrom(file, 42);
+            assertTrue("Key not found after read", read.mightContain("s:http|h:com|h:site"));
+            assertFalse("Unexpected key after read", read.mightContain("s:http|h:com|h:other"));
+            assertEquals("Unexpected size after read", 1, read.size());
+            assertNull("Filter read from missing file", LRUBloomFilter.readFrom(new File("nosuchfile"), 42));
+        }
+        catch(IOException x) {
+            fail(x.getMessage());
+        }
+        finally {
+            FileUtils.deleteQuietly(file);
+        }
+    }
+
+    /**
+     * Creates the test case.
+     *
+     * @param testName name of the test case
+     */
+    public LRUBloomFilterTest(String testName) {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite( LRUBloomFilterTest.class );
+    }
+}
@@ -1,15 +1,23 @@
 package fr.sciencespo.medialab.hci.memorystructure.test.index;
 
+import fr.sciencespo.medialab.hci.memorystructure.analytics.GraphScores;
 import fr.sciencespo.medialab.hci.memorystructure.cache.Cache;
 import fr.sciencespo.medialab.hci.memorystructure.cache.MaxCacheSizeException;
+import fr.sciencespo.medialab.hci.memorystructure.export.NetworkFormat;
 import fr.sciencespo.medialab.hci.memorystructure.index.IndexConfiguration;
 import fr.sciencespo.medialab.hci.memorystructure.index.IndexException;
+import fr.sciencespo.medialab.hci.memorystructure.index.IndexStatsBean;
 import fr.sciencespo.medialab.hci.memorystructure.index.LRUIndex;
+import fr.sciencespo.medialab.hci.memorystructure.index.SlowQueryLog;
 import fr.sciencespo.medialab.hci.memorystructure.test.util.LineFileReader;
+import fr.sciencespo.medialab.hci.memorystructure.thrift.IndexStats;
 import fr.sciencespo.medialab.hci.memorystructure.thrift.MemoryStructureException;
+import fr.sciencespo.medialab.hci.memorystructure.thrift.NetworkExport;
 import fr.sciencespo.medialab.hci.memorystructure.thrift.NodeLink;
 import fr.sciencespo.medialab.hci.memorystructure.thrift.ObjectNotFoundException;
 import fr.sciencespo.medialab.hci.memorystructure.thrift.PageItem;
+import fr.sciencespo.medialab.hci.memorystructure.thrift.SegmentStats;
+import fr.sciencespo.medialab.hci.memorystructure.thrift.SlowQuery;
 import fr.sciencespo.medialab.hci.memorystructure.thrift.WebEntity;
 import fr.sciencespo.medialab.hci.memorystructure.thrift.WebEntityCreationRule;
 import fr.sciencespo.medialab.hci.memorystructure.thrift.WebEntityLink;
@@ -17,16 +25,24 @@ import fr.sciencespo.medialab.hci.memorystructure.util.DynamicLogger;
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
+import org.apache.commons.io.FileUtils;
 import org.apache.lucene.index.IndexWriterConfig;
 
+import javax.management.ObjectName;
+import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Test LRUIndex.
@@ -565,6 +581,128 @@ public class LRUIndexTest extends TestCase {
         }
     }
 
+    /**
+     * Tests that slow queries are kept with their source, clauses and hits, the most recent first, and no more than the
+     * size of the log.
+     */
+    public void testSlowQueryLog() {
+        try {
+            List<Object> lruItems = new ArrayList<Object>();
+            for(String lru : new String[] { "s:http|h:fr|h:sciences-po", "s:http|h:fr|h:sciences-po|p:a", "s:http|h:fr|h:sciences-po|p:b" }) {
+                Set<String> sources = new HashSet<String>();
+                sources.add("crawl");
+                lruItems.add(new PageItem().setLru(lru).setSourceSet(sources));
+            }
+            lruIndex.batchIndex(lruItems);
+            WebEntity webEntity = new WebEntity();
+            webEntity.setName("Sciences Po");
+            webEntity.addToLRUSet("s:http|h:fr|h:sciences-po");
+            String id = lruIndex.indexWebEntity(webEntity);
+
+            lruIndex.getSlowQueryLog().configure(0, 2);
+            assertEquals("Unexpected # of pageitems", 3, lruIndex.findPagesForWebEntity(id).size());
+            List<SlowQuery> slowQueries = lruIndex.getSlowQueryLog().getSlowQueries();
+            assertEquals("Unexpected # of slow queries", 2, slowQueries.size());
+            SlowQuery last = slowQueries.get(0);
+            assertEquals("Unexpected source", "findPagesForWebEntity", last.getSource());
+            assertEquals("Unexpected # of hits", 3, last.getHits());
+            assertTrue("Unexpected # of clauses", last.getClauses() > 1);
+            assertTrue("Unexpected query " + last.getQuery(), last.getQuery().contains("sciences-po"));
+            assertTrue("Unexpected order", last.getTimestamp() >= slowQueries.get(1).getTimestamp());
+
+            lruIndex.getSlowQueryLog().configure(SlowQueryLog.DEFAULT_THRESHOLD * 1000, 2);
+            lruIndex.retrieveWebEntity(id);
+            assertEquals("Fast query kept", last, lruIndex.getSlowQueryLog().getSlowQueries().get(0));
+        }
+        catch(IndexException x) {
+            fail(x.getMessage());
+        }
+        catch(ObjectNotFoundException x) {
+            fail(x.getMsg());
+        }
+        finally {
+            lruIndex.getSlowQueryLog().configure(SlowQueryLog.DEFAULT_THRESHOLD, SlowQueryLog.DEFAULT_SIZE);
+        }
+    }
+
+    /**
+     * Tests the counts by document type, segments and reader generations of the index statistics, and their MXBean.
+     */
+    public void testIndexStats() {
+        try {
+            List<Object> lruItems = new ArrayList<Object>();
+            for(int i = 0; i < 10; i++) {
+                Set<String> sources = new HashSet<String>();
+                sources.add("crawl");
+                lruItems.add(new PageItem().setLru("s:http|h:fr|h:sciences-po|p:page" + i).setSourceSet(sources));
+            }
+            lruIndex.batchIndex(lruItems);
+            WebEntity webEntity = new WebEntity();
+            webEntity.setName("Sciences Po");
+            webEntity.addToLRUSet("s:http|h:fr|h:sciences-po");
+            lruIndex.indexWebEntity(webEntity);
+
+            IndexStats indexStats = lruIndex.getIndexStats();
+            assertEquals("Unexpected # of pageitems", 10, (int) indexStats.getDocsByType().get("PAGE_ITEM"));
+            assertEquals("Unexpected # of webentities", 1, (int) indexStats.getDocsByType().get("WEBENTITY"));
+            assertEquals("Unexpected # of documents", lruIndex.indexCount(), indexStats.getNumDocs());
+            assertTrue("No segments", indexStats.getSegmentsSize() > 0);
+            int segmentDocs = 0;
+            for(SegmentStats segment : indexStats.getSegments()) {
+                assertTrue("Empty segment file " + segment.getName(), segment.getSizeInBytes() > 0);
+                segmentDocs += segment.getDocs();
+            }
+            assertEquals("Unexpected # of documents in segments", indexStats.getNumDocs(), segmentDocs);
+            assertTrue("Current reader not open", indexStats.getOpenReaderGenerations().contains(indexStats.getReaderGeneration()));
+            assertTrue("Unexpected size on disk", indexStats.getSizeOnDisk() > 0);
+
+            lruIndex.registerMBean();
+            Object numDocs = ManagementFactory.getPlatformMBeanServer().getAttribute(new ObjectName(IndexStatsBean.OBJECT_NAME), "NumDocs");
+            assertEquals("Unexpected # of documents in MXBean", indexStats.getNumDocs(), numDocs);
+        }
+        catch(IndexException x) {
+            fail(x.getMessage());
+        }
+        catch(Exception x) {
+            fail(x.getMessage());
+        }
+    }
+
+    public void testWarmUp() {
+        try {
+            List<Object> lruItems = new ArrayList<Object>();
+            for(int i = 0; i < 10; i++) {
+                lruItems.add(new PageItem().setLru("s:http|h:fr|h:sciences-po|p:page" + i));
+            }
+            lruIndex.batchIndex(lruItems);
+            WebEntity webEntity = new WebEntity();
+            webEntity.setName("Sciences Po");
+            webEntity.addToLRUSet("s:http|h:fr|h:sciences-po");
+            lruIndex.indexWebEntity(webEntity);
+
+            long queries = lruIndex.getQueryCount();
+            Map<String, Long> timings = lruIndex.warmUp("s\\:http\\|h\\:fr*; TYPE:WEBENTITY", 2);
+            assertTrue("No timing for index files", timings.containsKey("index files"));
+            assertTrue("No timing for webentity creation rules", timings.containsKey("webentity creation rules"));
+            assertTrue("No timing for query", timings.containsKey("query LRU:s:http|h:fr*"));
+            for(Map.Entry<String, Long> timing : timings.entrySet()) {
+                assertTrue("Warm-up step failed: " + timing.getKey(), timing.getValue() >= 0);
+            }
+            assertTrue("Warm-up queries not run", lruIndex.getQueryCount() > queries);
+
+            try {
+                lruIndex.warmUp("LRU:(", 1);
+                fail("Expected IndexException for invalid warm-up query");
+            }
+            catch(IndexException x) {
+                // expected
+            }
+        }
+        catch(IndexException x) {
+            fail(x.getMessage());
+        }
+    }
+
     public void testFindPagesForWebEntityButNotForSubWebEntities() {
         try {
             assertEquals("IndexCount returns unexpected number", 0, lruIndex.indexCount());
@@ -1209,6 +1347,451 @@ public class LRUIndexTest extends TestCase {
     }
 
 
+    /**
+     * Tests exporting the webentities network as gexf and graphml, and that a failed export leaves no partial file.
+     */
+    public void testExportWebEntitiesNetwork() {
+        logger.debug("testExportWebEntitiesNetwork");
+        try {
+            WebEntity webEntity1 = new WebEntity();
+            webEntity1.setName("scpo");
+            webEntity1.setLRUSet(new HashSet<String>(Arrays.asList("s:http|h:fr|h:sciences-po")));
+            String id1 = lruIndex.indexWebEntity(webEntity1);
+
+            WebEntity webEntity2 = new WebEntity();
+            webEntity2.setName("medialab & co");
+            webEntity2.setLRUSet(new HashSet<String>(Arrays.asList("s:http|h:fr|h:sciences-po|h:medialab")));
+            String id2 = lruIndex.indexWebEntity(webEntity2);
+
+            List<Object> objects = new ArrayList<Object>();
+            objects.add(new PageItem().setLru("s:http|h:fr|h:sciences-po|p:index.html"));
+            objects.add(new PageItem().setLru("s:http|h:fr|h:sciences-po|h:medialab|p:hci"));
+            objects.add(new PageItem().setLru("s:http|h:fr|h:sciences-po|h:medialab|p:people"));
+            objects.add(new WebEntityLink().setSourceId(id1).setTargetId(id2).setWeight(3));
+            objects.add(new WebEntityLink().setSourceId(id2).setTargetId(id2).setWeight(5));
+            lruIndex.batchIndex(objects);
+
+            File file = File.createTempFile("network", ".gexf");
+            NetworkExport export = lruIndex.exportWebEntitiesNetwork(NetworkFormat.GEXF, file);
+            assertEquals("Unexpected # of nodes", 2, export.getNodesCount());
+            // the link from medialab to itself is not an edge
+            assertEquals("Unexpected # of edges", 1, export.getEdgesCount());
+            assertEquals("Unexpected size", file.length(), export.getSize());
+
+            String gexf = FileUtils.readFileToString(file, "UTF-8");
+            assertTrue("Name not escaped", gexf.contains("label=\"medialab &amp; co\""));
+            assertTrue("Unexpected page count", gexf.contains("<attvalue for=\"nb_pages\" value=\"2\"/>"));
+            assertTrue("Unexpected intern links", gexf.contains("<attvalue for=\"nb_intern_links\" value=\"5\"/>"));
+            assertTrue("Missing edge", gexf.contains("source=\"" + id1 + "\" target=\"" + id2 + "\" weight=\"3\""));
+            file.delete();
+
+            file = File.createTempFile("network", ".graphml");
+            export = lruIndex.exportWebEntitiesNetwork(NetworkFormat.GRAPHML, file);
+            assertEquals("Unexpected format", "graphml", export.getFormat());
+            assertEquals("Unexpected # of nodes", 2, export.getNodesCount());
+            assertEquals("Unexpected # of edges", 1, export.getEdgesCount());
+            String graphml = FileUtils.readFileToString(file, "UTF-8");
+            assertTrue("Name not escaped", graphml.contains("<data key=\"label\">medialab &amp; co</data>"));
+            assertTrue("Unexpected page count", graphml.contains("<data key=\"nb_pages\">2</data>"));
+            assertTrue("Unexpected intern links", graphml.contains("<data key=\"nb_intern_links\">5</data>"));
+            assertTrue("Missing edge", graphml.contains("source=\"" + id1 + "\" target=\"" + id2 + "\">"));
+            assertTrue("Unexpected edge weight", graphml.contains("<data key=\"weight\">3</data>"));
+            file.delete();
+
+            // a non-empty directory in the way can't be replaced by the export
+            File directory = new File(System.getProperty("java.io.tmpdir"), "network-export-test");
+            new File(directory, "child").mkdirs();
+            try {
+                lruIndex.exportWebEntitiesNetwork(NetworkFormat.GEXF, directory);
+                fail("Expected IndexException for a directory in the way");
+            }
+            catch(IndexException x) {
+                assertFalse("Partial export left behind", new File(directory.getAbsolutePath() + ".part").exists());
+            }
+            finally {
+                FileUtils.deleteQuietly(directory);
+            }
+        }
+        catch(IndexException x) {
+            fail(x.getMessage());
+        }
+        catch(IOException x) {
+            fail(x.getMessage());
+        }
+    }
+
+    /**
+     * Tests that graph scores are reused while webentity links don't change, and recomputed when they do.
+     */
+    public void testGraphScoresFollowWebEntityLinks() {
+        logger.debug("testGraphScoresFollowWebEntityLinks");
+        try {
+            List<Object> links = new ArrayList<Object>();
+            links.add(new WebEntityLink().setSourceId("a").setTargetId("b").setWeight(2));
+            lruIndex.batchIndex(links);
+
+            GraphScores scores = lruIndex.retrieveGraphScores();
+            assertEquals("Unexpected in-degree", 1, scores.getInDegree(scores.positionOf("b")));
+            assertSame("Scores were not reused", scores, lruIndex.retrieveGraphScores());
+
+            links.clear();
+            links.add(new WebEntityLink().setSourceId("c").setTargetId("b").setWeight(1));
+            lruIndex.batchIndex(links);
+            scores = lruIndex.retrieveGraphScores();
+            assertEquals("Unexpected in-degree", 2, scores.getInDegree(scores.positionOf("b")));
+            assertEquals("Unexpected weighted in-degree", 3, scores.getWeightedInDegree(scores.positionOf("b")));
+        }
+        catch(IndexException x) {
+            fail(x.getMessage());
+        }
+    }
+
+    /**
+     * Tests that an index opened again after it was closed computes graph scores with its own pool, on a graph large
+     * enough to be computed in parallel.
+     */
+    public void testGraphScoresAfterReopen() {
+        logger.debug("testGraphScoresAfterReopen");
+        try {
+            List<Object> links = new ArrayList<Object>();
+            for(int i = 0; i < 2000; i++) {
+                links.add(new WebEntityLink().setSourceId("we" + i).setTargetId("we" + ((i + 1) % 2000)).setWeight(1));
+            }
+            lruIndex.batchIndex(links);
+            assertEquals("Unexpected # of webentities", 2000, lruIndex.retrieveGraphScores().size());
+
+            lruIndex.close();
+            LRUIndex reopened = LRUIndex.getInstance("luceneindex", IndexWriterConfig.OpenMode.CREATE);
+            assertNotSame("Closed index was returned", lruIndex, reopened);
+            lruIndex = reopened;
+            lruIndex.batchIndex(links);
+            GraphScores scores = lruIndex.retrieveGraphScores();
+            assertEquals("Unexpected # of webentities", 2000, scores.size());
+            assertEquals("Unexpected in-degree", 1, scores.getInDegree(scores.positionOf("we0")));
+        }
+        catch(IndexException x) {
+            fail(x.getMessage());
+        }
+        catch(IOException x) {
+            fail(x.getMessage());
+        }
+    }
+
+    /**
+     * Tests that indexing enough nodelinks regenerates webentity links in the background, replacing the previous ones.
+     */
+    public void testWebEntityLinksRegeneratedAfterNodeLinks() {
+        logger.debug("testWebEntityLinksRegeneratedAfterNodeLinks");
+        try {
+            Set<String> lrus = new HashSet<String>();
+            lrus.add("s:http|h:com|h:megaupload");
+            String source = lruIndex.indexWebEntity(new WebEntity().setName("megaupload").setLRUSet(lrus));
+            lrus = new HashSet<String>();
+            lrus.add("s:http|h:com|h:napster");
+            String target = lruIndex.indexWebEntity(new WebEntity().setName("napster").setLRUSet(lrus));
+
+            List<Object> objects = new ArrayList<Object>();
+            objects.add(new WebEntityLink().setSourceId("stale").setTargetId(target).setWeight(1));
+            lruIndex.batchIndex(objects);
+            long generation = lruIndex.getWebEntityLinksGeneration();
+
+            lruIndex.setWebEntityLinksRegenerationThreshold(2);
+            objects.clear();
+            objects.add(new NodeLink().setSourceLRU("s:http|h:com|h:megaupload|p:a").setTargetLRU("s:http|h:com|h:napster|p:b").setWeight(3));
+            lruIndex.batchIndex(objects);
+            assertEquals("Webentity links regenerated before threshold", generation, lruIndex.getWebEntityLinksGeneration());
+            assertEquals("Unexpected # of webentitylinks", 1, lruIndex.retrieveWebEntityLinks().size());
+
+            objects.clear();
+            objects.add(new NodeLink().setSourceLRU("s:http|h:com|h:megaupload|p:c").setTargetLRU("s:http|h:com|h:napster|p:d").setWeight(1));
+            lruIndex.batchIndex(objects);
+            for(int i = 0; i < 300 && lruIndex.getWebEntityLinksGeneration() == generation; i++) {
+                Thread.sleep(100);
+            }
+            assertEquals("Webentity links not regenerated", generation + 1, lruIndex.getWebEntityLinksGeneration());
+
+            List<WebEntityLink> webEntityLinks = lruIndex.retrieveWebEntityLinks();
+            assertEquals("Unexpected # of webentitylinks", 1, webEntityLinks.size());
+            WebEntityLink webEntityLink = webEntityLinks.get(0);
+            assertEquals("Unexpected source", source, webEntityLink.getSourceId());
+            assertEquals("Unexpected target", target, webEntityLink.getTargetId());
+        }
+        catch(IndexException x) {
+            fail(x.getMessage());
+        }
+        catch(InterruptedException x) {
+            fail(x.getMessage());
+        }
+        finally {
+            lruIndex.setWebEntityLinksRegenerationThreshold(0);
+        }
+    }
+
+    /**
+     * Tests retrieving the nodelinks of a webentity, with and without its frontier links, as nodelinks and
+     * webentities are added.
+     */
+    public void testRetrieveNodeLinksByWebentity() {
+        logger.debug("testRetrieveNodeLinksByWebentity");
+        try {
+            Set<String> lrus = new HashSet<String>();
+            lrus.add("s:http|h:com|h:megaupload");
+            String id = lruIndex.indexWebEntity(new WebEntity().setName("megaupload").setLRUSet(lrus));
+
+            List<Object> objects = new ArrayList<Object>();
+            objects.add(new NodeLink().setSourceLRU("s:http|h:com|h:megaupload|p:a").setTargetLRU("s:http|h:com|h:megaupload|p:b"));
+            objects.add(new NodeLink().setSourceLRU("s:http|h:com|h:megaupload|p:a").setTargetLRU("s:http|h:com|h:napster"));
+            objects.add(new NodeLink().setSourceLRU("s:http|h:com|h:napster").setTargetLRU("s:http|h:fr|h:google"));
+            lruIndex.batchIndex(objects);
+
+            assertEquals("Unexpected # of internal nodelinks", 1, lruIndex.retrieveNodeLinksByWebentity(id, false).size());
+            assertEquals("Unexpected # of nodelinks", 2, lruIndex.retrieveNodeLinksByWebentity(id, true).size());
+
+            objects.clear();
+            objects.add(new NodeLink().setSourceLRU("s:http|h:fr|h:google").setTargetLRU("s:http|h:com|h:megaupload|p:c|p:d"));
+            objects.add(new NodeLink().setSourceLRU("s:http|h:com|h:megaupload|p:a").setTargetLRU("s:http|h:com|h:megaupload|p:b").setWeight(2));
+            lruIndex.batchIndex(objects);
+            List<NodeLink> nodeLinks = lruIndex.retrieveNodeLinksByWebentity(id, true);
+            assertEquals("Unexpected # of nodelinks", 3, nodeLinks.size());
+            List<NodeLink> internalLinks = lruIndex.retrieveNodeLinksByWebentity(id, false);
+            assertEquals("Unexpected # of internal nodelinks", 1, internalLinks.size());
+            assertEquals("Unexpected weight", 3, internalLinks.get(0).getWeight());
+
+            lrus = new HashSet<String>();
+            lrus.add("s:http|h:com|h:megaupload|p:c");
+            lruIndex.indexWebEntity(new WebEntity().setName("megaupload c").setLRUSet(lrus));
+            assertEquals("Unexpected # of nodelinks", 2, lruIndex.retrieveNodeLinksByWebentity(id, true).size());
+
+            // webentities elsewhere, or containing it, leave its nodelinks as they are
+            lrus = new HashSet<String>();
+            lrus.add("s:http|h:fr|h:google");
+            lruIndex.indexWebEntity(new WebEntity().setName("google").setLRUSet(lrus));
+            lrus = new HashSet<String>();
+            lrus.add("s:http|h:com");
+            lruIndex.indexWebEntity(new WebEntity().setName("com").setLRUSet(lrus));
+            assertEquals("Unexpected # of nodelinks", 2, lruIndex.retrieveNodeLinksByWebentity(id, true).size());
+            assertEquals("Unexpected # of internal nodelinks", 1, lruIndex.retrieveNodeLinksByWebentity(id, false).size());
+        }
+        catch(IndexException x) {
+            fail(x.getMessage());
+        }
+    }
+
+    /**
+     * Tests creating webentities in bulk: prefixes of existing webentities, or giving an existing or already created
+     * webentity, are skipped.
+     */
+    public void testIndexNewWebEntities() {
+        logger.debug("testIndexNewWebEntities");
+        try {
+            Set<String> lrus = new HashSet<String>();
+            lrus.add("s:http|h:com|h:megaupload");
+            lruIndex.indexWebEntity(new WebEntity().setName("megaupload").setLRUSet(lrus));
+
+            Map<String, WebEntity> webEntities = new HashMap<String, WebEntity>();
+            for(int i = 0; i < 2500; i++) {
+                lrus = new HashSet<String>();
+                lrus.add("s:http|h:com|h:site" + i);
+                webEntities.put("s:http|h:com|h:site" + i, new WebEntity().setName("site" + i).setLRUSet(lrus));
+            }
+            lrus = new HashSet<String>();
+            lrus.add("s:http|h:com|h:megaupload");
+            webEntities.put("s:http|h:com|h:megaupload", new WebEntity().setName("megaupload again").setLRUSet(lrus));
+            lrus = new HashSet<String>();
+            lrus.add("s:http|h:com|h:site0");
+            webEntities.put("s:http|h:com|h:site0|p:blog", new WebEntity().setName("site0 again").setLRUSet(lrus));
+
+            List<String> ids = lruIndex.indexNewWebEntities(webEntities);
+            assertEquals("Unexpected # of created webentities", 2500, ids.size());
+            assertEquals("Unexpected # of webentities", 2501, lruIndex.retrieveWebEntities().size());
+            assertEquals("Unexpected webentity", "site42", lruIndex.retrieveWebEntityByLRUPrefix("s:http|h:com|h:site42").getName());
+            assertNotNull("Created webentity not found", lruIndex.retrieveWebEntity(ids.get(0)));
+
+            assertEquals("Unexpected # of created webentities", 0, lruIndex.indexNewWebEntities(webEntities).size());
+        }
+        catch(IndexException x) {
+            fail(x.getMessage());
+        }
+    }
+
+    /**
+     * Tests indexing pages, nodelinks and new webentities in one batch, twice.
+     */
+    public void testBatchIndexWithNewWebEntities() {
+        logger.debug("testBatchIndexWithNewWebEntities");
+        try {
+            List<Object> objects = new ArrayList<Object>();
+            Map<String, WebEntity> webEntities = new HashMap<String, WebEntity>();
+            for(int i = 0; i < 100; i++) {
+                Set<String> sources = new HashSet<String>();
+                sources.add("crawl");
+                objects.add(new PageItem().setLru("s:http|h:com|h:site" + i + "|p:index.html").setSourceSet(sources));
+                objects.add(new NodeLink().setSourceLRU("s:http|h:com|h:site" + i + "|p:index.html").setTargetLRU("s:http|h:com|h:site0|p:index.html").setWeight(1));
+                Set<String> lrus = new HashSet<String>();
+                lrus.add("s:http|h:com|h:site" + i);
+                webEntities.put("s:http|h:com|h:site" + i, new WebEntity().setName("site" + i).setLRUSet(lrus));
+            }
+
+            List<String> ids = lruIndex.batchIndex(objects, webEntities);
+            assertEquals("Unexpected # of created webentities", 100, ids.size());
+            assertEquals("Unexpected # of webentities", 100, lruIndex.retrieveWebEntities().size());
+            assertEquals("Unexpected webentity", "site42", lruIndex.retrieveWebEntityByLRUPrefix("s:http|h:com|h:site42").getName());
+            assertNotNull("Created webentity not found", lruIndex.retrieveWebEntity(ids.get(0)));
+            assertEquals("Unexpected # of pages", 100, lruIndex.retrievePageItemsByLRUPrefix("s:http|h:com").size());
+            assertEquals("Unexpected # of nodelinks", 100, lruIndex.retrieveNodeLinks().size());
+
+            ids = lruIndex.batchIndex(objects, webEntities);
+            assertEquals("Unexpected # of created webentities", 0, ids.size());
+            assertEquals("Unexpected # of pages", 100, lruIndex.retrievePageItemsByLRUPrefix("s:http|h:com").size());
+            NodeLink nodeLink = lruIndex.retrieveNodeLink(new NodeLink().setSourceLRU("s:http|h:com|h:site7|p:index.html").setTargetLRU("s:http|h:com|h:site0|p:index.html"));
+            assertEquals("Weights not added", 2, nodeLink.getWeight());
+        }
+        catch(IndexException x) {
+            fail(x.getMessage());
+        }
+    }
+
+    /**
+     * Tests finding which LRUs are LRUs of pages in the index.
+     */
+    public void testRetrieveKnownPageItemLRUs() {
+        logger.debug("testRetrieveKnownPageItemLRUs");
+        try {
+            List<Object> pageItems = new ArrayList<Object>();
+            for(int i = 0; i < 1500; i++) {
+                Set<String> sources = new HashSet<String>();
+                sources.add("crawl");
+                pageItems.add(new PageItem().setLru("s:http|h:com|h:site|p:page" + i).setSourceSet(sources));
+            }
+            lruIndex.batchIndex(pageItems);
+            Set<String> lrus = new HashSet<String>();
+            lrus.add("s:http|h:com|h:site");
+            lruIndex.indexWebEntity(new WebEntity().setName("site").setLRUSet(lrus));
+
+            List<String> lookedUp = new ArrayList<String>();
+            for(int i = 1000; i < 2000; i++) {
+                lookedUp.add("s:http|h:com|h:site|p:page" + i);
+            }
+            lookedUp.add("s:http|h:com|h:site");
+            lookedUp.add("s:http|h:com|h:site|p:page7");
+            List<String> known = lruIndex.retrieveKnownPageItemLRUs(lookedUp);
+            assertEquals("Unexpected # of known lrus", 501, known.size());
+            assertEquals("Unexpected known lru", "s:http|h:com|h:site|p:page1000", known.get(0));
+            assertFalse("Webentity lru known as page", known.contains("s:http|h:com|h:site"));
+            assertNull("Unexpected pageItem", lruIndex.retrievePageItemByLRU("s:http|h:com|h:site|p:page1500"));
+            assertNotNull("PageItem not found", lruIndex.retrievePageItemByLRU("s:http|h:com|h:site|p:page1499"));
+
+            lruIndex.clearIndex();
+            assertEquals("Unexpected # of known lrus after clear", 0, lruIndex.retrieveKnownPageItemLRUs(lookedUp).size());
+        }
+        catch(IndexException x) {
+            fail(x.getMessage());
+        }
+    }
+
+    /**
+     * Tests that reads in progress while batches are indexed all succeed, each on a consistent state of the index.
+     */
+    public void testReadsDuringWrites() {
+        logger.debug("testReadsDuringWrites");
+        try {
+            Set<String> lrus = new HashSet<String>();
+            lrus.add("s:http|h:com|h:site");
+            lruIndex.indexWebEntity(new WebEntity().setName("site").setLRUSet(lrus));
+
+            final AtomicBoolean writing = new AtomicBoolean(true);
+            final AtomicInteger reads = new AtomicInteger();
+            final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+            List<Thread> readers = new ArrayList<Thread>();
+            for(int t = 0; t < 4; t++) {
+                Thread reader = new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            while(writing.get()) {
+                                WebEntity webEntity = lruIndex.retrieveWebEntityMatchingLRU("s:http|h:com|h:site|p:page1");
+                                if(webEntity == null || !"site".equals(webEntity.getName())) {
+                                    errors.add(new AssertionError("Webentity not found during writes"));
+                                }
+                                PageItem pageItem = lruIndex.retrievePageItemByLRU("s:http|h:com|h:site|p:page0");
+                                if(pageItem != null && !"s:http|h:com|h:site|p:page0".equals(pageItem.getLru())) {
+                                    errors.add(new AssertionError("Unexpected pageItem " + pageItem.getLru()));
+                                }
+                                reads.incrementAndGet();
+                            }
+                        }
+                        catch(Throwable x) {
+                            errors.add(x);
+                        }
+                    }
+                });
+                readers.add(reader);
+                reader.start();
+            }
+            for(int batch = 0; batch < 10; batch++) {
+                List<Object> pageItems = new ArrayList<Object>();
+                for(int i = 0; i < 200; i++) {
+                    Set<String> sources = new HashSet<String>();
+                    sources.add("crawl");
+                    pageItems.add(new PageItem().setLru("s:http|h:com|h:site|p:page" + (batch * 200 + i)).setSourceSet(sources));
+                }
+                lruIndex.batchIndex(pageItems);
+            }
+            writing.set(false);
+            for(Thread reader : readers) {
+                reader.join();
+            }
+            assertTrue("Errors while reading: " + errors, errors.isEmpty());
+            assertTrue("No reads", reads.get() > 0);
+            assertEquals("Unexpected # of pages", 2000, lruIndex.retrievePageItems().size());
+        }
+        catch(IndexException x) {
+            fail(x.getMessage());
+        }
+        catch(InterruptedException x) {
+            fail(x.getMessage());
+        }
+    }
+
+    /**
+     * Tests that webentities are found by their exact LRU prefix after pages are indexed, and after webentities are
+     * updated or deleted.
+     */
+    public void testWebEntityByLRUPrefixAfterChanges() {
+        logger.debug("testWebEntityByLRUPrefixAfterChanges");
+        try {
+            Set<String> lrus = new HashSet<String>();
+            lrus.add("s:http|h:com|h:site");
+            String id = lruIndex.indexWebEntity(new WebEntity().setName("site").setLRUSet(lrus));
+            Set<String> otherLrus = new HashSet<String>();
+            otherLrus.add("s:http|h:com|h:other");
+            String otherId = lruIndex.indexWebEntity(new WebEntity().setName("other").setLRUSet(otherLrus));
+            assertEquals("Unexpected webentity", id, lruIndex.retrieveWebEntityByLRUPrefix("s:http|h:com|h:site").getId());
+
+            // snapshots published for pages only keep the webentities by prefix of the previous one
+            for(int batch = 0; batch < 3; batch++) {
+                List<Object> pageItems = new ArrayList<Object>();
+                for(int i = 0; i < 100; i++) {
+                    pageItems.add(new PageItem().setLru("s:http|h:com|h:site|p:page" + (batch * 100 + i)));
+                }
+                lruIndex.batchIndex(pageItems);
+                assertEquals("Unexpected webentity after pages", id, lruIndex.retrieveWebEntityByLRUPrefix("s:http|h:com|h:site").getId());
+            }
+
+            Set<String> newLrus = new HashSet<String>();
+            newLrus.add("s:http|h:com|h:site|p:new");
+            lruIndex.indexWebEntity(new WebEntity().setId(id).setName("site").setLRUSet(newLrus), false, true);
+            assertNull("Webentity found by its former prefix", lruIndex.retrieveWebEntityByLRUPrefix("s:http|h:com|h:site"));
+            assertEquals("Unexpected webentity after update", id, lruIndex.retrieveWebEntityByLRUPrefix("s:http|h:com|h:site|p:new").getId());
+
+            lruIndex.deleteWebEntity(new WebEntity().setId(otherId));
+            assertNull("Deleted webentity found", lruIndex.retrieveWebEntityByLRUPrefix("s:http|h:com|h:other"));
+            assertEquals("Unexpected webentity after deletion", id, lruIndex.retrieveWebEntityByLRUPrefix("s:http|h:com|h:site|p:new").getId());
+        }
+        catch(IndexException x) {
+            fail(x.getMessage());
+        }
+    }
+
     public void xtestBatchIndexPageItem() throws Exception {
 
         int totalDocCount = 0;
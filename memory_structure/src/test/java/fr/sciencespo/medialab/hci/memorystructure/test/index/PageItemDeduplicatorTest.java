@@ -0,0 +1,85 @@
+package fr.sciencespo.medialab.hci.memorystructure.test.index;
+
+import fr.sciencespo.medialab.hci.memorystructure.index.PageItemDeduplicator;
+import fr.sciencespo.medialab.hci.memorystructure.thrift.NodeLink;
+import fr.sciencespo.medialab.hci.memorystructure.thrift.PageItem;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Test PageItemDeduplicator.
+ *
+ * @author agent
+ */
+public class PageItemDeduplicatorTest extends TestCase {
+
+    /**
+     * Tests that duplicate pageItems are merged into the first one and other objects are kept in order.
+     */
+    public void testDeduplicate() {
+        List<Object> objects = new ArrayList<Object>();
+        PageItem first = pageItem("s:http|h:com|h:site|p:a", "1000", 2, "CRAWL");
+        objects.add(first);
+        NodeLink nodeLink = new NodeLink().setSourceLRU("s:http|h:com|h:site").setTargetLRU("s:http|h:com|h:other").setWeight(1);
+        objects.add(nodeLink);
+        objects.add(pageItem("s:http|h:com|h:other", "1000", 0, "CRAWL"));
+        PageItem duplicate = pageItem("s:http|h:com|h:site|p:a", "1200", 1, "LINK").setHttpStatusCode(200);
+        objects.add(duplicate);
+        objects.add(pageItem("s:http|h:com|h:site|p:a", "999", 3, "CRAWL"));
+
+        List<Object> result = PageItemDeduplicator.deduplicate(objects);
+        assertEquals("Unexpected # of objects", 3, result.size());
+        assertSame("Unexpected object", first, result.get(0));
+        assertSame("Unexpected object", nodeLink, result.get(1));
+        assertEquals("Unexpected lru", "s:http|h:com|h:other", ((PageItem) result.get(2)).getLru());
+
+        assertEquals("Unexpected sources", 2, first.getSourceSet().size());
+        assertEquals("Unexpected depth", 1, first.getDepth());
+        assertEquals("Unexpected crawler timestamp", "1200", first.getCrawlerTimestamp());
+        assertEquals("Unexpected status", 200, first.getHttpStatusCode());
+    }
+
+    /**
+     * Tests that a batch without duplicates is returned as it is, and that many lrus are told apart.
+     */
+    public void testNoDuplicates() {
+        List<Object> objects = new ArrayList<Object>();
+        for(int i = 0; i < 100000; i++) {
+            objects.add(pageItem("s:http|h:com|h:site" + (i % 500) + "|p:page" + i, "1000", 1, "CRAWL"));
+        }
+        assertSame("Unexpected copy of the batch", objects, PageItemDeduplicator.deduplicate(objects));
+
+        objects.add(pageItem("s:http|h:com|h:site7|p:page7", "1000", 1, "LINK"));
+        List<Object> result = PageItemDeduplicator.deduplicate(objects);
+        assertEquals("Unexpected # of objects", 100000, result.size());
+        assertEquals("Unexpected sources", 2, ((PageItem) result.get(7)).getSourceSet().size());
+    }
+
+    private PageItem pageItem(String lru, String crawlerTimestamp, int depth, String source) {
+        Set<String> sources = new HashSet<String>();
+        sources.add(source);
+        return new PageItem().setLru(lru).setCrawlerTimestamp(crawlerTimestamp).setDepth(depth).setSourceSet(sources);
+    }
+
+    /**
+     * Creates the test case.
+     *
+     * @param testName name of the test case
+     */
+    public PageItemDeduplicatorTest(String testName) {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite( PageItemDeduplicatorTest.class );
+    }
+}
@@ -0,0 +1,114 @@
+package fr.sciencespo.medialab.hci.memorystructure.test.index;
+
+import fr.sciencespo.medialab.hci.memorystructure.index.IndexConfiguration;
+import fr.sciencespo.medialab.hci.memorystructure.index.IndexException;
+import fr.sciencespo.medialab.hci.memorystructure.index.LRUIndex;
+import fr.sciencespo.medialab.hci.memorystructure.index.WebEntityCreationRuleEngine;
+import fr.sciencespo.medialab.hci.memorystructure.thrift.WebEntityCreationRule;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.apache.lucene.index.IndexWriterConfig;
+
+/**
+ * Test WebEntityCreationRuleEngine.
+ *
+ * @author agent
+ */
+public class WebEntityCreationRuleEngineTest extends TestCase {
+
+    private LRUIndex lruIndex;
+
+    private WebEntityCreationRule createRule(String lru, String regExp) {
+        WebEntityCreationRule rule = new WebEntityCreationRule();
+        rule.setLRU(lru);
+        rule.setRegExp(regExp);
+        return rule;
+    }
+
+    /**
+     * Tests that the longest rule LRU a page starts with is found, and that the default rule applies otherwise.
+     */
+    public void testLRUPrefix() {
+        try {
+            lruIndex.indexWebEntityCreationRule(createRule(IndexConfiguration.DEFAULT_WEBENTITY_CREATION_RULE, "(s:[a-zA-Z]+\\|(h:www|)?h:[a-zA-Z]+(\\|h:[^|]+)+)"));
+            lruIndex.indexWebEntityCreationRule(createRule("s:http|h:com|h:blogspot", "(s:http\\|h:com\\|h:blogspot\\|h:[^|]+)"));
+            lruIndex.indexWebEntityCreationRule(createRule("s:http|h:com|h:blogspot|h:news|p:archive", "(s:http\\|h:com\\|h:blogspot\\|h:news\\|p:archive)"));
+            WebEntityCreationRuleEngine rules = lruIndex.getWebEntityCreationRuleEngine();
+            assertEquals("Unexpected # of rules", 2, rules.getRuleCount());
+
+            String lru = "s:http|h:com|h:blogspot|h:news|p:archive|p:2012";
+            String defaultPrefix = rules.getDefaultLRUPrefix(lru);
+            assertEquals("Unexpected default prefix", "s:http|h:com|h:blogspot|h:news", defaultPrefix);
+            assertEquals("Unexpected rule", "s:http|h:com|h:blogspot|h:news|p:archive", rules.findRule(lru).getLRU());
+            assertEquals("Unexpected prefix", "s:http|h:com|h:blogspot|h:news|p:archive", rules.getLRUPrefix(lru, defaultPrefix));
+
+            lru = "s:http|h:com|h:blogspot|h:sports|p:2012";
+            defaultPrefix = rules.getDefaultLRUPrefix(lru);
+            assertEquals("Unexpected rule", "s:http|h:com|h:blogspot", rules.findRule(lru).getLRU());
+            assertEquals("Unexpected prefix", "s:http|h:com|h:blogspot|h:sports", rules.getLRUPrefix(lru, defaultPrefix));
+
+            lru = "s:http|h:org|h:wikipedia|p:wiki";
+            assertNull("Unexpected rule", rules.findRule(lru));
+            assertEquals("Unexpected prefix", "s:http|h:org|h:wikipedia", rules.getLRUPrefix(lru, rules.getDefaultLRUPrefix(lru)));
+        }
+        catch(IndexException x) {
+            fail(x.getMessage());
+        }
+    }
+
+    /**
+     * Tests that rules are compiled again only after they are saved or deleted.
+     */
+    public void testRecompiledWhenRulesChange() {
+        try {
+            WebEntityCreationRule rule = createRule("s:http|h:com|h:blogspot", "(s:http\\|h:com\\|h:blogspot\\|h:[^|]+)");
+            WebEntityCreationRuleEngine empty = lruIndex.getWebEntityCreationRuleEngine();
+            assertNull("Unexpected default rule", empty.getDefaultRule());
+            assertSame("Rules compiled again without change", empty, lruIndex.getWebEntityCreationRuleEngine());
+
+            lruIndex.indexWebEntityCreationRule(rule);
+            WebEntityCreationRuleEngine saved = lruIndex.getWebEntityCreationRuleEngine();
+            assertNotSame("Rules not compiled again after save", empty, saved);
+            assertEquals("Unexpected # of rules", 1, saved.getRuleCount());
+
+            lruIndex.deleteWebEntityCreationRule(rule);
+            WebEntityCreationRuleEngine deleted = lruIndex.getWebEntityCreationRuleEngine();
+            assertEquals("Unexpected # of rules after delete", 0, deleted.getRuleCount());
+            assertNull("Unexpected rule after delete", deleted.findRule("s:http|h:com|h:blogspot|h:news"));
+        }
+        catch(IndexException x) {
+            fail(x.getMessage());
+        }
+    }
+
+    /**
+     * Invoked before each test* method.
+     */
+    public void setUp() {
+        lruIndex = LRUIndex.getInstance("luceneindex", IndexWriterConfig.OpenMode.CREATE);
+    }
+
+    /**
+     * Invoked after each test* method.
+     */
+    public void tearDown() throws Exception {
+        lruIndex.clearIndex();
+    }
+
+    /**
+     * Creates the test case.
+     *
+     * @param testName name of the test case
+     */
+    public WebEntityCreationRuleEngineTest(String testName) {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite( WebEntityCreationRuleEngineTest.class );
+    }
+}
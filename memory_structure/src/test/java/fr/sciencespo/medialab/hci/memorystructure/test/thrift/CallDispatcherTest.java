@@ -0,0 +1,182 @@
+package fr.sciencespo.medialab.hci.memorystructure.test.thrift;
+
+import fr.sciencespo.medialab.hci.memorystructure.thrift.CallDispatcher;
+import fr.sciencespo.medialab.hci.memorystructure.thrift.CallMetrics;
+import fr.sciencespo.medialab.hci.memorystructure.thrift.MemoryStructure;
+import fr.sciencespo.medialab.hci.memorystructure.thrift.MemoryStructureException;
+import fr.sciencespo.medialab.hci.memorystructure.thrift.MethodMetrics;
+import fr.sciencespo.medialab.hci.memorystructure.thrift.ObjectNotFoundException;
+import fr.sciencespo.medialab.hci.memorystructure.thrift.PingPong;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.apache.thrift.TException;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test CallDispatcher.
+ *
+ * @author agent
+ */
+public class CallDispatcherTest extends TestCase {
+
+    private CountDownLatch started;
+    private CountDownLatch release;
+    private CallMetrics callMetrics;
+    private CallDispatcher callDispatcher;
+    private MemoryStructure.Iface memoryStructure;
+
+    /**
+     * Tests that analytics calls beyond their pool are refused at once, while interactive calls still run, and that
+     * all calls are counted.
+     */
+    public void testAdmissionControl() {
+        try {
+            Thread analytics = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        memoryStructure.generateWebEntityLinks();
+                    }
+                    catch(MemoryStructureException x) {
+                        // not thrown by the test service
+                    }
+                    catch(TException x) {
+                        // not thrown by the test service
+                    }
+                }
+            });
+            analytics.start();
+            assertTrue("Analytics call not started", started.await(10, TimeUnit.SECONDS));
+            assertEquals("Unexpected # of running analytics calls", 1, callDispatcher.getActiveCalls(CallDispatcher.CallClass.ANALYTICS));
+
+            long start = System.currentTimeMillis();
+            try {
+                memoryStructure.getNodeLinks();
+                fail("Analytics call accepted beyond its pool");
+            }
+            catch(MemoryStructureException x) {
+                assertTrue("Unexpected message " + x.getMsg(), x.getMsg().startsWith("Server overloaded"));
+            }
+            assertTrue("Refusal waited", System.currentTimeMillis() - start < 1000);
+            assertEquals("Unexpected # of refused calls", 1, callDispatcher.getRejectedCalls(CallDispatcher.CallClass.ANALYTICS));
+
+            List<PingPong> pong = memoryStructure.ping();
+            assertEquals("Unexpected ping", 1, pong.size());
+
+            release.countDown();
+            analytics.join();
+
+            List<MethodMetrics> metrics = callMetrics.getMetrics();
+            assertEquals("Unexpected # of methods called", 3, metrics.size());
+            for(MethodMetrics methodMetrics : metrics) {
+                assertEquals("Unexpected # of calls of " + methodMetrics.getMethod(), 1, methodMetrics.getCalls());
+                assertEquals("Unexpected # of calls in progress", 0, methodMetrics.getInFlight());
+            }
+            assertEquals("Unexpected # of errors", 1, callMetrics.getMethodStats("getNodeLinks").getErrors());
+            assertTrue("Unexpected latency", callMetrics.getMethodStats("generateWebEntityLinks").getP99Micros() >=
+                    callMetrics.getMethodStats("ping").getP99Micros());
+        }
+        catch(TException x) {
+            fail(x.getMessage());
+        }
+        catch(InterruptedException x) {
+            fail(x.getMessage());
+        }
+    }
+
+    /**
+     * Tests that exceptions of the service reach the caller as they were thrown.
+     */
+    public void testExceptions() {
+        try {
+            memoryStructure.getWebEntity("unknown");
+            fail("Exception expected");
+        }
+        catch(ObjectNotFoundException x) {
+            assertEquals("Unexpected message", "unknown", x.getMsg());
+        }
+        catch(MemoryStructureException x) {
+            fail(x.getMessage());
+        }
+        catch(TException x) {
+            fail(x.getMessage());
+        }
+    }
+
+    /**
+     * Tests the classes of calls.
+     */
+    public void testCallClasses() {
+        assertEquals("Unexpected class", CallDispatcher.CallClass.INTERACTIVE, CallDispatcher.classOf("getWebEntity"));
+        assertEquals("Unexpected class", CallDispatcher.CallClass.BULK_INGEST, CallDispatcher.classOf("indexCache"));
+        assertEquals("Unexpected class", CallDispatcher.CallClass.ANALYTICS, CallDispatcher.classOf("generateWebEntityLinks"));
+        assertEquals("Unexpected class", CallDispatcher.CallClass.INTERACTIVE, CallDispatcher.classOf("getWebentityNodeLinks"));
+        assertEquals("Unexpected class", CallDispatcher.CallClass.INTERACTIVE, CallDispatcher.classOf("getWebEntityDegrees"));
+    }
+
+    /**
+     * Creates a dispatcher with one analytics thread and no analytics queue, over a service whose
+     * generateWebEntityLinks waits to be released.
+     */
+    @Override
+    public void setUp() {
+        started = new CountDownLatch(1);
+        release = new CountDownLatch(1);
+        MemoryStructure.Iface service = (MemoryStructure.Iface) Proxy.newProxyInstance(MemoryStructure.Iface.class.getClassLoader(),
+                new Class[] { MemoryStructure.Iface.class }, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if("generateWebEntityLinks".equals(method.getName())) {
+                    started.countDown();
+                    release.await(10, TimeUnit.SECONDS);
+                }
+                else if("ping".equals(method.getName())) {
+                    List<PingPong> pong = new ArrayList<PingPong>();
+                    pong.add(new PingPong("ping", "pong"));
+                    return pong;
+                }
+                else if("getWebEntity".equals(method.getName())) {
+                    throw new ObjectNotFoundException().setMsg((String) args[0]);
+                }
+                return null;
+            }
+        });
+        Map<CallDispatcher.CallClass, Integer> threads = new EnumMap<CallDispatcher.CallClass, Integer>(CallDispatcher.CallClass.class);
+        threads.put(CallDispatcher.CallClass.ANALYTICS, 1);
+        Map<CallDispatcher.CallClass, Integer> queueSizes = new EnumMap<CallDispatcher.CallClass, Integer>(CallDispatcher.CallClass.class);
+        queueSizes.put(CallDispatcher.CallClass.ANALYTICS, 0);
+        callMetrics = new CallMetrics();
+        callDispatcher = new CallDispatcher(service, callMetrics, threads, queueSizes);
+        memoryStructure = callDispatcher.getDispatchingService();
+    }
+
+    @Override
+    public void tearDown() {
+        release.countDown();
+        callDispatcher.shutdown();
+    }
+
+    /**
+     * Creates the test case.
+     *
+     * @param testName name of the test case
+     */
+    public CallDispatcherTest(String testName) {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite( CallDispatcherTest.class );
+    }
+}
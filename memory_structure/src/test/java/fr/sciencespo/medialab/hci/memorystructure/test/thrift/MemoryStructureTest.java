@@ -5,6 +5,7 @@ import fr.sciencespo.medialab.hci.memorystructure.index.IndexException;
 import fr.sciencespo.medialab.hci.memorystructure.index.LRUIndex;
 import fr.sciencespo.medialab.hci.memorystructure.thrift.MemoryStructureException;
 import fr.sciencespo.medialab.hci.memorystructure.thrift.MemoryStructureImpl;
+import fr.sciencespo.medialab.hci.memorystructure.thrift.NetworkExport;
 import fr.sciencespo.medialab.hci.memorystructure.thrift.NodeLink;
 import fr.sciencespo.medialab.hci.memorystructure.thrift.ObjectNotFoundException;
 import fr.sciencespo.medialab.hci.memorystructure.thrift.PageItem;
@@ -15,9 +16,12 @@ import fr.sciencespo.medialab.hci.memorystructure.util.DynamicLogger;
 import junit.framework.Assert;
 import junit.framework.TestCase;
 import org.apache.commons.collections.CollectionUtils;
+import org.apache.commons.io.FileUtils;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.thrift.TException;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
@@ -1358,6 +1362,41 @@ public class MemoryStructureTest extends TestCase {
         */
     }
 
+    /**
+     * Tests that network exports are written in the export directory, and refused outside of it.
+     */
+    public void testExportWebEntitiesNetworkInExportDirectory() {
+        logger.info("testExportWebEntitiesNetworkInExportDirectory");
+        File exportDirectory = new File(System.getProperty("java.io.tmpdir"), "memorystructure-exports");
+        exportDirectory.mkdirs();
+        memoryStructure.setExportDirectory(exportDirectory);
+        try {
+            NetworkExport export = memoryStructure.exportWebEntitiesNetwork("graphml", "network.graphml");
+            assertEquals("Unexpected path", new File(exportDirectory, "network.graphml").getCanonicalPath(), export.getPath());
+            assertTrue("Export not written", new File(export.getPath()).exists());
+
+            String[] outside = { "../network.graphml", new File(System.getProperty("java.io.tmpdir"), "network.graphml").getAbsolutePath(), "." };
+            for(String path : outside) {
+                try {
+                    memoryStructure.exportWebEntitiesNetwork("graphml", path);
+                    fail("Expected MemoryStructureException for " + path);
+                }
+                catch(MemoryStructureException x) {
+                    assertTrue("Unexpected message: " + x.getMsg(), x.getMsg().contains("outside of the export directory"));
+                }
+            }
+        }
+        catch(MemoryStructureException x) {
+            fail(x.getMsg());
+        }
+        catch(IOException x) {
+            fail(x.getMessage());
+        }
+        finally {
+            FileUtils.deleteQuietly(exportDirectory);
+        }
+    }
+
     /**
      * Invoked before each test* method.
      */
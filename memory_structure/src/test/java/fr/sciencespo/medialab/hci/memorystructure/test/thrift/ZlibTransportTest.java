@@ -0,0 +1,107 @@
+package fr.sciencespo.medialab.hci.memorystructure.test.thrift;
+
+import fr.sciencespo.medialab.hci.memorystructure.thrift.NodeLink;
+import fr.sciencespo.medialab.hci.memorystructure.thrift.ThriftServer;
+import fr.sciencespo.medialab.hci.memorystructure.thrift.ZlibTransport;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolFactory;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TMemoryBuffer;
+import org.apache.thrift.transport.TMemoryInputTransport;
+
+import java.util.Arrays;
+import java.util.zip.Inflater;
+
+/**
+ * Test ZlibTransport and the protocols of ThriftServer.
+ *
+ * @author agent
+ */
+public class ZlibTransportTest extends TestCase {
+
+    /**
+     * Tests that messages written one after the other are read back, each from a complete zlib stream.
+     */
+    public void testWriteAndRead() {
+        try {
+            TMemoryBuffer buffer = new TMemoryBuffer(1024);
+            ZlibTransport transport = new ZlibTransport(buffer);
+            for(int i = 0; i < 3; i++) {
+                byte[] message = ("s:http|h:com|h:site|p:page" + i + "|s:http|h:com|h:site|p:page" + i).getBytes("UTF-8");
+                transport.write(message, 0, message.length);
+                transport.flush();
+                if(i == 0) {
+                    Inflater inflater = new Inflater();
+                    inflater.setInput(Arrays.copyOf(buffer.getArray(), buffer.length()));
+                    byte[] inflated = new byte[1024];
+                    assertEquals("Unexpected zlib stream", message.length, inflater.inflate(inflated));
+                    assertTrue("Unexpected end of zlib stream", inflater.finished());
+                    assertTrue("Message not compressed", buffer.length() < message.length);
+                }
+            }
+            ZlibTransport reader = new ZlibTransport(new TMemoryInputTransport(Arrays.copyOf(buffer.getArray(), buffer.length())));
+            for(int i = 0; i < 3; i++) {
+                String expected = "s:http|h:com|h:site|p:page" + i + "|s:http|h:com|h:site|p:page" + i;
+                byte[] read = new byte[expected.length()];
+                reader.readAll(read, 0, read.length);
+                assertEquals("Unexpected message", expected, new String(read, "UTF-8"));
+            }
+        }
+        catch(Exception x) {
+            fail(x.getMessage());
+        }
+    }
+
+    /**
+     * Tests that objects are read back with each protocol and transport the server can use.
+     */
+    public void testProtocols() {
+        NodeLink nodeLink = new NodeLink().setId("1").setSourceLRU("s:http|h:com|h:site").setTargetLRU("s:http|h:com|h:other").setWeight(3);
+        for(String protocol : new String[] { "binary", "compact" }) {
+            for(String transport : new String[] { "framed", "zlib" }) {
+                try {
+                    TProtocolFactory protocolFactory = ThriftServer.createProtocolFactory(protocol, transport);
+                    TMemoryBuffer buffer = new TMemoryBuffer(1024);
+                    TProtocol out = protocolFactory.getProtocol(new TFramedTransport(buffer));
+                    nodeLink.write(out);
+                    out.getTransport().flush();
+
+                    TProtocol in = protocolFactory.getProtocol(new TFramedTransport(new TMemoryInputTransport(Arrays.copyOf(buffer.getArray(), buffer.length()))));
+                    NodeLink read = new NodeLink();
+                    read.read(in);
+                    assertEquals("Unexpected nodelink with " + protocol + " " + transport, nodeLink, read);
+                }
+                catch(TException x) {
+                    fail(x.getMessage());
+                }
+            }
+        }
+        try {
+            ThriftServer.createProtocolFactory("json", "framed");
+            fail("Unknown protocol accepted");
+        }
+        catch(IllegalArgumentException x) {
+            // expected
+        }
+    }
+
+    /**
+     * Creates the test case.
+     *
+     * @param testName name of the test case
+     */
+    public ZlibTransportTest(String testName) {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite( ZlibTransportTest.class );
+    }
+}
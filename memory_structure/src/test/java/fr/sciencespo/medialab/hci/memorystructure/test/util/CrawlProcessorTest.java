@@ -0,0 +1,113 @@
+package fr.sciencespo.medialab.hci.memorystructure.test.util;
+
+import fr.sciencespo.medialab.hci.memorystructure.thrift.CrawledPage;
+import fr.sciencespo.medialab.hci.memorystructure.thrift.NodeLink;
+import fr.sciencespo.medialab.hci.memorystructure.thrift.PageItem;
+import fr.sciencespo.medialab.hci.memorystructure.util.CrawlProcessor;
+import fr.sciencespo.medialab.hci.memorystructure.util.LRUUtil;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Test CrawlProcessor and the lru functions it uses.
+ *
+ * @author agent
+ */
+public class CrawlProcessorTest extends TestCase {
+
+    /**
+     * Tests cleaning lrus, their nodes and converting them to urls.
+     */
+    public void testLRUFunctions() {
+        assertEquals("Unexpected clean lru", "s:http|h:com|h:site", LRUUtil.cleanLRU("s:http|t:80|h:com|h:site|p:"));
+        assertEquals("Unexpected clean lru", "s:https|t:443|h:com|h:site|p:a|p:", LRUUtil.cleanLRU("s:https|t:443|h:com|h:site|p:a|p:"));
+
+        List<String> precisionExceptions = new ArrayList<String>();
+        String lru = "s:http|h:com|h:site|p:a|p:b";
+        String head = LRUUtil.getLRUHead(lru, precisionExceptions);
+        assertEquals("Unexpected head", "s:http|h:com|h:site", head);
+        assertFalse("Unexpected node", LRUUtil.isLRUNode(lru, 1, head));
+        assertEquals("Unexpected node", "s:http|h:com|h:site|p:a", LRUUtil.getLRUNode(lru, 1, head));
+        assertTrue("Unexpected node", LRUUtil.isLRUNode(lru, 2, head));
+
+        precisionExceptions.add("s:http|h:com|h:site|p:a|p:b");
+        assertEquals("Unexpected head", "s:http|h:com|h:site|p:a|p:b", LRUUtil.getLRUHead(lru, precisionExceptions));
+
+        assertEquals("Unexpected url", "http://other.com/x/y", LRUUtil.LRUToURL("s:http|h:com|h:other|p:x|p:y"));
+        assertEquals("Unexpected url", "https://example.org:8080/?b=1 2", LRUUtil.LRUToURL("s:https|t:8080|h:org|h:example|p:|q:b%3D1+2"));
+    }
+
+    /**
+     * Tests that pages are merged, linked pages added and links aggregated between nodes.
+     */
+    public void testProcess() {
+        CrawledPage site = new CrawledPage().setId("1").setUrl("http://site.com/a/b/").setLru("s:http|t:80|h:com|h:site|p:a|p:b|p:")
+                .setCrawlerTimestamp("1000").setHttpStatusCode(200).setDepth(1)
+                .setLruLinks(Arrays.asList("s:http|t:80|h:com|h:other|p:", "s:http|t:80|h:com|h:site|p:a|p:c",
+                        "s:http|t:80|h:com|h:site|p:a|p:c", "s:http|t:80|h:com|h:other|p:x|p:y"));
+        CrawledPage other = new CrawledPage().setId("2").setUrl("http://other.com/").setLru("s:http|h:com|h:other")
+                .setCrawlerTimestamp("1001").setHttpStatusCode(200).setDepth(0)
+                .setLruLinks(Arrays.asList("s:http|h:com|h:site|p:a|p:b|p:"));
+
+        CrawlProcessor crawlProcessor = new CrawlProcessor(1, Arrays.asList("s:http|h:com|h:site|p:a|p:c"));
+        crawlProcessor.add(site);
+        crawlProcessor.add(other);
+
+        Map<String, PageItem> pageItems = new HashMap<String, PageItem>();
+        for(PageItem pageItem : crawlProcessor.getPageItems()) {
+            pageItems.put(pageItem.getLru(), pageItem);
+        }
+        assertEquals("Unexpected # of pages", 4, pageItems.size());
+        PageItem page = pageItems.get("s:http|h:com|h:site|p:a|p:b|p:");
+        assertEquals("Unexpected sources", 2, page.getSourceSet().size());
+        assertFalse("Unexpected node", page.isIsNode());
+        assertEquals("Unexpected status", 200, page.getHttpStatusCode());
+
+        page = pageItems.get("s:http|h:com|h:other");
+        assertEquals("Unexpected id", "1_0", page.getId());
+        assertEquals("Unexpected url", "http://other.com", page.getUrl());
+        assertTrue("Unexpected sources", page.getSourceSet().contains(CrawlProcessor.SOURCE_CRAWL) && page.getSourceSet().contains(CrawlProcessor.SOURCE_LINK));
+        assertEquals("Unexpected depth", 0, page.getDepth());
+        assertTrue("Unexpected node", page.isIsNode());
+
+        page = pageItems.get("s:http|h:com|h:site|p:a|p:c");
+        assertTrue("Unexpected precision", page.isIsFullPrecision());
+        assertTrue("Unexpected node", page.isIsNode());
+        assertFalse("Unexpected status", page.isSetHttpStatusCode());
+        assertEquals("Unexpected depth", 2, page.getDepth());
+
+        assertEquals("Unexpected # of links", 5, crawlProcessor.getLinkCount());
+        Map<String, Integer> weights = new HashMap<String, Integer>();
+        for(NodeLink nodeLink : crawlProcessor.getNodeLinks()) {
+            weights.put(nodeLink.getSourceLRU() + " " + nodeLink.getTargetLRU(), nodeLink.getWeight());
+        }
+        assertEquals("Unexpected # of nodelinks", 4, weights.size());
+        assertEquals("Unexpected weight", Integer.valueOf(2), weights.get("s:http|h:com|h:site|p:a s:http|h:com|h:site|p:a|p:c"));
+        assertEquals("Unexpected weight", Integer.valueOf(1), weights.get("s:http|h:com|h:site|p:a s:http|h:com|h:other"));
+        assertEquals("Unexpected weight", Integer.valueOf(1), weights.get("s:http|h:com|h:site|p:a s:http|h:com|h:other|p:x"));
+        assertEquals("Unexpected weight", Integer.valueOf(1), weights.get("s:http|h:com|h:other s:http|h:com|h:site|p:a"));
+    }
+
+    /**
+     * Creates the test case.
+     *
+     * @param testName name of the test case
+     */
+    public CrawlProcessorTest(String testName) {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite( CrawlProcessorTest.class );
+    }
+}
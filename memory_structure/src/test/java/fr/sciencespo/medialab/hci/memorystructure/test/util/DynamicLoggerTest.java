@@ -0,0 +1,107 @@
+package fr.sciencespo.medialab.hci.memorystructure.test.util;
+
+import fr.sciencespo.medialab.hci.memorystructure.util.DynamicLogger;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.apache.log4j.WriterAppender;
+
+import java.io.StringWriter;
+
+/**
+ * Test DynamicLogger.
+ *
+ * @author agent
+ */
+public class DynamicLoggerTest extends TestCase {
+
+    private StringWriter output;
+    private WriterAppender appender;
+
+    /**
+     * Tests that each logger logs under its own class, whichever was created last.
+     */
+    public void testLoggerPerClass() {
+        DynamicLogger first = new DynamicLogger(DynamicLoggerTest.class);
+        new DynamicLogger(String.class);
+        first.info("hello");
+        assertEquals("Unexpected logger", DynamicLoggerTest.class.getName() + " hello", output.toString().trim());
+    }
+
+    /**
+     * Tests that arguments are formatted only when their level is enabled.
+     */
+    public void testParameters() {
+        DynamicLogger logger = new DynamicLogger(DynamicLoggerTest.class);
+        CountingToString argument = new CountingToString();
+        DynamicLogger.setLogLevel("INFO");
+        assertFalse("Debug enabled at INFO", logger.isDebugEnabled());
+        logger.debug("value {}", argument);
+        logger.trace("value {} and {}", argument, argument);
+        assertEquals("Argument formatted while debug disabled", 0, argument.count);
+        assertEquals("Unexpected output", "", output.toString());
+
+        DynamicLogger.setLogLevel("DEBUG");
+        assertFalse("Trace enabled at DEBUG", logger.isTraceEnabled());
+        logger.debug("value {} of {} in {}", argument, 2, "test");
+        assertEquals("Argument not formatted once", 1, argument.count);
+        assertEquals("Unexpected message", DynamicLoggerTest.class.getName() + " value argument of 2 in test", output.toString().trim());
+    }
+
+    /**
+     * Tests that debug messages start with their method and line only when asked.
+     */
+    public void testCallerLocation() {
+        DynamicLogger logger = new DynamicLogger(DynamicLoggerTest.class);
+        logger.debug("plain");
+        assertEquals("Unexpected message", DynamicLoggerTest.class.getName() + " plain", output.toString().trim());
+        output.getBuffer().setLength(0);
+        DynamicLogger.setCallerLocation(true);
+        logger.debug("located {}", 1);
+        assertTrue("No caller location: " + output, output.toString().trim().startsWith(DynamicLoggerTest.class.getName() + " testCallerLocation:"));
+        assertTrue("Unexpected message: " + output, output.toString().trim().endsWith(" located 1"));
+    }
+
+    private static class CountingToString {
+        int count = 0;
+
+        @Override
+        public String toString() {
+            count++;
+            return "argument";
+        }
+    }
+
+    @Override
+    protected void setUp() {
+        DynamicLogger.setLogLevel("DEBUG");
+        output = new StringWriter();
+        appender = new WriterAppender(new PatternLayout("%c %m%n"), output);
+        Logger.getRootLogger().addAppender(appender);
+    }
+
+    @Override
+    protected void tearDown() {
+        Logger.getRootLogger().removeAppender(appender);
+        DynamicLogger.setCallerLocation(false);
+        DynamicLogger.setLogLevel("DEBUG");
+    }
+
+    /**
+     * Creates the test case.
+     *
+     * @param testName name of the test case
+     */
+    public DynamicLoggerTest(String testName) {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite( DynamicLoggerTest.class );
+    }
+}
@@ -0,0 +1,65 @@
+package fr.sciencespo.medialab.hci.memorystructure.test.util;
+
+import fr.sciencespo.medialab.hci.memorystructure.util.LatencyHistogram;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Test LatencyHistogram.
+ *
+ * @author agent
+ */
+public class LatencyHistogramTest extends TestCase {
+
+    /**
+     * Tests that percentiles are within the precision of the buckets.
+     */
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals("Unexpected percentile of empty histogram", 0, histogram.getPercentile(99));
+        for(long micros = 1; micros <= 100000; micros++) {
+            histogram.record(micros);
+        }
+        assertEquals("Unexpected count", 100000, histogram.getCount());
+        assertEquals("Unexpected max", 100000, histogram.getMax());
+        assertEquals("Unexpected mean", 50000, histogram.getMean());
+        assertWithinPrecision(50000, histogram.getPercentile(50));
+        assertWithinPrecision(90000, histogram.getPercentile(90));
+        assertWithinPrecision(99000, histogram.getPercentile(99));
+        assertEquals("Unexpected 100th percentile", 100000, histogram.getPercentile(100));
+    }
+
+    /**
+     * Tests small values, which have a bucket each, and values beyond the last bucket.
+     */
+    public void testLimits() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for(int i = 0; i < 99; i++) {
+            histogram.record(3);
+        }
+        histogram.record(Long.MAX_VALUE / 2);
+        assertEquals("Unexpected 99th percentile", 3, histogram.getPercentile(99));
+        assertEquals("Unexpected 100th percentile", Long.MAX_VALUE / 2, histogram.getPercentile(100));
+    }
+
+    private void assertWithinPrecision(long expected, long actual) {
+        assertTrue("Percentile " + actual + " too far from " + expected, actual >= expected && actual <= expected * 1.07);
+    }
+
+    /**
+     * Creates the test case.
+     *
+     * @param testName name of the test case
+     */
+    public LatencyHistogramTest(String testName) {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite( LatencyHistogramTest.class );
+    }
+}